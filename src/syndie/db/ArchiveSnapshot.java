@@ -0,0 +1,329 @@
+package syndie.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.i2p.crypto.SHA256Generator;
+import net.i2p.data.DataFormatException;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.FileUtil;
+import net.i2p.util.SecureFile;
+
+import syndie.data.SyndieURI;
+
+/**
+ *  The whole published archive in one file, so a new node can bootstrap
+ *  with one large (and resumable) transfer instead of thousands of small fetches.
+ *
+ *  Format:
+ *<pre>
+ *  8 bytes  "SyndSnap"
+ *  1 byte   version (1)
+ *  8 bytes  creation date
+ *  4 bytes  index length, then the shared index (see SharedArchive)
+ *  entries, each:
+ *    1 byte   type: 1 metadata, 2 post, 0 end (nothing follows)
+ *    32 bytes scope
+ *    8 bytes  message ID, 0 for metadata
+ *    4 bytes  length, then the .syndie file
+ *    32 bytes SHA-256 of the file
+ *</pre>
+ *
+ *  All the metadata comes first, then the posts oldest first, so that
+ *  a post's channel (and usually its parent) is imported before it.
+ *  Only what's in the published index is included.
+ *
+ *  HTTPServ builds it next to the shared index if the httpserv.snapshot pref is set,
+ *  or it's built with the buildsnapshot command, and an archive URL
+ *  ending in SNAPSHOT_FILE, http or file, is synced from it, see
+ *  IndexFetcher and SyncInboundFetcher.
+ *
+ *  @since 1.107b-1
+ */
+class ArchiveSnapshot {
+    public static final String SNAPSHOT_FILE = "shared-snapshot.dat";
+
+    private static final byte[] MAGIC = DataHelper.getASCII("SyndSnap");
+    private static final int VERSION = 1;
+    private static final int TYPE_END = 0;
+    private static final int TYPE_META = 1;
+    private static final int TYPE_POST = 2;
+    private static final int MAX_INDEX_SIZE = 32*1024*1024;
+    private static final int MAX_ENTRY_SIZE = 32*1024*1024;
+
+    /**
+     *  @return true if the archive URL names a snapshot instead of an archive
+     */
+    public static boolean isSnapshot(String url) {
+        if (url == null)
+            return false;
+        int q = url.indexOf('?');
+        if (q >= 0)
+            url = url.substring(0, q);
+        return url.endsWith("/" + SNAPSHOT_FILE) || url.equals(SNAPSHOT_FILE);
+    }
+
+    /**
+     *  Build a snapshot of what the index publishes in a temp file next to the target,
+     *  then rename it over the target in one go, so anybody fetching the old one
+     *  keeps reading it and nobody gets half of the new one.
+     *
+     *  @param indexFile our published shared index
+     *  @param target replaced
+     */
+    public static void publish(DBClient client, UI ui, File indexFile, File target) throws IOException {
+        File tmp = SecureFile.createTempFile("snapshot", ".tmp", target.getAbsoluteFile().getParentFile());
+        try {
+            write(client, ui, indexFile, tmp);
+            if (!FileUtil.rename(tmp, target))
+                throw new IOException("Unable to move the snapshot to " + target);
+            tmp = null;
+        } finally {
+            if (tmp != null) tmp.delete();
+        }
+    }
+
+    /**
+     *  Build a snapshot of what the index publishes
+     *
+     *  @param indexFile our published shared index
+     *  @param target overwritten
+     */
+    public static void write(DBClient client, UI ui, File indexFile, File target) throws IOException {
+        byte index[] = readFile(indexFile, MAX_INDEX_SIZE);
+        SharedArchive archive = new SharedArchive();
+        archive.read(new ByteArrayInputStream(index));
+        File archiveDir = client.getArchiveDir();
+
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(target), 64*1024);
+            out.write(MAGIC);
+            writeLong(out, 1, VERSION);
+            writeLong(out, 8, System.currentTimeMillis());
+            writeLong(out, 4, index.length);
+            out.write(index);
+
+            SharedArchive.Channel channels[] = archive.getChannels();
+            int metas = 0;
+            for (int i = 0; i < channels.length; i++) {
+                Hash scope = Hash.create(channels[i].getScope());
+                File f = FileArchive.getFile(archiveDir, SyndieURI.createScope(scope));
+                if (f.isFile() && writeEntry(out, TYPE_META, scope, -1, f))
+                    metas++;
+            }
+
+            List<SharedArchive.Message> msgs = new ArrayList<SharedArchive.Message>(Arrays.asList(archive.getMessages()));
+            Collections.sort(msgs, new MessageIdComparator());
+            int posts = 0;
+            for (SharedArchive.Message msg : msgs) {
+                int idx = msg.getScopeIndex();
+                if (idx < 0 || idx >= channels.length)
+                    continue;
+                Hash scope = Hash.create(channels[idx].getScope());
+                File f = FileArchive.getFile(archiveDir, SyndieURI.createMessage(scope, msg.getMessageId()));
+                if (f.isFile() && writeEntry(out, TYPE_POST, scope, msg.getMessageId(), f))
+                    posts++;
+            }
+            out.write(TYPE_END);
+            out.close();
+            out = null;
+            ui.debugMessage("Snapshot built with " + metas + " channels and " + posts + " posts: " + target.length() + " bytes");
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  @return false if too big to include
+     */
+    private static boolean writeEntry(OutputStream out, int type, Hash scope, long messageId, File f) throws IOException {
+        byte data[];
+        try {
+            data = readFile(f, MAX_ENTRY_SIZE);
+        } catch (IOException ioe) {
+            return false;
+        }
+        out.write(type);
+        out.write(scope.getData());
+        writeLong(out, 8, Math.max(0, messageId));
+        writeLong(out, 4, data.length);
+        out.write(data);
+        out.write(SHA256Generator.getInstance().calculateHash(data).getData());
+        return true;
+    }
+
+    private static void writeLong(OutputStream out, int len, long val) throws IOException {
+        try {
+            DataHelper.writeLong(out, len, val);
+        } catch (DataFormatException dfe) {
+            throw new IOException(dfe.getMessage());
+        }
+    }
+
+    private static byte[] readFile(File f, int maxSize) throws IOException {
+        long len = f.length();
+        if (len > maxSize)
+            throw new IOException("Too big: " + f);
+        byte rv[] = new byte[(int) len];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(f);
+            readFully(in, rv);
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+        return rv;
+    }
+
+    private static void readFully(InputStream in, byte buf[]) throws IOException {
+        if (DataHelper.read(in, buf) != buf.length)
+            throw new IOException("Snapshot truncated");
+    }
+
+    private static class MessageIdComparator implements Comparator<SharedArchive.Message> {
+        public int compare(SharedArchive.Message l, SharedArchive.Message r) {
+            if (l.getMessageId() < r.getMessageId())
+                return -1;
+            if (l.getMessageId() > r.getMessageId())
+                return 1;
+            return 0;
+        }
+    }
+
+    /**
+     *  Reads a snapshot in order: the header and index in the constructor,
+     *  then next() and readData() or skipData() for each entry.
+     *  Not thread safe.
+     */
+    public static class Reader {
+        private final InputStream _in;
+        private final long _created;
+        private final SharedArchive _index;
+        private int _pending = -1;
+
+        /** reads the header and index, the caller must close in */
+        public Reader(InputStream in) throws IOException {
+            _in = new BufferedInputStream(in, 64*1024);
+            byte magic[] = new byte[MAGIC.length];
+            readFully(_in, magic);
+            if (!DataHelper.eq(magic, MAGIC))
+                throw new IOException("Not a snapshot");
+            try {
+                int version = (int) DataHelper.readLong(_in, 1);
+                if (version != VERSION)
+                    throw new IOException("Unsupported snapshot version " + version);
+                _created = DataHelper.readLong(_in, 8);
+                int len = (int) DataHelper.readLong(_in, 4);
+                if (len <= 0 || len > MAX_INDEX_SIZE)
+                    throw new IOException("Bad index size " + len);
+                byte index[] = new byte[len];
+                readFully(_in, index);
+                _index = new SharedArchive();
+                _index.read(new ByteArrayInputStream(index));
+            } catch (DataFormatException dfe) {
+                throw new IOException("Bad snapshot header: " + dfe.getMessage());
+            }
+        }
+
+        public long getCreated() { return _created; }
+
+        public SharedArchive getIndex() { return _index; }
+
+        /**
+         *  Read the next entry's header, skipping the rest of the last one if needed
+         *  @return null at the end
+         */
+        public SyndieURI next() throws IOException {
+            if (_pending >= 0)
+                skipData();
+            int type = _in.read();
+            if (type == TYPE_END)
+                return null;
+            if (type != TYPE_META && type != TYPE_POST)
+                throw new IOException("Bad snapshot entry type " + type);
+            try {
+                byte scope[] = new byte[Hash.HASH_LENGTH];
+                readFully(_in, scope);
+                long msgId = DataHelper.readLong(_in, 8);
+                int len = (int) DataHelper.readLong(_in, 4);
+                if (len < 0 || len > MAX_ENTRY_SIZE)
+                    throw new IOException("Bad snapshot entry size " + len);
+                _pending = len;
+                if (type == TYPE_META)
+                    return SyndieURI.createScope(Hash.create(scope));
+                return SyndieURI.createMessage(Hash.create(scope), msgId);
+            } catch (DataFormatException dfe) {
+                throw new IOException("Bad snapshot entry: " + dfe.getMessage());
+            }
+        }
+
+        /**
+         *  Copy the current entry to the file and check its hash.
+         *  The file is deleted if it doesn't match.
+         */
+        public void readData(File to) throws IOException {
+            if (_pending < 0)
+                throw new IllegalStateException();
+            MessageDigest md = SHA256Generator.getDigestInstance();
+            byte buf[] = new byte[16*1024];
+            FileOutputStream fos = null;
+            boolean ok = false;
+            try {
+                fos = new FileOutputStream(to);
+                int left = _pending;
+                while (left > 0) {
+                    int read = _in.read(buf, 0, Math.min(buf.length, left));
+                    if (read == -1)
+                        throw new IOException("Snapshot truncated");
+                    fos.write(buf, 0, read);
+                    md.update(buf, 0, read);
+                    left -= read;
+                }
+                _pending = -1;
+                byte expected[] = new byte[Hash.HASH_LENGTH];
+                readFully(_in, expected);
+                if (!DataHelper.eq(expected, md.digest()))
+                    throw new IOException("Snapshot entry hash mismatch");
+                ok = true;
+            } finally {
+                if (fos != null) try { fos.close(); } catch (IOException ioe) {}
+                if (!ok)
+                    to.delete();
+            }
+        }
+
+        /**
+         *  Skip the current entry
+         */
+        public void skipData() throws IOException {
+            if (_pending < 0)
+                return;
+            long left = _pending + Hash.HASH_LENGTH;
+            _pending = -1;
+            while (left > 0) {
+                long skipped = _in.skip(left);
+                if (skipped <= 0) {
+                    if (_in.read() == -1)
+                        throw new IOException("Snapshot truncated");
+                    skipped = 1;
+                }
+                left -= skipped;
+            }
+        }
+    }
+}
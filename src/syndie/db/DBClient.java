@@ -317,7 +317,12 @@ public class DBClient {
         
         // process all updates
         DBInit dbi = new DBInit(_context, _con);
-        dbi.initDB();
+        int oldVersion = dbi.initDB();
+        if (oldVersion >= 0 && oldVersion < 28) {
+            log("building the thread index start");
+            int count = ThreadIndex.rebuild(this);
+            log("building the thread index done, " + count + " posts");
+        }
 
         if (shouldDefrag) {
             log("migrating to lobs start");
@@ -504,6 +509,7 @@ public class DBClient {
     public void setDefaultFreenetPublicKey(String publicSSK) { _freenetPublicKey = publicSSK; }
     
     public void close() {
+        notifyChannelUpdated(-1);
         _login = null;
         _pass = null;
         _nymLogin = null;
@@ -4438,6 +4444,9 @@ public class DBClient {
         addBan(bannedChannel, ui);
         if (deleteMessages || deleteMeta)
             executeDelete(bannedChannel, ui, deleteMessages || deleteMeta, deleteMeta, DELETION_CAUSE_BAN);
+        long chanId = getChannelId(bannedChannel);
+        if (chanId >= 0)
+            notifyChannelUpdated(chanId);
     }
 
     private static final String SQL_BAN = "INSERT INTO banned (channelHash) VALUES (?)";
@@ -4503,6 +4512,7 @@ public class DBClient {
         if (uri.getMessageId() == null) {
             File metaFile = new File(chanDir, "meta" + Constants.FILENAME_SUFFIX);
             metaFile.delete();
+            HTTPServ.invalidate(uri);
             ui.debugMessage("Deleted metadata file " + metaFile.getPath());
             ui.statusMessage("Deleted the channel metadata " + uri.getScope().toBase64() + " from the archive");
             /*
@@ -4520,6 +4530,7 @@ public class DBClient {
             // delete just the given message
             File msgFile = new File(chanDir, uri.getMessageId().longValue() + Constants.FILENAME_SUFFIX);
             msgFile.delete();
+            HTTPServ.invalidate(uri);
             ui.debugMessage("Deleted message file " + msgFile.getPath());
             ui.statusMessage("Deleted the post " + uri.getScope().toBase64() + " from the archive");
         }
@@ -4757,6 +4768,7 @@ public class DBClient {
             } catch (SQLException se) {
                 ui.errorMessage("Unable to delete the channel " + scopeId, se);
             }
+            notifyChannelUpdated(scopeId);
     }
 
     public Exception expireMessageFromDB(long msgId) { return deleteMessageFromDB(msgId, DELETION_CAUSE_EXPIRE); }
@@ -4786,6 +4798,8 @@ public class DBClient {
                     exec(SQL_UPDATE_MESSAGE_DELETION_CAUSE, deletionCause, msgId);
                     break;
             }
+            ThreadIndex.messageRemoved(this, msgId);
+            notifyMessageUpdated(msgId);
             return null;
         } catch (SQLException se) {
             return se;
@@ -5033,6 +5047,20 @@ public class DBClient {
         return scopes;
     }
 
+    /**
+     *  All the channels in the nym's bookmarks, in any group
+     *  @since 1.107b-1
+     */
+    public Set<Hash> getBookmarkedScopes() {
+        HashSet<Hash> scopes = new HashSet<Hash>();
+        List<ReferenceNode> refs = getNymReferences();
+        for (int i = 0; i < refs.size(); i++) {
+            NymReferenceNode ref = (NymReferenceNode)refs.get(i);
+            getReferencedScopes(ref, scopes, -1, true);
+        }
+        return scopes;
+    }
+
     /** @param scopes out parameter*/
     private void getReferencedScopes(NymReferenceNode ref, Set<Hash> scopes, long groupId, boolean groupFound) {
         if (ref == null) return;
@@ -5702,6 +5730,82 @@ public class DBClient {
         for (int i = 0; i < toNotify.size(); i++)
             toNotify.get(i).messageStatusUpdated(msgId, newStatus);
     }
+
+    /**
+     *  Changes to the posts and channels, beyond what MessageStatusListener says,
+     *  for those that keep results around, like the thread view cache.
+     *  Called on whatever thread made the change.
+     *
+     *  @since 1.107b-1
+     */
+    public interface MessageEventListener {
+        /** the post was imported (with its tags), or deleted */
+        public void messageUpdated(long msgId);
+        /** all the posts in the channel were marked as read */
+        public void channelRead(long channelId);
+        /**
+         *  the channel's metadata was imported, or it was banned or deleted,
+         *  so any post in, by, or to it may show differently
+         *
+         *  @param channelId -1 for all channels, e.g. the database was closed
+         */
+        public void channelUpdated(long channelId);
+    }
+
+    private final List<MessageEventListener> _msgEventListeners = new ArrayList<MessageEventListener>();
+
+    /** @since 1.107b-1 */
+    public void addMessageEventListener(MessageEventListener lsnr) {
+        synchronized (_msgEventListeners) { _msgEventListeners.add(lsnr); }
+    }
+
+    /** @since 1.107b-1 */
+    public void removeMessageEventListener(MessageEventListener lsnr) {
+        synchronized (_msgEventListeners) { _msgEventListeners.remove(lsnr); }
+    }
+
+    /** @since 1.107b-1 */
+    private List<MessageEventListener> getMessageEventListeners() {
+        synchronized (_msgEventListeners) {
+            if (_msgEventListeners.isEmpty())
+                return null;
+            return new ArrayList<MessageEventListener>(_msgEventListeners);
+        }
+    }
+
+    /**
+     *  Package private for ImportPost
+     *  @since 1.107b-1
+     */
+    void notifyMessageUpdated(long msgId) {
+        List<MessageEventListener> toNotify = getMessageEventListeners();
+        if (toNotify == null)
+            return;
+        for (int i = 0; i < toNotify.size(); i++)
+            toNotify.get(i).messageUpdated(msgId);
+    }
+
+    /** @since 1.107b-1 */
+    private void notifyChannelRead(long chanId) {
+        List<MessageEventListener> toNotify = getMessageEventListeners();
+        if (toNotify == null)
+            return;
+        for (int i = 0; i < toNotify.size(); i++)
+            toNotify.get(i).channelRead(chanId);
+    }
+
+    /**
+     *  Package private for ImportMeta
+     *  @param chanId -1 for all
+     *  @since 1.107b-1
+     */
+    void notifyChannelUpdated(long chanId) {
+        List<MessageEventListener> toNotify = getMessageEventListeners();
+        if (toNotify == null)
+            return;
+        for (int i = 0; i < toNotify.size(); i++)
+            toNotify.get(i).channelUpdated(chanId);
+    }
     
     /**
      *  TODO, ensureLoggedIn() may still throw an ISE even if isLoggedIn() returns true
@@ -6327,6 +6431,7 @@ public class DBClient {
         }
         
         markChannelNotNew(nymId, chanId);
+        notifyChannelRead(chanId);
     }
     
     private static final String SQL_MARK_CHANNEL_READ = "DELETE FROM nymUnreadChannel WHERE nymId = ? AND channelId = ?";
@@ -34,8 +34,11 @@ class DBInit {
 
     /**
      *  Initialize the DB, update to latest version if necessary
+     *
+     *  @return the version before, -1 if new
+     *  @since 1.107b-1 returned void before
      */
-    public void initDB() throws SQLException {
+    public int initDB() throws SQLException {
         int version = checkDBVersion();
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Known DB version: " + version);
@@ -54,6 +57,7 @@ class DBInit {
                //     _log.debug("No need for update " + i + " (version: " + version + ")");
             }
         }
+        return version;
     }
 
     private int checkDBVersion() {
@@ -369,6 +369,7 @@ public class Expirer {
                     File msgFile = new File(chanDir, messageId.toString() + Constants.FILENAME_SUFFIX);
                     if (msgFile.exists()) {
                         msgFile.delete();
+                        HTTPServ.invalidate(uri);
                         long scopeId = _client.getChannelId(uri.getScope());
                         long msgId = _client.getMessageId(scopeId, messageId.longValue());
                         if (msgId >= 0) {
@@ -0,0 +1,777 @@
+package syndie.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.data.DataHelper;
+
+/**
+ *  One FCP 2.0 connection to a Freenet node, with many ClientGet requests
+ *  in flight at once, matched up by their Identifier as the node answers.
+ *  A pull of hundreds of posts no longer waits out Freenet's latency
+ *  one post at a time.
+ *
+ *  Requests are persistent and the client name is fixed for the archive, so
+ *  the node keeps working on them if we go away. A persistent request only
+ *  says DataFound when it finishes, so we then ask for its status to get the data.
+ *  When the same request is sent again after a restart, the node reports an
+ *  identifier collision and we ask for the status of the request it already
+ *  has, getting the data right away if it finished in the meantime, or on its
+ *  DataFound later. Finished requests are removed from the node.
+ *
+ *  The data is written straight to the request's file by the reader thread,
+ *  then the listener is told. Each request's listener is called exactly once.
+ *
+ *  @since 1.107b-1
+ */
+class FCPConnection implements Runnable {
+    private final String _host;
+    private final int _port;
+    private final String _clientName;
+    private final UI _ui;
+    private final TokenBucket _bucket;
+    private Socket _socket;
+    private OutputStream _out;
+    private InputStream _in;
+    /** by Identifier */
+    private final Map<String, Get> _pending;
+    private volatile boolean _closed;
+
+    /** FCP priority classes, lower is more important */
+    static final int PRIORITY_INTERACTIVE = 1;
+    static final int PRIORITY_SEMI_INTERACTIVE = 2;
+    static final int PRIORITY_UPDATE = 3;
+    static final int PRIORITY_BULK = 4;
+
+    /** no line in a message is this long */
+    private static final int MAX_LINE = 64*1024;
+    private static final String CODE_PERMANENT_REDIRECT = "27";
+
+    /**
+     *  Told once how a get came out, from the reader thread
+     */
+    public interface GetListener {
+        /** the data is in get.getFile() */
+        public void getComplete(Get get);
+        /** get.getFile() has been deleted */
+        public void getFailed(Get get, String reason);
+    }
+
+    public static class Get {
+        private String _key;
+        private final String _id;
+        private final int _priorityClass;
+        private final long _maxSize;
+        private final File _file;
+        private final GetListener _listener;
+        private boolean _done;
+        private int _redirects;
+
+        /**
+         *  @param key e.g. USK@foo/bar/0/$scope/meta.syndie
+         *  @param id unique on this connection, and the same each time this item is fetched
+         *  @param maxSize bytes, 0 for no limit
+         */
+        public Get(String key, String id, int priorityClass, long maxSize, File file, GetListener listener) {
+            _key = key;
+            _id = id;
+            _priorityClass = priorityClass;
+            _maxSize = maxSize;
+            _file = file;
+            _listener = listener;
+        }
+
+        public String getKey() { return _key; }
+        public String getIdentifier() { return _id; }
+        public File getFile() { return _file; }
+    }
+
+    /**
+     *  @param clientName the same each time for the archive, so restarted requests are found again
+     *  @param bucket local bandwidth limit, may be null
+     */
+    public FCPConnection(String host, int port, String clientName, UI ui, TokenBucket bucket) {
+        _host = host;
+        _port = port;
+        _clientName = clientName;
+        _ui = ui;
+        _bucket = bucket;
+        _pending = new HashMap<String, Get>();
+    }
+
+    /**
+     *  Connect, say hello, and start the reader thread.
+     *  Blocking until the node answers.
+     */
+    public void connect() throws IOException {
+        _socket = new Socket(_host, _port);
+        _out = _socket.getOutputStream();
+        _in = new BufferedInputStream(_socket.getInputStream());
+        send("ClientHello\r\n" +
+             "Name=" + _clientName + "\r\n" +
+             "ExpectedVersion=2.0\r\n" +
+             "EndMessage\r\n");
+        Map<String, String> hello = new HashMap<String, String>();
+        String cmd = readMessage(hello);
+        if (!"NodeHello".equals(cmd)) {
+            close();
+            throw new IOException("Freenet node at " + _host + ':' + _port + " refused the connection: " + cmd);
+        }
+        _ui.debugMessage("Connected to Freenet node " + hello.get("Version") + " at " + _host + ':' + _port);
+        Thread t = new Thread(this, "FCP reader " + _host + ':' + _port);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public boolean isClosed() { return _closed; }
+
+    /**
+     *  Non-blocking. The listener is called when the node has the data or gives up.
+     */
+    public void get(Get get) {
+        boolean closed;
+        synchronized (_pending) {
+            closed = _closed;
+            if (!closed)
+                _pending.put(get.getIdentifier(), get);
+        }
+        if (closed) {
+            fail(get, "Connection to the Freenet node closed");
+            return;
+        }
+        try {
+            sendGet(get);
+        } catch (IOException ioe) {
+            fail(get, "Error sending the request to the Freenet node: " + ioe.getMessage());
+        }
+    }
+
+    private void sendGet(Get get) throws IOException {
+        StringBuilder buf = new StringBuilder(256);
+        buf.append("ClientGet\r\n")
+           .append("URI=").append(get.getKey()).append("\r\n")
+           .append("Identifier=").append(get.getIdentifier()).append("\r\n")
+           .append("Verbosity=0\r\n")
+           .append("ReturnType=direct\r\n")
+           .append("PriorityClass=").append(get._priorityClass).append("\r\n")
+           .append("Persistence=forever\r\n")
+           .append("Global=false\r\n");
+        if (get._maxSize > 0)
+            buf.append("MaxSize=").append(get._maxSize).append("\r\n");
+        buf.append("EndMessage\r\n");
+        send(buf.toString());
+    }
+
+    /**
+     *  Fail whatever is still pending, and disconnect.
+     *  The node keeps the unfinished requests.
+     */
+    public void close() {
+        List<Get> pending;
+        synchronized (_pending) {
+            if (_closed && _pending.isEmpty())
+                return;
+            _closed = true;
+            pending = new ArrayList<Get>(_pending.values());
+            _pending.clear();
+        }
+        for (Get get : pending) {
+            fail(get, "Connection to the Freenet node closed");
+        }
+        try {
+            send("Disconnect\r\nEndMessage\r\n");
+        } catch (IOException ioe) {}
+        if (_socket != null) try { _socket.close(); } catch (IOException ioe) {}
+    }
+
+    private void send(String msg) throws IOException {
+        OutputStream out = _out;
+        if (out == null)
+            throw new IOException("Not connected");
+        synchronized (out) {
+            out.write(DataHelper.getUTF8(msg));
+            out.flush();
+        }
+    }
+
+    public void run() {
+        try {
+            while (!_closed) {
+                Map<String, String> fields = new HashMap<String, String>();
+                String cmd = readMessage(fields);
+                if (cmd == null)
+                    break;
+                handle(cmd, fields);
+            }
+        } catch (IOException ioe) {
+            if (!_closed)
+                _ui.debugMessage("Error reading from the Freenet node at " + _host + ':' + _port, ioe);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     *  Everything but the AllData payload, which is read here into the get's file
+     */
+    private void handle(String cmd, Map<String, String> fields) throws IOException {
+        String id = fields.get("Identifier");
+        Get get = null;
+        if (id != null) {
+            synchronized (_pending) {
+                get = _pending.get(id);
+            }
+        }
+        if ("AllData".equals(cmd)) {
+            long len = getLong(fields.get("DataLength"));
+            if (get == null) {
+                // finished after we gave up on it
+                skip(len);
+                removeRequest(id);
+                return;
+            }
+            try {
+                readData(get.getFile(), len);
+            } catch (IOException ioe) {
+                // the stream is out of step now too
+                fail(get, "Error writing the data: " + ioe.getMessage());
+                throw ioe;
+            }
+            removeRequest(id);
+            synchronized (_pending) {
+                _pending.remove(id);
+            }
+            complete(get);
+        } else if ("GetFailed".equals(cmd)) {
+            removeRequest(id);
+            if (get == null)
+                return;
+            String redirect = fields.get("RedirectURI");
+            if (CODE_PERMANENT_REDIRECT.equals(fields.get("Code")) && redirect != null && get._redirects++ < 3) {
+                // a newer edition of a USK
+                _ui.debugMessage("Freenet redirect for " + get.getKey() + " to " + redirect);
+                get._key = redirect;
+                sendGet(get);
+                return;
+            }
+            synchronized (_pending) {
+                _pending.remove(id);
+            }
+            fail(get, "Freenet fetch failed: " + fields.get("CodeDescription"));
+        } else if ("DataFound".equals(cmd)) {
+            // persistent, so the data only comes when asked for
+            if (get != null)
+                requestData(id);
+            else
+                removeRequest(id);
+        } else if ("IdentifierCollision".equals(cmd)) {
+            // the node still has it from last time, ask how it's going,
+            // the AllData comes now if it's done, else we ask again on its DataFound
+            if (get != null)
+                requestData(id);
+        } else if ("ProtocolError".equals(cmd)) {
+            if (get != null) {
+                synchronized (_pending) {
+                    _pending.remove(id);
+                }
+                fail(get, "Freenet protocol error: " + fields.get("CodeDescription"));
+            } else {
+                _ui.debugMessage("Freenet protocol error: " + fields.get("CodeDescription"));
+                if ("true".equals(fields.get("Global")) || id == null)
+                    throw new IOException("Freenet protocol error: " + fields.get("CodeDescription"));
+            }
+        } else if ("CloseConnectionDuplicateClientName".equals(cmd)) {
+            throw new IOException("Another client connected to the Freenet node as " + _clientName);
+        } else {
+            // PersistentGet, SimpleProgress, PersistentRequestRemoved, ...
+        }
+    }
+
+    /** Ask for a finished request's AllData */
+    private void requestData(String id) throws IOException {
+        send("GetRequestStatus\r\n" +
+             "Identifier=" + id + "\r\n" +
+             "Global=false\r\n" +
+             "OnlyData=true\r\n" +
+             "EndMessage\r\n");
+    }
+
+    /** Drop a finished request from the node's queue */
+    private void removeRequest(String id) throws IOException {
+        if (id == null)
+            return;
+        send("RemoveRequest\r\n" +
+             "Identifier=" + id + "\r\n" +
+             "Global=false\r\n" +
+             "EndMessage\r\n");
+    }
+
+    private void complete(Get get) {
+        synchronized (get) {
+            if (get._done)
+                return;
+            get._done = true;
+        }
+        try {
+            get._listener.getComplete(get);
+        } catch (RuntimeException re) {
+            _ui.errorMessage("Internal error handling a Freenet fetch", re);
+        }
+    }
+
+    private void fail(Get get, String reason) {
+        synchronized (get) {
+            if (get._done)
+                return;
+            get._done = true;
+        }
+        get.getFile().delete();
+        try {
+            get._listener.getFailed(get, reason);
+        } catch (RuntimeException re) {
+            _ui.errorMessage("Internal error handling a Freenet fetch", re);
+        }
+    }
+
+    private void readData(File f, long len) throws IOException {
+        byte buf[] = new byte[16*1024];
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(f);
+            long rcvd = 0;
+            while (rcvd < len) {
+                int read = _in.read(buf, 0, (int) Math.min(buf.length, len - rcvd));
+                if (read == -1)
+                    throw new IOException("Data truncated after " + rcvd + " of " + len);
+                fos.write(buf, 0, read);
+                rcvd += read;
+                TokenBucket.consume(TokenBucket.GLOBAL_INBOUND, _bucket, read);
+            }
+        } finally {
+            if (fos != null) try { fos.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    private void skip(long len) throws IOException {
+        while (len > 0) {
+            long skipped = _in.skip(len);
+            if (skipped <= 0) {
+                if (_in.read() == -1)
+                    throw new IOException("Data truncated");
+                skipped = 1;
+            }
+            len -= skipped;
+        }
+    }
+
+    /**
+     *  Read one message, stopping after the EndMessage or Data line.
+     *  @return the message name, or null at EOF
+     */
+    private String readMessage(Map<String, String> fields) throws IOException {
+        String cmd = readLine();
+        while (cmd != null && cmd.length() == 0)
+            cmd = readLine();
+        if (cmd == null)
+            return null;
+        while (true) {
+            String line = readLine();
+            if (line == null)
+                throw new IOException("Connection closed in the middle of " + cmd);
+            if (line.equals("EndMessage") || line.equals("Data"))
+                return cmd;
+            int split = line.indexOf('=');
+            if (split < 0)
+                throw new IOException("Invalid format of a line [" + line + "]");
+            fields.put(line.substring(0, split), line.substring(split + 1));
+        }
+    }
+
+    /**
+     *  Byte at a time, so the data after a Data line stays in the stream
+     *  @return null at EOF
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(64);
+        int c;
+        while ((c = _in.read()) != -1 && c != '\n') {
+            buf.write(c);
+            if (buf.size() > MAX_LINE)
+                throw new IOException("Line too long");
+        }
+        if (c == -1 && buf.size() == 0)
+            return null;
+        String rv = new String(buf.toByteArray(), "UTF-8");
+        if (rv.endsWith("\r"))
+            rv = rv.substring(0, rv.length() - 1);
+        return rv;
+    }
+
+    private static long getLong(String val) throws IOException {
+        if (val == null)
+            throw new IOException("No DataLength");
+        try {
+            return Long.parseLong(val);
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Bad DataLength " + val);
+        }
+    }
+
+    /**
+     *  Map a sync priority, see SyncPriority, to an FCP priority class
+     */
+    static int getPriorityClass(int syncPriority) {
+        if (syncPriority >= SyncPriority.PRIORITY_META)
+            return PRIORITY_INTERACTIVE;
+        if (syncPriority >= SyncPriority.PRIORITY_WATCHED)
+            return PRIORITY_SEMI_INTERACTIVE;
+        if (syncPriority >= SyncPriority.PRIORITY_BOOKMARKED)
+            return PRIORITY_UPDATE;
+        return PRIORITY_BULK;
+    }
+
+    /**
+     *  Fetch from a stand-in node, checking that many requests are in flight at once,
+     *  that requests left on the node by an earlier connection are picked up again,
+     *  whether they finished meanwhile or not, and that USK redirects are followed.
+     *
+     *  Usage: FCPConnection [gets [latencyMs]]
+     *
+     *  @since 1.107b-1
+     */
+    public static void main(String args[]) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 200;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "syndie-fcp-test-" + System.currentTimeMillis());
+        dir.mkdirs();
+        StandInNode node = new StandInNode();
+        node.setLatency(latency);
+        Thread t = new Thread(node, "Stand-in node");
+        t.setDaemon(true);
+        t.start();
+        UI ui = new NullUI();
+        boolean ok = true;
+        try {
+            // pipelining
+            List<Get> gets = new ArrayList<Get>(count);
+            Waiter waiter = new Waiter(count);
+            for (int i = 0; i < count; i++) {
+                String key = "CHK@post" + i;
+                node.put(key, i * 100);
+                gets.add(new Get(key, "post" + i, PRIORITY_BULK, 0, new File(dir, "post" + i), waiter));
+            }
+            FCPConnection fcp = new FCPConnection("127.0.0.1", node.getPort(), "test", ui, null);
+            fcp.connect();
+            long start = System.currentTimeMillis();
+            for (Get get : gets) {
+                fcp.get(get);
+            }
+            boolean done = waiter.await(count * latency + 10*1000);
+            long time = System.currentTimeMillis() - start;
+            boolean pass = done && waiter.getFailed() == 0 && node.check(gets) &&
+                           node.getMaxInFlight() == count && time < count * latency / 4;
+            System.out.println("Pipelining: " + waiter.getCompleted() + '/' + count + " in " + time + " ms, " +
+                               node.getMaxInFlight() + " in flight at once: " + (pass ? "OK" : "FAILED"));
+            ok &= pass;
+            fcp.close();
+
+            // resume, done meanwhile and still running
+            node.put("CHK@done", 1000);
+            node.put("CHK@running", 2000);
+            // left on the node when we disconnect
+            GetListener abandoned = new GetListener() {
+                public void getComplete(Get get) {}
+                public void getFailed(Get get, String reason) {}
+            };
+            Get doneGet = new Get("CHK@done", "done", PRIORITY_BULK, 0, new File(dir, "done"), abandoned);
+            Get runningGet = new Get("CHK@running", "running", PRIORITY_BULK, 0, new File(dir, "running"), abandoned);
+            fcp = new FCPConnection("127.0.0.1", node.getPort(), "test", ui, null);
+            fcp.connect();
+            fcp.get(doneGet);
+            fcp.close();
+            Thread.sleep(latency * 2);
+            fcp = new FCPConnection("127.0.0.1", node.getPort(), "test", ui, null);
+            fcp.connect();
+            fcp.get(runningGet);
+            fcp.close();
+            gets = new ArrayList<Get>(2);
+            waiter = new Waiter(2);
+            gets.add(new Get("CHK@done", "done", PRIORITY_BULK, 0, new File(dir, "done"), waiter));
+            gets.add(new Get("CHK@running", "running", PRIORITY_BULK, 0, new File(dir, "running"), waiter));
+            fcp = new FCPConnection("127.0.0.1", node.getPort(), "test", ui, null);
+            fcp.connect();
+            for (Get get : gets) {
+                fcp.get(get);
+            }
+            done = waiter.await(latency + 10*1000);
+            pass = done && waiter.getFailed() == 0 && node.check(gets) && node.getCollisions() == 2;
+            System.out.println("Resume: " + waiter.getCompleted() + "/2 after " + node.getCollisions() +
+                               " identifier collisions: " + (pass ? "OK" : "FAILED"));
+            ok &= pass;
+
+            // USK redirect to a newer edition
+            String oldKey = "USK@site/archive/1/chan/meta.syndie";
+            String newKey = "USK@site/archive/4/chan/meta.syndie";
+            node.redirect(oldKey, newKey);
+            node.put(newKey, 3000);
+            gets = new ArrayList<Get>(1);
+            waiter = new Waiter(1);
+            Get usk = new Get(oldKey, "usk", PRIORITY_INTERACTIVE, 0, new File(dir, "usk"), waiter);
+            gets.add(usk);
+            fcp.get(usk);
+            done = waiter.await(latency * 2 + 10*1000);
+            pass = done && waiter.getFailed() == 0 && newKey.equals(usk.getKey()) && node.check(gets);
+            System.out.println("USK redirect: to " + usk.getKey() + ": " + (pass ? "OK" : "FAILED"));
+            ok &= pass;
+            fcp.close();
+
+            Thread.sleep(500);
+            int left = node.getRequestCount();
+            System.out.println("Requests left on the node: " + left + ": " + (left == 0 ? "OK" : "FAILED"));
+            ok &= left == 0;
+        } finally {
+            node.stop();
+            File files[] = dir.listFiles();
+            if (files != null) {
+                for (int i = 0; i < files.length; i++)
+                    files[i].delete();
+            }
+            dir.delete();
+        }
+        System.out.println(ok ? "All passed" : "FAILED");
+        if (!ok)
+            System.exit(1);
+    }
+
+    /** counts the outcomes for main() */
+    private static class Waiter implements GetListener {
+        private final CountDownLatch _latch;
+        private final AtomicInteger _completed = new AtomicInteger();
+        private final AtomicInteger _failed = new AtomicInteger();
+
+        public Waiter(int count) { _latch = new CountDownLatch(count); }
+
+        public void getComplete(Get get) {
+            _completed.incrementAndGet();
+            _latch.countDown();
+        }
+
+        public void getFailed(Get get, String reason) {
+            System.out.println("Failed: " + get.getKey() + ": " + reason);
+            _failed.incrementAndGet();
+            _latch.countDown();
+        }
+
+        public boolean await(long ms) throws InterruptedException { return _latch.await(ms, TimeUnit.MILLISECONDS); }
+        public int getCompleted() { return _completed.get(); }
+        public int getFailed() { return _failed.get(); }
+    }
+
+    /**
+     *  Just enough of a Freenet node for main(), one connection at a time.
+     *  Requests are persistent, finish after the latency, say DataFound,
+     *  and send the AllData only when asked with GetRequestStatus.
+     *  A request with a redirect fails with code 27, as for an old USK edition.
+     */
+    private static class StandInNode implements Runnable {
+        private final ServerSocket _server;
+        /** key to data */
+        private final Map<String, byte[]> _data = new HashMap<String, byte[]>();
+        /** key to newer key */
+        private final Map<String, String> _redirects = new HashMap<String, String>();
+        /** by Identifier, they outlive the connection */
+        private final Map<String, Request> _requests = new HashMap<String, Request>();
+        private final Timer _timer = new Timer("Stand-in node timer", true);
+        private OutputStream _out;
+        private long _latency;
+        private int _inFlight;
+        private int _maxInFlight;
+        private int _collisions;
+
+        private static class Request {
+            final String key;
+            boolean done;
+            public Request(String k) { key = k; }
+        }
+
+        public StandInNode() throws IOException {
+            _server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        }
+
+        public int getPort() { return _server.getLocalPort(); }
+        public synchronized void setLatency(long ms) { _latency = ms; }
+        public synchronized int getMaxInFlight() { return _maxInFlight; }
+        public synchronized int getCollisions() { return _collisions; }
+        public synchronized int getRequestCount() { return _requests.size(); }
+
+        /** store this many bytes under the key */
+        public synchronized void put(String key, int len) {
+            byte data[] = new byte[len];
+            for (int i = 0; i < len; i++)
+                data[i] = (byte) (i + key.hashCode());
+            _data.put(key, data);
+        }
+
+        public synchronized void redirect(String from, String to) { _redirects.put(from, to); }
+
+        /** @return true if each get's file has its key's data */
+        public boolean check(List<Get> gets) throws IOException {
+            for (Get get : gets) {
+                byte expected[];
+                synchronized (this) {
+                    expected = _data.get(get.getKey());
+                }
+                File f = get.getFile();
+                if (expected == null || f.length() != expected.length)
+                    return false;
+                byte got[] = new byte[expected.length];
+                FileInputStream in = null;
+                try {
+                    in = new FileInputStream(f);
+                    DataHelper.read(in, got);
+                } finally {
+                    if (in != null) in.close();
+                }
+                if (!Arrays.equals(expected, got))
+                    return false;
+            }
+            return true;
+        }
+
+        public void stop() {
+            _timer.cancel();
+            try { _server.close(); } catch (IOException ioe) {}
+        }
+
+        public void run() {
+            while (true) {
+                Socket s;
+                try {
+                    s = _server.accept();
+                } catch (IOException ioe) {
+                    return;
+                }
+                try {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+                    synchronized (this) {
+                        _out = s.getOutputStream();
+                    }
+                    Map<String, String> fields = new HashMap<String, String>();
+                    String cmd = null;
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (cmd == null) {
+                            if (line.length() > 0)
+                                cmd = line;
+                        } else if (line.equals("EndMessage")) {
+                            if (!handle(cmd, fields))
+                                break;
+                            cmd = null;
+                            fields.clear();
+                        } else {
+                            int split = line.indexOf('=');
+                            if (split > 0)
+                                fields.put(line.substring(0, split), line.substring(split + 1));
+                        }
+                    }
+                } catch (IOException ioe) {
+                } finally {
+                    synchronized (this) {
+                        _out = null;
+                    }
+                    try { s.close(); } catch (IOException ioe) {}
+                }
+            }
+        }
+
+        /** @return false to disconnect */
+        private synchronized boolean handle(String cmd, Map<String, String> fields) throws IOException {
+            final String id = fields.get("Identifier");
+            if ("ClientHello".equals(cmd)) {
+                send("NodeHello\r\nVersion=Stand-in\r\nEndMessage\r\n", null);
+            } else if ("ClientGet".equals(cmd)) {
+                if (_requests.containsKey(id)) {
+                    _collisions++;
+                    send("IdentifierCollision\r\nIdentifier=" + id + "\r\nGlobal=false\r\nEndMessage\r\n", null);
+                } else {
+                    _requests.put(id, new Request(fields.get("URI")));
+                    if (++_inFlight > _maxInFlight)
+                        _maxInFlight = _inFlight;
+                    _timer.schedule(new TimerTask() {
+                        public void run() { finish(id); }
+                    }, _latency);
+                }
+            } else if ("GetRequestStatus".equals(cmd)) {
+                Request req = _requests.get(id);
+                if (req != null && req.done)
+                    sendResult(id, req, "true".equals(fields.get("OnlyData")));
+            } else if ("RemoveRequest".equals(cmd)) {
+                _requests.remove(id);
+                send("PersistentRequestRemoved\r\nIdentifier=" + id + "\r\nGlobal=false\r\nEndMessage\r\n", null);
+            } else if ("Disconnect".equals(cmd)) {
+                return false;
+            }
+            return true;
+        }
+
+        private synchronized void finish(String id) {
+            Request req = _requests.get(id);
+            if (req == null || req.done)
+                return;
+            req.done = true;
+            _inFlight--;
+            try {
+                sendResult(id, req, false);
+            } catch (IOException ioe) {}
+        }
+
+        /**
+         *  @param allData true for the data itself, false for DataFound
+         */
+        private void sendResult(String id, Request req, boolean allData) throws IOException {
+            String redirect = _redirects.get(req.key);
+            byte data[] = _data.get(req.key);
+            if (redirect != null) {
+                send("GetFailed\r\nIdentifier=" + id + "\r\nCode=" + CODE_PERMANENT_REDIRECT +
+                     "\r\nCodeDescription=Permanent redirect\r\nRedirectURI=" + redirect + "\r\nEndMessage\r\n", null);
+            } else if (data == null) {
+                send("GetFailed\r\nIdentifier=" + id + "\r\nCode=13\r\nCodeDescription=Data not found\r\nEndMessage\r\n", null);
+            } else if (allData) {
+                send("AllData\r\nIdentifier=" + id + "\r\nDataLength=" + data.length + "\r\nGlobal=false\r\nData\r\n", data);
+            } else {
+                send("DataFound\r\nIdentifier=" + id + "\r\nDataLength=" + data.length + "\r\nGlobal=false\r\nEndMessage\r\n", null);
+            }
+        }
+
+        /** to the current connection, if any */
+        private synchronized void send(String msg, byte data[]) throws IOException {
+            if (_out == null)
+                return;
+            _out.write(DataHelper.getUTF8(msg));
+            if (data != null)
+                _out.write(data);
+            _out.flush();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package syndie.db;
+
+/**
+ *  AIMD controller for the number of concurrent fetches from a single archive.
+ *
+ *  The level grows by one per round of fetches (a round being as many
+ *  completions as the current level) while throughput keeps improving and
+ *  latency stays near the best seen. It is halved on timeouts and connection
+ *  failures, and cut by a quarter when the importer can't keep up.
+ *
+ *  One of these lives for each SyncArchive for the life of the SyncManager,
+ *  so the level learned in one sync is the starting point for the next.
+ *
+ *  @since 1.107b-1
+ */
+class FetchConcurrency {
+    private final int _min;
+    private final int _max;
+    /** the window, fractional so decreases compound sensibly */
+    private double _level;
+    private int _inFlight;
+
+    // the current round
+    private long _roundStart;
+    private long _roundBytes;
+    private long _roundLatency;
+    /** successful and failed */
+    private int _roundCount;
+    private int _roundOK;
+    private boolean _roundCongested;
+
+    // history
+    private double _lastThroughput;
+    /** lowest per-round average latency seen, the "uncongested" latency */
+    private long _baseLatency;
+    private int _increases, _decreases;
+
+    /** start here, the old fixed number */
+    static final int DEFAULT_LEVEL = 5;
+    static final int MIN_LEVEL = 1;
+    static final int MAX_LEVEL = 16;
+    /** don't grow if average latency is more than this times the base */
+    private static final double LATENCY_TOLERANCE = 1.5;
+    /** don't grow unless throughput is at least this fraction of the last round */
+    private static final double THROUGHPUT_TOLERANCE = 0.95;
+
+    public FetchConcurrency() {
+        this(MIN_LEVEL, MAX_LEVEL, DEFAULT_LEVEL);
+    }
+
+    public FetchConcurrency(int min, int max, int initial) {
+        _min = min;
+        _max = max;
+        _level = Math.max(min, Math.min(max, initial));
+    }
+
+    /** the current limit on concurrent fetches */
+    public synchronized int getLevel() { return (int) _level; }
+
+    public int getMaxLevel() { return _max; }
+
+    public synchronized int getInFlight() { return _inFlight; }
+
+    /** lowest average round latency seen, or 0 if unknown */
+    public synchronized long getBaseLatency() { return _baseLatency; }
+
+    /** bytes per second for the last complete round, or 0 if unknown */
+    public synchronized long getThroughput() { return (long) _lastThroughput; }
+
+    /**
+     *  Blocking. Wait until there is room for another fetch.
+     *  Caller must call complete() or failed() after.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (_inFlight >= (int) _level)
+            wait();
+        if (_roundStart <= 0)
+            _roundStart = System.currentTimeMillis();
+        _inFlight++;
+    }
+
+    /**
+     *  A fetch completed, whether or not the remote had the file.
+     *  @param bytes received
+     *  @param latency ms from the start of the request to the end of the transfer
+     */
+    public synchronized void complete(long bytes, long latency) {
+        release();
+        _roundBytes += bytes;
+        _roundLatency += latency;
+        _roundOK++;
+        _roundCount++;
+        if (_roundCount >= (int) _level)
+            endRound();
+    }
+
+    /**
+     *  A fetch timed out or could not connect. Multiplicative decrease.
+     */
+    public synchronized void failed() {
+        release();
+        decrease(0.5);
+        _roundCount++;
+        if (_roundCount >= (int) _level)
+            endRound();
+    }
+
+    /**
+     *  The slot was not used for a fetch after all, no effect on the level.
+     */
+    public synchronized void cancel() {
+        release();
+    }
+
+    /**
+     *  The importer queue was full when a fetch completed.
+     *  Fetching faster won't help, so back off.
+     */
+    public synchronized void backPressure() {
+        decrease(0.75);
+    }
+
+    private void release() {
+        if (_inFlight > 0)
+            _inFlight--;
+        notifyAll();
+    }
+
+    private void decrease(double factor) {
+        // only once per round, several failures at once are one congestion event
+        if (_roundCongested)
+            return;
+        _roundCongested = true;
+        double old = _level;
+        _level = Math.max(_min, _level * factor);
+        if ((int) _level < (int) old)
+            _decreases++;
+    }
+
+    private void endRound() {
+        long now = System.currentTimeMillis();
+        long elapsed = Math.max(1, now - _roundStart);
+        double throughput = _roundBytes * 1000d / elapsed;
+        long avgLatency = _roundOK > 0 ? _roundLatency / _roundOK : 0;
+        if (_roundOK > 0 && (_baseLatency <= 0 || avgLatency < _baseLatency))
+            _baseLatency = avgLatency;
+        if (!_roundCongested && _roundOK > 0 &&
+            throughput >= _lastThroughput * THROUGHPUT_TOLERANCE &&
+            avgLatency <= _baseLatency * LATENCY_TOLERANCE &&
+            _level < _max) {
+            _level = Math.min(_max, _level + 1);
+            _increases++;
+            notifyAll();
+        }
+        _lastThroughput = throughput;
+        _roundStart = _inFlight > 0 ? now : 0;
+        _roundBytes = 0;
+        _roundLatency = 0;
+        _roundCount = 0;
+        _roundOK = 0;
+        _roundCongested = false;
+    }
+
+    public synchronized String toString() {
+        return "level " + ((int) _level) + '/' + _max + " in flight " + _inFlight +
+               " throughput " + ((long) _lastThroughput) + "Bps base latency " + _baseLatency +
+               "ms (+" + _increases + " -" + _decreases + ')';
+    }
+}
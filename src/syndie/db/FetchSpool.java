@@ -0,0 +1,189 @@
+package syndie.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import net.i2p.crypto.SHA256Generator;
+import net.i2p.data.Base64;
+import net.i2p.data.DataHelper;
+import net.i2p.util.SecureFile;
+
+import syndie.data.SyndieURI;
+
+/**
+ *  Partial downloads from a single archive, kept by URI so that a fetch
+ *  that drops partway through can be resumed with a Range request
+ *  on the next sync instead of starting over.
+ *
+ *  The files are in $root/spool/$archive/, not in the temp dir,
+ *  which is wiped at startup.
+ *
+ *  @since 1.107b-1
+ */
+class FetchSpool {
+    private final File _dir;
+
+    /** partial files not touched for this long are deleted by clean() */
+    private static final long MAX_AGE = 3*24*60*60*1000L;
+    /** not worth a Range request for less than this */
+    static final long MIN_RESUME = 16*1024;
+    private static final String SUFFIX = ".part";
+    private static final String INDEX_FILE = "index" + SUFFIX;
+
+    /**
+     *  @param archiveURL the spool directory is keyed on this, so renaming the archive doesn't lose anything
+     */
+    public FetchSpool(DBClient client, String archiveURL) {
+        File root = new SecureFile(client.getRootDir(), "spool");
+        _dir = new SecureFile(root, toFilename(archiveURL));
+    }
+
+    /**
+     *  The spool file for a URI, which may or may not exist.
+     *  Creates the spool directory if necessary.
+     */
+    public File getFile(SyndieURI uri) {
+        String name = uri.getScope().toBase64() + '_' +
+                      (uri.getMessageId() != null ? uri.getMessageId().toString() : "meta") + SUFFIX;
+        return getFile(name);
+    }
+
+    /**
+     *  The spool file for the archive's shared index, which may or may not exist.
+     *  Creates the spool directory if necessary.
+     */
+    public File getIndexFile() {
+        return getFile(INDEX_FILE);
+    }
+
+    private File getFile(String name) {
+        if (!_dir.exists())
+            _dir.mkdirs();
+        return new File(_dir, name);
+    }
+
+    /**
+     *  @return the number of bytes already spooled for this file that are worth resuming from, or 0
+     */
+    public static long getResumeOffset(File f) {
+        long len = f.length();
+        return len >= MIN_RESUME ? len : 0;
+    }
+
+    /**
+     *  Delete partial files that haven't been resumed in a while,
+     *  for URIs the archive no longer has or we no longer want.
+     *  @return number deleted
+     */
+    public int clean() {
+        File files[] = _dir.listFiles();
+        if (files == null)
+            return 0;
+        long cutoff = System.currentTimeMillis() - MAX_AGE;
+        int rv = 0;
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].getName().endsWith(SUFFIX) && files[i].lastModified() < cutoff) {
+                if (files[i].delete())
+                    rv++;
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  Check a complete download before importing it, against the headers
+     *  from the response.
+     *
+     *  @param maxSize the upper bound from the archive index, or -1 if unknown
+     *  @return null if ok, or the reason it is not
+     */
+    public static String verify(File f, Expected expected, long maxSize) {
+        long len = f.length();
+        if (maxSize > 0 && len > maxSize)
+            return "size " + len + " larger than the index allows (" + maxSize + ")";
+        String expectedHash = expected.getHash();
+        if (expectedHash == null)
+            return null;
+        // only trust the sizes from a server that supports resume,
+        // others may send a Content-length for a redirect and then none
+        long expectedSize = expected.getSize();
+        if (expectedSize >= 0 && len != expectedSize)
+            return "size mismatch, expected " + expectedSize + " got " + len;
+        try {
+            if (!expectedHash.equals(getHash(f)))
+                return "hash mismatch";
+        } catch (IOException ioe) {
+            return "hash check failed: " + ioe.getMessage();
+        }
+        return null;
+    }
+
+    /**
+     *  The size and hash of the whole file, as told by the response headers.
+     *  Feed it from EepGet.StatusListener.headerReceived().
+     */
+    static class Expected {
+        private volatile long _contentLength = -1;
+        private volatile long _rangeTotal = -1;
+        private volatile String _hash;
+
+        public void headerReceived(String key, String val) {
+            if (key == null || val == null)
+                return;
+            val = val.trim();
+            if (HTTPServ.HASH_HEADER.equalsIgnoreCase(key)) {
+                _hash = val;
+            } else if ("Content-Length".equalsIgnoreCase(key)) {
+                try {
+                    _contentLength = Long.parseLong(val);
+                } catch (NumberFormatException nfe) {}
+            } else if ("Content-Range".equalsIgnoreCase(key)) {
+                // bytes start-end/total
+                int slash = val.lastIndexOf('/');
+                if (slash >= 0) {
+                    try {
+                        _rangeTotal = Long.parseLong(val.substring(slash + 1).trim());
+                    } catch (NumberFormatException nfe) {}
+                }
+            }
+        }
+
+        /** @return total size of the file, or -1 if unknown */
+        public long getSize() { return _rangeTotal >= 0 ? _rangeTotal : _contentLength; }
+
+        /** @return base64 SHA-256, or null if unknown */
+        public String getHash() { return _hash; }
+    }
+
+    /**
+     *  @return base64 SHA-256 of the file contents
+     */
+    public static String getHash(File f) throws IOException {
+        MessageDigest md = SHA256Generator.getDigestInstance();
+        FileInputStream fin = null;
+        try {
+            fin = new FileInputStream(f);
+            byte buf[] = new byte[4096];
+            int read;
+            while ( (read = fin.read(buf)) != -1)
+                md.update(buf, 0, read);
+        } finally {
+            if (fin != null) try { fin.close(); } catch (IOException ioe) {}
+        }
+        return Base64.encode(md.digest());
+    }
+
+    /**
+     *  Base64 of the hash of the URL, filesystem-safe and short enough.
+     */
+    private static String toFilename(String archiveURL) {
+        MessageDigest md = SHA256Generator.getDigestInstance();
+        byte h[] = md.digest(DataHelper.getUTF8(archiveURL.trim()));
+        return Base64.encode(h).substring(0, 16);
+    }
+
+    @Override
+    public String toString() { return "Spool " + _dir; }
+}
@@ -0,0 +1,190 @@
+package syndie.db;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.util.FileUtil;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  NCSA combined format access log for the HTTPServ, with the time taken in ms
+ *  at the end of each line, as Apache's %D does in us:
+ *
+ *<pre>
+ *  127.0.0.1 - - [19/Oct/2016:14:02:11 +0000] "GET /shared-index.dat HTTP/1.1" 200 262144 "-" "syndie" 12
+ *</pre>
+ *
+ *  add() only queues the line, the writing and formatting happen on our own thread,
+ *  so the selector never waits for the disk. If the disk can't keep up,
+ *  lines past MAX_QUEUE are dropped and counted rather than blocking.
+ *  The file is rolled over to .old at MAX_SIZE.
+ *
+ *  Turned on with the httpserv.accessLog pref, see HTTPServ.
+ *
+ *  @since 1.107b-1
+ */
+class HTTPAccessLog implements Runnable {
+    private final File _file;
+    private final UI _ui;
+    private final LinkedBlockingQueue<Line> _queue;
+    private final AtomicLong _written;
+    private final AtomicLong _dropped;
+    private volatile boolean _alive;
+
+    public static final String LOG_FILE = "httpserv-access.log";
+    private static final int MAX_QUEUE = 4096;
+    private static final long MAX_SIZE = 10*1024*1024;
+    /** flush this long after the last line, if nothing else comes in */
+    private static final long FLUSH_TIME = 1000;
+
+    /**
+     *  @param file appended to
+     */
+    public HTTPAccessLog(File file, UI ui) {
+        _file = file;
+        _ui = ui;
+        _queue = new LinkedBlockingQueue<Line>(MAX_QUEUE);
+        _written = new AtomicLong();
+        _dropped = new AtomicLong();
+    }
+
+    /** start the writer thread */
+    public void start() {
+        _alive = true;
+        Thread t = new Thread(this, "HTTPServ access log");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /** write what's queued and stop */
+    public void stop() {
+        _alive = false;
+    }
+
+    /**
+     *  Queue a line, never blocks
+     *
+     *  @param time when the request came in
+     *  @param remote may be null
+     *  @param status 0 if closed without a response
+     *  @param userAgent may be null
+     */
+    public void add(long time, String remote, String methodLine, int status, long bytes, long ms, String userAgent) {
+        if (!_alive || !_queue.offer(new Line(time, remote, methodLine, status, bytes, ms, userAgent)))
+            _dropped.incrementAndGet();
+    }
+
+    public long getWritten() { return _written.get(); }
+
+    public long getDropped() { return _dropped.get(); }
+
+    public void run() {
+        // only used on this thread
+        SimpleDateFormat fmt = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+        StringBuilder buf = new StringBuilder(256);
+        Writer out = null;
+        try {
+            while (_alive || !_queue.isEmpty()) {
+                Line line;
+                try {
+                    line = _queue.poll(FLUSH_TIME, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                if (line == null) {
+                    // quiet, get it on disk
+                    if (out != null) {
+                        out.close();
+                        out = null;
+                    }
+                    continue;
+                }
+                if (out == null)
+                    out = open();
+                buf.setLength(0);
+                line.format(buf, fmt);
+                out.write(buf.toString());
+                _written.incrementAndGet();
+                if (_queue.isEmpty())
+                    out.flush();
+            }
+        } catch (IOException ioe) {
+            if (_ui != null)
+                _ui.errorMessage("Error writing the HTTP access log " + _file, ioe);
+        } finally {
+            _alive = false;
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    private Writer open() throws IOException {
+        if (_file.length() > MAX_SIZE) {
+            File old = new File(_file.getPath() + ".old");
+            old.delete();
+            FileUtil.rename(_file, old);
+        }
+        return new BufferedWriter(new OutputStreamWriter(new SecureFileOutputStream(_file, true), "UTF-8"), 16*1024);
+    }
+
+    private static class Line {
+        private final long _time;
+        private final String _remote;
+        private final String _methodLine;
+        private final int _status;
+        private final long _bytes;
+        private final long _ms;
+        private final String _userAgent;
+
+        public Line(long time, String remote, String methodLine, int status, long bytes, long ms, String userAgent) {
+            _time = time;
+            _remote = remote;
+            _methodLine = methodLine;
+            _status = status;
+            _bytes = bytes;
+            _ms = ms;
+            _userAgent = userAgent;
+        }
+
+        public void format(StringBuilder buf, SimpleDateFormat fmt) {
+            buf.append(_remote != null ? _remote : "-").append(" - - [")
+               .append(fmt.format(new Date(_time))).append("] \"");
+            quote(buf, _methodLine);
+            buf.append("\" ");
+            if (_status > 0)
+                buf.append(_status);
+            else
+                buf.append('-');
+            buf.append(' ');
+            if (_bytes > 0)
+                buf.append(_bytes);
+            else
+                buf.append('-');
+            buf.append(" \"-\" \"");
+            quote(buf, _userAgent != null ? _userAgent : "-");
+            buf.append("\" ").append(_ms).append('\n');
+        }
+
+        /** the request line and user agent are from the client, don't let them break the format */
+        private static void quote(StringBuilder buf, String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\')
+                    buf.append('\\').append(c);
+                else if (c < 0x20 || c == 0x7f)
+                    buf.append('?');
+                else
+                    buf.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package syndie.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.crypto.SHA256Generator;
+import net.i2p.data.Base64;
+import net.i2p.data.DataHelper;
+
+/**
+ *  The small files the HTTPServ sends most, the shared index, metadata, and recent posts,
+ *  kept in memory with their response headers already built,
+ *  so a hit costs no disk access, index lookup, or hashing.
+ *
+ *  Least recently used entries are dropped past the size limit.
+ *  The HTTPServ clears it when the shared index is rebuilt, and removes
+ *  entries when the files are imported or deleted, see HTTPServ.invalidate().
+ *  Entries also expire after a while, in case a file changes behind our back.
+ *
+ *  Thread safe.
+ *
+ *  @since 1.107b-1
+ */
+class HTTPCache {
+    private final LinkedHashMap<String, Entry> _entries;
+    private final long _maxSize;
+    private final int _maxEntrySize;
+    private final long _maxAge;
+    private long _size;
+    private long _hits;
+    private long _misses;
+
+    /**
+     *  @param maxSize total bytes of data and headers
+     *  @param maxEntrySize larger files aren't cached
+     *  @param maxAge ms
+     */
+    public HTTPCache(long maxSize, int maxEntrySize, long maxAge) {
+        _entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+        _maxSize = maxSize;
+        _maxEntrySize = maxEntrySize;
+        _maxAge = maxAge;
+    }
+
+    public static class Entry {
+        /** the file contents */
+        public final byte[] data;
+        /** the response headers, less the ones that depend on the connection */
+        public final byte[] headers;
+        public final long lastModified;
+        private final long _added;
+
+        public Entry(byte[] data, byte[] headers, long lastModified) {
+            this.data = data;
+            this.headers = headers;
+            this.lastModified = lastModified;
+            _added = System.currentTimeMillis();
+        }
+
+        int getSize() { return data.length + headers.length; }
+    }
+
+    /** @return null if not cached */
+    public synchronized Entry get(String key) {
+        Entry e = _entries.get(key);
+        if (e != null && e._added + _maxAge < System.currentTimeMillis()) {
+            remove(key);
+            e = null;
+        }
+        if (e != null)
+            _hits++;
+        else
+            _misses++;
+        return e;
+    }
+
+    /** @return true if a file of this size would be cached */
+    public boolean isCacheable(long len) {
+        return len <= _maxEntrySize;
+    }
+
+    public synchronized void put(String key, Entry e) {
+        if (e.getSize() > _maxEntrySize)
+            return;
+        remove(key);
+        _entries.put(key, e);
+        _size += e.getSize();
+        for (Iterator<Entry> iter = _entries.values().iterator(); _size > _maxSize && iter.hasNext(); ) {
+            Entry old = iter.next();
+            iter.remove();
+            _size -= old.getSize();
+        }
+    }
+
+    public synchronized void remove(String key) {
+        Entry e = _entries.remove(key);
+        if (e != null)
+            _size -= e.getSize();
+    }
+
+    public synchronized void clear() {
+        _entries.clear();
+        _size = 0;
+    }
+
+    public synchronized long getHits() { return _hits; }
+
+    public synchronized long getMisses() { return _misses; }
+
+    /** @return 0 to 1 */
+    public synchronized double getHitRatio() {
+        long total = _hits + _misses;
+        return total > 0 ? _hits / (double) total : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HTTP cache: " + _entries.size() + " files, " + (_size / 1024) + "KB, " +
+               _hits + " hits, " + _misses + " misses (" + Math.round(getHitRatio() * 100) + "% hits)";
+    }
+
+    /**
+     *  Benchmark: requests per second over persistent connections on localhost, with and without the cache,
+     *  for a mix like that of clients polling an archive: 40% the shared index,
+     *  50% the 20 most recent posts, and 10% older posts.
+     *  The uncached handler does what the HTTPServ did per request before the cache:
+     *  checks the file, builds the headers including the file's hash, and sends it from disk.
+     *
+     *  Usage: HTTPCache [requests (default 20000)] [index KB (default 256)] [post KB (default 8)]
+     */
+    public static void main(String args[]) throws Exception {
+        final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int indexKB = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int postKB = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "httpcache-bench-" + System.currentTimeMillis());
+        dir.mkdirs();
+        final Map<String, File> files = new HashMap<String, File>();
+        Random rnd = new Random();
+        files.put("shared-index.dat", benchFile(new File(dir, "shared-index.dat"), indexKB * 1024, rnd));
+        for (int i = 0; i < 1000; i++) {
+            files.put(i + ".syndie", benchFile(new File(dir, i + ".syndie"), postKB * 1024, rnd));
+        }
+        final String paths[] = new String[requests];
+        for (int i = 0; i < requests; i++) {
+            int r = rnd.nextInt(100);
+            if (r < 40)
+                paths[i] = "shared-index.dat";
+            else if (r < 90)
+                paths[i] = (980 + rnd.nextInt(20)) + ".syndie";
+            else
+                paths[i] = rnd.nextInt(980) + ".syndie";
+        }
+
+        try {
+            System.out.println("mode\t\trequests/sec");
+            for (int i = 0; i < 2; i++) {
+                // warm up the first time round
+                final HTTPCache cache = new HTTPCache(16*1024*1024, 2*1024*1024, 10*60*1000);
+                double uncached = bench(files, paths, null);
+                double cached = bench(files, paths, cache);
+                if (i > 0) {
+                    System.out.println("uncached\t" + Math.round(uncached));
+                    System.out.println("cached\t\t" + Math.round(cached));
+                    System.out.println(cache);
+                }
+            }
+        } finally {
+            for (File f : files.values())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    private static File benchFile(File f, int len, Random rnd) throws IOException {
+        byte data[] = new byte[len];
+        rnd.nextBytes(data);
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    /** @return requests per second */
+    private static double bench(final Map<String, File> files, final String paths[], final HTTPCache cache) throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final int port = server.socket().getLocalPort();
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        HTTPSelector sel = new HTTPSelector(server, new HTTPSelector.Handler() {
+            public void requestReceived(HTTPConnection conn) {
+                String line = conn.getMethodLine();
+                String key = line.substring(line.indexOf('/') + 1, line.lastIndexOf(' '));
+                conn.setKeepAlive(conn.wantsKeepAlive());
+                String connHeaders = "Connection: keep-alive\r\n\r\n";
+                try {
+                    Entry e = cache != null ? cache.get(key) : null;
+                    if (e == null) {
+                        File f = files.get(key);
+                        if (f == null || !f.exists()) {
+                            conn.close();
+                            return;
+                        }
+                        if (cache != null) {
+                            byte data[] = new byte[(int) f.length()];
+                            FileInputStream in = new FileInputStream(f);
+                            try {
+                                DataHelper.read(in, data);
+                            } finally {
+                                in.close();
+                            }
+                            String hash = Base64.encode(SHA256Generator.getInstance().calculateHash(data).getData());
+                            e = new Entry(data, DataHelper.getUTF8(headers(data.length, hash)), f.lastModified());
+                            cache.put(key, e);
+                        } else {
+                            conn.send(DataHelper.getUTF8(headers(f.length(), FetchSpool.getHash(f)) + connHeaders));
+                            conn.send(f, 0, f.length());
+                            conn.respond();
+                            return;
+                        }
+                    }
+                    conn.send(e.headers);
+                    conn.send(DataHelper.getUTF8(connHeaders));
+                    conn.send(e.data);
+                    conn.respond();
+                } catch (IOException ioe) {
+                    conn.close();
+                }
+            }
+            public void bodyReceived(HTTPConnection conn, boolean complete) { conn.close(); }
+        }, workers, null);
+        Thread t = new Thread(sel, "HTTPSelector");
+        t.setDaemon(true);
+        t.start();
+
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        Thread clients[] = new Thread[4];
+        long start = System.nanoTime();
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Thread(new Runnable() {
+                public void run() {
+                    Socket s = null;
+                    try {
+                        int n;
+                        while ((n = next.getAndIncrement()) < paths.length) {
+                            if (s == null) {
+                                s = new Socket("127.0.0.1", port);
+                                s.setSoTimeout(10*1000);
+                            }
+                            s.getOutputStream().write(DataHelper.getUTF8("GET /" + paths[n] + " HTTP/1.1\r\n\r\n"));
+                            if (!readResponse(s.getInputStream())) {
+                                // MAX_REQUESTS reached
+                                s.close();
+                                s = null;
+                                next.decrementAndGet();
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        failed.incrementAndGet();
+                    } finally {
+                        if (s != null) try { s.close(); } catch (IOException ioe) {}
+                    }
+                }
+            });
+            clients[i].start();
+        }
+        for (int i = 0; i < clients.length; i++)
+            clients[i].join();
+        double secs = Math.max(1, System.nanoTime() - start) / 1000000000d;
+        sel.stop();
+        workers.shutdown();
+        if (failed.get() > 0)
+            System.out.println(failed.get() + " clients failed");
+        return paths.length / secs;
+    }
+
+    private static String headers(long len, String hash) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("HTTP/1.1 200 OK\r\n");
+        buf.append("Content-length: ").append(len).append("\r\n");
+        buf.append("Content-type: application/x-syndie\r\n");
+        buf.append("Accept-ranges: bytes\r\n");
+        buf.append(HTTPServ.HASH_HEADER).append(": ").append(hash).append("\r\n");
+        return buf.toString();
+    }
+
+    /** @return false at EOF */
+    private static boolean readResponse(InputStream in) throws IOException {
+        String line = DataHelper.readLine(in);
+        if (line == null)
+            return false;
+        long len = 0;
+        while ((line = DataHelper.readLine(in)) != null && line.trim().length() > 0) {
+            if (line.toLowerCase(Locale.US).startsWith("content-length:"))
+                len = Long.parseLong(line.substring(15).trim());
+        }
+        byte buf[] = new byte[16*1024];
+        while (len > 0) {
+            int read = in.read(buf, 0, (int) Math.min(buf.length, len));
+            if (read < 0)
+                throw new IOException("EOF in body");
+            len -= read;
+        }
+        return true;
+    }
+}
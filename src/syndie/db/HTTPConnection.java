@@ -0,0 +1,726 @@
+package syndie.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.data.DataHelper;
+
+/**
+ *  One client connection to the HTTPServ, as a state machine driven by the HTTPSelector:
+ *
+ *<pre>
+ *  READ_HEADERS -- request line and headers read --&gt; PROCESSING (handler, on a worker)
+ *  PROCESSING   -- receiveBody() --&gt; READ_BODY -- all read --&gt; PROCESSING (handler again)
+ *  PROCESSING   -- respond() --&gt; WRITE -- all written --&gt; CLOSED, or READ_HEADERS if keep-alive
+ *  any          -- close(), EOF, error, or idle timeout --&gt; CLOSED
+ *</pre>
+ *
+ *  Reads and writes only happen on the selector thread, the handler only runs
+ *  on a worker thread, and the two hand off through the selector's change queue,
+ *  so nothing here needs locking except the state.
+ *
+ *  @since 1.107b-1
+ */
+class HTTPConnection {
+    enum State { READ_HEADERS, PROCESSING, READ_BODY, WRITE, CLOSED }
+
+    private final HTTPSelector _selector;
+    private final SocketChannel _chan;
+    private SelectionKey _key;
+    private State _state;
+    private long _lastActive;
+    /** don't write again until then, see TokenBucket.reserve() */
+    private long _throttledUntil;
+
+    /** request line and headers, then the start of the body */
+    private final ByteBuffer _in;
+    private String _methodLine;
+    private final HashMap<String, String> _headers;
+    private int _headerLines;
+
+    /** requests completed on this connection @since 1.107b-1 */
+    private int _requests;
+    private boolean _keepAlive;
+    /** the client closed its side, but there may be pipelined requests left in _in @since 1.107b-1 */
+    private boolean _eof;
+    /** for the HTTPStats, System.nanoTime() at the end of the request headers @since 1.107b-1 */
+    private long _requestStart;
+    /** headers in, and not yet counted by the selector @since 1.107b-1 */
+    private boolean _uncounted;
+    /** from the status line of the response @since 1.107b-1 */
+    private int _status;
+    /** @since 1.107b-1 */
+    private long _responseBytes;
+    /** selector thread only, see HTTPLimiter @since 1.107b-1 */
+    private HTTPLimiter.Peer _peer;
+    private boolean _posting;
+    /** counted against its remote address by the HTTPLimiter */
+    private boolean _accepted;
+    private long _delayedUntil;
+
+    private WritableByteChannel _bodySink;
+    private long _bodyRemaining;
+    /** the sink took nothing, don't read until resumeBody() */
+    private volatile boolean _bodyFull;
+    private Object _attachment;
+
+    /** ByteBuffers and FileParts to write, in order */
+    private final LinkedList<Object> _out;
+    private ByteBuffer _fileBuf;
+    private FileChannel _fileChan;
+    private long _written;
+
+    private static final int MAX_HEADER_SIZE = 16*1024;
+    /** sanity check, don't keep receiving headers forever */
+    private static final int MAX_HEADER_LINES = 50;
+    private static final int FILE_BUF_SIZE = 16*1024;
+    /** max requests on one persistent connection @since 1.107b-1 */
+    static final int MAX_REQUESTS = 100;
+    /** max per transferTo(), so one big file doesn't go out in a single burst past the bandwidth limit */
+    private static final int TRANSFER_SIZE = 256*1024;
+
+    /**
+     *  Send files with FileChannel.transferTo() (sendfile on Linux),
+     *  straight from the page cache to the socket, instead of copying through FILE_BUF_SIZE buffers.
+     *  Only turned off to compare the two, see main().
+     *  @since 1.107b-1
+     */
+    private static volatile boolean _zeroCopy = true;
+
+    public HTTPConnection(HTTPSelector selector, SocketChannel chan) {
+        _selector = selector;
+        _chan = chan;
+        _state = State.READ_HEADERS;
+        _lastActive = System.currentTimeMillis();
+        _in = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        _headers = new HashMap<String, String>();
+        _out = new LinkedList<Object>();
+    }
+
+    ////// for the handler, on a worker thread
+
+    /** the request line, e.g. "GET /foo HTTP/1.1" */
+    public String getMethodLine() { return _methodLine; }
+
+    /** keys in upper case */
+    public HashMap<String, String> getHeaders() { return _headers; }
+
+    /** @return null if closed */
+    public InetAddress getRemoteAddress() {
+        Socket s = _chan.socket();
+        return s != null ? s.getInetAddress() : null;
+    }
+
+    /**
+     *  Whether the client asked for a persistent connection:
+     *  HTTP/1.1 unless "Connection: close", or HTTP/1.0 with "Connection: keep-alive".
+     *  Always false on the MAX_REQUESTS'th request.
+     *  @since 1.107b-1
+     */
+    public boolean wantsKeepAlive() {
+        if (_requests + 1 >= MAX_REQUESTS || _methodLine == null)
+            return false;
+        String conn = _headers.get("CONNECTION");
+        conn = conn != null ? conn.toLowerCase(Locale.US) : "";
+        if (_methodLine.endsWith(" HTTP/1.1"))
+            return conn.indexOf("close") < 0;
+        return conn.indexOf("keep-alive") >= 0;
+    }
+
+    /**
+     *  Keep the connection open for the next request after this response.
+     *  The response must be length-delimited and the request body, if any, fully read.
+     *  @since 1.107b-1
+     */
+    public void setKeepAlive(boolean yes) { _keepAlive = yes; }
+
+    /** @since 1.107b-1 */
+    public boolean isKeepAlive() { return _keepAlive; }
+
+    /** requests before this one left on a persistent connection, for the Keep-Alive header @since 1.107b-1 */
+    public int getRequestsRemaining() { return MAX_REQUESTS - _requests - 1; }
+
+    /** for the handler to keep its state between requestReceived() and bodyReceived() */
+    public void setAttachment(Object o) { _attachment = o; }
+
+    public Object getAttachment() { return _attachment; }
+
+    /**
+     *  Read the request body into the sink, then call the handler's bodyReceived().
+     *  The sink is written to on the selector thread, so it must not block.
+     *  If it takes nothing, reading stops until it calls resumeBody().
+     */
+    public void receiveBody(long length, WritableByteChannel sink) {
+        _bodySink = sink;
+        _bodyRemaining = length;
+        if (setState(State.PROCESSING, State.READ_BODY))
+            _selector.changed(this);
+    }
+
+    /**
+     *  The body sink has room again, any thread
+     *  @since 1.107b-1
+     */
+    public void resumeBody() {
+        _bodyFull = false;
+        _selector.changed(this);
+    }
+
+    /**
+     *  Waiting for the body sink, not the client
+     *  @since 1.107b-1
+     */
+    boolean isBodyFull() { return _bodyFull; }
+
+    /** queue data to send, the response starts with the status line */
+    public void send(byte data[]) {
+        if (_status == 0)
+            _status = parseStatus(data);
+        _out.add(ByteBuffer.wrap(data));
+    }
+
+    /**
+     *  @return the status from "HTTP/1.x nnn ...", or 0
+     *  @since 1.107b-1
+     */
+    private static int parseStatus(byte data[]) {
+        if (data.length < 12 || data[0] != 'H' || data[8] != ' ')
+            return 0;
+        int rv = 0;
+        for (int i = 9; i < 12; i++) {
+            if (data[i] < '0' || data[i] > '9')
+                return 0;
+            rv = rv * 10 + data[i] - '0';
+        }
+        return rv;
+    }
+
+    /**
+     *  Queue part of a file to send. The file is opened when its turn comes,
+     *  and the connection closed if it's shorter than that.
+     */
+    public void send(File file, long start, long length) {
+        if (length > 0)
+            _out.add(new FilePart(file, start, length));
+    }
+
+    /**
+     *  Write what was queued with send(), then close, or read the next request if keep-alive.
+     */
+    public void respond() {
+        if (setState(State.PROCESSING, State.WRITE))
+            _selector.changed(this);
+    }
+
+    /**
+     *  Close now, dropping anything queued
+     */
+    public void close() {
+        State old;
+        synchronized (this) {
+            old = _state;
+            _state = State.CLOSED;
+        }
+        if (old != State.CLOSED)
+            _selector.changed(this);
+    }
+
+    public synchronized State getState() { return _state; }
+
+    private synchronized boolean setState(State from, State to) {
+        if (_state != from)
+            return false;
+        _state = to;
+        return true;
+    }
+
+    ////// for the selector thread
+
+    void setKey(SelectionKey key) { _key = key; }
+
+    SelectionKey getKey() { return _key; }
+
+    SocketChannel getChannel() { return _chan; }
+
+    long getLastActive() { return _lastActive; }
+
+    long getThrottledUntil() { return _throttledUntil; }
+
+    /** @return true if waiting for another request on a persistent connection @since 1.107b-1 */
+    boolean isBetweenRequests() {
+        return _requests > 0 && _in.position() == 0 && getState() == State.READ_HEADERS;
+    }
+
+    /**
+     *  After the response is written, get ready for the next request.
+     *  The caller should then read(), as it may have been pipelined.
+     *
+     *  @return false if not keep-alive, close instead
+     *  @since 1.107b-1
+     */
+    boolean nextRequest(long now) {
+        if (!_keepAlive || !setState(State.WRITE, State.READ_HEADERS))
+            return false;
+        _requests++;
+        _keepAlive = false;
+        _methodLine = null;
+        _status = 0;
+        _responseBytes = 0;
+        _headers.clear();
+        _headerLines = 0;
+        _attachment = null;
+        _bodySink = null;
+        _bodyRemaining = 0;
+        _lastActive = now;
+        closeFile();
+        return true;
+    }
+
+    /**
+     *  @return the interest ops for the current state
+     */
+    int getInterestOps(long now) {
+        switch (getState()) {
+            case READ_HEADERS:
+                return SelectionKey.OP_READ;
+            case READ_BODY:
+                return _bodyFull ? 0 : SelectionKey.OP_READ;
+            case WRITE:
+                return now >= _throttledUntil ? SelectionKey.OP_WRITE : 0;
+            default:
+                return 0;
+        }
+    }
+
+    /** read() results */
+    static final int READ_MORE = 0;
+    static final int HEADERS_DONE = 1;
+    static final int BODY_DONE = 2;
+
+    /**
+     *  Readable, or the body was asked for.
+     *  Whatever came in after the headers goes to the body before reading any more.
+     *
+     *  @return READ_MORE, or HEADERS_DONE or BODY_DONE if the handler should be called
+     */
+    int read() throws IOException {
+        State state = getState();
+        if (state == State.READ_HEADERS) {
+            if (!_eof) {
+                int read = _chan.read(_in);
+                if (read < 0)
+                    _eof = true;
+                else if (read > 0)
+                    _lastActive = System.currentTimeMillis();
+            }
+            if (!parseHeaders()) {
+                if (_eof)
+                    throw new IOException(_requests > 0 && _in.position() == 0 ? "Closed after " + _requests + " requests" : "EOF in headers");
+                if (!_in.hasRemaining())
+                    throw new IOException("Headers too big");
+                return READ_MORE;
+            }
+            setState(State.READ_HEADERS, State.PROCESSING);
+            _requestStart = System.nanoTime();
+            _uncounted = true;
+            return HEADERS_DONE;
+        } else if (state == State.READ_BODY) {
+            if (_in.position() == 0 && _bodyRemaining > 0) {
+                int read = _chan.read(_in);
+                if (read < 0)
+                    throw new IOException("EOF in body, " + _bodyRemaining + " remaining");
+                if (read > 0)
+                    _lastActive = System.currentTimeMillis();
+            }
+            if (!drainBody())
+                return READ_MORE;
+            setState(State.READ_BODY, State.PROCESSING);
+            return BODY_DONE;
+        }
+        return READ_MORE;
+    }
+
+    /**
+     *  @return true when the body is all received, false if it wants more
+     *          or the sink is full, in which case what's left stays in _in
+     */
+    private boolean drainBody() throws IOException {
+        _bodyFull = false;
+        int end = _in.position();
+        _in.flip();
+        if (_in.remaining() > _bodyRemaining)
+            _in.limit(_in.position() + (int) _bodyRemaining);
+        while (_in.hasRemaining()) {
+            int n = _bodySink.write(_in);
+            if (n <= 0) {
+                _bodyFull = true;
+                _in.limit(end);
+                _in.compact();
+                return false;
+            }
+            _bodyRemaining -= n;
+        }
+        // anything past the body is ignored, as we close after a request with a body
+        _in.clear();
+        return _bodyRemaining <= 0;
+    }
+
+    /**
+     *  @return true if the request line and all the headers have been read
+     */
+    private boolean parseHeaders() throws IOException {
+        byte buf[] = _in.array();
+        int end = _in.position();
+        int lineStart = 0;
+        for (int i = 0; i < end; i++) {
+            if (buf[i] != '\n')
+                continue;
+            int lineEnd = i;
+            if (lineEnd > lineStart && buf[lineEnd - 1] == '\r')
+                lineEnd--;
+            String line = DataHelper.getUTF8(buf, lineStart, lineEnd - lineStart);
+            lineStart = i + 1;
+            if (_methodLine == null) {
+                _methodLine = line;
+                continue;
+            }
+            if (line.trim().length() <= 0) {
+                // all headers received, keep the rest for the body
+                _in.limit(end);
+                _in.position(lineStart);
+                _in.compact();
+                return true;
+            }
+            if (++_headerLines > MAX_HEADER_LINES)
+                throw new IOException("Too many headers");
+            String header[] = line.split(":", 2);
+            if (header.length < 2)
+                continue;
+            _headers.put(header[0].trim().toUpperCase(Locale.US), header[1].trim());
+        }
+        // keep the partial line for next time
+        _in.limit(end);
+        _in.position(lineStart);
+        _in.compact();
+        return false;
+    }
+
+    /**
+     *  Writable
+     *  @return true when everything has been written
+     */
+    boolean write(long now) throws IOException {
+        while (!_out.isEmpty()) {
+            Object part = _out.getFirst();
+            if (_zeroCopy && part instanceof FilePart) {
+                FilePart fp = (FilePart) part;
+                if (fp.remaining <= 0) {
+                    closeFile();
+                    _out.removeFirst();
+                    continue;
+                }
+                int n = transfer(fp);
+                if (n > 0)
+                    written(n, now);
+                if (n <= 0 || _throttledUntil > now)
+                    return false;
+                continue;
+            }
+            ByteBuffer buf;
+            if (part instanceof ByteBuffer) {
+                buf = (ByteBuffer) part;
+            } else {
+                buf = fill((FilePart) part);
+                if (buf == null) {
+                    // this part is done
+                    _out.removeFirst();
+                    continue;
+                }
+            }
+            int n = _chan.write(buf);
+            if (n > 0)
+                written(n, now);
+            if (buf.hasRemaining())
+                return false;
+            if (part instanceof ByteBuffer)
+                _out.removeFirst();
+            if (_throttledUntil > now)
+                return false;
+        }
+        return true;
+    }
+
+    private void written(int n, long now) {
+        _lastActive = now;
+        _written += n;
+        _responseBytes += n;
+        long wait = TokenBucket.GLOBAL_OUTBOUND.reserve(n);
+        if (_peer != null)
+            wait = Math.max(wait, _peer.bytes.reserve(n));
+        if (wait > 0)
+            _throttledUntil = now + wait;
+    }
+
+    /**
+     *  Zero-copy from the file to the socket
+     *
+     *  @return bytes written, 0 if the socket is full
+     *  @since 1.107b-1
+     */
+    private int transfer(FilePart part) throws IOException {
+        if (_fileChan == null)
+            _fileChan = new FileInputStream(part.file).getChannel();
+        long pos = part.start + part.sent;
+        long n = _fileChan.transferTo(pos, Math.min(part.remaining, TRANSFER_SIZE), _chan);
+        if (n <= 0 && pos >= _fileChan.size())
+            throw new IOException("File truncated: " + part.file);
+        part.sent += n;
+        part.remaining -= n;
+        return (int) n;
+    }
+
+    /**
+     *  Copy through a buffer, when not _zeroCopy
+     *
+     *  @return the file data to write next, or null when the part is done
+     */
+    private ByteBuffer fill(FilePart part) throws IOException {
+        if (_fileBuf == null)
+            _fileBuf = ByteBuffer.allocate(FILE_BUF_SIZE);
+        else if (_fileBuf.hasRemaining() && _fileChan != null)
+            return _fileBuf;
+        if (part.remaining <= 0) {
+            closeFile();
+            return null;
+        }
+        if (_fileChan == null) {
+            _fileChan = new FileInputStream(part.file).getChannel();
+            _fileChan.position(part.start);
+        }
+        _fileBuf.clear();
+        if (_fileBuf.remaining() > part.remaining)
+            _fileBuf.limit((int) part.remaining);
+        int read = _fileChan.read(_fileBuf);
+        if (read < 0)
+            throw new IOException("File truncated: " + part.file);
+        part.remaining -= read;
+        part.sent += read;
+        _fileBuf.flip();
+        return _fileBuf;
+    }
+
+    /** total bytes written */
+    long getWritten() { return _written; }
+
+    /** the response status, 0 if none was sent @since 1.107b-1 */
+    int getStatus() { return _status; }
+
+    /** bytes of the current response written so far @since 1.107b-1 */
+    long getResponseBytes() { return _responseBytes; }
+
+    /** System.nanoTime() when the current request's headers were in @since 1.107b-1 */
+    long getRequestStart() { return _requestStart; }
+
+    /** @return null if not yet admitted by the HTTPLimiter @since 1.107b-1 */
+    HTTPLimiter.Peer getPeer() { return _peer; }
+
+    /** @since 1.107b-1 */
+    void setPeer(HTTPLimiter.Peer peer) { _peer = peer; }
+
+    /** holding one of the HTTPLimiter's POST slots @since 1.107b-1 */
+    boolean isPosting() { return _posting; }
+
+    /** @since 1.107b-1 */
+    void setPosting(boolean yes) { _posting = yes; }
+
+    /** counted against its remote address by the HTTPLimiter @since 1.107b-1 */
+    boolean isAccepted() { return _accepted; }
+
+    /** @since 1.107b-1 */
+    void setAccepted(boolean yes) { _accepted = yes; }
+
+    /** from receiveBody(), null if none @since 1.107b-1 */
+    WritableByteChannel getBodySink() { return _bodySink; }
+
+    /** when the HTTPLimiter lets the handler have it, 0 if not delayed @since 1.107b-1 */
+    long getDelayedUntil() { return _delayedUntil; }
+
+    /** @since 1.107b-1 */
+    void setDelayedUntil(long when) { _delayedUntil = when; }
+
+    /**
+     *  So each request is counted once, when it's responded to or the connection closes
+     *  @return true the first time it's called after the request headers were read
+     *  @since 1.107b-1
+     */
+    boolean setCounted() {
+        boolean rv = _uncounted;
+        _uncounted = false;
+        return rv;
+    }
+
+    /**
+     *  Release everything, the channel is closed by the selector
+     */
+    void closeFile() {
+        if (_fileChan != null) {
+            try { _fileChan.close(); } catch (IOException ioe) {}
+            _fileChan = null;
+        }
+    }
+
+    /** selector thread only, doesn't call back into the selector */
+    void setClosed() {
+        synchronized (this) {
+            _state = State.CLOSED;
+        }
+        closeFile();
+    }
+
+    private static class FilePart {
+        final File file;
+        final long start;
+        /** read from the file so far */
+        long sent;
+        long remaining;
+
+        public FilePart(File f, long start, long length) {
+            file = f;
+            this.start = start;
+            remaining = length;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HTTP connection " + getRemoteAddress() + ' ' + getState() + ' ' + _methodLine + " request " + (_requests + 1);
+    }
+
+    /**
+     *  Benchmark: file serving throughput on localhost, with transferTo() and with buffer copies,
+     *  for many small posts and a few large indexes. Four clients fetch in parallel.
+     *
+     *  Usage: HTTPConnection [small KB (default 4)] [small fetches (default 4000)] [large MB (default 16)] [large fetches (default 40)]
+     */
+    public static void main(String args[]) throws Exception {
+        int smallKB = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int smallCount = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+        int largeMB = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int largeCount = args.length > 3 ? Integer.parseInt(args[3]) : 40;
+        final File small = benchFile(smallKB * 1024L);
+        final File large = benchFile(largeMB * 1024L * 1024L);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = server.socket().getLocalPort();
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        HTTPSelector sel = new HTTPSelector(server, new HTTPSelector.Handler() {
+            public void requestReceived(HTTPConnection conn) {
+                File f = conn.getMethodLine().startsWith("GET /small") ? small : large;
+                conn.send(DataHelper.getUTF8("HTTP/1.0 200 OK\r\nContent-length: " + f.length() +
+                                             "\r\nConnection: close\r\n\r\n"));
+                conn.send(f, 0, f.length());
+                conn.respond();
+            }
+            public void bodyReceived(HTTPConnection conn, boolean complete) { conn.close(); }
+        }, workers, null);
+        Thread t = new Thread(sel, "HTTPSelector");
+        t.setDaemon(true);
+        t.start();
+        try {
+            System.out.println("file\tmode\t\tfetches/sec\tMB/sec");
+            for (int i = 0; i < 2; i++) {
+                // warm up the first time round
+                for (int zc = 0; zc < 2; zc++) {
+                    _zeroCopy = zc == 0;
+                    String mode = _zeroCopy ? "transferTo" : "copy\t";
+                    bench(port, "/small", smallCount, smallKB * 1024L, smallKB + "KB\t" + mode, i > 0);
+                    bench(port, "/large", largeCount, large.length(), largeMB + "MB\t" + mode, i > 0);
+                }
+            }
+        } finally {
+            _zeroCopy = true;
+            sel.stop();
+            workers.shutdown();
+            small.delete();
+            large.delete();
+        }
+    }
+
+    private static File benchFile(long len) throws IOException {
+        File f = File.createTempFile("httpbench", ".dat");
+        f.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            byte buf[] = new byte[64*1024];
+            new Random().nextBytes(buf);
+            for (long done = 0; done < len; done += buf.length)
+                raf.write(buf, 0, (int) Math.min(buf.length, len - done));
+        } finally {
+            raf.close();
+        }
+        return f;
+    }
+
+    private static void bench(final int port, final String path, final int count, final long len,
+                              String name, boolean print) throws Exception {
+        final int clients = 4;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        Thread threads[] = new Thread[clients];
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    byte buf[] = new byte[64*1024];
+                    byte req[] = DataHelper.getUTF8("GET " + path + " HTTP/1.0\r\n\r\n");
+                    while (next.getAndIncrement() < count) {
+                        Socket s = null;
+                        try {
+                            s = new Socket("127.0.0.1", port);
+                            s.getOutputStream().write(req);
+                            InputStream in = s.getInputStream();
+                            long got = 0;
+                            int read;
+                            while ((read = in.read(buf)) != -1)
+                                got += read;
+                            if (got < len)
+                                failed.incrementAndGet();
+                        } catch (IOException ioe) {
+                            failed.incrementAndGet();
+                        } finally {
+                            if (s != null) try { s.close(); } catch (IOException ioe) {}
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < clients; i++)
+            threads[i].join();
+        double secs = Math.max(1, System.nanoTime() - start) / 1000000000d;
+        if (failed.get() > 0)
+            System.out.println(name + ": " + failed.get() + " failed");
+        if (print)
+            System.out.println(name + '\t' + String.format("%.0f", count / secs) + "\t\t" +
+                               String.format("%.1f", count * len / (secs * 1024 * 1024)));
+    }
+}
@@ -0,0 +1,889 @@
+package syndie.db;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.data.DataFormatException;
+import net.i2p.data.DataHelper;
+import net.i2p.util.FileUtil;
+
+/**
+ *  Per-peer limits for the HTTPSelector, so one client polling or mass-fetching
+ *  as fast as it can doesn't crowd out everybody else:
+ *
+ *<ul>
+ *<li>Requests per second, with a burst. A request over the limit waits its turn
+ *    for up to MAX_REQUEST_DELAY, past that it gets a 429.
+ *<li>Bytes per second of responses, on top of TokenBucket.GLOBAL_OUTBOUND.
+ *<li>Open connections, past MAX_PEER_CONNECTIONS a request gets a 429 and the connection is closed,
+ *    so one peer can't take all of HTTPSelector.MAX_CONNECTIONS. Connections from elsewhere are also
+ *    counted by remote address as they're accepted, so idle ones that never send a request count too.
+ *<li>Messages pushed, by the minute. Each POST to import is charged for its items once it's done,
+ *    and the next one waits while the peer is over, or is refused if it would wait more than
+ *    MAX_REQUEST_DELAY. A pusher sending batch after batch is slowed down, not failed.
+ *    One POST at a time per peer, and MAX_POSTS at a time in all, as each is spooled to disk and parsed.
+ *    Batch requests are only reads, and count as requests.
+ *<li>The workers are shared out fairly: when they're all busy, requests queue per peer,
+ *    and the peers with requests waiting take turns, one request each.
+ *</ul>
+ *
+ *  A peer is the remote address, or for connections from this machine, where the I2P tunnel is,
+ *  the I2P destination from the X-I2P-DestHash header. The header is only believed if setUnidentified()
+ *  says the tunnel is an HTTP server tunnel, which replaces any X-I2P- headers the client sent with its own.
+ *  A plain server tunnel passes them through, so a client could send a new made-up one each time.
+ *  Otherwise connections from this machine can't be told apart: local clients, and all clients over I2P.
+ *  They're one peer, with the limits of several (DEFAULT_UNIDENTIFIED_SHARES), and one turn in the fair queue.
+ *
+ *  Everything but execute() and the byte buckets is on the selector thread only.
+ *
+ *  @since 1.107b-1
+ */
+class HTTPLimiter {
+    private final Executor _workers;
+    private final int _maxRunning;
+    /** selector thread only */
+    private final Map<String, Peer> _peers;
+    /** open connections by remote address, not counting this machine, selector thread only */
+    private final Map<InetAddress, Integer> _addresses;
+    /** peers with work queued, in turn order, guarded by this */
+    private final LinkedList<Peer> _ready;
+    /** guarded by this */
+    private int _running;
+    /** selector thread only */
+    private int _posts;
+    private long _lastClean;
+    private volatile double _requestsPerSecond;
+    private volatile int _requestBurst;
+    private volatile double _postsPerMinute;
+    private volatile int _bytesPerSecond;
+    private volatile boolean _trustDestHeader;
+    private volatile int _unidentifiedShares;
+    private final AtomicLong _delayed;
+    private final AtomicLong _rejected;
+
+    public static final int DEFAULT_REQUESTS_PER_SECOND = 10;
+    /** messages pushed, as a pusher sends up to 50 in each POST */
+    public static final int DEFAULT_POSTS_PER_MINUTE = 600;
+    public static final int DEFAULT_KBPS = 512;
+    /** a fetch of everything new in a channel comes in a rush, let it */
+    private static final int BURST_SECONDS = 4;
+    static final long MAX_REQUEST_DELAY = 5*1000;
+    static final int MAX_PEER_CONNECTIONS = 32;
+    /** at once, from everybody */
+    static final int MAX_POSTS = 8;
+    /** at once, per peer */
+    private static final int MAX_PEER_POSTS = 1;
+    /** the connections from this machine we can't tell apart get the limits of this many peers */
+    public static final int DEFAULT_UNIDENTIFIED_SHARES = 8;
+    private static final long PEER_EXPIRE = 10*60*1000;
+    private static final long CLEAN_TIME = 60*1000;
+
+    static final String DEST_HEADER = "X-I2P-DESTHASH";
+    /** the peer name for connections from this machine without a trusted DEST_HEADER */
+    private static final String UNIDENTIFIED = "unidentified";
+
+    /**
+     *  @param workers what the requests run on
+     *  @param maxRunning at most this many queued to the workers at once, the number of worker threads
+     */
+    public HTTPLimiter(Executor workers, int maxRunning) {
+        _workers = workers;
+        _maxRunning = Math.max(1, maxRunning);
+        _peers = new HashMap<String, Peer>();
+        _addresses = new HashMap<InetAddress, Integer>();
+        _ready = new LinkedList<Peer>();
+        _delayed = new AtomicLong();
+        _rejected = new AtomicLong();
+        _unidentifiedShares = DEFAULT_UNIDENTIFIED_SHARES;
+        setLimits(DEFAULT_REQUESTS_PER_SECOND, DEFAULT_KBPS, DEFAULT_POSTS_PER_MINUTE);
+    }
+
+    /**
+     *  Takes effect for peers seen from now on
+     *
+     *  @param requestsPerSecond per peer, zero or less for unlimited
+     *  @param kbps per peer, zero or less for unlimited
+     *  @param postsPerMinute messages pushed per peer, zero or less for unlimited
+     */
+    public void setLimits(int requestsPerSecond, int kbps, int postsPerMinute) {
+        _requestsPerSecond = requestsPerSecond;
+        _requestBurst = Math.max(1, requestsPerSecond * BURST_SECONDS);
+        _bytesPerSecond = kbps > 0 ? kbps * 1024 : 0;
+        _postsPerMinute = postsPerMinute;
+    }
+
+    /**
+     *  How to treat connections from this machine. Takes effect for peers seen from now on.
+     *
+     *  @param trustDestHeader true only if the I2P server tunnel is an HTTP server tunnel,
+     *                         so the DEST_HEADER is the tunnel's and not the client's
+     *  @param shares the connections from this machine without a trusted DEST_HEADER are one peer
+     *                with this many times the per-peer limits, zero or less for unlimited
+     */
+    public void setUnidentified(boolean trustDestHeader, int shares) {
+        _trustDestHeader = trustDestHeader;
+        _unidentifiedShares = shares;
+    }
+
+    /** requests made to wait their turn */
+    public long getDelayed() { return _delayed.get(); }
+
+    /** requests refused */
+    public long getRejected() { return _rejected.get(); }
+
+    /** admit() results */
+    static final int ADMIT_NOW = 0;
+    static final int ADMIT_LATER = 1;
+    static final int REJECT_RATE = 2;
+    static final int REJECT_CONNECTIONS = 3;
+    static final int REJECT_POSTS = 4;
+
+    /**
+     *  A new connection, before anything is read from it. Counts it against its remote address,
+     *  unless it's from this machine, where the I2P tunnel is and every I2P client comes from.
+     *  Selector thread only.
+     *
+     *  @return false if the address has MAX_PEER_CONNECTIONS open already, and this one should be refused
+     */
+    public boolean accept(HTTPConnection conn) {
+        InetAddress addr = conn.getRemoteAddress();
+        if (addr == null || addr.isLoopbackAddress())
+            return true;
+        Integer count = _addresses.get(addr);
+        int n = count != null ? count.intValue() : 0;
+        if (n >= MAX_PEER_CONNECTIONS) {
+            _rejected.incrementAndGet();
+            return false;
+        }
+        _addresses.put(addr, Integer.valueOf(n + 1));
+        conn.setAccepted(true);
+        return true;
+    }
+
+    /**
+     *  The request headers are in. Sets the connection's peer, and for a POST takes a slot,
+     *  given back by release().
+     *  Selector thread only.
+     *
+     *  @return ADMIT_NOW, or ADMIT_LATER with the connection's delay set,
+     *          or one of the REJECT_ values if it should be refused
+     */
+    public int admit(HTTPConnection conn, long now) {
+        Peer peer = getPeer(conn, now);
+        Peer old = conn.getPeer();
+        if (old != peer) {
+            if (old != null)
+                old.connections--;
+            peer.connections++;
+            conn.setPeer(peer);
+        }
+        peer.lastActive = now;
+        if (peer.maxConnections > 0 && peer.connections > peer.maxConnections) {
+            _rejected.incrementAndGet();
+            return REJECT_CONNECTIONS;
+        }
+        String line = conn.getMethodLine();
+        long delay;
+        if (line.startsWith("POST ") && !line.contains(HTTPServ.BATCH_CGI)) {
+            // charged for its items in release()
+            delay = peer.postRate.getDebtWait(now);
+            if (_posts >= MAX_POSTS || (peer.maxPosts > 0 && peer.posts >= peer.maxPosts) || delay > MAX_REQUEST_DELAY) {
+                _rejected.incrementAndGet();
+                return REJECT_POSTS;
+            }
+            _posts++;
+            peer.posts++;
+            conn.setPosting(true);
+        } else {
+            delay = peer.requestRate.reserve(now, MAX_REQUEST_DELAY);
+            if (delay < 0) {
+                _rejected.incrementAndGet();
+                return REJECT_RATE;
+            }
+        }
+        if (delay == 0)
+            return ADMIT_NOW;
+        _delayed.incrementAndGet();
+        conn.setDelayedUntil(now + delay);
+        return ADMIT_LATER;
+    }
+
+    /**
+     *  The connection is closed, give back what admit() took.
+     *  Selector thread only.
+     */
+    public void release(HTTPConnection conn) {
+        if (conn.isAccepted()) {
+            conn.setAccepted(false);
+            InetAddress addr = conn.getRemoteAddress();
+            Integer count = addr != null ? _addresses.get(addr) : null;
+            if (count != null) {
+                if (count.intValue() <= 1)
+                    _addresses.remove(addr);
+                else
+                    _addresses.put(addr, Integer.valueOf(count.intValue() - 1));
+            }
+        }
+        Peer peer = conn.getPeer();
+        if (peer == null)
+            return;
+        conn.setPeer(null);
+        peer.connections--;
+        if (conn.isPosting()) {
+            conn.setPosting(false);
+            peer.posts--;
+            _posts--;
+            // whatever it got through before it finished or dropped, and at least one
+            WritableByteChannel sink = conn.getBodySink();
+            int items = sink instanceof PostReceiver ? ((PostReceiver) sink).getItemCount() : 0;
+            peer.postRate.charge(System.currentTimeMillis(), Math.max(1, items));
+        }
+    }
+
+    /**
+     *  Run the task on a worker now if one's free, or after everyone else with
+     *  work queued has had a turn. Any thread.
+     *
+     *  @param peer may be null, for connections that were never admitted
+     *  @throws RejectedExecutionException if the workers are shut down
+     */
+    public void execute(Peer peer, Runnable task) {
+        synchronized (this) {
+            if (_running >= _maxRunning && peer != null) {
+                if (peer.queue.isEmpty())
+                    _ready.add(peer);
+                peer.queue.add(task);
+                return;
+            }
+            _running++;
+        }
+        try {
+            start(task);
+        } catch (RejectedExecutionException ree) {
+            synchronized (this) {
+                _running--;
+            }
+            throw ree;
+        }
+    }
+
+    private void start(final Runnable task) {
+        _workers.execute(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    next();
+                }
+            }
+        });
+    }
+
+    /**
+     *  A worker is done, give it to the next peer in turn
+     */
+    private void next() {
+        Runnable task;
+        synchronized (this) {
+            Peer peer = _ready.poll();
+            if (peer == null) {
+                _running--;
+                return;
+            }
+            task = peer.queue.removeFirst();
+            if (!peer.queue.isEmpty())
+                _ready.add(peer);
+        }
+        try {
+            start(task);
+        } catch (RejectedExecutionException ree) {
+            // shutting down
+            synchronized (this) {
+                _running--;
+            }
+        }
+    }
+
+    /**
+     *  @return non-null, created if new
+     */
+    private Peer getPeer(HTTPConnection conn, long now) {
+        InetAddress addr = conn.getRemoteAddress();
+        String key = null;
+        if (addr != null && addr.isLoopbackAddress()) {
+            if (_trustDestHeader)
+                key = conn.getHeaders().get(DEST_HEADER);
+        } else if (addr != null) {
+            key = addr.getHostAddress();
+        }
+        boolean identified = key != null;
+        if (!identified)
+            key = UNIDENTIFIED;
+        Peer rv = _peers.get(key);
+        if (rv == null) {
+            if (now - _lastClean > CLEAN_TIME)
+                clean(now);
+            int shares = identified ? 1 : _unidentifiedShares;
+            if (shares > 0)
+                rv = new Peer(key, shares * MAX_PEER_CONNECTIONS, shares * MAX_PEER_POSTS, shares * _requestsPerSecond,
+                              shares * _requestBurst, shares * _postsPerMinute, shares * _bytesPerSecond);
+            else
+                rv = new Peer(key, 0, 0, 0, 1, 0, 0);
+            _peers.put(key, rv);
+        }
+        return rv;
+    }
+
+    /**
+     *  Forget peers that have been gone a while
+     */
+    private void clean(long now) {
+        _lastClean = now;
+        for (Iterator<Peer> iter = _peers.values().iterator(); iter.hasNext(); ) {
+            Peer peer = iter.next();
+            if (peer.connections <= 0 && peer.lastActive + PEER_EXPIRE < now)
+                iter.remove();
+        }
+    }
+
+    /** selector thread only */
+    public int getPeerCount() { return _peers.size(); }
+
+    @Override
+    public String toString() {
+        return "HTTP limiter: " + _peers.size() + " peers, " + _delayed.get() + " requests delayed, " +
+               _rejected.get() + " rejected";
+    }
+
+    /**
+     *  One client. The counts and request limits are for the selector thread only,
+     *  the queue is guarded by the HTTPLimiter.
+     */
+    static class Peer {
+        final String name;
+        /** zero for unlimited */
+        final int maxConnections;
+        /** POSTs to import at once, zero for unlimited */
+        final int maxPosts;
+        final Rate requestRate;
+        /** messages pushed */
+        final Rate postRate;
+        /** for HTTPConnection.written() */
+        final TokenBucket bytes;
+        final LinkedList<Runnable> queue;
+        int connections;
+        int posts;
+        long lastActive;
+
+        /**
+         *  @param postsPerMinute messages pushed, with a minute's worth as the burst
+         */
+        Peer(String name, int maxConnections, int maxPosts, double requestsPerSecond, int burst,
+             double postsPerMinute, int bytesPerSecond) {
+            this.name = name;
+            this.maxConnections = maxConnections;
+            this.maxPosts = maxPosts;
+            requestRate = new Rate(requestsPerSecond, burst);
+            postRate = new Rate(postsPerMinute / 60, Math.max(1, (int) postsPerMinute));
+            bytes = new TokenBucket(name);
+            bytes.setRate(bytesPerSecond);
+            queue = new LinkedList<Runnable>();
+        }
+
+        @Override
+        public String toString() { return name; }
+    }
+
+    /**
+     *  A token bucket counting requests instead of bytes, with a burst of more than one second's worth,
+     *  which TokenBucket doesn't do.
+     */
+    static class Rate {
+        private final double _perSecond;
+        private final double _burst;
+        private double _tokens;
+        private long _lastRefill;
+
+        /** @param perSecond zero or less for unlimited */
+        Rate(double perSecond, int burst) {
+            _perSecond = perSecond;
+            _burst = burst;
+            _tokens = burst;
+            _lastRefill = System.currentTimeMillis();
+        }
+
+        /**
+         *  Take one now, going into debt if need be, unless the debt would take too long to pay off
+         *
+         *  @return how long to wait before using it, 0 for none, or -1 if that would be more than maxWait,
+         *          in which case nothing is taken
+         */
+        long reserve(long now, long maxWait) {
+            if (_perSecond <= 0)
+                return 0;
+            refill(now);
+            double left = _tokens - 1;
+            long wait = left >= 0 ? 0 : (long) Math.ceil(-left * 1000 / _perSecond);
+            if (wait > maxWait)
+                return -1;
+            _tokens = left;
+            return wait;
+        }
+
+        /** @return true if one was available, and took it */
+        boolean take(long now) {
+            return reserve(now, 0) == 0;
+        }
+
+        /**
+         *  Take some after the fact, going into debt if need be
+         */
+        void charge(long now, int count) {
+            if (_perSecond <= 0)
+                return;
+            refill(now);
+            _tokens -= count;
+        }
+
+        /**
+         *  @return how long until the debt from charge() is paid off, 0 if none
+         */
+        long getDebtWait(long now) {
+            if (_perSecond <= 0)
+                return 0;
+            refill(now);
+            return _tokens >= 0 ? 0 : (long) Math.ceil(-_tokens * 1000 / _perSecond);
+        }
+
+        private void refill(long now) {
+            long elapsed = now - _lastRefill;
+            _lastRefill = now;
+            if (elapsed > 0)
+                _tokens = Math.min(_burst, _tokens + elapsed * _perSecond / 1000);
+        }
+    }
+
+    /**
+     *  Fairness check: a greedy client with many connections fetching as fast as it can,
+     *  and a polite one fetching once every 200 ms, both from this machine but with different
+     *  I2P destination headers from an HTTP server tunnel, against a server whose two workers take 20 ms per request.
+     *  Run once without the limiter and once with.
+     *
+     *  Without it, the polite client's requests wait behind everything the greedy one has queued.
+     *  With it, they're served next, and the greedy client is held to its request rate.
+     *
+     *  Then checks that clients on this machine without the header, or with a made-up one each time
+     *  through a plain server tunnel, are held to the unidentified peer's limits, that a pusher sending 50-message POSTs back to back, retrying as SyncOutboundPusher does,
+     *  gets everything through, and that connections from one address are limited as they're
+     *  accepted, before any request is sent.
+     *
+     *  Usage: HTTPLimiter [greedy connections (default 64)] [seconds (default 10)]
+     */
+    public static void main(String args[]) throws Exception {
+        int greedy = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int secs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long unlimited[] = fairnessTest(greedy, secs, false);
+        long limited[] = fairnessTest(greedy, secs, true);
+        boolean ok = limited[2] == 0 && limited[1] < 4 * 20 + 250 && limited[1] < unlimited[1];
+        System.out.println(ok ? "Polite client not starved: OK" : "Polite client starved: FAILED");
+        ok &= unidentifiedTest(greedy, false, false);
+        ok &= unidentifiedTest(greedy, true, false);
+        ok &= unidentifiedTest(greedy, true, true);
+        ok &= pushTest(1000);
+        ok &= acceptTest();
+        if (!ok)
+            System.exit(1);
+    }
+
+    /**
+     *  A server for the tests below, the handler takes 20 ms per GET.
+     *  POSTs go through a PostReceiver into dir.
+     *
+     *  @param queue for POSTs, may be null if none
+     */
+    private static HTTPSelector startServer(ServerSocketChannel server, final ExecutorService workers, HTTPLimiter limiter,
+                                            final ImportQueue queue, final File dir) throws IOException {
+        final byte body[] = new byte[4096];
+        final AtomicInteger postNum = new AtomicInteger();
+        HTTPSelector sel = new HTTPSelector(server, new HTTPSelector.Handler() {
+            public void requestReceived(HTTPConnection conn) {
+                if (conn.getMethodLine().startsWith("POST ")) {
+                    long len = Long.parseLong(conn.getHeaders().get("CONTENT-LENGTH"));
+                    PostReceiver rcv = new PostReceiver(dir, "push-" + postNum.incrementAndGet(), len, 0, 0, queue, workers, conn, null);
+                    conn.setAttachment(rcv);
+                    conn.receiveBody(len, rcv);
+                    return;
+                }
+                try { Thread.sleep(20); } catch (InterruptedException ie) {}
+                conn.send(DataHelper.getUTF8("HTTP/1.1 200 OK\r\nContent-length: " + body.length + "\r\nConnection: close\r\n\r\n"));
+                conn.send(body);
+                conn.respond();
+            }
+            public void bodyReceived(HTTPConnection conn, boolean complete) {
+                PostReceiver rcv = (PostReceiver) conn.getAttachment();
+                rcv.close();
+                if (!complete || !rcv.isComplete()) {
+                    conn.close();
+                    return;
+                }
+                try {
+                    rcv.awaitImports(10*1000);
+                } catch (InterruptedException ie) {}
+                conn.send(DataHelper.getUTF8("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\n" + rcv.getAcks()));
+                conn.respond();
+            }
+        }, workers, null, null, limiter);
+        Thread t = new Thread(sel, "HTTPSelector");
+        t.setDaemon(true);
+        t.start();
+        return sel;
+    }
+
+    /**
+     *  Many clients on this machine fetching as fast as they can, at 5 requests per second per peer
+     *  and 2 shares for the unidentified peer, for 5 seconds.
+     *  Unless the header is trusted, they're all the one unidentified peer, and together they can't get
+     *  more than its burst and 10 per second, even with a made-up header on every request.
+     *  With it trusted, each made-up header is a peer of its own, and they get well past that.
+     *
+     *  @param header a new made-up destination header on each request
+     *  @param trust as for an HTTP server tunnel
+     */
+    private static boolean unidentifiedTest(int clients, final boolean header, boolean trust) throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final int port = server.socket().getLocalPort();
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        HTTPLimiter limiter = new HTTPLimiter(workers, 2);
+        limiter.setLimits(5, 0, 0);
+        limiter.setUnidentified(trust, 2);
+        HTTPSelector sel = startServer(server, workers, limiter, null, null);
+        final int secs = 5;
+        final long end = System.currentTimeMillis() + secs * 1000;
+        final AtomicInteger dest = new AtomicInteger();
+        final AtomicInteger ok = new AtomicInteger();
+        final AtomicInteger refused = new AtomicInteger();
+        Thread threads[] = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    while (System.currentTimeMillis() < end) {
+                        if (fetch(port, header ? "made-up-" + dest.incrementAndGet() : null) == 200)
+                            ok.incrementAndGet();
+                        else
+                            refused.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < clients; i++)
+            threads[i].join();
+        sel.stop();
+        workers.shutdown();
+        // the burst, the rate, and what was delayed into the extra MAX_REQUEST_DELAY
+        int max = 2 * 5 * BURST_SECONDS + 2 * 5 * (secs + (int) (MAX_REQUEST_DELAY / 1000));
+        boolean pass = ok.get() > 0 && (trust ? ok.get() > max : ok.get() <= max);
+        System.out.println("Unidentified, " + (header ? "made-up headers" : "no header") + ", " +
+                           (trust ? "trusted" : "not trusted") + ": " + clients + " clients, " + ok.get() + " OK in " +
+                           secs + " s, " + (trust ? "more than " : "at most ") + max + " expected, " + refused.get() +
+                           " refused; " + limiter + ": " + (pass ? "OK" : "FAILED"));
+        return pass;
+    }
+
+    /**
+     *  One pusher sending 50 1KB messages per POST, back to back, trying each
+     *  batch 3 times 5 and 10 seconds apart as SyncOutboundPusher does.
+     *  Every batch should get through, slowed down past the first minute's worth.
+     */
+    private static boolean pushTest(int messages) throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = server.socket().getLocalPort();
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        HTTPLimiter limiter = new HTTPLimiter(workers, 2);
+        // the pusher is one peer of its own
+        limiter.setUnidentified(true, DEFAULT_UNIDENTIFIED_SHARES);
+        File dir = new File(System.getProperty("java.io.tmpdir"), "httplimiter-test-" + System.currentTimeMillis());
+        dir.mkdirs();
+        ImportQueue queue = new ImportQueue(null, null, 1) {
+            @Override
+            protected String importFile(File f, boolean meta) { return null; }
+        };
+        queue.start();
+        HTTPSelector sel = startServer(server, workers, limiter, queue, dir);
+        int batches = (messages + 49) / 50;
+        int failed = 0;
+        int refused = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < batches; i++) {
+            boolean done = false;
+            for (int attempt = 1; attempt <= 3 && !done; attempt++) {
+                int status = push(port, "pusher", 50, 1024);
+                if (status == 200) {
+                    done = true;
+                } else {
+                    refused++;
+                    if (attempt < 3)
+                        Thread.sleep(5*1000 * attempt);
+                }
+            }
+            if (!done)
+                failed++;
+        }
+        long time = System.currentTimeMillis() - start;
+        sel.stop();
+        workers.shutdown();
+        queue.stop();
+        FileUtil.rmdir(dir, false);
+        boolean pass = failed == 0;
+        System.out.println("Push: " + batches + " POSTs of 50 in " + (time / 1000) + " s, " + refused + " refused, " +
+                           failed + " failed; " + limiter + ": " + (pass ? "OK" : "FAILED"));
+        return pass;
+    }
+
+    /**
+     *  Twice MAX_PEER_CONNECTIONS connections from one address that isn't this machine's loopback,
+     *  sending nothing. Only MAX_PEER_CONNECTIONS should stay open, and once they're
+     *  closed, as many again should be let in.
+     *  Skipped if there's no such address.
+     */
+    private static boolean acceptTest() throws Exception {
+        InetAddress addr = null;
+        for (Enumeration<NetworkInterface> ifs = NetworkInterface.getNetworkInterfaces(); ifs != null && ifs.hasMoreElements() && addr == null; ) {
+            NetworkInterface ni = ifs.nextElement();
+            if (!ni.isUp() || ni.isLoopback())
+                continue;
+            for (Enumeration<InetAddress> addrs = ni.getInetAddresses(); addrs.hasMoreElements(); ) {
+                InetAddress a = addrs.nextElement();
+                if (a instanceof Inet4Address && !a.isLoopbackAddress()) {
+                    addr = a;
+                    break;
+                }
+            }
+        }
+        if (addr == null) {
+            System.out.println("Accept: no address but loopback, skipped");
+            return true;
+        }
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(addr, 0));
+        int port = server.socket().getLocalPort();
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        HTTPLimiter limiter = new HTTPLimiter(workers, 2);
+        HTTPSelector sel = startServer(server, workers, limiter, null, null);
+        List<Socket> open = new ArrayList<Socket>();
+        int first = connectIdle(addr, port, 2 * MAX_PEER_CONNECTIONS, open);
+        for (Socket s : open) {
+            try { s.close(); } catch (IOException ioe) {}
+        }
+        open.clear();
+        Thread.sleep(1000);
+        int second = connectIdle(addr, port, MAX_PEER_CONNECTIONS, open);
+        for (Socket s : open) {
+            try { s.close(); } catch (IOException ioe) {}
+        }
+        sel.stop();
+        workers.shutdown();
+        boolean pass = first == MAX_PEER_CONNECTIONS && second == MAX_PEER_CONNECTIONS;
+        System.out.println("Accept: " + first + " of " + (2 * MAX_PEER_CONNECTIONS) + " idle connections from " +
+                           addr.getHostAddress() + " kept open, then " + second + " of " + MAX_PEER_CONNECTIONS +
+                           " after closing them: " + (pass ? "OK" : "FAILED"));
+        return pass;
+    }
+
+    /**
+     *  Open connections that send nothing
+     *  @param open the ones still open are added here
+     *  @return how many are still open
+     */
+    private static int connectIdle(InetAddress addr, int port, int count, List<Socket> open) throws IOException {
+        List<Socket> socks = new ArrayList<Socket>(count);
+        for (int i = 0; i < count; i++) {
+            socks.add(new Socket(addr, port));
+        }
+        for (Socket s : socks) {
+            s.setSoTimeout(200);
+            try {
+                // refused: a 429, then closed
+                s.getInputStream().read();
+                s.close();
+            } catch (SocketTimeoutException ste) {
+                open.add(s);
+            } catch (IOException ioe) {
+                s.close();
+            }
+        }
+        return open.size();
+    }
+
+    /**
+     *  One POST of that many messages, on a new connection, as the I2P server tunnel would make it
+     *  @return the status, or 0 on error
+     */
+    private static int push(int port, String dest, int items, int size) {
+        Socket s = null;
+        try {
+            s = new Socket("127.0.0.1", port);
+            s.setSoTimeout(30*1000);
+            long len = 2 + items * (5L + size);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            out.write(DataHelper.getUTF8("POST /import.cgi HTTP/1.1\r\nContent-length: " + len + "\r\n" +
+                                         DEST_HEADER + ": " + dest + "\r\n\r\n"));
+            DataHelper.writeLong(out, 2, 0);
+            byte data[] = new byte[size];
+            for (int i = 0; i < items; i++) {
+                out.write(0);
+                DataHelper.writeLong(out, 4, size);
+                out.write(data);
+            }
+            out.flush();
+            InputStream in = s.getInputStream();
+            String status = DataHelper.readLine(in);
+            if (status == null || status.length() < 12)
+                return 0;
+            byte buf[] = new byte[4096];
+            while (in.read(buf) >= 0) {}
+            return Integer.parseInt(status.substring(9, 12));
+        } catch (IOException ioe) {
+            return 0;
+        } catch (DataFormatException dfe) {
+            return 0;
+        } catch (NumberFormatException nfe) {
+            return 0;
+        } finally {
+            if (s != null) try { s.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  @return polite average ms, polite max ms, polite failures
+     */
+    private static long[] fairnessTest(final int greedy, int secs, boolean limit) throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final int port = server.socket().getLocalPort();
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        HTTPLimiter limiter = limit ? new HTTPLimiter(workers, 2) : null;
+        // told apart by the header
+        if (limiter != null)
+            limiter.setUnidentified(true, DEFAULT_UNIDENTIFIED_SHARES);
+        final byte body[] = new byte[4096];
+        HTTPSelector sel = new HTTPSelector(server, new HTTPSelector.Handler() {
+            public void requestReceived(HTTPConnection conn) {
+                // a database lookup and a disk read
+                try { Thread.sleep(20); } catch (InterruptedException ie) {}
+                conn.setKeepAlive(conn.wantsKeepAlive());
+                conn.send(DataHelper.getUTF8("HTTP/1.1 200 OK\r\nContent-length: " + body.length + "\r\n" +
+                                             (conn.isKeepAlive() ? "Connection: keep-alive" : "Connection: close") + "\r\n\r\n"));
+                conn.send(body);
+                conn.respond();
+            }
+            public void bodyReceived(HTTPConnection conn, boolean complete) { conn.close(); }
+        }, workers, null, null, limiter);
+        Thread t = new Thread(sel, "HTTPSelector");
+        t.setDaemon(true);
+        t.start();
+
+        final long end = System.currentTimeMillis() + secs * 1000L;
+        final AtomicInteger greedyOK = new AtomicInteger();
+        final AtomicInteger greedyRefused = new AtomicInteger();
+        Thread threads[] = new Thread[greedy];
+        for (int i = 0; i < greedy; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    while (System.currentTimeMillis() < end) {
+                        int status = fetch(port, "greedy");
+                        if (status == 200)
+                            greedyOK.incrementAndGet();
+                        else
+                            greedyRefused.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        long total = 0;
+        long max = 0;
+        int count = 0;
+        int failed = 0;
+        // let the greedy one get going
+        Thread.sleep(500);
+        while (System.currentTimeMillis() < end) {
+            long start = System.currentTimeMillis();
+            int status = fetch(port, "polite");
+            long time = System.currentTimeMillis() - start;
+            if (status == 200) {
+                count++;
+                total += time;
+                max = Math.max(max, time);
+            } else {
+                failed++;
+            }
+            Thread.sleep(200);
+        }
+        for (int i = 0; i < greedy; i++)
+            threads[i].join();
+        sel.stop();
+        workers.shutdown();
+        long avg = count > 0 ? total / count : 0;
+        System.out.println((limit ? "Limited:   " : "Unlimited: ") +
+                           "polite " + count + " OK, " + failed + " failed, avg " + avg + " ms, max " + max + " ms; " +
+                           "greedy " + (greedyOK.get() / secs) + " OK/sec, " + greedyRefused.get() + " refused" +
+                           (limiter != null ? "; " + limiter : ""));
+        return new long[] { avg, max, failed };
+    }
+
+    /**
+     *  One request on a new connection, as the I2P server tunnel would make it
+     *  @param dest null for no header
+     *  @return the status, or 0 on error
+     */
+    private static int fetch(int port, String dest) {
+        Socket s = null;
+        try {
+            s = new Socket("127.0.0.1", port);
+            s.setSoTimeout(30*1000);
+            s.getOutputStream().write(DataHelper.getUTF8("GET /x.syndie HTTP/1.1\r\nConnection: close\r\n" +
+                                                         (dest != null ? DEST_HEADER + ": " + dest + "\r\n" : "") +
+                                                         "\r\n"));
+            InputStream in = s.getInputStream();
+            String status = DataHelper.readLine(in);
+            if (status == null || status.length() < 12)
+                return 0;
+            byte buf[] = new byte[4096];
+            while (in.read(buf) >= 0) {}
+            return Integer.parseInt(status.substring(9, 12));
+        } catch (IOException ioe) {
+            return 0;
+        } catch (NumberFormatException nfe) {
+            return 0;
+        } finally {
+            if (s != null) try { s.close(); } catch (IOException ioe) {}
+        }
+    }
+}
@@ -0,0 +1,673 @@
+package syndie.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.data.DataHelper;
+
+/**
+ *  The network side of the HTTPServ: one thread doing all the accepts, reads,
+ *  and writes without blocking, so that slow clients (and over I2P they're all slow)
+ *  cost a little memory each instead of a thread each.
+ *
+ *  The request handling, which may hit the disk or the database, runs on the
+ *  Executor, see Handler. Each connection is an HTTPConnection state machine.
+ *
+ *  Connections idle for IDLE_TIMEOUT while reading or writing are closed,
+ *  unless it's the body sink they're waiting for,
+ *  as are persistent connections idle for KEEP_ALIVE_TIMEOUT between requests,
+ *  and past MAX_CONNECTIONS new ones get a 401 TOO BUSY.
+ *
+ *  @since 1.107b-1
+ */
+class HTTPSelector implements Runnable {
+    private final ServerSocketChannel _server;
+    private final Selector _selector;
+    private final Handler _handler;
+    private final Executor _workers;
+    private final UI _ui;
+    /** may be null @since 1.107b-1 */
+    private final HTTPStats _stats;
+    /** may be null @since 1.107b-1 */
+    private final HTTPLimiter _limiter;
+    /** waiting for the limiter, selector thread only @since 1.107b-1 */
+    private final List<HTTPConnection> _delayed;
+    /** selector thread only */
+    private final Set<HTTPConnection> _connections;
+    /** connections whose state was changed by a worker */
+    private final ConcurrentLinkedQueue<HTTPConnection> _changes;
+    private volatile boolean _alive;
+    private volatile int _connectionCount;
+    private long _lastTimeoutCheck;
+
+    static final int MAX_CONNECTIONS = 512;
+    static final long IDLE_TIMEOUT = 60*1000;
+    /** @since 1.107b-1 */
+    static final long KEEP_ALIVE_TIMEOUT = 15*1000;
+    /** how often to check for idle and throttled connections */
+    private static final long CHECK_TIME = 250;
+
+    private static final byte[] TOO_BUSY = DataHelper.getUTF8("HTTP/1.0 401 TOO BUSY\r\nConnection: close\r\n\r\n<html><head><title>401 TOO BUSY</title></head><body><h1>401 TOO BUSY</h1></body></html>");
+    /** @since 1.107b-1 */
+    private static final byte[] TOO_MANY_REQUESTS = DataHelper.getUTF8("HTTP/1.1 429 Too many requests\r\nRetry-After: " +
+                                                                      (HTTPLimiter.MAX_REQUEST_DELAY / 1000) +
+                                                                      "\r\nContent-length: 0\r\nConnection: close\r\n\r\n");
+    /** @since 1.107b-1 */
+    private static final byte[] TOO_MANY_POSTS = DataHelper.getUTF8("HTTP/1.1 503 Too many imports\r\nRetry-After: 60" +
+                                                                   "\r\nContent-length: 0\r\nConnection: close\r\n\r\n");
+
+    /**
+     *  Called on a worker thread. A handler must eventually call respond(),
+     *  receiveBody(), or close() on the connection.
+     */
+    public interface Handler {
+        /** the request line and headers are in */
+        public void requestReceived(HTTPConnection conn);
+
+        /**
+         *  After receiveBody()
+         *  @param complete false if the client went away or timed out first, in which
+         *                  case the connection is closed and the sink has what was received
+         */
+        public void bodyReceived(HTTPConnection conn, boolean complete);
+    }
+
+    /**
+     *  @param server bound, will be made non-blocking
+     *  @param ui may be null
+     */
+    public HTTPSelector(ServerSocketChannel server, Handler handler, Executor workers, UI ui) throws IOException {
+        this(server, handler, workers, ui, null, null);
+    }
+
+    /**
+     *  @param server bound, will be made non-blocking
+     *  @param ui may be null
+     *  @param stats may be null
+     *  @param limiter may be null for no per-peer limits, it must run its tasks on the workers
+     *  @since 1.107b-1
+     */
+    public HTTPSelector(ServerSocketChannel server, Handler handler, Executor workers, UI ui,
+                        HTTPStats stats, HTTPLimiter limiter) throws IOException {
+        _server = server;
+        _handler = handler;
+        _workers = workers;
+        _ui = ui;
+        _stats = stats;
+        _limiter = limiter;
+        _delayed = new ArrayList<HTTPConnection>();
+        _connections = new HashSet<HTTPConnection>();
+        _changes = new ConcurrentLinkedQueue<HTTPConnection>();
+        _selector = Selector.open();
+        _server.configureBlocking(false);
+        _server.register(_selector, SelectionKey.OP_ACCEPT);
+        _alive = true;
+    }
+
+    public boolean isAlive() { return _alive; }
+
+    /** open connections */
+    public int getConnectionCount() { return _connectionCount; }
+
+    /**
+     *  Close the server socket and all connections. The thread exits soon after.
+     */
+    public void stop() {
+        _alive = false;
+        _selector.wakeup();
+    }
+
+    /**
+     *  A worker changed the connection's state
+     */
+    void changed(HTTPConnection conn) {
+        _changes.offer(conn);
+        _selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (_alive) {
+                _selector.select(CHECK_TIME);
+                long now = System.currentTimeMillis();
+                processChanges(now);
+                Set<SelectionKey> keys = _selector.selectedKeys();
+                for (Iterator<SelectionKey> iter = keys.iterator(); iter.hasNext(); ) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept(now);
+                        continue;
+                    }
+                    HTTPConnection conn = (HTTPConnection) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            read(conn, now);
+                        else if (key.isWritable() && conn.write(now))
+                            responded(conn, now);
+                        else
+                            updateInterest(conn, now);
+                    } catch (IOException ioe) {
+                        if (_ui != null)
+                            _ui.debugMessage("HTTP connection failed: " + ioe.getMessage());
+                        close(conn);
+                    }
+                }
+                if (now - _lastTimeoutCheck >= CHECK_TIME) {
+                    checkConnections(now);
+                    _lastTimeoutCheck = now;
+                }
+            }
+        } catch (IOException ioe) {
+            if (_ui != null)
+                _ui.errorMessage("HTTP server failed", ioe);
+        } catch (RuntimeException re) {
+            if (_ui != null)
+                _ui.errorMessage("HTTP server failed", re);
+        } finally {
+            _alive = false;
+            shutdown();
+        }
+    }
+
+    private void accept(long now) {
+        SocketChannel chan;
+        try {
+            chan = _server.accept();
+            if (chan == null)
+                return;
+        } catch (IOException ioe) {
+            if (_ui != null)
+                _ui.debugMessage("Error accepting", ioe);
+            return;
+        }
+        HTTPConnection conn = null;
+        try {
+            chan.configureBlocking(false);
+            // responses go out in several writes, headers then data,
+            // don't let Nagle hold the last one for the client's delayed ack
+            chan.socket().setTcpNoDelay(true);
+            if (_connections.size() >= MAX_CONNECTIONS) {
+                // best effort, it's going to be closed either way
+                chan.write(ByteBuffer.wrap(TOO_BUSY));
+                chan.close();
+                if (_stats != null)
+                    _stats.tooBusy();
+                return;
+            }
+            conn = new HTTPConnection(this, chan);
+            if (_limiter != null && !_limiter.accept(conn)) {
+                // one address holding open connections without sending anything
+                conn = null;
+                chan.write(ByteBuffer.wrap(TOO_MANY_REQUESTS));
+                chan.close();
+                return;
+            }
+            conn.setKey(chan.register(_selector, SelectionKey.OP_READ, conn));
+            _connections.add(conn);
+            _connectionCount = _connections.size();
+        } catch (IOException ioe) {
+            if (conn != null && _limiter != null)
+                _limiter.release(conn);
+            try { chan.close(); } catch (IOException e) {}
+        }
+    }
+
+    /**
+     *  Apply the state changes made by the workers
+     */
+    private void processChanges(long now) {
+        HTTPConnection conn;
+        while ((conn = _changes.poll()) != null) {
+            if (!_connections.contains(conn))
+                continue;
+            HTTPConnection.State state = conn.getState();
+            try {
+                if (state == HTTPConnection.State.CLOSED) {
+                    close(conn);
+                } else if (state == HTTPConnection.State.READ_BODY) {
+                    // part or all of the body may have come in with the headers
+                    read(conn, now);
+                } else if (state == HTTPConnection.State.WRITE) {
+                    // try now, most responses fit in the socket buffer
+                    if (conn.write(now))
+                        responded(conn, now);
+                    else
+                        updateInterest(conn, now);
+                }
+            } catch (IOException ioe) {
+                close(conn);
+            }
+        }
+    }
+
+    private void updateInterest(HTTPConnection conn, long now) {
+        SelectionKey key = conn.getKey();
+        if (key.isValid()) {
+            int ops = conn.getInterestOps(now);
+            if (key.interestOps() != ops)
+                key.interestOps(ops);
+        }
+    }
+
+    /**
+     *  Time out idle connections, and wake up the throttled and delayed ones
+     */
+    private void checkConnections(long now) {
+        if (!_delayed.isEmpty()) {
+            for (Iterator<HTTPConnection> iter = _delayed.iterator(); iter.hasNext(); ) {
+                HTTPConnection conn = iter.next();
+                if (conn.getState() == HTTPConnection.State.CLOSED) {
+                    iter.remove();
+                } else if (conn.getDelayedUntil() <= now) {
+                    iter.remove();
+                    conn.setDelayedUntil(0);
+                    dispatch(conn);
+                }
+            }
+        }
+        List<HTTPConnection> idle = null;
+        for (HTTPConnection conn : _connections) {
+            HTTPConnection.State state = conn.getState();
+            if (state == HTTPConnection.State.PROCESSING)
+                continue;
+            // waiting for the body sink, not the client
+            if (state == HTTPConnection.State.READ_BODY && conn.isBodyFull())
+                continue;
+            if (state == HTTPConnection.State.WRITE && conn.getThrottledUntil() > 0) {
+                updateInterest(conn, now);
+                if (conn.getThrottledUntil() > now - IDLE_TIMEOUT)
+                    continue;
+            }
+            long timeout = conn.isBetweenRequests() ? KEEP_ALIVE_TIMEOUT : IDLE_TIMEOUT;
+            if (conn.getLastActive() + timeout < now) {
+                if (idle == null)
+                    idle = new ArrayList<HTTPConnection>();
+                idle.add(conn);
+            }
+        }
+        if (idle != null) {
+            for (HTTPConnection conn : idle) {
+                if (_ui != null)
+                    _ui.debugMessage("Timing out " + conn);
+                if (_stats != null && !conn.isBetweenRequests())
+                    _stats.timedOut();
+                close(conn);
+            }
+        }
+    }
+
+    /**
+     *  The response is all written, close or go on to the next request
+     *  @since 1.107b-1
+     */
+    private void responded(HTTPConnection conn, long now) throws IOException {
+        count(conn);
+        if (conn.nextRequest(now))
+            read(conn, now);
+        else
+            close(conn);
+    }
+
+    private void read(HTTPConnection conn, long now) throws IOException {
+        int rv = conn.read();
+        updateInterest(conn, now);
+        if (rv == HTTPConnection.HEADERS_DONE)
+            admit(conn, now);
+        else if (rv == HTTPConnection.BODY_DONE)
+            dispatchBody(conn, true);
+    }
+
+    /**
+     *  Hand it to the handler, or hold it back, or refuse it, as the limiter says
+     *  @since 1.107b-1
+     */
+    private void admit(HTTPConnection conn, long now) {
+        if (_limiter == null) {
+            dispatch(conn);
+            return;
+        }
+        switch (_limiter.admit(conn, now)) {
+            case HTTPLimiter.ADMIT_NOW:
+                dispatch(conn);
+                break;
+            case HTTPLimiter.ADMIT_LATER:
+                _delayed.add(conn);
+                break;
+            case HTTPLimiter.REJECT_POSTS:
+                if (_ui != null)
+                    _ui.debugMessage("Too many POSTs, refusing " + conn + " from " + conn.getPeer());
+                conn.send(TOO_MANY_POSTS);
+                conn.respond();
+                break;
+            default:
+                if (_ui != null)
+                    _ui.debugMessage("Over the limit, refusing " + conn + " from " + conn.getPeer());
+                conn.send(TOO_MANY_REQUESTS);
+                conn.respond();
+                break;
+        }
+    }
+
+    /**
+     *  Run the task on the workers, through the limiter if there is one
+     *  @since 1.107b-1
+     */
+    private void execute(HTTPConnection conn, Runnable task) {
+        if (_limiter != null)
+            _limiter.execute(conn.getPeer(), task);
+        else
+            _workers.execute(task);
+    }
+
+    private void dispatch(final HTTPConnection conn) {
+        try {
+            execute(conn, new Runnable() {
+                public void run() {
+                    // gave up while waiting its turn
+                    if (conn.getState() == HTTPConnection.State.CLOSED)
+                        return;
+                    try {
+                        _handler.requestReceived(conn);
+                    } catch (RuntimeException re) {
+                        if (_ui != null)
+                            _ui.errorMessage("Error handling", re);
+                        conn.close();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            close(conn);
+        }
+    }
+
+    private void dispatchBody(final HTTPConnection conn, final boolean complete) {
+        try {
+            execute(conn, new Runnable() {
+                public void run() {
+                    try {
+                        _handler.bodyReceived(conn, complete);
+                    } catch (RuntimeException re) {
+                        if (_ui != null)
+                            _ui.errorMessage("Error handling", re);
+                        conn.close();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            close(conn);
+        }
+    }
+
+    private void close(HTTPConnection conn) {
+        boolean wasReadingBody = conn.getState() == HTTPConnection.State.READ_BODY;
+        // before the channel is closed, for the remote address
+        count(conn);
+        if (_limiter != null)
+            _limiter.release(conn);
+        conn.setClosed();
+        SelectionKey key = conn.getKey();
+        if (key != null)
+            key.cancel();
+        try { conn.getChannel().close(); } catch (IOException ioe) {}
+        if (_connections.remove(conn)) {
+            _connectionCount = _connections.size();
+            // the handler cleans up, and may use what was received
+            if (wasReadingBody)
+                dispatchBody(conn, false);
+        }
+    }
+
+    /**
+     *  Tell the stats about the request, if there is one and it wasn't already
+     *  @since 1.107b-1
+     */
+    private void count(HTTPConnection conn) {
+        if (_stats == null || !conn.setCounted())
+            return;
+        InetAddress addr = conn.getRemoteAddress();
+        _stats.requestDone(conn.getMethodLine(), conn.getStatus(), conn.getResponseBytes(),
+                           System.nanoTime() - conn.getRequestStart(),
+                           addr != null ? addr.getHostAddress() : null, conn.getHeaders().get("USER-AGENT"));
+    }
+
+    private void shutdown() {
+        for (HTTPConnection conn : new ArrayList<HTTPConnection>(_connections)) {
+            close(conn);
+        }
+        try { _server.close(); } catch (IOException ioe) {}
+        try { _selector.close(); } catch (IOException ioe) {}
+        if (_ui != null)
+            _ui.debugMessage("HTTP selector stopped");
+    }
+
+    /**
+     *  Load test: hundreds of slow clients at once, each trickling its request in
+     *  and reading the response slowly, as over I2P, and a fast client that must
+     *  still get through while they're all connected.
+     *
+     *  Usage: HTTPSelector [slow clients (default 300)] [response KB (default 32)]
+     *
+     *  Or, to check persistent connections and pipelining: HTTPSelector pipeline
+     */
+    public static void main(String args[]) throws Exception {
+        if (args.length > 0 && args[0].equals("pipeline")) {
+            pipelineTest();
+            return;
+        }
+        final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int kb = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        final byte response[] = new byte[kb * 1024];
+        final byte headers[] = DataHelper.getUTF8("HTTP/1.0 200 OK\r\nContent-length: " + response.length +
+                                                 "\r\nConnection: close\r\n\r\n");
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final int port = server.socket().getLocalPort();
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        final HTTPSelector sel = new HTTPSelector(server, new Handler() {
+            public void requestReceived(HTTPConnection conn) {
+                conn.send(headers);
+                conn.send(response);
+                conn.respond();
+            }
+            public void bodyReceived(HTTPConnection conn, boolean complete) { conn.close(); }
+        }, workers, null);
+        Thread t = new Thread(sel, "HTTPSelector");
+        t.setDaemon(true);
+        t.start();
+
+        final AtomicInteger ok = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch connected = new CountDownLatch(clients);
+        final CountDownLatch done = new CountDownLatch(clients);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < clients; i++) {
+            Thread c = new Thread(new Runnable() {
+                public void run() {
+                    Socket s = null;
+                    try {
+                        s = new Socket("127.0.0.1", port);
+                        connected.countDown();
+                        OutputStream out = s.getOutputStream();
+                        byte req[] = DataHelper.getUTF8("GET /slow HTTP/1.0\r\nHost: test\r\n\r\n");
+                        for (int j = 0; j < req.length; j++) {
+                            out.write(req[j]);
+                            out.flush();
+                            Thread.sleep(50);
+                        }
+                        if (read(s.getInputStream(), 20) == headers.length + response.length)
+                            ok.incrementAndGet();
+                        else
+                            failed.incrementAndGet();
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        if (s != null) try { s.close(); } catch (IOException ioe) {}
+                        done.countDown();
+                    }
+                }
+            }, "Slow client " + i);
+            c.setDaemon(true);
+            c.start();
+        }
+        connected.await(30, TimeUnit.SECONDS);
+        System.out.println(clients + " slow clients connected, open connections: " + sel.getConnectionCount());
+
+        long fastStart = System.currentTimeMillis();
+        Socket s = new Socket("127.0.0.1", port);
+        s.getOutputStream().write(DataHelper.getUTF8("GET /fast HTTP/1.0\r\n\r\n"));
+        int got = read(s.getInputStream(), 0);
+        s.close();
+        System.out.println("Fast client got " + got + " bytes in " + (System.currentTimeMillis() - fastStart) + " ms");
+
+        done.await(10, TimeUnit.MINUTES);
+        System.out.println("Slow clients: " + ok.get() + " OK, " + failed.get() + " failed, in " +
+                           (System.currentTimeMillis() - start) + " ms, open connections: " + sel.getConnectionCount());
+        sel.stop();
+        workers.shutdown();
+    }
+
+    /**
+     *  Protocol checks for persistent connections, each pipelining its requests in one write.
+     *  The handler answers with the request path as the body, keep-alive if asked.
+     *  @since 1.107b-1
+     */
+    private static void pipelineTest() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = server.socket().getLocalPort();
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        HTTPSelector sel = new HTTPSelector(server, new Handler() {
+            public void requestReceived(HTTPConnection conn) {
+                String line = conn.getMethodLine();
+                byte body[] = DataHelper.getUTF8(line.substring(line.indexOf(' ') + 1, line.lastIndexOf(' ')));
+                conn.setKeepAlive(conn.wantsKeepAlive());
+                conn.send(DataHelper.getUTF8("HTTP/1.1 200 OK\r\nContent-length: " + body.length +
+                                             (conn.isKeepAlive() ? "\r\nConnection: keep-alive" : "\r\nConnection: close") +
+                                             "\r\n\r\n"));
+                if (!line.startsWith("HEAD "))
+                    conn.send(body);
+                conn.respond();
+            }
+            public void bodyReceived(HTTPConnection conn, boolean complete) { conn.close(); }
+        }, workers, null);
+        Thread t = new Thread(sel, "HTTPSelector");
+        t.setDaemon(true);
+        t.start();
+        int failed = 0;
+        try {
+            // three in one write, stays open, then closes when asked
+            Socket s = new Socket("127.0.0.1", port);
+            s.setSoTimeout(5000);
+            s.getOutputStream().write(DataHelper.getUTF8("GET /a HTTP/1.1\r\n\r\nHEAD /b HTTP/1.1\r\n\r\nGET /c HTTP/1.1\r\n\r\n"));
+            InputStream in = s.getInputStream();
+            failed += check("1.1 pipelined 1", readResponse(in, false), "/a");
+            failed += check("1.1 pipelined HEAD", readResponse(in, true), "");
+            failed += check("1.1 pipelined 3", readResponse(in, false), "/c");
+            s.getOutputStream().write(DataHelper.getUTF8("GET /d HTTP/1.1\r\nConnection: close\r\n\r\n"));
+            failed += check("1.1 close", readResponse(in, false), "/d");
+            failed += check("1.1 closed after close", in.read() == -1 ? "EOF" : "open", "EOF");
+            s.close();
+
+            // 1.0 without keep-alive closes after one
+            s = new Socket("127.0.0.1", port);
+            s.setSoTimeout(5000);
+            s.getOutputStream().write(DataHelper.getUTF8("GET /e HTTP/1.0\r\n\r\nGET /f HTTP/1.0\r\n\r\n"));
+            in = s.getInputStream();
+            failed += check("1.0", readResponse(in, false), "/e");
+            failed += check("1.0 closed", in.read() == -1 ? "EOF" : "open", "EOF");
+            s.close();
+
+            // pipelined requests before a half-close are all answered
+            s = new Socket("127.0.0.1", port);
+            s.setSoTimeout(5000);
+            s.getOutputStream().write(DataHelper.getUTF8("GET /g HTTP/1.0\r\nConnection: keep-alive\r\n\r\nGET /h HTTP/1.1\r\n\r\n"));
+            s.shutdownOutput();
+            in = s.getInputStream();
+            failed += check("half-closed 1", readResponse(in, false), "/g");
+            failed += check("half-closed 2", readResponse(in, false), "/h");
+            failed += check("half-closed closed", in.read() == -1 ? "EOF" : "open", "EOF");
+            s.close();
+
+            // no more than MAX_REQUESTS on one connection
+            s = new Socket("127.0.0.1", port);
+            s.setSoTimeout(5000);
+            StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < HTTPConnection.MAX_REQUESTS + 5; i++)
+                buf.append("GET /").append(i).append(" HTTP/1.1\r\n\r\n");
+            s.getOutputStream().write(DataHelper.getUTF8(buf.toString()));
+            in = s.getInputStream();
+            int got = 0;
+            while (readResponse(in, false) != null)
+                got++;
+            failed += check("max requests", Integer.toString(got), Integer.toString(HTTPConnection.MAX_REQUESTS));
+            s.close();
+        } finally {
+            sel.stop();
+            workers.shutdown();
+        }
+        System.out.println(failed > 0 ? failed + " FAILED" : "All passed");
+    }
+
+    private static int check(String name, String got, String expected) {
+        boolean ok = expected.equals(got);
+        System.out.println(name + ": " + (ok ? "OK" : "FAILED, expected " + expected + " got " + got));
+        return ok ? 0 : 1;
+    }
+
+    /** @return the body, or null at EOF */
+    private static String readResponse(InputStream in, boolean head) throws IOException {
+        String status = DataHelper.readLine(in);
+        if (status == null)
+            return null;
+        int len = 0;
+        String line;
+        while ((line = DataHelper.readLine(in)) != null && line.trim().length() > 0) {
+            if (line.toLowerCase().startsWith("content-length:"))
+                len = Integer.parseInt(line.substring(15).trim());
+        }
+        if (head)
+            return "";
+        byte body[] = new byte[len];
+        if (DataHelper.read(in, body) != len)
+            return null;
+        return DataHelper.getUTF8(body);
+    }
+
+    /** read to EOF, sleeping between 1KB reads */
+    private static int read(InputStream in, long sleep) throws IOException, InterruptedException {
+        byte buf[] = new byte[1024];
+        int rv = 0;
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            rv += read;
+            if (sleep > 0)
+                Thread.sleep(sleep);
+        }
+        return rv;
+    }
+}
@@ -1,44 +1,52 @@
 package syndie.db;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InterruptedIOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.i2p.crypto.SHA256Generator;
 import net.i2p.data.Base64;
 import net.i2p.data.DataFormatException;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
 import net.i2p.data.SessionKey;
 import net.i2p.util.FileUtil;
+import net.i2p.util.LHMCache;
 import net.i2p.util.SecureFile;
-import net.i2p.util.SecureFileOutputStream;
-import net.i2p.util.SocketTimeout;
 
 import syndie.Constants;
+import syndie.data.SyndieURI;
 import syndie.util.RFC822Date;
 
 /**
  * CLI parameters: ([--port $num] [--listeners $num] [--writable true] | [--kill true])
  *
+ * The connections are handled by an HTTPSelector, and the requests by
+ * a pool of --listeners worker threads.
  */
-public class HTTPServ implements CLI.Command {
-    private static ServerSocket _ssocket;
-    private List<Runner> _runners;
-    /** accepted Socket instances that haven't run yet */
-    private static final List<Socket> _pendingSockets = new ArrayList();
+public class HTTPServ implements CLI.Command, HTTPSelector.Handler {
+    private static ServerSocketChannel _ssocket;
+    /** @since 1.107b-1 */
+    private static HTTPSelector _selector;
+    /** @since 1.107b-1 */
+    private static ExecutorService _workers;
+    /** wakes up the maintenance thread @since 1.107b-1 */
+    private static final Object _maintenanceLock = new Object();
     private DBClient _client;
     private static UI _ui;
     private static boolean _alive = false;
@@ -47,28 +55,220 @@ public class HTTPServ implements CLI.Command {
     private static String _startFailedMessage;
     private boolean _allowPost;
     private static SharedArchive _archive;
+    /** worker threads */
     private int _minListeners;
-    private int _curListeners;
     private static final int MAX_LISTENERS = 50;
-    private static boolean _rebuilding;
+    private static volatile boolean _rebuilding;
+    /** when the archive first changed since the shared index was last built, 0 if it hasn't @since 1.107b-1 */
+    private static volatile long _indexDirtySince;
+    /** @since 1.107b-1 */
+    private static volatile long _indexLastChange;
+    /** @since 1.107b-1 */
+    private static volatile long _indexBuiltOn;
+    /** rebuild the shared index once the archive has been quiet this long after a change @since 1.107b-1 */
+    private static final long INDEX_REBUILD_QUIET = 60*1000;
+    /** but no later than this after the first change, when imports keep coming @since 1.107b-1 */
+    private static final long INDEX_REBUILD_MAX_DELAY = 10*60*1000;
+    /** @since 1.107b-1 */
+    private static final long MAINTENANCE_INTERVAL = 5*60*1000;
+    /** @since 1.107b-1 */
+    private static volatile boolean _snapshotBuilding;
+    /** rebuild the snapshot this often, it's for bootstrapping and needn't be current @since 1.107b-1 */
+    private static final long SNAPSHOT_REBUILD_DELAY = 24*60*60*1000L;
+    /**
+     *  Keep an ArchiveSnapshot up to date in the web dir, rebuilt daily. Off by default, as it's
+     *  another copy of the published archive, and rebuilding reads all of it.
+     *  One built with the buildsnapshot command is served either way.
+     *  @since 1.107b-1
+     */
+    public static final String PROP_SNAPSHOT = "httpserv.snapshot";
+    private boolean _buildSnapshot;
     /** the whitelist of non-syndie files allowed */
     private HashMap<String, File> _sharedFiles;
     
     private static final boolean REJECT_INPROXY = true;
 
+    /**
+     *  Response header advertising the optional features of this server,
+     *  so that clients can use them without probing. Space-separated tokens.
+     *  @since 1.107b-1
+     */
+    static final String FEATURES_HEADER = "X-Syndie-Features";
+    static final String FEATURE_BATCH = "batch";
+    /** single byte ranges in GET requests, and the HASH_HEADER in responses @since 1.107b-1 */
+    static final String FEATURE_RANGE = "range";
+    /**
+     *  "hashcash=$bits", the stamp difficulty required for POST items at or above the
+     *  index's minMessageSizeKBRequiringHashcash(), 0 if none. See Hashcash.
+     *  Clients send stamps (ITEM_FLAG_HASHCASH) only to servers advertising it.
+     *  @since 1.107b-1
+     */
+    static final String FEATURE_HASHCASH = "hashcash";
+    /** acknowledges POSTed items, see ACK_HEADER @since 1.107b-1 */
+    static final String FEATURE_ACK = "ack";
+    private static final String FEATURES = FEATURE_BATCH + ' ' + FEATURE_RANGE + ' ' + FEATURE_ACK;
+    /**
+     *  Response header with the base64 SHA-256 of the entire file (not just the range sent),
+     *  so a client resuming a download can check the pieces go together.
+     *  @since 1.107b-1
+     */
+    static final String HASH_HEADER = "X-Syndie-SHA256";
+
+    /**
+     *  Request header on a POST to import.cgi asking for a per-item result in the response body,
+     *  one line per item received, "$num OK", "$num OK queued" if not yet imported,
+     *  or "$num REJECTED $reason", numbered from 1.
+     *  Older servers ignore it and send no body; servers that honor it advertise FEATURE_ACK.
+     *  @since 1.107b-1
+     */
+    static final String ACK_HEADER = "X-Syndie-Ack";
+    static final String ACK_OK = "OK";
+    static final String ACK_REJECTED = "REJECTED";
+
+    /** POST item flag, the item is metadata */
+    static final int ITEM_FLAG_META = 0x1;
+    /**
+     *  POST item flag, a Hashcash.STAMP_LENGTH byte stamp follows the flag, before the size
+     *  @since 1.107b-1
+     */
+    static final int ITEM_FLAG_HASHCASH = 0x2;
+    /** from the archive.hashcashBits pref when logged in, see LocalArchiveManager @since 1.107b-1 */
+    private static volatile int _hashcashBits;
+    private static volatile int _hashcashMinKB;
+    /** @since 1.107b-1 */
+    private static final HTTPCache _cache = new HTTPCache(16*1024*1024, 2*1024*1024, 10*60*1000);
+    /** @since 1.107b-1 */
+    private static final HTTPStats _stats = new HTTPStats();
+    /**
+     *  HASH_HEADER values for files too big for the cache, "$path:$length:$lastModified" to base64 SHA-256,
+     *  so a resumed download doesn't hash the whole file again for every Range request
+     *  @since 1.107b-1
+     */
+    private static final Map<String, String> _hashCache = new LHMCache<String, String>(4096);
+    /** @since 1.107b-1 */
+    private static HTTPAccessLog _accessLog;
+    private boolean _logAccess;
+    /** @since 1.107b-1 */
+    private static HTTPLimiter _limiter;
+    /** imports what's pushed to us, see PostReceiver @since 1.107b-1 */
+    private static ImportQueue _importQueue;
+    /** how long a POST waits for its items to be imported before replying "OK queued" @since 1.107b-1 */
+    private static final long IMPORT_WAIT = 60*1000;
+    private int _peerRequestsPerSecond = HTTPLimiter.DEFAULT_REQUESTS_PER_SECOND;
+    private int _peerKBps = HTTPLimiter.DEFAULT_KBPS;
+    private int _peerPostsPerMinute = HTTPLimiter.DEFAULT_POSTS_PER_MINUTE;
+    private boolean _httpServerTunnel;
+    private int _unidentifiedShares = HTTPLimiter.DEFAULT_UNIDENTIFIED_SHARES;
+    /** per peer limits, see HTTPLimiter, zero for unlimited @since 1.107b-1 */
+    public static final String PROP_PEER_REQUESTS_PER_SECOND = "httpserv.peerRequestsPerSecond";
+    public static final String PROP_PEER_KBPS = "httpserv.peerKBps";
+    public static final String PROP_PEER_POSTS_PER_MINUTE = "httpserv.peerPostsPerMinute";
+    /**
+     *  Set if the I2P server tunnel in front of us is an HTTP server tunnel, so the
+     *  X-I2P-DestHash header is the tunnel's and each I2P client can be limited on its own.
+     *  A plain server tunnel passes on whatever the client sent, so don't set it for one.
+     *  @since 1.107b-1
+     */
+    public static final String PROP_HTTP_SERVER_TUNNEL = "httpserv.httpServerTunnel";
+    /**
+     *  The clients on this machine that can't be told apart, which is all of them without
+     *  PROP_HTTP_SERVER_TUNNEL, share the limits of this many peers, zero for unlimited
+     *  @since 1.107b-1
+     */
+    public static final String PROP_UNIDENTIFIED_SHARES = "httpserv.unidentifiedShares";
+    /**
+     *  JSON from HTTPStats, only if the httpserv.stats pref is set, and then only from this machine
+     *  @since 1.107b-1
+     */
+    static final String STATS_PATH = "/stats";
+    /**
+     *  Serve STATS_PATH. Off by default, as a plain I2P server tunnel connects from this machine
+     *  without saying so, and the stats show which forums are being read.
+     *  Only turn it on if the port isn't reachable through a tunnel.
+     *  @since 1.107b-1
+     */
+    public static final String PROP_STATS = "httpserv.stats";
+    private boolean _serveStats;
+    /** for unique temp file names @since 1.107b-1 */
+    private static final AtomicInteger _postNum = new AtomicInteger();
+
+    /** POST a list of paths here to get many files in one response, see handleBatch() @since 1.107b-1 */
+    static final String BATCH_CGI = "batch.cgi";
+    static final int BATCH_OK = 0;
+    static final int BATCH_NOT_FOUND = 1;
+    /** max paths in a single batch request @since 1.107b-1 */
+    static final int MAX_BATCH_ITEMS = 200;
+    private static final int MAX_BATCH_REQUEST = 64*1024;
+
+    /**
+     *  For the FEATURES_HEADER
+     *  @since 1.107b-1
+     */
+    private static String getFeatures() {
+        return FEATURES + ' ' + FEATURE_HASHCASH + '=' + _hashcashBits;
+    }
+
+    /**
+     *  The file for the post or metadata changed or is gone, don't serve it from the cache
+     *  @since 1.107b-1
+     */
+    static void invalidate(SyndieURI uri) {
+        archiveChanged();
+        if (uri.getScope() == null)
+            return;
+        String name = uri.getMessageId() != null ? uri.getMessageId().toString() : "meta";
+        _cache.remove(uri.getScope().toBase64() + '/' + name + Constants.FILENAME_SUFFIX);
+    }
+
+    /**
+     *  Something was imported or deleted, so the shared index is out of date.
+     *  The MaintenanceRunner rebuilds it once things go quiet.
+     *  @since 1.107b-1
+     */
+    private static void archiveChanged() {
+        long now = System.currentTimeMillis();
+        _indexLastChange = now;
+        if (_indexDirtySince == 0) {
+            _indexDirtySince = now;
+            synchronized (_maintenanceLock) {
+                _maintenanceLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     *  The shared index changed, so what's published may have too
+     *  @since 1.107b-1
+     */
+    static void invalidateAll() {
+        _cache.clear();
+    }
+
+    /**
+     *  The cache key for a request path, as in a GET or a batch request
+     *  @since 1.107b-1
+     */
+    private static String getCacheKey(String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
     public static String getHelp(String cmd) {
-        return "[--port $num (default 8080)] [--listeners $num (default 5)] [--writable true] | [--kill true]";
+        return "[--port $num (default 8080)] [--listeners $num (default 5)] [--writable true] [--accesslog true] [--stats true]\n" +
+               "[--snapshot true] " +
+               "[--peerrequests $perSecond] [--peerkbps $num] [--peerposts $perMinute]\n" +
+               "[--httpservertunnel true] [--unidentifiedshares $num] | [--kill true]";
     }
 
     public HTTPServ() {
         if (isAlive()) return;
-        _runners = new ArrayList();
         _client = null;
         _allowPost = false;
         _startFailed = false;
         _startFailedMessage = null;
         _starting = true;
         _rebuilding = false;
+        _snapshotBuilding = false;
+        _indexDirtySince = 0;
     }
     public HTTPServ(DBClient client, UI ui, int listenPort, int minListeners, boolean writable) {
         if (isAlive()) return;
@@ -87,6 +287,14 @@ public class HTTPServ implements CLI.Command {
         
         _minListeners = minListeners;
         _allowPost = writable;
+        _logAccess = getAccessLog(client);
+        _serveStats = Boolean.parseBoolean(client.getNymPrefs().getProperty(PROP_STATS));
+        _buildSnapshot = Boolean.parseBoolean(client.getNymPrefs().getProperty(PROP_SNAPSHOT));
+        _peerRequestsPerSecond = getIntPref(client, PROP_PEER_REQUESTS_PER_SECOND, HTTPLimiter.DEFAULT_REQUESTS_PER_SECOND);
+        _peerKBps = getIntPref(client, PROP_PEER_KBPS, HTTPLimiter.DEFAULT_KBPS);
+        _peerPostsPerMinute = getIntPref(client, PROP_PEER_POSTS_PER_MINUTE, HTTPLimiter.DEFAULT_POSTS_PER_MINUTE);
+        _httpServerTunnel = Boolean.parseBoolean(client.getNymPrefs().getProperty(PROP_HTTP_SERVER_TUNNEL));
+        _unidentifiedShares = getIntPref(client, PROP_UNIDENTIFIED_SHARES, HTTPLimiter.DEFAULT_UNIDENTIFIED_SHARES);
         
         startup(listenPort);
     }
@@ -124,6 +332,26 @@ public class HTTPServ implements CLI.Command {
         return 5;
     }
     
+    /**
+     *  Whether to write the NCSA style access log to logs/httpserv-access.log
+     *  @since 1.107b-1
+     */
+    public static boolean getAccessLog(DBClient client) {
+        Properties prefs = client.getNymPrefs();
+        return Boolean.parseBoolean(prefs.getProperty("httpserv.accessLog"));
+    }
+
+    /** @since 1.107b-1 */
+    private static int getIntPref(DBClient client, String name, int dflt) {
+        String val = client.getNymPrefs().getProperty(name);
+        if (val != null) {
+            try {
+                return Integer.parseInt(val);
+            } catch (NumberFormatException nfe) {}
+        }
+        return dflt;
+    }
+
     public static boolean startFailed() { return _startFailed; }
     public static boolean startInProgress() { return _starting; }
     
@@ -131,8 +359,13 @@ public class HTTPServ implements CLI.Command {
         _alive = false;
         if (_ui != null)
             _ui.debugMessage("Marking server as dead");
-        synchronized (_pendingSockets) { 
-            _pendingSockets.notifyAll(); 
+        synchronized (_maintenanceLock) { 
+            _maintenanceLock.notifyAll(); 
+        }
+        if (_selector != null) {
+            // closes the server socket too
+            _selector.stop();
+            _selector = null;
         }
         try {
             if (_ssocket != null) {
@@ -145,6 +378,20 @@ public class HTTPServ implements CLI.Command {
                 _ui.debugMessage("Problem closing server socket", ioe);
         }
         _ssocket = null;
+        if (_workers != null) {
+            _workers.shutdown();
+            _workers = null;
+        }
+        _limiter = null;
+        if (_importQueue != null) {
+            _importQueue.stop();
+            _importQueue = null;
+        }
+        if (_accessLog != null) {
+            _stats.setAccessLog(null);
+            _accessLog.stop();
+            _accessLog = null;
+        }
     }
     public static boolean isAlive() { return _alive; }
 
@@ -161,6 +408,14 @@ public class HTTPServ implements CLI.Command {
         int port = (int)opts.getOptLong("port", 8080);
         _minListeners = (int)opts.getOptLong("listeners", 5);
         _allowPost = opts.getOptBoolean("writable", true);
+        _logAccess = opts.getOptBoolean("accesslog", false);
+        _serveStats = opts.getOptBoolean("stats", false);
+        _buildSnapshot = opts.getOptBoolean("snapshot", false);
+        _peerRequestsPerSecond = (int)opts.getOptLong("peerrequests", HTTPLimiter.DEFAULT_REQUESTS_PER_SECOND);
+        _peerKBps = (int)opts.getOptLong("peerkbps", HTTPLimiter.DEFAULT_KBPS);
+        _peerPostsPerMinute = (int)opts.getOptLong("peerposts", HTTPLimiter.DEFAULT_POSTS_PER_MINUTE);
+        _httpServerTunnel = opts.getOptBoolean("httpservertunnel", false);
+        _unidentifiedShares = (int)opts.getOptLong("unidentifiedshares", HTTPLimiter.DEFAULT_UNIDENTIFIED_SHARES);
         if (startup(port)) {
             ui.statusMessage("HTTP archive server listening on " + port);
             ui.commandComplete(0, null);
@@ -186,6 +441,7 @@ public class HTTPServ implements CLI.Command {
         addSharedFile("/favicon.ico", new File(webDir, "favicon.ico"));
         addSharedFile("/robots.txt", new File(webDir, "robots.txt"));
         addSharedFile("/" + sharedIndex, new File(webDir, sharedIndex));
+        addSharedFile("/" + ArchiveSnapshot.SNAPSHOT_FILE, new File(webDir, ArchiveSnapshot.SNAPSHOT_FILE));
         
         if (distDir.isDirectory()) {
             String [] dist = distDir.list();
@@ -198,15 +454,31 @@ public class HTTPServ implements CLI.Command {
         buildSharedFiles();
         
         try {
-            _ssocket = new ServerSocket(port);
+            _ssocket = ServerSocketChannel.open();
+            _ssocket.socket().bind(new InetSocketAddress(port));
             _alive = true;
             _ui.debugMessage("Set server socket to " + _ssocket);
-            for (int i = 0; i < _minListeners; i++) {
-                Thread t = new Thread(new Runner(), "HTTPServ run " + i);
-                t.setDaemon(true);
-                t.start();
+            int workers = Math.max(1, Math.min(_minListeners, MAX_LISTENERS));
+            _workers = Executors.newFixedThreadPool(workers, new WorkerFactory(workers));
+            if (_logAccess) {
+                File logDir = new SecureFile(_client.getRootDir(), "logs");
+                logDir.mkdirs();
+                _accessLog = new HTTPAccessLog(new File(logDir, HTTPAccessLog.LOG_FILE), _ui);
+                _accessLog.start();
+                _stats.setAccessLog(_accessLog);
             }
-            Thread t = new Thread(new AcceptRunner(), "HTTPServ accept");
+            _limiter = new HTTPLimiter(_workers, workers);
+            _limiter.setLimits(_peerRequestsPerSecond, _peerKBps, _peerPostsPerMinute);
+            _limiter.setUnidentified(_httpServerTunnel, _unidentifiedShares);
+            _ui.debugMessage("Per peer limits: " + _peerRequestsPerSecond + " requests/sec, " + _peerKBps + "KBps, " +
+                             _peerPostsPerMinute + " posts/min; " +
+                             (_httpServerTunnel ? "I2P clients told apart by the HTTP server tunnel's header"
+                                                : "I2P clients not told apart, set " + PROP_HTTP_SERVER_TUNNEL + " for an HTTP server tunnel") +
+                             ", the rest share " + _unidentifiedShares + " peers' limits");
+            _importQueue = new ImportQueue(_client, _ui, 1);
+            _importQueue.start();
+            _selector = new HTTPSelector(_ssocket, this, _workers, _ui, _stats, _limiter);
+            Thread t = new Thread(new MaintenanceRunner(), "HTTPServ maintenance");
             t.setDaemon(true);
             t.start();
             _starting = false;
@@ -222,9 +494,26 @@ public class HTTPServ implements CLI.Command {
     public static String getStartFailedMessage() { return _startFailedMessage; }
     public static void clearFailedMessage() { _startFailedMessage = null; }
     
-    private static final int MAX_PENDING = 10;
+    /** @since 1.107b-1 */
+    private static class WorkerFactory implements ThreadFactory {
+        private final int _count;
+        private final AtomicInteger _num = new AtomicInteger();
+
+        public WorkerFactory(int count) { _count = count; }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "HTTPServ worker " + _num.incrementAndGet() + '/' + _count);
+            t.setDaemon(true);
+            return t;
+        }
+    }
     
-    private class AcceptRunner implements Runnable {
+    /**
+     *  Waits for login, then starts the selector, and keeps the
+     *  shared index and snapshot up to date.
+     *  Was the AcceptRunner before 1.107b-1.
+     */
+    private class MaintenanceRunner implements Runnable {
         public void run() {
             boolean loggedIn = false;
             while (_alive && _ssocket != null) {
@@ -252,178 +541,188 @@ public class HTTPServ implements CLI.Command {
                     continue;
                 }
                 if (!loggedIn) {
-                    _ui.debugMessage("Starting acceptance runner");
+                    _ui.debugMessage("Starting the HTTP selector");
                     loggedIn = true;
+                    HTTPSelector selector = _selector;
+                    if (selector == null)
+                        break;
+                    Thread t = new Thread(selector, "HTTPServ selector");
+                    t.setDaemon(true);
+                    t.start();
+                    _hashcashBits = LocalArchiveManager.getHashcashBits(_client);
+                    _hashcashMinKB = LocalArchiveManager.getLocalAbout(_client, mgr.getDefaultPullStrategy()).minMessageSizeKBRequiringHashcash();
+                    if (_hashcashBits > 0)
+                        _ui.debugMessage("Requiring " + _hashcashBits + " bit hashcash for posts of " + _hashcashMinKB + "KB and up");
+                    // the cached headers advertise the hashcash bits
+                    invalidateAll();
+                } else {
+                    _ui.debugMessage(_cache.toString());
+                    _ui.debugMessage(_stats.toString());
+                    HTTPLimiter limiter = _limiter;
+                    if (limiter != null)
+                        _ui.debugMessage(limiter.toString());
+                    ImportQueue queue = _importQueue;
+                    if (queue != null)
+                        _ui.debugMessage(queue.toString());
                 }
 
                 final File sharedIndex = new File(_client.getWebDir(), LocalArchiveManager.SHARED_INDEX_FILE);
+                if (_indexBuiltOn == 0)
+                    _indexBuiltOn = sharedIndex.lastModified();
 
                 //SyndicationManager manager = SyndicationManager.getInstance(_client, _ui);
                 //manager.loadArchives();
-                if (!sharedIndex.exists()) {
-                    _ui.debugMessage("shared index does not exist: building it");
-                    LocalArchiveManager.buildIndex(_client, _ui, mgr.getDefaultPullStrategy());
-                } else if (!_rebuilding && (sharedIndex.lastModified() + LocalArchiveManager.getLocalRebuildDelayHours(_client)*60*60*1000L < System.currentTimeMillis())) {
-                    _rebuilding = true;
-                    _ui.debugMessage("shared index is too old, rebuilding it");
+                long now = System.currentTimeMillis();
+                long wait = MAINTENANCE_INTERVAL;
+                long dirtySince = _indexDirtySince;
+                if (!_rebuilding) {
+                    String why = null;
+                    if (!sharedIndex.exists()) {
+                        why = "shared index does not exist";
+                    } else if (_indexBuiltOn + LocalArchiveManager.getLocalRebuildDelayHours(_client)*60*60*1000L < now) {
+                        why = "shared index is too old";
+                    } else if (dirtySince > 0) {
+                        // debounced, so a push of many messages is one rebuild
+                        long due = Math.min(_indexLastChange + INDEX_REBUILD_QUIET, dirtySince + INDEX_REBUILD_MAX_DELAY);
+                        if (due <= now)
+                            why = "archive changed";
+                        else
+                            wait = due - now;
+                    }
+                    if (why != null) {
+                        _rebuilding = true;
+                        _ui.debugMessage(why + ", rebuilding it");
+                        JobRunner.instance().enqueue(new Runnable() { 
+                            public void run() { 
+                                long start = System.currentTimeMillis();
+                                // changes from here on are for the next rebuild
+                                _indexDirtySince = 0;
+                                boolean ok = false;
+                                try {
+                                    // published atomically, and only if it changed
+                                    ok = LocalArchiveManager.buildIndex(_client, _ui, mgr.getDefaultPullStrategy(), sharedIndex);
+                                } catch (RuntimeException re) {
+                                    _ui.errorMessage("Error rebuilding", re);
+                                } finally {
+                                    _rebuilding = false;
+                                }
+                                if (ok) {
+                                    _indexBuiltOn = start;
+                                    _ui.debugMessage("Shared index rebuilt in " + (System.currentTimeMillis() - start) + " ms");
+                                    // for the snapshot, and any changes since we started
+                                    synchronized (_maintenanceLock) {
+                                        _maintenanceLock.notifyAll();
+                                    }
+                                } else if (_indexDirtySince == 0) {
+                                    // try again at the next check
+                                    _indexDirtySince = start;
+                                }
+                            }
+                        });
+                    }
+                }
+                
+                final File snapshot = new File(_client.getWebDir(), ArchiveSnapshot.SNAPSHOT_FILE);
+                if (_buildSnapshot && !_snapshotBuilding && sharedIndex.exists() &&
+                    snapshot.lastModified() + SNAPSHOT_REBUILD_DELAY < System.currentTimeMillis()) {
+                    _snapshotBuilding = true;
+                    _ui.debugMessage("archive snapshot is missing or too old, rebuilding it");
                     JobRunner.instance().enqueue(new Runnable() { 
                         public void run() { 
-                            File tmp = null;
-                            FileInputStream fis = null;
-                            FileOutputStream fos = null;
                             try {
-                                tmp = SecureFile.createTempFile("index", "dat", _client.getTempDir());
-                                boolean ok = LocalArchiveManager.buildIndex(_client, _ui, mgr.getDefaultPullStrategy(), tmp);
-                                // TODO don't copy if it didn't rebuild
-                                fis = new FileInputStream(tmp);
-                                fos = new SecureFileOutputStream(sharedIndex);
-                                byte buf[] = new byte[1024*16];
-                                int read = -1;
-                                while ( (read = fis.read(buf)) != -1)
-                                    fos.write(buf, 0, read);
-                                fos.close();
-                                fis.close();
-                                fis = null;
-                                fos = null;
-                                tmp.delete();
-                                tmp = null;
-                            } catch (Exception e) {
-                                _ui.errorMessage("Error rebuilding", e);
+                                ArchiveSnapshot.publish(_client, _ui, sharedIndex, snapshot);
+                                _cache.remove(ArchiveSnapshot.SNAPSHOT_FILE);
+                            } catch (IOException ioe) {
+                                _ui.errorMessage("Error building the archive snapshot", ioe);
                             } finally {
-                                if (fis != null) try { fis.close(); } catch (IOException ioe) {}
-                                if (fos != null) try { fos.close(); } catch (IOException ioe) {}
-                                if (tmp != null) tmp.delete();
+                                _snapshotBuilding = false;
                             }
-                            _rebuilding = false;
                         }
-                    });                    
+                    });
                 }
                 
-                try {
-                    // we want to break from the accept() periodically so we can do the above rebuilding checks
-                    _ssocket.setSoTimeout(5*60*1000);
-                    Socket socket = _ssocket.accept();
-                    _ui.debugMessage("Connection accepted");
-                    boolean added = false;
-                    boolean createNewHandler = false;
-                    synchronized (_pendingSockets) {
-                        if (_pendingSockets.size() < MAX_PENDING) {
-                            _pendingSockets.add(socket);
-                            added = true;
-                            
-                            if (_client.ctx().random().nextInt(MAX_PENDING) <= _pendingSockets.size()) {
-                                if (_curListeners < MAX_LISTENERS)
-                                    createNewHandler = true;
-                            }
-                        }
-                        _pendingSockets.notifyAll();
+                // check the above every so often, or when the archive changes
+                synchronized (_maintenanceLock) {
+                    if (_alive && _indexDirtySince == dirtySince) {
+                        try {
+                            _maintenanceLock.wait(wait);
+                        } catch (InterruptedException ie) {}
                     }
-                    if (createNewHandler) {
-                        Thread t = new Thread(new Runner(true), "HTTPServ run [on demand]");
-                        t.setDaemon(true);
-                        t.start();
-                    }
-                    if (!added)
-                        tooBusy(socket);
-                } catch (InterruptedIOException iie) {
-                    // ignore the accept() timeout
-                } catch (IOException ioe) {
-                    if (_alive)
-                        _ui.debugMessage("Error accepting", ioe);
                 }
             }
-            _ui.debugMessage("Accept runner terminated");
-        }
-    }
-    
-    private class Runner implements Runnable {
-        private boolean _isDynamic;
-        public Runner() { this(false); }
-        public Runner(boolean isDynamic) { 
-            _isDynamic = isDynamic; 
-            _curListeners++;
-        }
-        public void run() {
-            while (_alive) {
-                try {
-                    Socket socket = null;
-                    synchronized (_pendingSockets) {
-                        if (_pendingSockets.size() <= 0) {
-                            if (_isDynamic) {
-                                _ui.debugMessage("Terminating dynamic HTTP runner as the pending queue is clear");
-                                _curListeners--;
-                                return;
-                            }
-                            _pendingSockets.wait();
-                        } else {
-                            socket = _pendingSockets.remove(0);
-                        }
-                    }
-                    if (socket != null)
-                        handle(socket);
-                } catch (IOException ioe) {
-                    // normal, broken pipe etc.
-                    //_ui.debugMessage("Error handing socket", ioe);
-                } catch (InterruptedException ie) {}
+            if (loggedIn && _alive) {
+                // logged out, stop serving
+                HTTPSelector selector = _selector;
+                if (selector != null)
+                    selector.stop();
             }
-            _ui.debugMessage("Terminating runner " + Thread.currentThread().getName());
-            _curListeners--;
+            _ui.debugMessage("HTTPServ maintenance terminated");
         }
     }
     
     /**
-     *  TODO implement NCSA-style server log
+     *  HTTPSelector.Handler, on a worker thread.
+     *  The selector counts each request in the HTTPStats, and logs it if there's an access log, when it's done.
+     *
+     *  @since 1.107b-1, was handle(Socket)
      */
-    private void handle(Socket socket) throws IOException {
+    public void requestReceived(HTTPConnection conn) {
         _ui.debugMessage("handling a client");
-        String methodLine = null;
-
-        SocketTimeout timeout = new SocketTimeout(socket, 60*1000);
-        InputStream in = socket.getInputStream();
-        OutputStream out = socket.getOutputStream();
-        HashMap headers = new HashMap();
-        
-        methodLine = DataHelper.readLine(in);
-        if (methodLine == null) {
-            fail(socket, in, out, timeout);
-            return;
-        }
-        
-        // recv headers
-        for (int c = 0; c < 50; c++) { // sanity check, don't keep recving headers forever
-            String line = DataHelper.readLine(in);
-            if (line == null) {
-                fail(socket, in, out, timeout);
-                return;
-            } else if (line.trim().equals("")) // all headers recved
-                break;
-            
-            String [] header = line.split(":", 2);
-            if (header.length < 2)
-                continue;
-            headers.put(header[0].trim().toUpperCase(Locale.US), header[1].trim());
-        }
+        String methodLine = conn.getMethodLine();
+        HashMap<String, String> headers = conn.getHeaders();
+        // all GET and HEAD responses are length-delimited,
+        // POSTs close as the body may not have been read
+        conn.setKeepAlive(!methodLine.startsWith("POST ") && conn.wantsKeepAlive());
         
         try {
             String path = getPath(methodLine);
             if (methodLine.startsWith("GET ")) {
                 if (path != null)
-                    handleGet(socket, in, out, timeout, path, headers);
+                    handleGet(conn, path, headers, false);
                 else
-                   fail404(socket, in, out, timeout);
+                   fail404(conn);
             } else if (methodLine.startsWith("HEAD ")) {
                 if (path != null)
-                    handleHead(socket, in, out, timeout, path, headers);
+                    handleGet(conn, path, headers, true);
                 else
-                   fail404(socket, in, out, timeout);
+                   fail404(conn);
             } else if (methodLine.startsWith("POST ")) {
-                handlePost(socket, in, out, timeout, path, headers);
+                if (path != null && path.endsWith(BATCH_CGI))
+                    handleBatch(conn, headers);
+                else
+                    handlePost(conn, path, headers);
             } else {
-                fail405(socket, in, out, timeout);
+                fail405(conn);
             }
+        } catch (IOException ioe) {
+            // normal, file went away etc.
+            _ui.debugMessage("Error handling " + methodLine, ioe);
+            fail(conn);
         } catch (RuntimeException re) {
             _ui.errorMessage("Error handling", re);
-            fail(socket, in, out, timeout);
+            fail(conn);
+        }
+    }
+
+    /**
+     *  HTTPSelector.Handler, on a worker thread, after a POST body has been received
+     *  @since 1.107b-1
+     */
+    public void bodyReceived(HTTPConnection conn, boolean complete) {
+        Object req = conn.getAttachment();
+        try {
+            if (req instanceof BatchRequest)
+                batchReceived(conn, (BatchRequest) req, complete);
+            else if (req instanceof PostRequest)
+                postReceived(conn, (PostRequest) req, complete);
+            else
+                fail(conn);
+        } catch (IOException ioe) {
+            _ui.debugMessage("Error handling the POST", ioe);
+            fail(conn);
+        } catch (RuntimeException re) {
+            _ui.errorMessage("Error handling", re);
+            fail(conn);
         }
     }
     
@@ -469,18 +768,32 @@ public class HTTPServ implements CLI.Command {
     /**
      *  @param path non-null
      *  @param headers keys in upper case
+     *  @param head HEAD instead of GET, same headers but no body, since 1.107b-1
      */
-    private void handleGet(Socket socket, InputStream in, OutputStream out, SocketTimeout timeout,
-                           String path, HashMap<String, String> headers) throws IOException {
+    private void handleGet(HTTPConnection conn, String path, HashMap<String, String> headers, boolean head) throws IOException {
         if (path.equals("/"))
             path = "/index.html";
-        _ui.debugMessage("GET " + path);
+        _ui.debugMessage((head ? "HEAD " : "GET ") + path);
         if (REJECT_INPROXY && path != "/index.html" &&
             (headers.containsKey("X-FORWARDED-FOR") || headers.containsKey("X-FORWARDED-SERVER"))) {
-            fail403(socket, in, out, timeout);
+            fail403(conn);
             return;
         }
         
+        if (path.equals(STATS_PATH)) {
+            sendStats(conn, headers, head);
+            return;
+        }
+
+        String key = getCacheKey(path);
+        if (!headers.containsKey("RANGE")) {
+            HTTPCache.Entry cached = _cache.get(key);
+            if (cached != null) {
+                sendCached(conn, key, cached, headers, head);
+                return;
+            }
+        }
+
         File file = _sharedFiles.get(path);
         if (file != null) {
             if (file.exists()) {
@@ -490,50 +803,72 @@ public class HTTPServ implements CLI.Command {
                     long lastMod = RFC822Date.parse822Date(lm);
                     if (file.lastModified() <= lastMod) {
                         _ui.debugMessage("sending 304 for " + path);
-                        send304(socket, in, out, timeout);
+                        send304(conn);
                         return;
                     }
                 }
-                send(socket, in, out, file, timeout);
+                send(conn, file, headers, head, key);
             } else {
-                fail404(socket, in, out, timeout);
+                fail404(conn);
             }
         } else {
             String chan = getChannel(path);
             String sub = getChannelSub(path);
             _ui.debugMessage("GET of [" + chan + "]  [" + sub + "]");
-            sendIfAllowed(chan, sub, socket, in, out, timeout);
+            sendIfAllowed(chan, sub, conn, headers, head, key);
         }
     }
-    
+
     /**
-     *  Only handles the shared files, otherwise sends a 405
-     *  @param path non-null
+     *  The HTTPStats as JSON, for local monitoring only, if turned on with the PROP_STATS pref.
+     *  A plain I2P server tunnel connects from this machine without any headers,
+     *  so the pref is what keeps it private, not the checks here.
+     *  Those only refuse what's from elsewhere, or has a tunnel's or a proxy's headers.
+     *
      *  @param headers keys in upper case
-     *  @since 1.101b-8
+     *  @since 1.107b-1
      */
-    private void handleHead(Socket socket, InputStream in, OutputStream out, SocketTimeout timeout,
-                            String path, HashMap<String, String> headers) throws IOException {
-        if (path.equals("/"))
-            path = "/index.html";
-        _ui.debugMessage("HEAD " + path);
-        if (REJECT_INPROXY && path != "/index.html" &&
-            (headers.containsKey("X-FORWARDED-FOR") || headers.containsKey("X-FORWARDED-SERVER"))) {
-            fail403(socket, in, out, timeout);
+    private void sendStats(HTTPConnection conn, HashMap<String, String> headers, boolean head) {
+        if (!_serveStats) {
+            fail404(conn);
             return;
         }
-        
-        File file = _sharedFiles.get(path);
-        if (file != null) {
-            if (file.exists()) {
-                sendHeaders(socket, in, out, file, timeout);
-                close(socket, in, out, timeout);
-            } else {
-                fail404(socket, in, out, timeout);
-            }
-        } else {
-            fail405(socket, in, out, timeout);
+        InetAddress addr = conn.getRemoteAddress();
+        if (addr == null || !addr.isLoopbackAddress() ||
+            headers.containsKey("X-I2P-DESTHASH") || headers.containsKey("X-I2P-DESTB64") ||
+            headers.containsKey("X-FORWARDED-FOR") || headers.containsKey("X-FORWARDED-SERVER")) {
+            fail403(conn);
+            return;
         }
+        HTTPSelector selector = _selector;
+        byte json[] = DataHelper.getUTF8(_stats.toJSON(selector != null ? selector.getConnectionCount() : 0, _cache, _limiter));
+        conn.send(DataHelper.getUTF8("HTTP/1.1 200 OK\r\n" +
+                                     "Content-type: application/json; charset=utf-8\r\n" +
+                                     "Content-length: " + json.length + "\r\n" +
+                                     "Cache-control: no-cache\r\n" +
+                                     getConnectionHeaders(conn) + "\r\n"));
+        if (!head)
+            conn.send(json);
+        conn.respond();
+    }
+
+    /**
+     *  Send a cache hit, or a 304 for a shared file, as handleGet() would
+     *  @since 1.107b-1
+     */
+    private void sendCached(HTTPConnection conn, String key, HTTPCache.Entry cached,
+                            HashMap<String, String> headers, boolean head) {
+        String lm = headers.get("IF-MODIFIED-SINCE");
+        if (lm != null && _sharedFiles.containsKey('/' + key) &&
+            cached.lastModified <= RFC822Date.parse822Date(lm)) {
+            send304(conn);
+            return;
+        }
+        conn.send(cached.headers);
+        conn.send(DataHelper.getUTF8(getConnectionHeaders(conn) + "\r\n"));
+        if (!head)
+            conn.send(cached.data);
+        conn.respond();
     }
     
     private SharedArchive getSharedArchive() {
@@ -564,68 +899,191 @@ public class HTTPServ implements CLI.Command {
         }
     }
     
-    private void sendIfAllowed(String chan, String sub, Socket socket, InputStream in, OutputStream out, SocketTimeout timeout) throws IOException {
+    /**
+     *  @param headers keys in upper case
+     */
+    private void sendIfAllowed(String chan, String sub, HTTPConnection conn,
+                               HashMap<String, String> headers, boolean head, String key) throws IOException {
         // we only send a file if it is in our published shared archive index, which
         // doesn't necessarily contain everything we have (for anonymity reasons)
         SharedArchive archive = getSharedArchive();
         if (archive == null) {
-            fail404(socket, in, out, timeout);
+            fail404(conn);
             return;
         }
-        
+        File file = getAllowedFile(archive, chan, sub);
+        if (file != null)
+            send(conn, file, headers, head, key);
+        else
+            fail404(conn);
+    }
+
+    /**
+     *  The file for a channel path, if it is in our published shared archive index.
+     *  The file may or may not exist.
+     *
+     *  @param archive non-null
+     *  @return null if not published or the path is invalid
+     *  @since 1.107b-1
+     */
+    private File getAllowedFile(SharedArchive archive, String chan, String sub) {
+        if (chan == null || sub == null)
+            return null;
+        byte hash[] = Base64.decode(chan);
+        if ( (hash == null) || (hash.length != Hash.HASH_LENGTH) ) {
+            // bad channel name
+            return null;
+        }
+        Hash chanHash = Hash.create(hash);
         if (("meta" + Constants.FILENAME_SUFFIX).equals(sub)) {
-            byte hash[] = Base64.decode(chan);
-            if ( (hash != null) && (hash.length == Hash.HASH_LENGTH) ) {
-                Hash chanHash = Hash.create(hash);
-                if (archive.getChannel(chanHash) != null) {
-                    // ok, metadata is published, allow the send
-                    send(socket, in, out, new File(new File(_client.getArchiveDir(), chan), "meta" + Constants.FILENAME_SUFFIX), timeout);
-                    return;
-                } else {
-                    // we may even have it, but its not in our published index, so dont give it to them
-                    fail404(socket, in, out, timeout);
-                }
-            } else {
-                // bad channel name
-                fail404(socket, in, out, timeout);
+            if (archive.getChannel(chanHash) != null) {
+                // ok, metadata is published, allow the send
+                return new File(new File(_client.getArchiveDir(), chan), "meta" + Constants.FILENAME_SUFFIX);
             }
         } else {
-            byte hash[] = Base64.decode(chan);
-            if ( (hash != null) && (hash.length == Hash.HASH_LENGTH) ) {
-                Hash chanHash = Hash.create(hash);
-                long messageId = SharedArchiveBuilder.getMessageId(sub);
-                if (messageId < 0) {
-                    fail404(socket, in, out, timeout);
-                } else if (archive.isKnown(chanHash, messageId)) {
-                    // ok, message is published, allow the send
-                    send(socket, in, out, new File(new File(_client.getArchiveDir(), chan), messageId + Constants.FILENAME_SUFFIX), timeout);
-                    return;
-                } else {
-                    // we may even have it, but its not in our published index, so dont give it to them
-                    fail404(socket, in, out, timeout);
-                }
-            } else {
-                // bad channel name
-                fail404(socket, in, out, timeout);
+            long messageId = SharedArchiveBuilder.getMessageId(sub);
+            if (messageId >= 0 && archive.isKnown(chanHash, messageId)) {
+                // ok, message is published, allow the send
+                return new File(new File(_client.getArchiveDir(), chan), messageId + Constants.FILENAME_SUFFIX);
             }
         }
+        // we may even have it, but its not in our published index, so dont give it to them
+        return null;
     }
     
-    private void send(Socket socket, InputStream in, OutputStream out, File file, SocketTimeout timeout) throws IOException {
+    /**
+     *  Send the file, or the part of it asked for by a Range header.
+     *  Small files are cached when sent whole.
+     *  @param headers keys in upper case
+     *  @param head headers only
+     *  @param key for the cache
+     */
+    private void send(HTTPConnection conn, File file, HashMap<String, String> headers, boolean head, String key) throws IOException {
         if (file.exists()) {
-            sendHeaders(socket, in, out, file, timeout);
-            sendBody(socket, in, out, file, timeout);
+            long len = file.length();
+            if (!headers.containsKey("RANGE") && _cache.isCacheable(len)) {
+                HTTPCache.Entry cached = load(file);
+                if (cached != null) {
+                    _cache.put(key, cached);
+                    sendCached(conn, key, cached, headers, head);
+                    return;
+                }
+            }
+            long range[] = null;
+            String rh = headers.get("RANGE");
+            if (rh != null) {
+                range = getRange(rh, len);
+                if (range == RANGE_NOT_SATISFIABLE) {
+                    _ui.debugMessage("sending 416 for " + file.getName() + " range " + rh);
+                    conn.send(DataHelper.getUTF8("HTTP/1.1 416 Requested range not satisfiable\r\n" +
+                                                 "Content-range: bytes */" + len + "\r\n" +
+                                                 "Content-length: 0\r\n" +
+                                                 getConnectionHeaders(conn) + "\r\n"));
+                    conn.respond();
+                    return;
+                }
+            }
+            sendHeaders(conn, file, range);
+            if (head)
+                conn.respond();
+            else
+                sendBody(conn, file, range);
         } else {
-            fail404(socket, in, out, timeout);
+            fail404(conn);
+        }
+    }
+
+    private static final long[] RANGE_NOT_SATISFIABLE = new long[0];
+
+    /**
+     *  Parse a Range header value. Only a single range is supported:
+     *  "bytes=start-", "bytes=start-end", or "bytes=-suffixLength".
+     *  Anything else is ignored and the whole file sent, as RFC 2616 allows.
+     *
+     *  @param len the file length
+     *  @return start and end, inclusive, or null to send the whole file, or RANGE_NOT_SATISFIABLE
+     *  @since 1.107b-1
+     */
+    private static long[] getRange(String val, long len) {
+        val = val.trim();
+        if (!val.startsWith("bytes="))
+            return null;
+        val = val.substring(6).trim();
+        if (val.indexOf(',') >= 0)
+            return null;
+        int dash = val.indexOf('-');
+        if (dash < 0)
+            return null;
+        try {
+            String s = val.substring(0, dash).trim();
+            String e = val.substring(dash + 1).trim();
+            long start, end;
+            if (s.length() <= 0) {
+                // suffix
+                if (e.length() <= 0)
+                    return null;
+                long suffix = Long.parseLong(e);
+                if (suffix <= 0)
+                    return RANGE_NOT_SATISFIABLE;
+                start = Math.max(0, len - suffix);
+                end = len - 1;
+            } else {
+                start = Long.parseLong(s);
+                end = e.length() > 0 ? Math.min(Long.parseLong(e), len - 1) : len - 1;
+                if (end < start && e.length() > 0)
+                    return null;
+            }
+            if (start >= len)
+                return RANGE_NOT_SATISFIABLE;
+            if (start == 0 && end == len - 1)
+                return null;
+            return new long[] { start, end };
+        } catch (NumberFormatException nfe) {
+            return null;
         }
     }
 
     /**
-     *  Send the HTTP headers
+     *  Send the HTTP headers, 206 if range is non-null
      *  @param file must exist
-     *  @since 1.101b-8
+     *  @param range start and end, inclusive, or null for the whole file
+     *  @since 1.107b-1
      */
-    private void sendHeaders(Socket socket, InputStream in, OutputStream out, File file, SocketTimeout timeout) throws IOException {
+    private void sendHeaders(HTTPConnection conn, File file, long range[]) throws IOException {
+        StringBuilder buf = getHeaders(file, file.length(), file.lastModified(), null, range);
+        buf.append(getConnectionHeaders(conn));
+        buf.append("\r\n");
+        conn.send(DataHelper.getUTF8(buf.toString()));
+    }
+
+    /**
+     *  A file and its headers for the cache, read in one go
+     *  @return null if it changed while reading
+     *  @since 1.107b-1
+     */
+    private HTTPCache.Entry load(File file) throws IOException {
+        long lastMod = file.lastModified();
+        byte data[] = new byte[(int) file.length()];
+        FileInputStream fin = null;
+        try {
+            fin = new FileInputStream(file);
+            if (DataHelper.read(fin, data) != data.length || fin.read() != -1)
+                return null;
+        } finally {
+            if (fin != null) try { fin.close(); } catch (IOException ioe) {}
+        }
+        String hash = Base64.encode(SHA256Generator.getInstance().calculateHash(data).getData());
+        byte headers[] = DataHelper.getUTF8(getHeaders(file, data.length, lastMod, hash, null).toString());
+        return new HTTPCache.Entry(data, headers, lastMod);
+    }
+
+    /**
+     *  The response headers, less the connection headers and the blank line
+     *  @param hash base64 SHA-256 of the whole file, or null to read it
+     *  @param range start and end, inclusive, or null for the whole file
+     *  @since 1.107b-1, split from sendHeaders()
+     */
+    private StringBuilder getHeaders(File file, long len, long lastModified, String hash, long range[]) throws IOException {
         boolean hideLastMod = false;
         String type;
         String name = file.getName();
@@ -645,175 +1103,260 @@ public class HTTPServ implements CLI.Command {
             type = "application/octet-stream";
         }
         StringBuilder buf = new StringBuilder();
-        buf.append("HTTP/1.0 200 OK\r\n");
+        if (range != null) {
+            buf.append("HTTP/1.1 206 Partial content\r\n");
+            buf.append("Content-range: bytes ").append(range[0]).append('-').append(range[1]).append('/').append(len).append("\r\n");
+            buf.append("Content-length: ").append(range[1] + 1 - range[0]).append("\r\n");
+        } else {
+            buf.append("HTTP/1.1 200 OK\r\n");
+            buf.append("Content-length: ").append(len).append("\r\n");
+        }
         buf.append("Content-type: ").append(type).append("\r\n");
-        buf.append("Content-length: ").append(file.length()).append("\r\n");
         if (!hideLastMod)
-            buf.append("Last-modified: ").append(RFC822Date.to822Date(file.lastModified())).append("\r\n");
-        buf.append("Connection: close\r\n");
-        buf.append("\r\n");
-        out.write(DataHelper.getUTF8(buf.toString()));
-        
-        timeout.resetTimer();
+            buf.append("Last-modified: ").append(RFC822Date.to822Date(lastModified)).append("\r\n");
+        buf.append("Accept-ranges: bytes\r\n");
+        if (type.startsWith("application/x-syndie")) {
+            // so a resumed download can be checked end to end
+            buf.append(HASH_HEADER).append(": ").append(hash != null ? hash : getHash(file, len, lastModified)).append("\r\n");
+        }
+        buf.append(FEATURES_HEADER).append(": ").append(getFeatures()).append("\r\n");
+        return buf;
     }
 
     /**
-     *  Send the HTTP body
+     *  The hash of the whole file, from _hashCache if it hasn't changed since.
+     *  Published files are written once, so this is usually a hit after the first request.
+     *  @since 1.107b-1
+     */
+    private static String getHash(File file, long len, long lastModified) throws IOException {
+        String key = file.getPath() + ':' + len + ':' + lastModified;
+        String rv;
+        synchronized (_hashCache) {
+            rv = _hashCache.get(key);
+        }
+        if (rv == null) {
+            rv = FetchSpool.getHash(file);
+            // don't cache it if the file changed while we were reading it
+            if (file.length() == len && file.lastModified() == lastModified) {
+                synchronized (_hashCache) {
+                    _hashCache.put(key, rv);
+                }
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  Queue the HTTP body, or part of it, and send the response.
+     *  The selector reads the file as the client takes it.
      *  @param file must exist
+     *  @param range start and end, inclusive, or null for the whole file
      *  @since 1.101b-8
      */
-    private void sendBody(Socket socket, InputStream in, OutputStream out, File file, SocketTimeout timeout) throws IOException {
-        int len = 0;
-        //Sha256Standalone hash = new Sha256Standalone();
-        FileInputStream fin = null;
+    private void sendBody(HTTPConnection conn, File file, long range[]) {
+        long start = range != null ? range[0] : 0;
+        long len = range != null ? range[1] + 1 - range[0] : file.length();
+        conn.send(file, start, len);
+        conn.respond();
+        _ui.debugMessage("Sending " + file.getPath() + ": " + len + "/" + file.length());
+    }
+    
+    /**
+     *  Send many published files in one response.
+     *  The request body is a list of paths, one per line, each in the same
+     *  "$channel/meta.syndie" or "$channel/$messageId.syndie" form as a GET.
+     *  The response body is, for each requested path in order,
+     *  a 1 byte status (BATCH_OK or BATCH_NOT_FOUND), a 4 byte size, and that many bytes of data.
+     *  This does not require the server to be writable.
+     *
+     *  @param headers keys in upper case
+     *  @since 1.107b-1
+     */
+    private void handleBatch(HTTPConnection conn, HashMap<String, String> headers) {
+        _ui.debugMessage("handleBatch");
+        if (REJECT_INPROXY &&
+            (headers.containsKey("X-FORWARDED-FOR") || headers.containsKey("X-FORWARDED-SERVER"))) {
+            fail403(conn);
+            return;
+        }
+        int contentLength;
         try {
-            fin = new FileInputStream(file);
-            byte dbuf[] = new byte[4096];
-            int read = 0;
-            while ( (read = fin.read(dbuf)) != -1) {
-                out.write(dbuf, 0, read);
-                //hash.update(dbuf, 0, read);
-                len += read;
-                timeout.resetTimer();
-            }
-            timeout.resetTimer();
-            
-            fin.close();
-            fin = null;
-            
-            out.flush();
-            timeout.resetTimer();
-            
-            _ui.debugMessage("Sent " + file.getPath() + ": " + len + "/" + file.length());// +", sha256 = " + Base64.encode(hash.digest()));
-        } finally {
-            if (fin != null) try { fin.close(); } catch (IOException ioe) {}
-            close(socket, in, out, timeout);
+            contentLength = Integer.parseInt(headers.get("CONTENT-LENGTH"));
+        } catch (NumberFormatException nfe) {
+            fail(conn);
+            return;
         }
+        if (contentLength <= 0 || contentLength > MAX_BATCH_REQUEST) {
+            fail(conn);
+            return;
+        }
+        BatchRequest req = new BatchRequest(contentLength);
+        conn.setAttachment(req);
+        conn.receiveBody(contentLength, Channels.newChannel(req.body));
     }
-    
-    private static void close(Socket socket, InputStream in, OutputStream out, SocketTimeout timeout) throws IOException {
-        if (in != null) try { in.close(); in = null; } catch (IOException ioe) {}
-        if (out != null) try { out.close(); out = null; } catch (IOException ioe) {}
-        if (socket != null) try { socket.close(); socket = null; } catch (IOException ioe) {}
-        if (timeout != null) {
-            // No such method error here, caused by change in cancel() return type
-            // from void to boolean in I2P 0.9.3. Recompile syndie to fix.
-            // Catch the error here in case it's running with an old i2p.jar
-            try {
-                timeout.cancel();
-            } catch (NoSuchMethodError e) {}
-            timeout = null;         
+
+    /**
+     *  The rest of handleBatch(), once the list of paths is in
+     *  @since 1.107b-1
+     */
+    private void batchReceived(HTTPConnection conn, BatchRequest req, boolean complete) throws IOException {
+        if (!complete) {
+            fail(conn);
+            return;
+        }
+        SharedArchive archive = getSharedArchive();
+        if (archive == null) {
+            fail404(conn);
+            return;
+        }
+
+        String paths[] = DataHelper.getUTF8(req.body.toByteArray()).split("\n");
+        conn.send(BATCH_HEADERS);
+        int sent = 0;
+        try {
+            for (int i = 0; i < paths.length && i < MAX_BATCH_ITEMS; i++) {
+                String path = paths[i].trim();
+                if (path.length() <= 0)
+                    continue;
+                ByteArrayOutputStream item = new ByteArrayOutputStream(5);
+                // only published files are cached
+                HTTPCache.Entry cached = _cache.get(getCacheKey(path));
+                if (cached != null) {
+                    DataHelper.writeLong(item, 1, BATCH_OK);
+                    DataHelper.writeLong(item, 4, cached.data.length);
+                    conn.send(item.toByteArray());
+                    conn.send(cached.data);
+                    sent++;
+                    continue;
+                }
+                File file = getAllowedFile(archive, getChannel(path), getChannelSub(path));
+                long len = file != null ? file.length() : 0;
+                if (file == null || !file.exists()) {
+                    DataHelper.writeLong(item, 1, BATCH_NOT_FOUND);
+                    DataHelper.writeLong(item, 4, 0);
+                    conn.send(item.toByteArray());
+                    continue;
+                }
+                DataHelper.writeLong(item, 1, BATCH_OK);
+                DataHelper.writeLong(item, 4, len);
+                conn.send(item.toByteArray());
+                // the connection is closed if the file shrinks before it's sent
+                conn.send(file, 0, len);
+                sent++;
+            }
+            conn.respond();
+            _ui.debugMessage("Batch sending " + sent + " of " + paths.length + " requested");
+        } catch (DataFormatException dfe) {
+            throw new IOException(dfe.getMessage());
         }
     }
-    
+
     /**
+     *  A batch request body, small, so kept in memory
+     *  @since 1.107b-1
+     */
+    private static class BatchRequest {
+        public final ByteArrayOutputStream body;
+
+        public BatchRequest(int len) { body = new ByteArrayOutputStream(len); }
+    }
+
+    /**
+     *  The body is parsed by a PostReceiver as the selector reads it,
+     *  each item stored and queued for import as soon as it's in, then postReceived() replies.
+     *
      *  @param path ignored
      *  @param headers keys in upper case
      */
-    private void handlePost(Socket socket, InputStream in, OutputStream out, SocketTimeout timeout,
-                            String path, HashMap<String, String> headers) throws IOException {
+    private void handlePost(HTTPConnection conn, String path, HashMap<String, String> headers) throws IOException {
         if (!_allowPost) {
-            fail403(socket, in, out, timeout);
+            fail403(conn);
             return;
         }
         _ui.debugMessage("handlePost");
         if (REJECT_INPROXY &&
             (headers.containsKey("X-FORWARDED-FOR") || headers.containsKey("X-FORWARDED-SERVER"))) {
-            fail403(socket, in, out, timeout);
+            fail403(conn);
+            return;
+        }
+        ImportQueue queue = _importQueue;
+        if (queue == null) {
+            fail(conn);
             return;
         }
         
-        long remaining, contentLength;
+        long contentLength;
         try {
-            remaining = contentLength = Long.parseLong(headers.get("CONTENT-LENGTH"));
+            contentLength = Long.parseLong(headers.get("CONTENT-LENGTH"));
         } catch (NumberFormatException nfe) {
-            fail(socket, in, out, timeout);
+            fail(conn);
+            return;
+        }
+        if (contentLength < 2) {
+            fail(conn);
             return;
         }
         
-        File importDir = new SecureFile(_client.getTempDir(), System.currentTimeMillis() + "." + Thread.currentThread().hashCode() + ".imp");
-        importDir.mkdirs();
+        boolean ack = headers.containsKey(ACK_HEADER.toUpperCase(Locale.US));
+        String prefix = "push-" + _postNum.incrementAndGet() + '-' + System.currentTimeMillis();
+        PostReceiver rcv = new PostReceiver(_client.getTempDir(), prefix, contentLength,
+                                            _hashcashBits, _hashcashMinKB * 1024L, queue,
+                                            _workers, conn, _ui);
+        conn.setAttachment(new PostRequest(rcv, ack));
+        conn.receiveBody(contentLength, rcv);
+    }
 
+    /**
+     *  The rest of handlePost(), once the body is in.
+     *  The items were queued for import as they arrived, even if the connection dropped,
+     *  so this only waits up to IMPORT_WAIT for them and replies with how each went.
+     *
+     *  @param complete if false, the connection is already closed
+     *  @since 1.107b-1
+     */
+    private void postReceived(HTTPConnection conn, PostRequest req, boolean complete) throws IOException {
+        PostReceiver rcv = req.receiver;
+        // deletes the partial item, if any
+        rcv.close();
+        int items = rcv.getItemCount();
+        if (!complete || !rcv.isComplete()) {
+            _ui.debugMessage("handlePost: incomplete after " + items + " items");
+            fail(conn);
+            return;
+        }
+        int pending;
         try {
-            int headerSize = (int)DataHelper.readLong(in, 2);
-            byte header[] = new byte[headerSize];
-            int read = DataHelper.read(in, header);
-            if (read != headerSize) {
-                fail(socket, in, out, timeout);
-                return;
-            }
+            pending = rcv.awaitImports(IMPORT_WAIT);
+        } catch (InterruptedException ie) {
+            pending = items;
+        }
+        _ui.debugMessage("handlePost: received " + items + " items, " + pending + " still queued for import");
+        if (items > 0)
+            _ui.statusMessage("HTTP server received " + items + " messages");
+        String acks = req.ack ? rcv.getAcks() : "";
+        StringBuilder resp = new StringBuilder(acks.length() + 64);
+        resp.append("HTTP/1.1 200 OK\r\n");
+        if (req.ack)
+            resp.append("Content-type: text/plain\r\n");
+        resp.append(FEATURES_HEADER).append(": ").append(getFeatures()).append("\r\n");
+        resp.append("Connection: close\r\n\r\n");
+        resp.append(acks);
+        conn.send(DataHelper.getUTF8(resp.toString()));
+        conn.respond();
+        // the SyndicationManagerScheduler rebuilds our published index when its safe to do so
+    }
 
-            remaining -= headerSize + 2;
-            
-            _ui.debugMessage("handlePost: header read, remaining: " + remaining);
-            
-         /****
-            ** unimplemented **
-
-            SessionKey authKey = getAuthorizationKey(header);
-            SessionKey encKey = getEncryptionKey(header);
-            if (!authorized(authKey)) {
-                fail403(socket, in, out, timeout);
-                return;
-            }
-          ****/
-            
-            timeout.resetTimer();
-            
-            int msgNum = 0;
-            while (remaining > 0) {
-                msgNum++;
-                int flags = (int)DataHelper.readLong(in, 1);
-                long sz = DataHelper.readLong(in, 4);
-                remaining -= 5;
-                //if ( (sz > ArchiveIndex.DEFAULT_MAX_SIZE) || (sz > remaining{
-                if (sz > remaining) {
-                    _ui.debugMessage(msgNum + ": invalid size: " + sz + " remaining: " + remaining);
-                    fail(socket, in, out, timeout);
-                    return;
-                }
-                 
-                remaining -= sz;
-                
-                byte msg[] = new byte[(int)sz];
-                read = DataHelper.read(in, msg);
-                if (read != (int)sz) {
-                    fail(socket, in, out, timeout);
-                    return;
-                }
-                
-                if (sz > SharedArchive.DEFAULT_MAX_SIZE_KB*1024) {
-                    _ui.debugMessage(msgNum + ": message size is too large: " + sz);
-                    // ignore it
-                } else {
-                    if (remaining >= 0) {
-                        // import it now?  queue it up for later?  see if its a dup?
-                        FileOutputStream fos = new SecureFileOutputStream(new File(importDir, msgNum + ".syndie"));
-                        _ui.debugMessage(msgNum + ": handlePost: read message of size " + read + ", remaining: " + remaining);
+    /**
+     *  A POST to import, parsed as it arrives
+     *  @since 1.107b-1
+     */
+    private static class PostRequest {
+        public final PostReceiver receiver;
+        public final boolean ack;
 
-                        fos.write(msg);
-                        fos.close();
-                    }
-                }
-                timeout.resetTimer();
-            } 
-            
-            _ui.debugMessage(msgNum + ": handlePost: read complete " + contentLength + " to " + importDir.getPath());
-            out.write(DataHelper.getUTF8("HTTP/1.0 200 OK\r\nConnection: close\r\n\r\n"));
-            close(socket, in, out, timeout);
-            if (msgNum > 0) {
-                _ui.statusMessage("HTTP server received " + msgNum + " messages, scheduling bulk import");
-                _ui.insertCommand("menu syndicate");
-                _ui.insertCommand("bulkimport --dir '" + importDir.getPath() + "' --delete true --rmdir true");
-                // the SyndicationManagerScheduler rebuilds our published index when its safe to do so
-                //_ui.insertCommand("buildindex");
-            }
-        } catch (DataFormatException dfe) {
-            delete(importDir);
-            throw new IOException(dfe.getMessage());
-        } catch (IOException ioe) {
-            delete(importDir);
-            throw ioe;
+        public PostRequest(PostReceiver receiver, boolean ack) {
+            this.receiver = receiver;
+            this.ack = ack;
         }
     }
     
@@ -826,56 +1369,57 @@ public class HTTPServ implements CLI.Command {
     /** true if they're authorized to post */
     //private boolean authorized(SessionKey authorizationKey) { return true; }
     
-    /** */
-    private static void delete(File dir) {
-        File files[] = dir.listFiles();
-        for (int i = 0; i < files.length; i++) {
-            if (!files[i].getName().startsWith("."))
-                files[i].delete();
-        }
-        dir.delete();
-    }
-    
-    private void fail404(Socket socket, InputStream in, OutputStream out, SocketTimeout timeout) throws IOException {
-        out.write(ERR_404);
-        fail(socket, in, out, timeout);
+    private void fail404(HTTPConnection conn) {
+        sendError(conn, "404 File not found", true);
     }
 
-    private void fail403(Socket socket, InputStream in, OutputStream out, SocketTimeout timeout) throws IOException {
-        out.write(ERR_403);
-        fail(socket, in, out, timeout);
+    private void fail403(HTTPConnection conn) {
+        sendError(conn, "403 Not authorized", true);
     }
 
-    private void fail(Socket socket, InputStream in, OutputStream out, SocketTimeout timeout) throws IOException {
+    private void fail(HTTPConnection conn) {
         //_ui.debugMessage("failing socket", new Exception("source"));
         _ui.debugMessage("failing socket");
-        close(socket, in, out, timeout);
+        conn.close();
     }
     
     /** @since 1.101b-8 */
-    private void fail405(Socket socket, InputStream in, OutputStream out, SocketTimeout timeout) throws IOException {
-        out.write(ERR_405);
-        fail(socket, in, out, timeout);
+    private void fail405(HTTPConnection conn) {
+        sendError(conn, "405 Method not allowed", false);
     }
     
     /** @since 1.102b-3 */
-    private void send304(Socket socket, InputStream in, OutputStream out, SocketTimeout timeout) throws IOException {
-        out.write(ERR_304);
-        close(socket, in, out, timeout);
+    private void send304(HTTPConnection conn) {
+        conn.send(DataHelper.getUTF8("HTTP/1.1 304 Not modified\r\n" + FEATURES_HEADER + ": " + getFeatures() + "\r\n" +
+                                     getConnectionHeaders(conn) + "\r\n"));
+        conn.respond();
     }
 
-    private static final byte[] TOO_BUSY = DataHelper.getUTF8("HTTP/1.0 401 TOO BUSY\r\nConnection: close\r\n\r\n<html><head><title>401 TOO BUSY</title></head><body><h1>401 TOO BUSY</h1></body></html>");
-    private static final byte[] ERR_404 = DataHelper.getUTF8("HTTP/1.0 404 File not found\r\nConnection: close\r\n\r\n<html><head><title>404 File not found</title></head><body><h1>404 File not found</h1></body></html>");
-    private static final byte[] ERR_403 = DataHelper.getUTF8("HTTP/1.0 403 Not authorized\r\nConnection: close\r\n\r\n<html><head><title>403 Not authorized</title></head><body><h1>403 Not authorized</h1></body></html>");
-    /** @since 1.101b-8 */
-    private static final byte[] ERR_405 = DataHelper.getUTF8("HTTP/1.0 405 Method not allowed\r\nConnection: close\r\n\r\n");
-    /** @since 1.102b-3 */
-    private static final byte[] ERR_304 = DataHelper.getUTF8("HTTP/1.0 304 Not modified\r\nConnection: close\r\n\r\n");
-    
-    private static final void tooBusy(Socket socket) throws IOException {
-        SocketTimeout timeout = new SocketTimeout(socket, 20*1000);
-        OutputStream out = socket.getOutputStream();
-        out.write(TOO_BUSY);
-        close(socket, socket.getInputStream(), out, timeout);
+    /**
+     *  Length-delimited, so a persistent connection stays open
+     *  @param status e.g. "404 File not found"
+     *  @param html include a little page
+     *  @since 1.107b-1, was the ERR_40x constants
+     */
+    private static void sendError(HTTPConnection conn, String status, boolean html) {
+        String body = html ? "<html><head><title>" + status + "</title></head><body><h1>" + status + "</h1></body></html>" : "";
+        conn.send(DataHelper.getUTF8("HTTP/1.1 " + status + "\r\nContent-length: " + body.length() + "\r\n" +
+                                     getConnectionHeaders(conn) + "\r\n" + body));
+        conn.respond();
     }
+
+    /**
+     *  "Connection: close", or keep-alive with the selector's timeout
+     *  and the requests left on this connection
+     *  @since 1.107b-1
+     */
+    private static String getConnectionHeaders(HTTPConnection conn) {
+        if (!conn.isKeepAlive())
+            return "Connection: close\r\n";
+        return "Connection: keep-alive\r\nKeep-Alive: timeout=" + (HTTPSelector.KEEP_ALIVE_TIMEOUT / 1000) +
+               ", max=" + conn.getRequestsRemaining() + "\r\n";
+    }
+
+    /** @since 1.107b-1 */
+    private static final byte[] BATCH_HEADERS = DataHelper.getUTF8("HTTP/1.1 200 OK\r\nContent-type: application/x-syndie-batch\r\nConnection: close\r\n\r\n");
 }
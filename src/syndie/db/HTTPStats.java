@@ -0,0 +1,474 @@
+package syndie.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.data.Base64;
+import net.i2p.data.DataHelper;
+import net.i2p.util.LHMCache;
+
+/**
+ *  Counters for the HTTPServ, so operators can see the load and tune the
+ *  listeners and the cache: requests, bytes, errors, and a latency histogram
+ *  for each class of path, counts by status, TOO BUSY and timeouts,
+ *  and the most requested channels among the MAX_CHANNELS most recently served.
+ *
+ *  Updated by the HTTPSelector as each response completes,
+ *  read by HTTPServ for the /stats page. If there's an HTTPAccessLog,
+ *  each request is also handed to it.
+ *
+ *  Latency is from the end of the request headers to the last byte of the response
+ *  written to the socket, so for big files over I2P it's mostly the transfer.
+ *
+ *  @since 1.107b-1
+ */
+class HTTPStats {
+    private final long _started;
+    private final Map<String, PathStats> _classes;
+    private final Map<Integer, Long> _status;
+    private final Map<String, Long> _channels;
+    private long _tooBusy;
+    private long _timeouts;
+    private long _requests;
+    private long _bytes;
+    private volatile HTTPAccessLog _log;
+
+    static final String CLASS_INDEX = "index";
+    static final String CLASS_SNAPSHOT = "snapshot";
+    static final String CLASS_META = "meta";
+    static final String CLASS_POST = "post";
+    static final String CLASS_BATCH = "batch";
+    /** POSTed posts to import */
+    static final String CLASS_PUSH = "push";
+    static final String CLASS_OTHER = "other";
+    private static final String[] CLASSES = { CLASS_INDEX, CLASS_SNAPSHOT, CLASS_META, CLASS_POST,
+                                              CLASS_BATCH, CLASS_PUSH, CLASS_OTHER };
+
+    /** upper bounds of the latency buckets, ms, and one more for anything longer */
+    private static final long[] BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000 };
+    /**
+     *  Least recently served channels drop out past this, so a crawler can't fill up memory,
+     *  and the ones nobody fetches any more make room for new ones
+     */
+    private static final int MAX_CHANNELS = 1000;
+    private static final int TOP_CHANNELS = 20;
+
+    public HTTPStats() {
+        _started = System.currentTimeMillis();
+        _classes = new HashMap<String, PathStats>(CLASSES.length);
+        for (int i = 0; i < CLASSES.length; i++)
+            _classes.put(CLASSES[i], new PathStats());
+        _status = new TreeMap<Integer, Long>();
+        _channels = new LHMCache<String, Long>(MAX_CHANNELS);
+    }
+
+    /** @param log may be null */
+    public void setAccessLog(HTTPAccessLog log) { _log = log; }
+
+    /**
+     *  A response is done, or the connection closed before it was
+     *
+     *  @param methodLine non-null
+     *  @param status 0 if closed without a response
+     *  @param bytes written, headers included
+     *  @param latency ns
+     *  @param remote may be null
+     *  @param userAgent may be null
+     */
+    public void requestDone(String methodLine, int status, long bytes, long latency, String remote, String userAgent) {
+        String path = getPath(methodLine);
+        String cls = classify(methodLine, path);
+        long ms = latency / 1000000;
+        int bucket = 0;
+        while (bucket < BUCKETS.length && ms > BUCKETS[bucket])
+            bucket++;
+        synchronized (this) {
+            _requests++;
+            _bytes += bytes;
+            increment(_status, Integer.valueOf(status));
+            PathStats ps = _classes.get(cls);
+            ps.requests++;
+            ps.bytes += bytes;
+            if (status == 0 || status >= 400)
+                ps.errors++;
+            ps.latency[bucket]++;
+            ps.totalLatency += ms;
+            // only what we have, so made-up names don't push out the real ones
+            if ((cls == CLASS_META || cls == CLASS_POST) &&
+                ((status >= 200 && status < 300) || status == 304)) {
+                String chan = getChannel(path);
+                if (chan != null)
+                    increment(_channels, chan);
+            }
+        }
+        HTTPAccessLog log = _log;
+        if (log != null)
+            log.add(System.currentTimeMillis() - ms, remote, methodLine, status, bytes, ms, userAgent);
+    }
+
+    /** turned away past HTTPSelector.MAX_CONNECTIONS */
+    public synchronized void tooBusy() { _tooBusy++; }
+
+    /** closed for being idle while reading or writing */
+    public synchronized void timedOut() { _timeouts++; }
+
+    public synchronized long getRequests() { return _requests; }
+
+    public synchronized long getBytes() { return _bytes; }
+
+    private static <K> void increment(Map<K, Long> map, K key) {
+        Long old = map.get(key);
+        map.put(key, Long.valueOf(old != null ? old.longValue() + 1 : 1));
+    }
+
+    /**
+     *  @return the path from "GET /foo HTTP/1.1", without any scheme, host, or query, or null
+     */
+    static String getPath(String methodLine) {
+        int start = methodLine.indexOf(' ') + 1;
+        if (start <= 0)
+            return null;
+        int end = methodLine.indexOf(' ', start);
+        String path = end > 0 ? methodLine.substring(start, end) : methodLine.substring(start);
+        if (!path.startsWith("/")) {
+            // absolute URI, as sent to a proxy
+            int slash = path.indexOf("://");
+            slash = slash >= 0 ? path.indexOf('/', slash + 3) : -1;
+            if (slash < 0)
+                return null;
+            path = path.substring(slash);
+        }
+        int q = path.indexOf('?');
+        if (q >= 0)
+            path = path.substring(0, q);
+        return path;
+    }
+
+    /**
+     *  @param path may be null
+     *  @return one of the CLASS_ constants, the same instance
+     */
+    static String classify(String methodLine, String path) {
+        if (path == null)
+            return CLASS_OTHER;
+        if (methodLine.startsWith("POST "))
+            return path.endsWith(HTTPServ.BATCH_CGI) ? CLASS_BATCH : CLASS_PUSH;
+        if (path.endsWith(LocalArchiveManager.SHARED_INDEX_FILE))
+            return CLASS_INDEX;
+        if (path.endsWith(ArchiveSnapshot.SNAPSHOT_FILE))
+            return CLASS_SNAPSHOT;
+        if (path.endsWith("/meta.syndie"))
+            return CLASS_META;
+        if (path.endsWith(".syndie"))
+            return CLASS_POST;
+        return CLASS_OTHER;
+    }
+
+    /**
+     *  @return the channel hash from "/$chan/meta.syndie" or "/$chan/$messageId.syndie", or null
+     */
+    private static String getChannel(String path) {
+        int end = path.lastIndexOf('/');
+        if (end <= 0)
+            return null;
+        int start = path.lastIndexOf('/', end - 1);
+        String rv = path.substring(start + 1, end);
+        return rv.length() == 44 ? rv : null;
+    }
+
+    /**
+     *  Everything, for the /stats page
+     *
+     *  @param connections currently open
+     *  @param cache may be null
+     *  @param limiter may be null
+     */
+    public String toJSON(int connections, HTTPCache cache, HTTPLimiter limiter) {
+        StringBuilder buf = new StringBuilder(2048);
+        buf.append("{\n");
+        synchronized (this) {
+            buf.append("  \"uptime\": ").append(System.currentTimeMillis() - _started).append(",\n");
+            buf.append("  \"connections\": ").append(connections).append(",\n");
+            buf.append("  \"requests\": ").append(_requests).append(",\n");
+            buf.append("  \"bytes\": ").append(_bytes).append(",\n");
+            buf.append("  \"tooBusy\": ").append(_tooBusy).append(",\n");
+            buf.append("  \"timeouts\": ").append(_timeouts).append(",\n");
+            buf.append("  \"status\": {");
+            boolean first = true;
+            for (Map.Entry<Integer, Long> e : _status.entrySet()) {
+                if (!first)
+                    buf.append(',');
+                first = false;
+                // 0 is closed without a response
+                buf.append(" \"").append(e.getKey().intValue() > 0 ? e.getKey().toString() : "none")
+                   .append("\": ").append(e.getValue());
+            }
+            buf.append(" },\n");
+            buf.append("  \"paths\": {\n");
+            for (int i = 0; i < CLASSES.length; i++) {
+                PathStats ps = _classes.get(CLASSES[i]);
+                buf.append("    \"").append(CLASSES[i]).append("\": { ")
+                   .append("\"requests\": ").append(ps.requests)
+                   .append(", \"bytes\": ").append(ps.bytes)
+                   .append(", \"errors\": ").append(ps.errors)
+                   .append(", \"latencyMs\": { \"avg\": ").append(ps.requests > 0 ? ps.totalLatency / ps.requests : 0)
+                   .append(", \"p50\": ").append(ps.getPercentile(0.5))
+                   .append(", \"p90\": ").append(ps.getPercentile(0.9))
+                   .append(", \"p99\": ").append(ps.getPercentile(0.99))
+                   .append(", \"histogram\": {");
+                for (int j = 0; j <= BUCKETS.length; j++) {
+                    if (j > 0)
+                        buf.append(',');
+                    buf.append(" \"").append(j < BUCKETS.length ? "le" + BUCKETS[j] : "more").append("\": ").append(ps.latency[j]);
+                }
+                buf.append(" } } }");
+                if (i < CLASSES.length - 1)
+                    buf.append(',');
+                buf.append('\n');
+            }
+            buf.append("  },\n");
+            buf.append("  \"hotChannels\": [");
+            List<Map.Entry<String, Long>> chans = new ArrayList<Map.Entry<String, Long>>(_channels.entrySet());
+            Collections.sort(chans, new CountComparator());
+            for (int i = 0; i < chans.size() && i < TOP_CHANNELS; i++) {
+                if (i > 0)
+                    buf.append(',');
+                buf.append("\n    { \"channel\": \"").append(chans.get(i).getKey())
+                   .append("\", \"requests\": ").append(chans.get(i).getValue()).append(" }");
+            }
+            buf.append(" ],\n");
+        }
+        if (cache != null) {
+            buf.append("  \"cache\": { \"hits\": ").append(cache.getHits())
+               .append(", \"misses\": ").append(cache.getMisses())
+               .append(", \"hitRatio\": ").append(String.format(Locale.US, "%.3f", cache.getHitRatio())).append(" },\n");
+        }
+        if (limiter != null) {
+            buf.append("  \"limiter\": { \"delayed\": ").append(limiter.getDelayed())
+               .append(", \"rejected\": ").append(limiter.getRejected()).append(" },\n");
+        }
+        HTTPAccessLog log = _log;
+        buf.append("  \"accessLog\": { \"enabled\": ").append(log != null);
+        if (log != null)
+            buf.append(", \"written\": ").append(log.getWritten())
+               .append(", \"dropped\": ").append(log.getDropped());
+        buf.append(" }\n}\n");
+        return buf.toString();
+    }
+
+    /**
+     *  One line, for the logs
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder buf = new StringBuilder(128);
+        buf.append("HTTP stats: ").append(_requests).append(" requests, ")
+           .append(_bytes / 1024).append("KB");
+        for (int i = 0; i < CLASSES.length; i++) {
+            PathStats ps = _classes.get(CLASSES[i]);
+            if (ps.requests > 0)
+                buf.append("; ").append(CLASSES[i]).append(' ').append(ps.requests)
+                   .append(" p90 ").append(ps.getPercentile(0.9)).append("ms");
+        }
+        Long nf = _status.get(Integer.valueOf(404));
+        if (nf != null)
+            buf.append("; 404 ").append(nf);
+        if (_tooBusy > 0)
+            buf.append("; too busy ").append(_tooBusy);
+        if (_timeouts > 0)
+            buf.append("; timeouts ").append(_timeouts);
+        return buf.toString();
+    }
+
+    /** guarded by the HTTPStats lock */
+    private static class PathStats {
+        long requests;
+        long bytes;
+        long errors;
+        long totalLatency;
+        final long[] latency = new long[BUCKETS.length + 1];
+
+        /**
+         *  @return the upper bound of the bucket it falls in, ms,
+         *          or twice the last bucket if it's past that, 0 if no requests
+         */
+        long getPercentile(double p) {
+            if (requests <= 0)
+                return 0;
+            long target = (long) Math.ceil(requests * p);
+            long sum = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                sum += latency[i];
+                if (sum >= target)
+                    return BUCKETS[i];
+            }
+            return 2 * BUCKETS[BUCKETS.length - 1];
+        }
+    }
+
+    /** most first */
+    private static class CountComparator implements Comparator<Map.Entry<String, Long>> {
+        public int compare(Map.Entry<String, Long> l, Map.Entry<String, Long> r) {
+            return r.getValue().compareTo(l.getValue());
+        }
+    }
+
+    /**
+     *  Benchmark: requests per second over persistent connections on localhost,
+     *  with no stats, with stats, and with stats and the access log,
+     *  then prints the stats as the /stats page would.
+     *
+     *  Usage: HTTPStats [requests (default 20000)]
+     */
+    public static void main(String args[]) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        String chans[] = new String[50];
+        for (int i = 0; i < chans.length; i++) {
+            byte h[] = new byte[32];
+            new Random().nextBytes(h);
+            chans[i] = Base64.encode(h);
+        }
+        final String paths[] = new String[requests];
+        Random rnd = new Random();
+        for (int i = 0; i < requests; i++) {
+            int r = rnd.nextInt(100);
+            String chan = chans[Math.min(rnd.nextInt(chans.length), rnd.nextInt(chans.length))];
+            if (r < 30)
+                paths[i] = "/" + LocalArchiveManager.SHARED_INDEX_FILE;
+            else if (r < 40)
+                paths[i] = "/" + chan + "/meta.syndie";
+            else if (r < 95)
+                paths[i] = "/" + chan + "/" + rnd.nextInt(1000000) + ".syndie";
+            else
+                paths[i] = "/nonexistent";
+        }
+        File log = File.createTempFile("httpstats", ".log");
+        try {
+            System.out.println("mode		requests/sec");
+            HTTPStats stats = null;
+            for (int i = 0; i < 2; i++) {
+                // warm up the first time round
+                for (int mode = 0; mode < 3; mode++) {
+                    stats = mode > 0 ? new HTTPStats() : null;
+                    HTTPAccessLog alog = null;
+                    if (mode == 2) {
+                        alog = new HTTPAccessLog(log, null);
+                        alog.start();
+                        stats.setAccessLog(alog);
+                    }
+                    double rate = bench(paths, stats);
+                    if (alog != null)
+                        alog.stop();
+                    if (i > 0)
+                        System.out.println((mode == 0 ? "none\t" : mode == 1 ? "stats\t" : "stats+log") + '\t' + Math.round(rate));
+                }
+            }
+            // let the log catch up
+            Thread.sleep(2000);
+            System.out.println(stats.toJSON(0, null, null));
+            System.out.println(stats);
+        } finally {
+            log.delete();
+        }
+    }
+
+    /** @return requests per second */
+    private static double bench(final String paths[], HTTPStats stats) throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final int port = server.socket().getLocalPort();
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        final byte data[] = new byte[4096];
+        HTTPSelector sel = new HTTPSelector(server, new HTTPSelector.Handler() {
+            public void requestReceived(HTTPConnection conn) {
+                conn.setKeepAlive(conn.wantsKeepAlive());
+                String conh = conn.isKeepAlive() ? "Connection: keep-alive\r\n" : "Connection: close\r\n";
+                if (conn.getMethodLine().startsWith("GET /nonexistent")) {
+                    conn.send(DataHelper.getUTF8("HTTP/1.1 404 File not found\r\nContent-length: 0\r\n" + conh + "\r\n"));
+                } else {
+                    conn.send(DataHelper.getUTF8("HTTP/1.1 200 OK\r\nContent-length: " + data.length + "\r\n" + conh + "\r\n"));
+                    conn.send(data);
+                }
+                conn.respond();
+            }
+            public void bodyReceived(HTTPConnection conn, boolean complete) { conn.close(); }
+        }, workers, null, stats, null);
+        Thread t = new Thread(sel, "HTTPSelector");
+        t.setDaemon(true);
+        t.start();
+
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        Thread clients[] = new Thread[4];
+        long start = System.nanoTime();
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Thread(new Runnable() {
+                public void run() {
+                    Socket s = null;
+                    byte buf[] = new byte[16*1024];
+                    try {
+                        int n;
+                        while ((n = next.getAndIncrement()) < paths.length) {
+                            if (s == null) {
+                                s = new Socket("127.0.0.1", port);
+                                s.setSoTimeout(10*1000);
+                            }
+                            s.getOutputStream().write(DataHelper.getUTF8("GET " + paths[n] + " HTTP/1.1\r\nUser-Agent: bench\r\n\r\n"));
+                            InputStream in = s.getInputStream();
+                            String line = DataHelper.readLine(in);
+                            boolean close = line == null;
+                            long len = 0;
+                            while (line != null && (line = DataHelper.readLine(in)) != null && line.trim().length() > 0) {
+                                String lc = line.toLowerCase(Locale.US);
+                                if (lc.startsWith("content-length:"))
+                                    len = Long.parseLong(line.substring(15).trim());
+                                else if (lc.startsWith("connection: close"))
+                                    close = true;
+                            }
+                            while (len > 0) {
+                                int read = in.read(buf, 0, (int) Math.min(buf.length, len));
+                                if (read < 0)
+                                    throw new IOException("EOF in body");
+                                len -= read;
+                            }
+                            if (close) {
+                                // MAX_REQUESTS reached
+                                s.close();
+                                s = null;
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        failed.incrementAndGet();
+                    } finally {
+                        if (s != null) try { s.close(); } catch (IOException ioe) {}
+                    }
+                }
+            });
+            clients[i].start();
+        }
+        for (int i = 0; i < clients.length; i++)
+            clients[i].join();
+        double secs = Math.max(1, System.nanoTime() - start) / 1000000000d;
+        sel.stop();
+        workers.shutdown();
+        if (failed.get() > 0)
+            System.out.println(failed.get() + " clients failed");
+        return paths.length / secs;
+    }
+}
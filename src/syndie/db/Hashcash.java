@@ -0,0 +1,273 @@
+package syndie.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.i2p.crypto.SHA256Generator;
+import net.i2p.data.Hash;
+import net.i2p.util.RandomSource;
+
+/**
+ *  Proof of work for pushing large posts to archives that ask for it.
+ *
+ *  A stamp is an 8 byte nonce for a .syndie file such that
+ *  SHA-256(SHA-256(file) || nonce) starts with the required number of zero bits.
+ *  It is bound to the file's contents, so it can't be reused for other posts,
+ *  and checking one costs a single extra hash once the file has been received.
+ *
+ *  The archive advertises the bits it requires as "hashcash=$bits" in
+ *  HTTPServ.FEATURES_HEADER, and the size above which it requires them
+ *  in the index (SharedArchive.About.minMessageSizeKBRequiringHashcash()).
+ *  Pushers send the stamp in the POST item, see HTTPServ.handlePost().
+ *
+ *  Minting takes about 2^bits hashes, spread across all cores.
+ *  Run main() to measure stamps per second on a machine.
+ *
+ *  @since 1.107b-1
+ */
+class Hashcash {
+    public static final int STAMP_LENGTH = 8;
+    /** we won't mint, or require, more than this, about 2^28 hashes per stamp */
+    public static final int MAX_BITS = 28;
+
+    /** tries between checks for another worker's success, per worker */
+    private static final int BATCH = 4096;
+    private static final long POLL_TIME = 250;
+    private static final long PROGRESS_INTERVAL = 5*1000;
+
+    /**
+     *  Minting is long-running, so the caller can stop it and see it going
+     */
+    public interface Listener {
+        /** polled a few times a second */
+        public boolean isCancelled();
+        /** every few seconds while minting */
+        public void progress(long tries, long elapsed);
+    }
+
+    /**
+     *  The hash a stamp is for
+     */
+    public static Hash getContentHash(File f) throws IOException {
+        MessageDigest md = SHA256Generator.getDigestInstance();
+        FileInputStream fin = null;
+        try {
+            fin = new FileInputStream(f);
+            byte buf[] = new byte[4096];
+            int read;
+            while ( (read = fin.read(buf)) != -1)
+                md.update(buf, 0, read);
+        } finally {
+            if (fin != null) try { fin.close(); } catch (IOException ioe) {}
+        }
+        return Hash.create(md.digest());
+    }
+
+    /**
+     *  @return the number of leading zero bits in the stamp's hash, 0 if stamp is null or the wrong length
+     */
+    public static int getBits(Hash content, byte stamp[]) {
+        if (stamp == null || stamp.length != STAMP_LENGTH)
+            return 0;
+        MessageDigest md = SHA256Generator.getDigestInstance();
+        md.update(content.getData());
+        md.update(stamp);
+        return leadingZeros(md.digest());
+    }
+
+    /**
+     *  @return true if the stamp is good for the content at the given difficulty
+     */
+    public static boolean verify(Hash content, byte stamp[], int bits) {
+        if (bits <= 0)
+            return true;
+        return getBits(content, stamp) >= bits;
+    }
+
+    /**
+     *  Find a stamp, using all cores. Blocking.
+     *  Only one stamp is minted at a time, other callers wait.
+     *
+     *  @param bits 1 to MAX_BITS
+     *  @param lsnr may be null
+     *  @return the stamp, or null if cancelled or interrupted
+     */
+    public static byte[] mint(Hash content, int bits, Listener lsnr) {
+        return mint(content, bits, Runtime.getRuntime().availableProcessors(), lsnr);
+    }
+
+    /**
+     *  Find a stamp. Blocking.
+     *  Only one stamp is minted at a time, other callers wait.
+     *
+     *  @param bits 1 to MAX_BITS
+     *  @param threads number of workers
+     *  @param lsnr may be null
+     *  @return the stamp, or null if cancelled or interrupted
+     */
+    public static synchronized byte[] mint(Hash content, int bits, int threads, Listener lsnr) {
+        if (bits <= 0 || bits > MAX_BITS)
+            throw new IllegalArgumentException("bits: " + bits);
+        Minter minter = new Minter(content, bits, Math.max(1, threads));
+        minter.start();
+        long start = System.currentTimeMillis();
+        long lastProgress = start;
+        try {
+            while (!minter.await(POLL_TIME)) {
+                if (lsnr == null)
+                    continue;
+                if (lsnr.isCancelled())
+                    return null;
+                long now = System.currentTimeMillis();
+                if (now - lastProgress >= PROGRESS_INTERVAL) {
+                    lsnr.progress(minter.getTries(), now - start);
+                    lastProgress = now;
+                }
+            }
+            return minter.getStamp();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            minter.stop();
+        }
+    }
+
+    private static int leadingZeros(byte h[]) {
+        int rv = 0;
+        for (int i = 0; i < h.length; i++) {
+            int b = h[i] & 0xff;
+            if (b == 0) {
+                rv += 8;
+                continue;
+            }
+            while ((b & 0x80) == 0) {
+                rv++;
+                b <<= 1;
+            }
+            break;
+        }
+        return rv;
+    }
+
+    /**
+     *  The workers for one stamp. Each starts at a random nonce and counts up,
+     *  so they don't overlap in practice.
+     */
+    private static class Minter {
+        private final byte[] _content;
+        private final int _bits;
+        private final Thread[] _workers;
+        private final CountDownLatch _found;
+        private final AtomicReference<byte[]> _stamp;
+        private final AtomicLong _tries;
+        private volatile boolean _stop;
+
+        public Minter(Hash content, int bits, int threads) {
+            _content = content.getData();
+            _bits = bits;
+            _workers = new Thread[threads];
+            _found = new CountDownLatch(1);
+            _stamp = new AtomicReference<byte[]>();
+            _tries = new AtomicLong();
+            for (int i = 0; i < threads; i++) {
+                Thread t = new Thread(new Worker(RandomSource.getInstance().nextLong()), "Hashcash " + (i+1) + '/' + threads);
+                t.setDaemon(true);
+                // background work, don't slow down the UI
+                t.setPriority(Thread.MIN_PRIORITY);
+                _workers[i] = t;
+            }
+        }
+
+        public void start() {
+            for (int i = 0; i < _workers.length; i++)
+                _workers[i].start();
+        }
+
+        public void stop() { _stop = true; }
+
+        /** @return true if found */
+        public boolean await(long ms) throws InterruptedException { return _found.await(ms, TimeUnit.MILLISECONDS); }
+
+        public byte[] getStamp() { return _stamp.get(); }
+
+        public long getTries() { return _tries.get(); }
+
+        private class Worker implements Runnable {
+            private long _nonce;
+
+            public Worker(long start) { _nonce = start; }
+
+            public void run() {
+                MessageDigest md = SHA256Generator.getDigestInstance();
+                byte buf[] = new byte[Hash.HASH_LENGTH + STAMP_LENGTH];
+                System.arraycopy(_content, 0, buf, 0, Hash.HASH_LENGTH);
+                byte h[] = new byte[Hash.HASH_LENGTH];
+                try {
+                    while (!_stop) {
+                        for (int i = 0; i < BATCH; i++) {
+                            long n = _nonce++;
+                            for (int j = buf.length - 1; j >= Hash.HASH_LENGTH; j--) {
+                                buf[j] = (byte) n;
+                                n >>>= 8;
+                            }
+                            md.update(buf);
+                            md.digest(h, 0, h.length);
+                            if (leadingZeros(h) >= _bits) {
+                                byte stamp[] = new byte[STAMP_LENGTH];
+                                System.arraycopy(buf, Hash.HASH_LENGTH, stamp, 0, STAMP_LENGTH);
+                                if (_stamp.compareAndSet(null, stamp))
+                                    _found.countDown();
+                                _stop = true;
+                                return;
+                            }
+                        }
+                        _tries.addAndGet(BATCH);
+                    }
+                } catch (DigestException de) {
+                    // can't happen, the buffer is big enough
+                    _stop = true;
+                }
+            }
+        }
+    }
+
+    /**
+     *  Benchmark: stamps per second for each difficulty and number of threads.
+     *
+     *  Usage: Hashcash [maxBits (default 20)] [stamps per test (default 8)]
+     */
+    public static void main(String args[]) {
+        int maxBits = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int stamps = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("bits\tthreads\tstamps/sec\tMhashes/sec");
+        for (int bits = 12; bits <= Math.min(maxBits, MAX_BITS); bits += 4) {
+            for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < stamps; i++) {
+                    byte data[] = new byte[Hash.HASH_LENGTH];
+                    RandomSource.getInstance().nextBytes(data);
+                    Hash content = Hash.create(data);
+                    byte stamp[] = mint(content, bits, threads, null);
+                    if (!verify(content, stamp, bits))
+                        throw new IllegalStateException("bad stamp");
+                }
+                long time = Math.max(1, System.currentTimeMillis() - start);
+                double perSec = stamps * 1000d / time;
+                // about 2^bits hashes per stamp on average
+                double mhps = perSec * (1L << bits) / 1000000d;
+                System.out.println(bits + "\t" + threads + '\t' + String.format("%.2f", perSec) + "\t\t" + String.format("%.2f", mhps));
+                if (threads >= cores)
+                    break;
+            }
+        }
+    }
+}
@@ -187,6 +187,7 @@ class ImportMeta {
             setUnread(client, channelId);
             con.commit();
             ui.statusMessage("committed as channel " + channelId);
+            client.notifyChannelUpdated(channelId);
             
             saveToArchive(client, ui, ident, enc);
             
@@ -965,6 +966,7 @@ class ImportMeta {
         outDir.mkdirs();
         File outMeta = new File(outDir, "meta" + Constants.FILENAME_SUFFIX);
         saveToArchive(ui, enc, outMeta);
+        HTTPServ.invalidate(SyndieURI.createScope(ident));
     }
 
     private static void saveToArchive(UI ui, Enclosure enc, File outMeta) {
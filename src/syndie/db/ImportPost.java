@@ -549,11 +549,13 @@ public class ImportPost {
      */
     private boolean importMessageBody(long msgId) throws SQLException {
             setMessageHierarchy(msgId);
+            ThreadIndex.messageAdded(_client, msgId);
             setMessageTags(msgId);
             setMessageAttachments(msgId);
             setMessagePages(msgId);
             setMessageReferences(msgId);
             setUnread(msgId);
+            _client.notifyMessageUpdated(msgId);
         
             boolean rv = processControlActivity(msgId);
             
@@ -1341,6 +1343,7 @@ public class ImportPost {
         File outMeta = new File(outDir, uri.getMessageId().longValue()+Constants.FILENAME_SUFFIX);
         try {
             enc.store(outMeta.getPath());
+            HTTPServ.invalidate(SyndieURI.createMessage(ident, uri.getMessageId().longValue()));
             ui.debugMessage("Post saved to the archive at " + outMeta.getPath());
         } catch (IOException ioe) {
             ui.errorMessage("Error saving the metadata to the archive", ioe);
@@ -0,0 +1,189 @@
+package syndie.db;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Imports the posts and metadata pushed to the HTTPServ, on its own threads,
+ *  instead of queueing bulkimport commands behind whatever the text UI is doing.
+ *
+ *  Items are imported in the order queued, so a channel's metadata,
+ *  which pushers send first, goes in before its posts.
+ *  Each Item can be waited on for its result, so the pusher can be told what happened to it.
+ *  The files are deleted once imported, or not.
+ *
+ *  One thread by default, as the imports share the database connection and
+ *  ImportMeta turns off auto-commit on it. Receiving is where the concurrency is,
+ *  see PostReceiver.
+ *
+ *  @since 1.107b-1
+ */
+class ImportQueue {
+    private final DBClient _client;
+    private final UI _ui;
+    private final LinkedBlockingQueue<Item> _items;
+    private final Thread[] _threads;
+    private final AtomicLong _imported;
+    private final AtomicLong _failed;
+    private volatile boolean _alive;
+
+    private static final Item POISON = new Item(null, false);
+
+    /**
+     *  @param client may be null if importFile() is overridden
+     *  @param ui may be null
+     */
+    public ImportQueue(DBClient client, UI ui, int threads) {
+        _client = client;
+        _ui = ui;
+        _items = new LinkedBlockingQueue<Item>();
+        _threads = new Thread[Math.max(1, threads)];
+        _imported = new AtomicLong();
+        _failed = new AtomicLong();
+    }
+
+    public synchronized void start() {
+        if (_alive)
+            return;
+        _alive = true;
+        for (int i = 0; i < _threads.length; i++) {
+            _threads[i] = new Thread(new Runner(), "HTTPServ import " + (i + 1) + '/' + _threads.length);
+            _threads[i].setDaemon(true);
+            _threads[i].start();
+        }
+    }
+
+    /**
+     *  Stop after the current imports. The rest are failed and deleted.
+     */
+    public synchronized void stop() {
+        if (!_alive)
+            return;
+        _alive = false;
+        for (int i = 0; i < _threads.length; i++)
+            _items.offer(POISON);
+        Item item;
+        while ((item = _items.poll()) != null) {
+            if (item != POISON)
+                item.done("shutting down");
+        }
+    }
+
+    /**
+     *  Never blocks, the items are small and the files are already on disk.
+     *  If stopped, the item is failed right away.
+     */
+    public void add(Item item) {
+        if (!_alive || !_items.offer(item))
+            item.done("shutting down");
+    }
+
+    /** waiting */
+    public int getQueueSize() { return _items.size(); }
+
+    public long getImported() { return _imported.get(); }
+
+    public long getFailed() { return _failed.get(); }
+
+    /**
+     *  Import one file, on one of our threads
+     *
+     *  @return null on success, or why not
+     */
+    protected String importFile(File f, boolean meta) {
+        Importer imp = new Importer(_client, _client.getPass());
+        InputStream in = null;
+        try {
+            NestedUI nested = new NestedUI(_ui);
+            in = new BufferedInputStream(new FileInputStream(f));
+            ImportResult.Result result = imp.processMessage(nested, in, _client.getLoggedInNymId(), _client.getPass(),
+                                                            null, false, null, null);
+            if (!result.ok())
+                return result.msg();
+            // exit code 1 is imported but can't be read by us, which is fine for an archive
+            return null;
+        } catch (IOException ioe) {
+            _ui.debugMessage("Error importing pushed " + (meta ? "metadata " : "post ") + f, ioe);
+            return "error reading";
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    private class Runner implements Runnable {
+        public void run() {
+            while (_alive) {
+                Item item;
+                try {
+                    item = _items.take();
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                if (item == POISON)
+                    break;
+                String err;
+                try {
+                    err = importFile(item.file, item.meta);
+                } catch (RuntimeException re) {
+                    if (_ui != null)
+                        _ui.errorMessage("Internal error importing " + item.file, re);
+                    err = "internal error";
+                }
+                if (err == null)
+                    _imported.incrementAndGet();
+                else
+                    _failed.incrementAndGet();
+                item.done(err);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Push imports: " + _imported.get() + " imported, " + _failed.get() + " failed, " + _items.size() + " waiting";
+    }
+
+    /**
+     *  One pushed file to import. The file is deleted when it's done.
+     */
+    public static class Item {
+        public final File file;
+        public final boolean meta;
+        private final CountDownLatch _done;
+        private volatile String _error;
+
+        /** @param meta metadata, not a post */
+        public Item(File file, boolean meta) {
+            this.file = file;
+            this.meta = meta;
+            _done = new CountDownLatch(1);
+        }
+
+        /** @param error null on success */
+        void done(String error) {
+            _error = error;
+            if (file != null)
+                file.delete();
+            _done.countDown();
+        }
+
+        /**
+         *  @return true if done within the time, then getError() says how it went
+         */
+        public boolean await(long ms) throws InterruptedException {
+            return _done.await(ms, TimeUnit.MILLISECONDS);
+        }
+
+        public boolean isDone() { return _done.getCount() == 0; }
+
+        /** @return null if imported or not done yet */
+        public String getError() { return _error; }
+    }
+}
@@ -0,0 +1,247 @@
+package syndie.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.i2p.util.LHMCache;
+
+import syndie.data.SyndieURI;
+
+/**
+ *  The URIs being fetched right now, from any archive, so that when several
+ *  archives have the same post it is only downloaded once.
+ *
+ *  The first archive's action to claim a URI owns it until the action completes.
+ *  Other archives' actions for the same URI wait for it. If the owner
+ *  succeeded, they are done without fetching; if it failed, the next one to
+ *  claim the URI fetches it from its own archive.
+ *
+ *  Claims are released by IncomingAction when it completes, whatever the path.
+ *
+ *  Every archive whose index offers a URI has an action for it, so those
+ *  archives are its mirrors. When several are syncing at once the URI goes to
+ *  the one with the best MirrorScore, and the others wait for it. If that one
+ *  is down or fails, one of the others takes over.
+ *
+ *  @since 1.107b-1
+ */
+class InFlightFetches {
+    private final Map<SyndieURI, SyncArchive.IncomingAction> _owners;
+    /** URIs whose fetch completed successfully, recently */
+    private final Map<SyndieURI, Long> _fetched;
+    /** the incomplete actions for each URI, one per archive offering it */
+    private final Map<SyndieURI, List<SyncArchive.IncomingAction>> _candidates;
+    private int _duplicates;
+    private int _failovers;
+    private int _rerouted;
+    private volatile boolean _preferMirrors = true;
+
+    private static final int MAX_FETCHED = 2048;
+    /** only wait for a better mirror if it's this much better */
+    private static final double PREFER_MARGIN = 1.25d;
+    /** while waiting, check this often that the mirror we're waiting for is still alive */
+    private static final long RECHECK_TIME = 5*1000;
+
+    /** result of claim() */
+    enum Claim {
+        /** the caller owns the URI and should fetch it */
+        CLAIMED,
+        /** another archive fetched it */
+        FETCHED,
+        /** timed out waiting for another archive */
+        BUSY
+    }
+
+    public InFlightFetches() {
+        _owners = new HashMap<SyndieURI, SyncArchive.IncomingAction>();
+        _fetched = new LHMCache<SyndieURI, Long>(MAX_FETCHED);
+        _candidates = new HashMap<SyndieURI, List<SyncArchive.IncomingAction>>();
+    }
+
+    /**
+     *  The action's archive offers the URI and wants to fetch it.
+     *  Called when the action is created or retried.
+     */
+    public synchronized void offer(SyncArchive.IncomingAction action) {
+        SyndieURI uri = action.getURI();
+        List<SyncArchive.IncomingAction> list = _candidates.get(uri);
+        if (list == null) {
+            list = new ArrayList<SyncArchive.IncomingAction>(2);
+            _candidates.put(uri, list);
+        } else if (list.contains(action)) {
+            return;
+        }
+        list.add(action);
+    }
+
+    /**
+     *  The action completed or was disposed of
+     */
+    private void withdraw(SyncArchive.IncomingAction action) {
+        SyndieURI uri = action.getURI();
+        List<SyncArchive.IncomingAction> list = _candidates.get(uri);
+        if (list == null)
+            return;
+        list.remove(action);
+        if (list.isEmpty())
+            _candidates.remove(uri);
+    }
+
+    /**
+     *  The action was disposed of
+     */
+    public synchronized void dispose(SyncArchive.IncomingAction action) {
+        withdraw(action);
+        notifyAll();
+    }
+
+    /**
+     *  If false, URIs are never left to a better mirror or failed over from a down archive early,
+     *  only deduplicated. For comparison in InFlightFetchesTest.
+     */
+    void setPreferMirrors(boolean yes) { _preferMirrors = yes; }
+
+    /**
+     *  @return true if another archive that is up and syncing now has an incomplete action for the URI
+     */
+    public synchronized boolean hasOtherCandidate(SyncArchive.IncomingAction action) {
+        if (!_preferMirrors)
+            return false;
+        List<SyncArchive.IncomingAction> list = _candidates.get(action.getURI());
+        if (list == null)
+            return false;
+        for (SyncArchive.IncomingAction cand : list) {
+            if (cand != action && isAlive(cand))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     *  The candidate for the action's URI that should fetch it instead, if any:
+     *  the best scoring other archive that is up and syncing now, if it is
+     *  enough better than the action's own archive.
+     *
+     *  @return null if the action should go ahead
+     */
+    private SyncArchive.IncomingAction getPreferred(SyncArchive.IncomingAction action) {
+        if (!_preferMirrors)
+            return null;
+        List<SyncArchive.IncomingAction> list = _candidates.get(action.getURI());
+        if (list == null || list.size() <= 1)
+            return null;
+        double threshold = action.getArchive().getMirrorScore().getScore() * PREFER_MARGIN;
+        SyncArchive.IncomingAction rv = null;
+        double best = 0;
+        for (SyncArchive.IncomingAction cand : list) {
+            if (cand == action || !isAlive(cand))
+                continue;
+            double score = cand.getArchive().getMirrorScore().getScore();
+            if (score > threshold && score > best) {
+                best = score;
+                rv = cand;
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  Will this candidate get fetched soon?
+     */
+    private static boolean isAlive(SyncArchive.IncomingAction cand) {
+        if (cand.isComplete())
+            return false;
+        SyncArchive archive = cand.getArchive();
+        return archive.getIncomingActionsInProgress() > 0 &&
+               !archive.getMirrorScore().isDown();
+    }
+
+    /**
+     *  Non-blocking.
+     *  @return true if the action now owns the URI (or already did),
+     *          false if another archive is fetching it, or is a better mirror for it
+     */
+    public synchronized boolean tryClaim(SyncArchive.IncomingAction action) {
+        SyndieURI uri = action.getURI();
+        SyncArchive.IncomingAction cur = _owners.get(uri);
+        if (cur == action)
+            return true;
+        if (cur != null)
+            return false;
+        if (getPreferred(action) != null) {
+            _rerouted++;
+            return false;
+        }
+        _owners.put(uri, action);
+        return true;
+    }
+
+    /**
+     *  Blocking. Wait for another archive's fetch of the same URI to complete,
+     *  or for a better mirror to fetch it,
+     *  then claim it if that fetch failed or the mirror went down.
+     *
+     *  @param since only a successful fetch after this time counts, as the caller
+     *               may have decided to fetch it after an earlier version was imported
+     */
+    public synchronized Claim claim(SyncArchive.IncomingAction action, long since, long maxWait) throws InterruptedException {
+        SyndieURI uri = action.getURI();
+        long end = System.currentTimeMillis() + maxWait;
+        boolean waited = false;
+        while (true) {
+            Long when = _fetched.get(uri);
+            if (when != null && when.longValue() >= since) {
+                _duplicates++;
+                return Claim.FETCHED;
+            }
+            SyncArchive.IncomingAction cur = _owners.get(uri);
+            if (cur == null && getPreferred(action) == null) {
+                _owners.put(uri, action);
+                if (waited)
+                    _failovers++;
+                return Claim.CLAIMED;
+            }
+            if (cur == action)
+                return Claim.CLAIMED;
+            long left = end - System.currentTimeMillis();
+            if (left <= 0)
+                return Claim.BUSY;
+            waited = true;
+            // candidates may go down without completing, so check again
+            wait(Math.min(left, RECHECK_TIME));
+        }
+    }
+
+    /**
+     *  Called whenever an action completes. No effect unless it is the owner.
+     */
+    public synchronized void release(SyncArchive.IncomingAction action, boolean success) {
+        SyndieURI uri = action.getURI();
+        withdraw(action);
+        if (_owners.get(uri) == action) {
+            _owners.remove(uri);
+            if (success)
+                _fetched.put(uri, Long.valueOf(System.currentTimeMillis()));
+        }
+        notifyAll();
+    }
+
+    public synchronized int getInFlightCount() { return _owners.size(); }
+
+    /** fetches avoided since startup */
+    public synchronized int getDuplicateCount() { return _duplicates; }
+
+    /** fetches that were retried from another archive since startup */
+    public synchronized int getFailoverCount() { return _failovers; }
+
+    /** fetches left to a better mirror since startup */
+    public synchronized int getReroutedCount() { return _rerouted; }
+
+    @Override
+    public synchronized String toString() {
+        return "In flight: " + _owners.size() + " duplicates avoided: " + _duplicates +
+               " failovers: " + _failovers + " left to better mirrors: " + _rerouted;
+    }
+}
@@ -8,11 +8,14 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import net.i2p.I2PAppContext;
 import net.i2p.util.EepGet;
 import net.i2p.util.FileUtil;
 import net.i2p.util.SecureFile;
+import net.i2p.util.SimpleTimer2;
 import net.i2p.util.SSLEepGet;
 
 import syndie.Constants;
@@ -21,28 +24,114 @@ import syndie.util.RFC822Date;
 
 /**
  *  Fetch the shared-index.dat file and process it
+ *
+ *  Several archives are fetched at once, each with its own deadline,
+ *  so one slow archive doesn't hold up the others.
+ *  HTTP indexes are parsed by a separate thread, so the fetcher can move
+ *  on to the next archive, and handed to SyncArchive.indexFetched() as each one is ready.
  */
 class IndexFetcher {
     private final SyncManager _manager;
     private volatile boolean _die;
+    /** downloaded indexes waiting to be parsed */
+    private final LinkedBlockingQueue<Runnable> _toParse;
     
     private static final int FREENET_RETRIES = 0;
     private static final int CLEARNET_RETRIES = 0;
     private static final int I2P_RETRIES = 1;
+    /** fetches at once @since 1.107b-1 */
+    private static final int THREADS = 4;
+    /**
+     *  Stop the fetch after this long no matter what, a little longer than
+     *  EepGet's total timeout, in case it is stuck connecting.
+     *  @since 1.107b-1
+     */
+    private static final long HTTP_DEADLINE = 6*60*1000;
+    private static final long FREENET_DEADLINE = 11*60*1000;
+    /** a snapshot is the whole archive @since 1.107b-1 */
+    private static final long SNAPSHOT_DEADLINE = 6*60*60*1000L;
 
 
     public IndexFetcher(SyncManager mgr) {
         _manager = mgr;
+        _toParse = new LinkedBlockingQueue<Runnable>();
     }
     
     public void start() {
-        Thread t = new Thread(new Runner(), "IndexFetcher");
+        for (int i = 0; i < THREADS; i++) {
+            Thread t = new Thread(new Runner(), "IndexFetcher " + (i+1) + '/' + THREADS);
+            t.setDaemon(true);
+            t.start();
+        }
+        Thread t = new Thread(new Parser(), "IndexParser");
         t.setDaemon(true);
         t.start();
     }
     
     public void wakeUp() { synchronized (this) { notifyAll(); } }
     public void kill() { _die = true; wakeUp(); }
+
+    /**
+     *  Parse the downloaded indexes in the order they arrive
+     *  @since 1.107b-1
+     */
+    private class Parser implements Runnable {
+        public void run() {
+            while (!_die) {
+                Runnable job;
+                try {
+                    job = _toParse.poll(60, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                if (job == null)
+                    continue;
+                try {
+                    job.run();
+                } catch (RuntimeException re) {
+                    _manager.getUI().errorMessage("Internal error parsing an index", re);
+                }
+            }
+        }
+    }
+
+    /**
+     *  Stop a fetch that has run past its deadline
+     *  @since 1.107b-1
+     */
+    private class Deadline extends SimpleTimer2.TimedEvent {
+        private final EepGet _get;
+        private final String _url;
+
+        public Deadline(EepGet get, String url) {
+            super(SimpleTimer2.getInstance());
+            _get = get;
+            _url = url;
+        }
+
+        public void timeReached() {
+            _manager.getUI().debugMessage("Index fetch deadline reached, stopping [" + _url + "]");
+            _get.stopFetching();
+        }
+    }
+
+    /**
+     *  Blocking fetch with a deadline.
+     *  Fails the archive's index fetch if the listener wasn't told the outcome.
+     *  @since 1.107b-1
+     */
+    private void fetch(EepGet get, GetListener lsnr, String url, long deadline,
+                       long headerTimeout, long totalTimeout, long inactivityTimeout) {
+        Deadline timer = new Deadline(get, url);
+        timer.schedule(deadline);
+        try {
+            get.fetch(headerTimeout, totalTimeout, inactivityTimeout);
+        } finally {
+            timer.cancel();
+        }
+        if (!lsnr.isDone())
+            lsnr.transferFailed(url, 0, -1, 0);
+    }
     
     private class Runner implements Runnable {
         public void run() {
@@ -79,7 +168,8 @@ class IndexFetcher {
         }
     }
     
-    private SyncArchive getNextToFetch() {
+    /** synchronized so two runners don't take the same archive */
+    private synchronized SyncArchive getNextToFetch() {
         // shuffle the archives so we aren't always syncing with the first on the list
         List<SyncArchive> archives = _manager.getArchives();
         Collections.shuffle(archives);
@@ -140,18 +230,12 @@ class IndexFetcher {
                 _manager.getUI().statusMessage("Fetching [" + url + "]");
             try {
                 File indexFile = SecureFile.createTempFile("httpindex", "dat", _manager.getClient().getTempDir());
-                final EepGet get = new EepGet(I2PAppContext.getGlobalContext(), archive.getHTTPProxyHost(), archive.getHTTPProxyPort(),
-                                              FREENET_RETRIES, indexFile.getAbsolutePath(), url);
+                EepGet get = new EepGet(I2PAppContext.getGlobalContext(), archive.getHTTPProxyHost(), archive.getHTTPProxyPort(),
+                                        FREENET_RETRIES, indexFile.getAbsolutePath(), url);
                 GetListener lsnr = new GetListener(get, url, archive, indexFile);
                 get.addStatusListener(lsnr);
-                Thread t = new Thread(new Runnable() { 
-                    public void run() {
-                        // 5 minutes for the headers, 10 minutes total, and up to 60s of inactivity
-                        get.fetch(5*60*1000, 10*60*1000, 60*1000);
-                    }
-                }, "IndexFetch " + url);
-                t.setDaemon(true);
-                t.start();
+                // 5 minutes for the headers, 10 minutes total, and up to 60s of inactivity
+                fetch(get, lsnr, url, FREENET_DEADLINE, 5*60*1000, 10*60*1000, 60*1000);
             } catch (IOException ioe) {
                 archive.indexFetchFail("Internal error writing temp file", ioe, true);
             }
@@ -229,6 +313,27 @@ class IndexFetcher {
             return prefix + finalURI;
     }
     
+    /**
+     *  The bare key for FCP, without the fproxy host or query
+     *  @return null if invalid
+     *  @since 1.107b-1
+     */
+    static String getFreenetKey(SyncArchive archive, SyndieURI uri) {
+        String url = getFreenetURL(archive, uri);
+        if (url == null)
+            return null;
+        int q = url.indexOf('?');
+        if (q >= 0)
+            url = url.substring(0, q);
+        String types[] = { "USK@", "SSK@", "KSK@", "CHK@" };
+        for (int i = 0; i < types.length; i++) {
+            int idx = url.indexOf(types[i]);
+            if (idx >= 0)
+                return url.substring(idx);
+        }
+        return null;
+    }
+
     /** http://localhost:8888/ or whatever */
     static String getFProxyURL(SyncArchive archive) {
         String host = archive.getHTTPProxyHost();
@@ -243,11 +348,17 @@ class IndexFetcher {
         if (file.startsWith("file://") && (file.length() > "file://".length()))
             file = file.substring("file://".length());
         File f = new File(file);
-        if (f.exists()) {
+        if (f.isFile() && ArchiveSnapshot.isSnapshot(f.getName())) {
+            snapshotFetched(archive, f, false);
+        } else if (f.exists()) {
             if (f.isDirectory()) {
-                f = new File(f, LocalArchiveManager.SHARED_INDEX_FILE);
+                File dir = f;
+                f = new File(dir, LocalArchiveManager.SHARED_INDEX_FILE);
                 if (!f.exists()) {
-                    archive.indexFetchFail("Shared index does not exist: " + f.getPath(), null, true);
+                    // compare the files with ours instead
+                    _manager.getUI().debugMessage("No shared index in " + dir.getPath() + ", comparing directories");
+                    SharedArchive index = FileArchive.scan(dir, _manager.getClient().getArchiveDir());
+                    archive.indexFetched(_manager.getUI(), index);
                     return;
                 }
             }
@@ -263,6 +374,31 @@ class IndexFetcher {
             } finally {
                 if (fin != null) try { fin.close(); } catch (IOException ioe) {}
             }
+        } else {
+            archive.indexFetchFail("Archive does not exist: " + f.getPath(), null, true);
+        }
+    }
+
+    /**
+     *  Read the index from the snapshot, and keep the snapshot to pull from
+     *  @param delete true if downloaded, to be deleted when done or on error
+     *  @since 1.107b-1
+     */
+    private void snapshotFetched(SyncArchive archive, File f, boolean delete) {
+        FileInputStream fin = null;
+        try {
+            fin = new FileInputStream(f);
+            ArchiveSnapshot.Reader reader = new ArchiveSnapshot.Reader(fin);
+            _manager.getUI().debugMessage("Snapshot " + f + " created " + new java.util.Date(reader.getCreated()));
+            archive.setSnapshot(f, delete);
+            archive.indexFetched(_manager.getUI(), reader.getIndex());
+        } catch (IOException ioe) {
+            archive.clearSnapshot();
+            if (delete)
+                f.delete();
+            archive.indexFetchFail("Corrupt snapshot: " + ioe.getMessage(), ioe, true);
+        } finally {
+            if (fin != null) try { fin.close(); } catch (IOException ioe) {}
         }
     }
 
@@ -270,8 +406,11 @@ class IndexFetcher {
         String url = archive.getURL();
         if (url.indexOf("://") == -1)
             url = "http://" + url;
+        boolean snapshot = ArchiveSnapshot.isSnapshot(url);
         
-        if (url.indexOf(LocalArchiveManager.SHARED_INDEX_FILE) == -1) {
+        if (snapshot) {
+            // fetch the whole thing and pull from it
+        } else if (url.indexOf(LocalArchiveManager.SHARED_INDEX_FILE) == -1) {
             int q = url.indexOf('?');
             String query = "";
             if (q != -1) {
@@ -298,10 +437,20 @@ class IndexFetcher {
             retries = CLEARNET_RETRIES;
             _manager.getUI().statusMessage("Fetching [" + url + "]");
         }
+        // resume a partial index, if the archive told us last time that it can
+        File indexFile = new FetchSpool(_manager.getClient(), archive.getURL()).getIndexFile();
+        long offset = archive.hasRemoteFeature(HTTPServ.FEATURE_RANGE) ? FetchSpool.getResumeOffset(indexFile) : 0;
+        if (offset > 0) {
+            // no retries when resuming, EepGet adds its own Range header on a retry
+            retries = 0;
+            _manager.getUI().debugMessage("Resuming [" + url + "] at " + offset);
+        } else {
+            indexFile.delete();
+        }
         try {
             long lastTime = archive.getLastSyncTime();
-            String lastMod = lastTime > 0 ? RFC822Date.to822Date(lastTime) : null;
-            File indexFile = SecureFile.createTempFile("httpindex", "dat", _manager.getClient().getTempDir());
+            // a snapshot may have things we didn't take last time
+            String lastMod = lastTime > 0 && !snapshot ? RFC822Date.to822Date(lastTime) : null;
             EepGet get;
             if (url.startsWith("https://")) {
                 if (shouldProxy)
@@ -316,10 +465,23 @@ class IndexFetcher {
                 get = new EepGet(I2PAppContext.getGlobalContext(), shouldProxy, archive.getHTTPProxyHost(), archive.getHTTPProxyPort(),
                                     retries, indexFile.getAbsolutePath(), url, true, null, lastMod);
             }
-            GetListener lsnr = new GetListener(get, url, archive, indexFile);
+            if (offset > 0) {
+                // EepGet appends to the output file on a 206, and overwrites it on a 200
+                get.addHeader("Range", "bytes=" + offset + '-');
+            }
+            GetListener lsnr = new GetListener(get, url, archive, indexFile, snapshot);
             get.addStatusListener(lsnr);
-            // 1 minute for the headers, 5 minutes total, and up to 60s of inactivity
-            get.fetch(60*1000, 5*60*1000, 60*1000);
+            if (snapshot) {
+                // 1 minute for the headers, no total limit, and up to 60s of inactivity
+                fetch(get, lsnr, url, SNAPSHOT_DEADLINE, 60*1000, -1, 60*1000);
+            } else {
+                // 1 minute for the headers, 5 minutes total, and up to 60s of inactivity
+                fetch(get, lsnr, url, HTTP_DEADLINE, 60*1000, 5*60*1000, 60*1000);
+            }
+            if (get.getStatusCode() >= 400) {
+                // 416 if what we have doesn't match the index any more
+                indexFile.delete();
+            }
         } catch (IOException ioe) {
             archive.indexFetchFail("Internal error writing temp file", ioe, true);
         }
@@ -331,12 +493,24 @@ class IndexFetcher {
         private final SyncArchive _archive;
         private final File _indexFile;
         private Exception _err;
+        private final FetchSpool.Expected _expected = new FetchSpool.Expected();
+        private volatile boolean _done;
+        private final boolean _snapshot;
 
         public GetListener(EepGet get, String url, SyncArchive archive, File indexFile) {
+            this(get, url, archive, indexFile, false);
+        }
+
+        /**
+         *  @param snapshot fetching an ArchiveSnapshot, not an index
+         *  @since 1.107b-1
+         */
+        public GetListener(EepGet get, String url, SyncArchive archive, File indexFile, boolean snapshot) {
             _get = get;
             _url = url;
             _archive = archive;
             _indexFile = indexFile;
+            _snapshot = snapshot;
         }
 
         /** @return null on error */
@@ -355,10 +529,53 @@ class IndexFetcher {
             return new SecureFile(dir, name);
         }
 
-        public void transferComplete(long alreadyTransferred, long bytesTransferred, long bytesRemaining, String url, String outputFile, boolean notModified) {
+        /**
+         *  Has transferComplete() or transferFailed() been called
+         *  @since 1.107b-1
+         */
+        public boolean isDone() { return _done; }
+
+        /**
+         *  Hands off to the parser thread
+         */
+        public void transferComplete(long alreadyTransferred, long bytesTransferred, long bytesRemaining, final String url, String outputFile, boolean notModified) {
+            if (_done)
+                return;
+            _done = true;
             _manager.getUI().debugMessage("Fetch complete [" + url + "] after " + bytesTransferred);
-            int status = _get.getStatusCode();
-            if (_indexFile.exists() && _indexFile.length() > 0) {
+            final int status = _get.getStatusCode();
+            _toParse.offer(new Runnable() {
+                public void run() { processIndex(url, status); }
+            });
+        }
+
+        /**
+         *  Verify and parse the downloaded index, and tell the archive.
+         *  Runs in the parser thread.
+         *  @since 1.107b-1 split out of transferComplete()
+         */
+        private void processIndex(String url, int status) {
+            if (status == 304) {
+                // the partial from a failed fetch, if any, is of an index we already have
+                _indexFile.delete();
+            }
+            String err = _indexFile.exists() ? FetchSpool.verify(_indexFile, _expected, -1) : null;
+            if (err != null) {
+                _manager.getUI().debugMessage("Fetch bad [" + url + "]: " + err);
+                _indexFile.delete();
+                _archive.indexFetchFail("Corrupt download: " + err, null, true);
+            } else if (_snapshot && _indexFile.exists() && _indexFile.length() > 0) {
+                // out of the spool, so the next index fetch doesn't resume it
+                try {
+                    File f = SecureFile.createTempFile("snapshot", "dat", _manager.getClient().getTempDir());
+                    if (!FileUtil.rename(_indexFile, f))
+                        throw new IOException("Unable to move " + _indexFile + " to " + f);
+                    snapshotFetched(_archive, f, true);
+                } catch (IOException ioe) {
+                    _indexFile.delete();
+                    _archive.indexFetchFail("Internal error writing temp file", ioe, true);
+                }
+            } else if (_indexFile.exists() && _indexFile.length() > 0) {
                 FileInputStream fin = null;
                 try {
                     fin = new FileInputStream(_indexFile);
@@ -411,7 +628,11 @@ class IndexFetcher {
         }
 
         public void transferFailed(String url, long bytesTransferred, long bytesRemaining, int currentAttempt) {
+            if (_done)
+                return;
+            _done = true;
             _manager.getUI().debugMessage("Fetch totally failed [" + url + "] after " + bytesTransferred + " and " + currentAttempt + " attempts");
+            // the partial index stays in the spool for next time
             _archive.indexFetchFail("Unable to fetch", _err, true);
         }
 
@@ -420,9 +641,17 @@ class IndexFetcher {
             long rcvd = alreadyTransferred + currentWrite;
             long total = bytesRemaining >= 0 ? rcvd + bytesRemaining : -1;
             _archive.setIndexFetchProgress(rcvd, total);
+            // called from the EepGet read loop, so this throttles the download
+            TokenBucket.consume(TokenBucket.GLOBAL_INBOUND, _archive.getInboundBucket(), currentWrite);
+        }
+
+        public void headerReceived(String url, int currentAttempt, String key, String val) {
+            if (HTTPServ.FEATURES_HEADER.equalsIgnoreCase(key))
+                _archive.setRemoteFeatures(val);
+            else
+                _expected.headerReceived(key, val);
         }
 
-        public void headerReceived(String url, int currentAttempt, String key, String val) {}
         public void attempting(String url) {
             _manager.getUI().debugMessage("Fetch attempting [" + url + "]...");
         }
@@ -1,13 +1,20 @@
 package syndie.db;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Properties;
 
+import net.i2p.crypto.SHA256Generator;
 import net.i2p.data.Base64;
+import net.i2p.util.FileUtil;
+import net.i2p.util.SecureFile;
 import net.i2p.util.SecureFileOutputStream;
 
 import syndie.Constants;
@@ -20,6 +27,8 @@ import syndie.data.SyndieURI;
 public class LocalArchiveManager {
 
     private static final int DEFAULT_REBUILD_DELAY_HOURS = 1;
+    /** @since 1.107b-1 */
+    private static final int DEFAULT_HASHCASH_MIN_KB = 512;
 
     public static SharedArchive.About getLocalAbout(DBClient client, PullStrategy pullStrategy) {
         SharedArchive.About about = new SharedArchive.About();
@@ -47,6 +56,7 @@ public class LocalArchiveManager {
         about.setPublishRebuildFrequencyHours(republishFrequencyHours);
         about.setAlternativeArchives(archives);
         about.setMaxMessageSize(maxSize);
+        about.setMinMessageSizeKBRequiringHashcash(getInt(prefs, "archive.hashcashMinKB", DEFAULT_HASHCASH_MIN_KB));
         about.setPostingRequiresPassphrase(false);
         about.setWantKnownChannelsOnly(pullStrategy.knownChannelsOnly);
         about.setWantPBE(pullStrategy.includePBEMessages);
@@ -70,10 +80,24 @@ public class LocalArchiveManager {
                 prefs.setProperty("archive.altURI" + i, uris[i].toString());
 
         prefs.setProperty("archive.republishFrequencyHours", about.getPublishRebuildFrequencyHours()+"");
+        prefs.setProperty("archive.hashcashMinKB", about.minMessageSizeKBRequiringHashcash()+"");
 
         client.setNymPrefs(prefs);
     }
     
+    /**
+     *  The hashcash difficulty HTTPServ requires for pushed posts at or above
+     *  the About's minMessageSizeKBRequiringHashcash(), 0 (the default) for none.
+     *  Set with the archive.hashcashBits pref.
+     *
+     *  @return 0 to Hashcash.MAX_BITS
+     *  @since 1.107b-1
+     */
+    public static int getHashcashBits(DBClient client) {
+        int bits = getInt(client.getNymPrefs(), "archive.hashcashBits", 0);
+        return Math.max(0, Math.min(bits, Hashcash.MAX_BITS));
+    }
+    
     private static int getInt(Properties prefs, String key, int def) {
         String val = prefs.getProperty(key);
         if (val == null) return def;
@@ -108,6 +132,11 @@ public class LocalArchiveManager {
     }
 
     /**
+     *  Written to a temp file next to the target, then renamed over it in one go,
+     *  so anybody fetching the old one keeps reading it and nobody gets half of the new one.
+     *  If it's the same as what's there, the old one is left alone,
+     *  so clients checking if it changed don't fetch it all again.
+     *
      *  TODO force-rebuild parameter
      *  @return success
      */
@@ -115,20 +144,51 @@ public class LocalArchiveManager {
         if (!client.isLoggedIn()) return false;
         SharedArchiveBuilder builder = new SharedArchiveBuilder(client, ui, getLocalAbout(client, pullStrategy));
         SharedArchive archive = builder.buildSharedArchive();
-        FileOutputStream fos = null;
+        File tmp = null;
+        OutputStream out = null;
         try {
-            fos = new SecureFileOutputStream(targetFile);
-            archive.write(fos);
-            fos.close();
-            fos = null;
+            tmp = SecureFile.createTempFile("index", ".tmp", targetFile.getAbsoluteFile().getParentFile());
+            MessageDigest md = SHA256Generator.getDigestInstance();
+            out = new DigestOutputStream(new BufferedOutputStream(new SecureFileOutputStream(tmp), 16*1024), md);
+            archive.write(out);
+            out.close();
+            out = null;
+            if (targetFile.exists() && MessageDigest.isEqual(md.digest(), hash(targetFile))) {
+                ui.debugMessage("Shared index unchanged, not republishing " + targetFile);
+                return true;
+            }
+            if (!FileUtil.rename(tmp, targetFile))
+                throw new IOException("Unable to move the shared index to " + targetFile);
+            tmp = null;
+            HTTPServ.invalidateAll();
         } catch (IOException ioe) {
             ui.errorMessage("Error writing the shared index", ioe);
             return false;
         } finally {
-            if (fos != null) try { fos.close(); } catch (IOException ioe) {}
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+            if (tmp != null) tmp.delete();
         }
         return true;
     }
+
+    /**
+     *  SHA-256 of the file
+     *  @since 1.107b-1
+     */
+    private static byte[] hash(File f) throws IOException {
+        MessageDigest md = SHA256Generator.getDigestInstance();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(f);
+            byte buf[] = new byte[16*1024];
+            int read;
+            while ((read = in.read(buf)) != -1)
+                md.update(buf, 0, read);
+            return md.digest();
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
     
     public static int getLocalRebuildDelayHours(DBClient client) {
         Properties prefs = client.getNymPrefs();
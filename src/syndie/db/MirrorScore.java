@@ -0,0 +1,90 @@
+package syndie.db;
+
+/**
+ *  How well an archive has been serving our fetches, for choosing between
+ *  archives that offer the same post (mirrors), see InFlightFetches.
+ *
+ *  Moving averages of the latency and of the fraction of requests answered
+ *  with the data, plus a count of consecutive timeouts and connection
+ *  failures. An archive with MAX_CONSECUTIVE_FAILURES in a row is
+ *  considered down, and its fetches are left to the other archives that
+ *  have them, instead of each timing out in turn.
+ *
+ *  One of these lives for each SyncArchive for the life of the SyncManager.
+ *
+ *  @since 1.107b-1
+ */
+class MirrorScore {
+    /** ms, 0 if unknown */
+    private double _latency;
+    /** 0 to 1 */
+    private double _successRate = 1.0d;
+    private int _consecutiveFailures;
+    private long _lastFailure;
+    private int _responses, _failures;
+
+    private static final double LATENCY_WEIGHT = 0.2d;
+    private static final double SUCCESS_WEIGHT = 0.1d;
+    static final int MAX_CONSECUTIVE_FAILURES = 3;
+    /** try a down archive again after this long */
+    private static final long DOWN_TIME = 10*60*1000;
+    /** latency that halves the score */
+    private static final double LATENCY_SCALE = 5*1000d;
+
+    /**
+     *  The archive answered
+     *  @param latency ms for the whole transfer
+     *  @param found false for a 404 or other error response
+     */
+    public synchronized void response(long latency, boolean found) {
+        _consecutiveFailures = 0;
+        _responses++;
+        if (_latency <= 0)
+            _latency = latency;
+        else
+            _latency += (latency - _latency) * LATENCY_WEIGHT;
+        _successRate += ((found ? 1.0d : 0.0d) - _successRate) * SUCCESS_WEIGHT;
+    }
+
+    /**
+     *  Timeout or connection failure
+     */
+    public synchronized void failed() {
+        _consecutiveFailures++;
+        _failures++;
+        _lastFailure = System.currentTimeMillis();
+        _successRate -= _successRate * SUCCESS_WEIGHT;
+    }
+
+    /**
+     *  @return true if the last several requests all failed, recently
+     */
+    public synchronized boolean isDown() {
+        return _consecutiveFailures >= MAX_CONSECUTIVE_FAILURES &&
+               _lastFailure > System.currentTimeMillis() - DOWN_TIME;
+    }
+
+    /**
+     *  Higher is better. An archive we haven't fetched from yet scores
+     *  as a fast one, so it gets a chance.
+     *  @return 0 if down
+     */
+    public synchronized double getScore() {
+        if (isDown())
+            return 0;
+        return _successRate / (1.0d + (_latency / LATENCY_SCALE));
+    }
+
+    /** @return average ms, 0 if unknown */
+    public synchronized long getLatency() { return (long) _latency; }
+
+    /** @return 0 to 1 */
+    public synchronized double getSuccessRate() { return _successRate; }
+
+    @Override
+    public synchronized String toString() {
+        return "score " + ((int) (getScore() * 100)) + " latency " + ((long) _latency) +
+               "ms success " + ((int) (_successRate * 100)) + "% (" + _responses + " responses, " +
+               _failures + " failures" + (isDown() ? ", down)" : ")");
+    }
+}
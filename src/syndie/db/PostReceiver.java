@@ -0,0 +1,727 @@
+package syndie.db;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.crypto.SHA256Generator;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.SecureFile;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  The body sink for a POST to import.cgi, parsing it as it arrives:
+ *
+ *<pre>
+ *  header size (2 bytes), header (ignored)
+ *  then for each item:
+ *    flags (1 byte, HTTPServ.ITEM_FLAG_*)
+ *    Hashcash.STAMP_LENGTH byte stamp, if ITEM_FLAG_HASHCASH
+ *    size (4 bytes)
+ *    data
+ *</pre>
+ *
+ *  Each item goes straight from the connection's buffer to its own file, nothing is
+ *  held in memory but the field being parsed. The size and hashcash requirements are
+ *  checked as soon as the item's size is in, and a rejected item is read past without storing it.
+ *  The stamp is checked against the SHA-256 taken on the way through.
+ *  Each item is handed to the ImportQueue as soon as it's complete,
+ *  so it's being imported while the rest arrive, and a dropped connection
+ *  loses only the item in progress.
+ *
+ *  The selector thread only copies what it read into a queue, up to MAX_PENDING.
+ *  The parsing, file creation, writes and hashing happen on the workers, so a slow
+ *  disk holds up this POST and not every connection. When the queue is full, write()
+ *  takes nothing, and the connection stops reading until the workers catch up.
+ *
+ *  @since 1.107b-1
+ */
+class PostReceiver implements WritableByteChannel {
+    private final File _dir;
+    private final String _prefix;
+    private final int _hashcashBits;
+    private final long _hashcashMinSize;
+    private final long _maxSize;
+    private final ImportQueue _queue;
+    private final UI _ui;
+    /** runs the Spool, null to parse in write() */
+    private final Executor _spooler;
+    /** told when there's room again, may be null */
+    private final HTTPConnection _conn;
+    /** one per item, rejected ones are done already, spooler only until close() */
+    private final List<ImportQueue.Item> _items;
+    private volatile int _itemCount;
+    /** copied from write(), not yet parsed, also the lock for the fields below */
+    private final LinkedList<ByteBuffer> _pending;
+    private int _pendingBytes;
+    /** a Spool is queued or running */
+    private boolean _spooling;
+    /** a thread is in parse() */
+    private boolean _parsing;
+    /** write() took nothing, resume the connection when there's room */
+    private boolean _full;
+    private IOException _error;
+    private final Runnable _spool;
+    private final ByteBuffer _field;
+    private final MessageDigest _md;
+    private Step _step;
+    private long _remaining;
+    private volatile boolean _open;
+    // the item in progress
+    private int _flags;
+    private byte[] _stamp;
+    private long _itemRemaining;
+    private File _file;
+    private FileChannel _out;
+
+    private enum Step { HEADER_SIZE, HEADER, FLAGS, STAMP, SIZE, DATA, SKIP }
+
+    /** per POST, copied off the selector thread and waiting for the spooler */
+    static final int MAX_PENDING = 256*1024;
+
+    /**
+     *  @param dir where the items are stored until imported
+     *  @param prefix for the item file names, must be unique to this POST
+     *  @param hashcashBits 0 for none required
+     *  @param hashcashMinSize items this size and up need a stamp
+     *  @param spooler where the body is parsed and stored, null to do it in write()
+     *  @param conn to resume when write() took nothing and there's room again, may be null if spooler is null
+     *  @param ui may be null
+     */
+    public PostReceiver(File dir, String prefix, long contentLength, int hashcashBits, long hashcashMinSize,
+                        ImportQueue queue, Executor spooler, HTTPConnection conn, UI ui) {
+        _dir = dir;
+        _prefix = prefix;
+        _remaining = contentLength;
+        _hashcashBits = hashcashBits;
+        _hashcashMinSize = hashcashMinSize;
+        _maxSize = SharedArchive.DEFAULT_MAX_SIZE_KB*1024L;
+        _queue = queue;
+        _ui = ui;
+        _spooler = spooler;
+        _conn = conn;
+        _items = new ArrayList<ImportQueue.Item>();
+        _pending = new LinkedList<ByteBuffer>();
+        _spool = new Spool();
+        _field = ByteBuffer.allocate(Hashcash.STAMP_LENGTH);
+        _md = SHA256Generator.getDigestInstance();
+        _step = Step.HEADER_SIZE;
+        _open = true;
+    }
+
+    /**
+     *  Copy it for the spooler, or parse it now if there is none.
+     *
+     *  @return bytes taken, 0 if MAX_PENDING are waiting already, in which case
+     *          the connection's resumeBody() is called when there's room
+     *  @throws IOException if it isn't a valid POST, or the disk fails, maybe on an earlier write
+     */
+    public int write(ByteBuffer src) throws IOException {
+        if (!_open)
+            throw new IOException("closed");
+        if (_spooler == null)
+            return parse(src);
+        int n;
+        synchronized (_pending) {
+            if (_error != null)
+                throw _error;
+            n = Math.min(src.remaining(), MAX_PENDING - _pendingBytes);
+            if (n <= 0) {
+                _full = true;
+                return 0;
+            }
+            _pendingBytes += n;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(n);
+        int limit = src.limit();
+        src.limit(src.position() + n);
+        copy.put(src);
+        src.limit(limit);
+        copy.flip();
+        boolean start;
+        synchronized (_pending) {
+            _pending.add(copy);
+            start = !_spooling;
+            _spooling = true;
+        }
+        if (start) {
+            try {
+                _spooler.execute(_spool);
+            } catch (RejectedExecutionException ree) {
+                synchronized (_pending) {
+                    _spooling = false;
+                    _pending.clear();
+                    _pending.notifyAll();
+                }
+                throw new IOException("shutting down");
+            }
+        }
+        return n;
+    }
+
+    /**
+     *  Parse what write() copied, on the spooler
+     */
+    private class Spool implements Runnable {
+        public void run() { spool(); }
+    }
+
+    /**
+     *  Parse what write() copied, unless another thread is at it already.
+     *  One at a time, in order.
+     */
+    private void spool() {
+        ByteBuffer buf;
+        synchronized (_pending) {
+            if (_parsing)
+                return;
+            buf = next();
+        }
+        while (buf != null) {
+            IOException error = null;
+            try {
+                parse(buf);
+            } catch (IOException ioe) {
+                error = ioe;
+            }
+            boolean resume;
+            synchronized (_pending) {
+                if (error != null) {
+                    _error = error;
+                    _pendingBytes = 0;
+                    _pending.clear();
+                } else {
+                    _pendingBytes -= buf.limit();
+                }
+                // not until there's room for more than a sliver
+                resume = _full && _pendingBytes <= MAX_PENDING / 2;
+                if (resume)
+                    _full = false;
+                buf = next();
+            }
+            // to read the rest, or to find the error
+            if (resume && _conn != null)
+                _conn.resumeBody();
+        }
+    }
+
+    /**
+     *  Call with the _pending lock held
+     *  @return null when there are no more, and no longer spooling
+     */
+    private ByteBuffer next() {
+        ByteBuffer rv = _pending.poll();
+        _parsing = rv != null;
+        if (rv == null) {
+            _spooling = false;
+            _pending.notifyAll();
+        }
+        return rv;
+    }
+
+    /**
+     *  @return bytes parsed, all of them
+     *  @throws IOException if it isn't a valid POST, or the disk fails
+     */
+    private int parse(ByteBuffer src) throws IOException {
+        int start = src.position();
+        while (src.hasRemaining()) {
+            switch (_step) {
+                case HEADER_SIZE:
+                    if (fill(src, 2)) {
+                        _itemRemaining = _field.getShort() & 0xffff;
+                        _field.clear();
+                        if (_itemRemaining > _remaining)
+                            throw new IOException("Invalid header size " + _itemRemaining + " remaining: " + _remaining);
+                        // unimplemented: authorization and encryption keys in the header
+                        _step = _itemRemaining > 0 ? Step.HEADER : Step.FLAGS;
+                    }
+                    break;
+
+                case HEADER:
+                case SKIP:
+                    int skip = (int) Math.min(src.remaining(), _itemRemaining);
+                    src.position(src.position() + skip);
+                    _itemRemaining -= skip;
+                    _remaining -= skip;
+                    if (_itemRemaining <= 0)
+                        _step = Step.FLAGS;
+                    break;
+
+                case FLAGS:
+                    if (fill(src, 1)) {
+                        _flags = _field.get() & 0xff;
+                        _field.clear();
+                        _stamp = null;
+                        _step = (_flags & HTTPServ.ITEM_FLAG_HASHCASH) != 0 ? Step.STAMP : Step.SIZE;
+                    }
+                    break;
+
+                case STAMP:
+                    if (fill(src, Hashcash.STAMP_LENGTH)) {
+                        _stamp = new byte[Hashcash.STAMP_LENGTH];
+                        _field.get(_stamp);
+                        _field.clear();
+                        _step = Step.SIZE;
+                    }
+                    break;
+
+                case SIZE:
+                    if (fill(src, 4)) {
+                        long size = _field.getInt() & 0xffffffffL;
+                        _field.clear();
+                        startItem(size);
+                    }
+                    break;
+
+                case DATA:
+                    int n = (int) Math.min(src.remaining(), _itemRemaining);
+                    int limit = src.limit();
+                    src.limit(src.position() + n);
+                    ByteBuffer dup = src.duplicate();
+                    _md.update(dup);
+                    while (src.hasRemaining())
+                        writeItem(src);
+                    src.limit(limit);
+                    _itemRemaining -= n;
+                    _remaining -= n;
+                    if (_itemRemaining <= 0)
+                        finishItem();
+                    break;
+            }
+        }
+        return src.position() - start;
+    }
+
+    /**
+     *  Collect a fixed size field, which may be split across reads
+     *
+     *  @return true when all there, then get it from _field and clear it
+     */
+    private boolean fill(ByteBuffer src, int len) {
+        int n = Math.min(src.remaining(), len - _field.position());
+        for (int i = 0; i < n; i++)
+            _field.put(src.get());
+        _remaining -= n;
+        if (_field.position() < len)
+            return false;
+        _field.flip();
+        return true;
+    }
+
+    private void startItem(long size) throws IOException {
+        int num = _items.size() + 1;
+        boolean meta = (_flags & HTTPServ.ITEM_FLAG_META) != 0;
+        if (size > _remaining)
+            throw new IOException(num + ": invalid size: " + size + " remaining: " + _remaining);
+        _itemRemaining = size;
+        String reject = null;
+        if (size > _maxSize)
+            reject = "too large";
+        else if (_hashcashBits > 0 && size >= _hashcashMinSize && _stamp == null)
+            reject = "hashcash required";
+        if (reject != null) {
+            debug(num + ": rejecting item of size " + size + ": " + reject);
+            reject(meta, reject);
+            _step = size > 0 ? Step.SKIP : Step.FLAGS;
+            return;
+        }
+        _file = new SecureFile(_dir, _prefix + '-' + num + ".syndie");
+        _out = new SecureFileOutputStream(_file).getChannel();
+        _md.reset();
+        _step = Step.DATA;
+        if (size == 0)
+            finishItem();
+    }
+
+    private void finishItem() throws IOException {
+        _out.close();
+        _out = null;
+        boolean meta = (_flags & HTTPServ.ITEM_FLAG_META) != 0;
+        long size = _file.length();
+        // checked before it goes anywhere near the importer
+        boolean ok = _hashcashBits <= 0 || size < _hashcashMinSize ||
+                     Hashcash.verify(Hash.create(_md.digest()), _stamp, _hashcashBits);
+        if (ok) {
+            ImportQueue.Item item = new ImportQueue.Item(_file, meta);
+            addItem(item);
+            _queue.add(item);
+            debug(_items.size() + ": received item of size " + size + ", remaining: " + _remaining);
+        } else {
+            _file.delete();
+            debug((_items.size() + 1) + ": bad hashcash for item of size " + size);
+            reject(meta, "bad hashcash");
+        }
+        _file = null;
+        _step = Step.FLAGS;
+    }
+
+    private void reject(boolean meta, String reason) {
+        ImportQueue.Item item = new ImportQueue.Item(null, meta);
+        item.done(reason);
+        addItem(item);
+    }
+
+    /**
+     *  Package private for main() to slow the disk down
+     */
+    void writeItem(ByteBuffer src) throws IOException {
+        _out.write(src);
+    }
+
+    private void addItem(ImportQueue.Item item) {
+        _items.add(item);
+        _itemCount = _items.size();
+    }
+
+    /**
+     *  Finishes parsing whatever write() took, which is at most MAX_PENDING,
+     *  here if the Spool hasn't started, as it may be queued behind this thread.
+     *  Then deletes the partial item, if any. The completed ones are the ImportQueue's.
+     *  Not on the selector thread.
+     */
+    public void close() {
+        _open = false;
+        spool();
+        boolean interrupted = false;
+        synchronized (_pending) {
+            while (_spooling) {
+                try {
+                    _pending.wait();
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (_out != null) {
+            try { _out.close(); } catch (IOException ioe) {}
+            _out = null;
+        }
+        if (_file != null) {
+            _file.delete();
+            _file = null;
+        }
+    }
+
+    public boolean isOpen() { return _open; }
+
+    /**
+     *  After close()
+     *  @return true if the whole POST was received, ending at an item boundary
+     */
+    public boolean isComplete() {
+        return _remaining <= 0 && _step == Step.FLAGS && _field.position() == 0;
+    }
+
+    /** received so far, accepted or not, any thread */
+    public int getItemCount() { return _itemCount; }
+
+    /**
+     *  Wait for the imports of the items received, up to maxWait in total.
+     *  After close()
+     *
+     *  @return how many aren't done yet
+     */
+    public int awaitImports(long maxWait) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWait;
+        int pending = 0;
+        for (ImportQueue.Item item : _items) {
+            long left = deadline - System.currentTimeMillis();
+            if (!item.await(Math.max(0, left)))
+                pending++;
+        }
+        return pending;
+    }
+
+    /**
+     *  One line per item, "$num OK", "$num OK queued" if still waiting its turn,
+     *  or "$num REJECTED $reason", as described at HTTPServ.ACK_HEADER.
+     *  After close()
+     */
+    public String getAcks() {
+        StringBuilder buf = new StringBuilder(_items.size() * 16);
+        for (int i = 0; i < _items.size(); i++) {
+            ImportQueue.Item item = _items.get(i);
+            buf.append(i + 1).append(' ');
+            if (!item.isDone())
+                buf.append(HTTPServ.ACK_OK).append(" queued");
+            else if (item.getError() == null)
+                buf.append(HTTPServ.ACK_OK);
+            else
+                buf.append(HTTPServ.ACK_REJECTED).append(' ').append(item.getError().replace('\n', ' '));
+            buf.append('\n');
+        }
+        return buf.toString();
+    }
+
+    private void debug(String msg) {
+        if (_ui != null)
+            _ui.debugMessage(msg);
+    }
+
+    /**
+     *  Load test: clients pushing at once through an HTTPSelector, every item
+     *  streamed to disk and "imported" by an ImportQueue that only reads and hashes it.
+     *  Each client also sends one item over the size limit, which must be rejected.
+     *  Run spooling on the selector thread and on the workers, then again with a slow disk,
+     *  with a client polling a GET the whole time, to show how long the selector is held up.
+     *  Run it with a small heap to show nothing is held in memory per item:
+     *
+     *<pre>
+     *  java -Xmx128m syndie.db.PostReceiver [clients (default 10)] [MB per client (default 50)] [ms per slow disk write (default 1)]
+     *</pre>
+     */
+    public static void main(String args[]) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int mb = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int slowDisk = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        System.out.println("Spooling on the selector thread:");
+        long selector[] = loadTest(clients, mb, false, 0);
+        System.out.println("Spooling on the workers:");
+        long spooled[] = loadTest(clients, mb, true, 0);
+        System.out.println("Spooling on the selector thread, " + slowDisk + " ms per disk write:");
+        long slowSelector[] = loadTest(clients, mb, false, slowDisk);
+        System.out.println("Spooling on the workers, " + slowDisk + " ms per disk write:");
+        long slowSpooled[] = loadTest(clients, mb, true, slowDisk);
+        boolean pass = selector != null && spooled != null && slowSelector != null && slowSpooled != null &&
+                       slowSpooled[1] < slowSelector[1];
+        System.out.println("Max GET latency with a slow disk " + (slowSelector != null ? slowSelector[1] : -1) +
+                           " ms on the selector thread, " + (slowSpooled != null ? slowSpooled[1] : -1) +
+                           " ms on the workers: " + (pass ? "OK" : "FAILED"));
+        if (!pass)
+            System.exit(1);
+    }
+
+    /**
+     *  @param spool on the workers if true, in write() on the selector thread if false
+     *  @param slowDisk ms to sleep after each write to an item file
+     *  @return average and max GET latency in ms, or null on failure
+     */
+    private static long[] loadTest(final int clients, int mb, final boolean spool, final int slowDisk) throws Exception {
+        final byte data[] = new byte[500*1024];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 31 + (i >> 8));
+        final int items = (int) ((mb * 1024L * 1024L + data.length - 1) / data.length);
+        final int tooBig = SharedArchive.DEFAULT_MAX_SIZE_KB*1024 + 1;
+        final long contentLength = 2 + items * (5L + data.length) + 5 + tooBig;
+
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "postreceiver-test-" + System.currentTimeMillis());
+        dir.mkdirs();
+        final AtomicLong importedBytes = new AtomicLong();
+        final ImportQueue queue = new ImportQueue(null, null, 1) {
+            @Override
+            protected String importFile(File f, boolean meta) {
+                MessageDigest md = SHA256Generator.getDigestInstance();
+                byte buf[] = new byte[16*1024];
+                InputStream in = null;
+                try {
+                    in = new FileInputStream(f);
+                    int read;
+                    while ((read = in.read(buf)) > 0) {
+                        md.update(buf, 0, read);
+                        importedBytes.addAndGet(read);
+                    }
+                    md.digest();
+                    return null;
+                } catch (IOException ioe) {
+                    return ioe.toString();
+                } finally {
+                    if (in != null) try { in.close(); } catch (IOException ioe) {}
+                }
+            }
+        };
+        queue.start();
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final int port = server.socket().getLocalPort();
+        // the pushes, the GETs and the spools
+        final ExecutorService workers = Executors.newFixedThreadPool(clients + 2);
+        final AtomicInteger postNum = new AtomicInteger();
+        final HTTPSelector sel = new HTTPSelector(server, new HTTPSelector.Handler() {
+            public void requestReceived(HTTPConnection conn) {
+                if (conn.getMethodLine().startsWith("GET ")) {
+                    conn.send(DataHelper.getUTF8("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\nOK\n"));
+                    conn.respond();
+                    return;
+                }
+                long len = Long.parseLong(conn.getHeaders().get("CONTENT-LENGTH"));
+                PostReceiver rcv = new PostReceiver(dir, "push-" + postNum.incrementAndGet(), len, 0, 0, queue,
+                                                    spool ? workers : null, conn, null) {
+                    @Override
+                    void writeItem(ByteBuffer src) throws IOException {
+                        super.writeItem(src);
+                        if (slowDisk > 0)
+                            try { Thread.sleep(slowDisk); } catch (InterruptedException ie) {}
+                    }
+                };
+                conn.setAttachment(rcv);
+                conn.receiveBody(len, rcv);
+            }
+            public void bodyReceived(HTTPConnection conn, boolean complete) {
+                PostReceiver rcv = (PostReceiver) conn.getAttachment();
+                rcv.close();
+                if (!complete || !rcv.isComplete()) {
+                    conn.close();
+                    return;
+                }
+                try {
+                    rcv.awaitImports(60*1000);
+                } catch (InterruptedException ie) {}
+                conn.send(DataHelper.getUTF8("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\n" + rcv.getAcks()));
+                conn.respond();
+            }
+        }, workers, null);
+        Thread t = new Thread(sel, "HTTPSelector");
+        t.setDaemon(true);
+        t.start();
+
+        final AtomicLong peakHeap = new AtomicLong();
+        final Runtime rt = Runtime.getRuntime();
+        Thread sampler = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    long used = rt.totalMemory() - rt.freeMemory();
+                    if (used > peakHeap.get())
+                        peakHeap.set(used);
+                    try { Thread.sleep(20); } catch (InterruptedException ie) { break; }
+                }
+            }
+        }, "Heap sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        final AtomicLong getTotal = new AtomicLong();
+        final AtomicLong getMax = new AtomicLong();
+        final AtomicInteger gets = new AtomicInteger();
+        Thread poller = new Thread(new Runnable() {
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    long begin = System.currentTimeMillis();
+                    Socket s = null;
+                    try {
+                        s = new Socket("127.0.0.1", port);
+                        s.getOutputStream().write(DataHelper.getUTF8("GET / HTTP/1.1\r\nHost: test\r\n\r\n"));
+                        InputStream in = s.getInputStream();
+                        while (in.read() >= 0) {}
+                    } catch (IOException ioe) {
+                        break;
+                    } finally {
+                        if (s != null) try { s.close(); } catch (IOException ioe) {}
+                    }
+                    long latency = System.currentTimeMillis() - begin;
+                    getTotal.addAndGet(latency);
+                    gets.incrementAndGet();
+                    if (latency > getMax.get())
+                        getMax.set(latency);
+                    try { Thread.sleep(10); } catch (InterruptedException ie) { break; }
+                }
+            }
+        }, "GET poller");
+        poller.setDaemon(true);
+        poller.start();
+
+        final AtomicInteger ok = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(clients);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < clients; i++) {
+            Thread c = new Thread(new Runnable() {
+                public void run() {
+                    Socket s = null;
+                    try {
+                        s = new Socket("127.0.0.1", port);
+                        OutputStream out = s.getOutputStream();
+                        out.write(DataHelper.getUTF8("POST /import.cgi HTTP/1.1\r\nHost: test\r\n" +
+                                                     "Content-length: " + contentLength + "\r\n" +
+                                                     HTTPServ.ACK_HEADER + ": true\r\n\r\n"));
+                        DataHelper.writeLong(out, 2, 0);
+                        for (int j = 0; j < items; j++) {
+                            out.write(j == 0 ? HTTPServ.ITEM_FLAG_META : 0);
+                            DataHelper.writeLong(out, 4, data.length);
+                            out.write(data);
+                        }
+                        out.write(0);
+                        DataHelper.writeLong(out, 4, tooBig);
+                        for (int j = 0; j < tooBig; j += data.length)
+                            out.write(data, 0, Math.min(data.length, tooBig - j));
+                        out.flush();
+                        InputStream in = new BufferedInputStream(s.getInputStream());
+                        String line = DataHelper.readLine(in);
+                        if (line == null || !line.startsWith("HTTP/1.1 200")) {
+                            failed.incrementAndGet();
+                            return;
+                        }
+                        while ((line = DataHelper.readLine(in)) != null && line.trim().length() > 0) {}
+                        while ((line = DataHelper.readLine(in)) != null) {
+                            line = line.trim();
+                            if (line.endsWith(' ' + HTTPServ.ACK_OK))
+                                ok.incrementAndGet();
+                            else if (line.endsWith(HTTPServ.ACK_REJECTED + " too large"))
+                                rejected.incrementAndGet();
+                            else
+                                failed.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failed.incrementAndGet();
+                    } finally {
+                        if (s != null) try { s.close(); } catch (IOException ioe) {}
+                        done.countDown();
+                    }
+                }
+            }, "Push client " + i);
+            c.setDaemon(true);
+            c.start();
+        }
+        done.await(30, TimeUnit.MINUTES);
+        long time = System.currentTimeMillis() - start;
+        poller.interrupt();
+        poller.join();
+        sel.stop();
+        workers.shutdown();
+        queue.stop();
+        sampler.interrupt();
+
+        long sent = clients * items * (long) data.length;
+        String left[] = dir.list();
+        System.out.println(clients + " clients pushed " + (sent / (1024*1024)) + " MB in " + time + " ms, " +
+                           (sent * 1000 / (1024*1024) / Math.max(1, time)) + " MBps");
+        System.out.println("Acks: " + ok.get() + " OK, " + rejected.get() + " rejected too large, " + failed.get() + " failed");
+        System.out.println("Imported " + (importedBytes.get() / (1024*1024)) + " MB, " + queue);
+        System.out.println("Peak heap used " + (peakHeap.get() / (1024*1024)) + " MB of max " + (rt.maxMemory() / (1024*1024)) + " MB");
+        System.out.println("Files left in the spool dir: " + (left != null ? left.length : 0));
+        long avg = getTotal.get() / Math.max(1, gets.get());
+        System.out.println(gets.get() + " GETs meanwhile, latency avg " + avg + " ms, max " + getMax.get() + " ms");
+        boolean pass = ok.get() == clients * items && rejected.get() == clients && failed.get() == 0 &&
+                       importedBytes.get() == sent && left != null && left.length == 0;
+        dir.delete();
+        System.out.println(pass ? "OK" : "FAILED");
+        return pass ? new long[] { avg, getMax.get() } : null;
+    }
+}
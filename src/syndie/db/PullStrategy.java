@@ -10,6 +10,7 @@ public class PullStrategy {
     public PullStrategy() {
         maxKBPerMessage = SharedArchive.DEFAULT_MAX_SIZE_KB;
         maxKBTotal = -1;
+        maxKBPerSecond = -1;
         includePrivateMessages = true;
         includePBEMessages = true;
         includeRecentMessagesOnly = SharedArchive.DEFAULT_RECENT_ONLY;
@@ -24,6 +25,15 @@ public class PullStrategy {
         if (serialized != null) {
             includeDupForPIR = (serialized.indexOf("PIR") != -1);
             discoverArchives = (serialized.indexOf("DontDiscoverArchives") == -1);
+            int maxRateIdx = serialized.indexOf("MaxRate");
+            if (maxRateIdx >= 0) {
+                int end = serialized.indexOf(' ', maxRateIdx);
+                if (end > 0) {
+                    try {
+                        maxKBPerSecond = Integer.parseInt(serialized.substring(maxRateIdx + "MaxRate".length(), end));
+                    } catch (NumberFormatException nfe) {}
+                }
+            }
             if (!includeDupForPIR) {
                 pullNothing = (serialized.indexOf("PullNothing") != -1);
                 includeRecentMessagesOnly = (serialized.indexOf("RecentMessagesOnly") != -1);
@@ -73,6 +83,13 @@ public class PullStrategy {
      */
     public int maxKBTotal;
 
+    /**
+     * how fast we will pull from this archive, in KBps, less than 1 means no limit
+     * other than the global one.
+     * @since 1.107b-1
+     */
+    public int maxKBPerSecond;
+
     /** 
      * if true, only pull down messages and/or metadata for channels we already
      * know locally
@@ -170,6 +187,8 @@ public class PullStrategy {
             if (pullWhitelistOnly)
                 buf.append("PullWhitelistOnly ");
         }
+        if (maxKBPerSecond > 0)
+            buf.append("MaxRate").append(maxKBPerSecond).append(" ");
         if (discoverArchives)
             buf.append("DiscoverArchives ");
         else
@@ -0,0 +1,140 @@
+package syndie.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.i2p.data.Base64;
+import net.i2p.data.Hash;
+
+import syndie.data.SyndieURI;
+
+/**
+ *  The posts pushed to each archive, and whether the archive accepted them,
+ *  in the nymArchivePushed table.
+ *
+ *  An archive's index may leave out posts it has (recent-only or size limits),
+ *  and rejected posts would otherwise be offered again every sync, so
+ *  SyncArchive skips posts pushed within the push strategy's resend period.
+ *
+ *  Only posts are logged. Metadata is pushed whenever the archive's index
+ *  has an older version, which it always lists.
+ *
+ *  @since 1.107b-1
+ */
+class PushLog {
+    private static final String SQL_DELETE_ONE = "DELETE FROM nymArchivePushed WHERE nymId = ? AND name = ? AND scopeHash = ? AND messageId = ?";
+    private static final String SQL_INSERT = "INSERT INTO nymArchivePushed (nymId, name, scopeHash, messageId, accepted, pushedOn) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String SQL_GET = "SELECT scopeHash, messageId, accepted FROM nymArchivePushed WHERE nymId = ? AND name = ? AND pushedOn >= ?";
+    private static final String SQL_EXPIRE = "DELETE FROM nymArchivePushed WHERE nymId = ? AND name = ? AND pushedOn < ?";
+    private static final String SQL_DELETE = "DELETE FROM nymArchivePushed WHERE nymId = ? AND name = ?";
+    private static final String SQL_RENAME = "UPDATE nymArchivePushed SET name = ? WHERE nymId = ? AND name = ?";
+
+    /**
+     *  Remember that the post was pushed. No-op for metadata.
+     *  @param accepted false if the archive rejected it
+     */
+    static void record(DBClient client, String archiveName, SyndieURI uri, boolean accepted) {
+        if (uri.getMessageId() == null || archiveName == null)
+            return;
+        String scope = uri.getScope().toBase64();
+        long msgId = uri.getMessageId().longValue();
+        PreparedStatement stmt = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_DELETE_ONE);
+            stmt.setLong(1, client.getLoggedInNymId());
+            stmt.setString(2, archiveName);
+            stmt.setString(3, scope);
+            stmt.setLong(4, msgId);
+            stmt.executeUpdate();
+            stmt.close();
+            stmt = null;
+
+            stmt = client.con().prepareStatement(SQL_INSERT);
+            stmt.setLong(1, client.getLoggedInNymId());
+            stmt.setString(2, archiveName);
+            stmt.setString(3, scope);
+            stmt.setLong(4, msgId);
+            stmt.setBoolean(5, accepted);
+            stmt.setTimestamp(6, new Timestamp(System.currentTimeMillis()));
+            stmt.executeUpdate();
+        } catch (SQLException se) {
+            client.logError("Error logging the push", se);
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    /**
+     *  The posts pushed since the given time, and drop those pushed before it
+     *
+     *  @return post URI to true if accepted, false if rejected, may be empty
+     */
+    static Map<SyndieURI, Boolean> getSince(DBClient client, String archiveName, long since) {
+        Map<SyndieURI, Boolean> rv = new HashMap<SyndieURI, Boolean>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_EXPIRE);
+            stmt.setLong(1, client.getLoggedInNymId());
+            stmt.setString(2, archiveName);
+            stmt.setTimestamp(3, new Timestamp(since));
+            stmt.executeUpdate();
+            stmt.close();
+            stmt = null;
+
+            stmt = client.con().prepareStatement(SQL_GET);
+            stmt.setLong(1, client.getLoggedInNymId());
+            stmt.setString(2, archiveName);
+            stmt.setTimestamp(3, new Timestamp(since));
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                String scope = rs.getString(1);
+                long msgId = rs.getLong(2);
+                boolean accepted = rs.getBoolean(3);
+                byte h[] = scope != null ? Base64.decode(scope) : null;
+                if (h == null || h.length != Hash.HASH_LENGTH)
+                    continue;
+                rv.put(SyndieURI.createMessage(Hash.create(h), msgId), Boolean.valueOf(accepted));
+            }
+        } catch (SQLException se) {
+            client.logError("Error loading the push log", se);
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return rv;
+    }
+
+    static void delete(DBClient client, String archiveName) {
+        PreparedStatement stmt = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_DELETE);
+            stmt.setLong(1, client.getLoggedInNymId());
+            stmt.setString(2, archiveName);
+            stmt.executeUpdate();
+        } catch (SQLException se) {
+            client.logError("Error deleting the push log", se);
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    static void rename(DBClient client, String oldName, String newName) {
+        PreparedStatement stmt = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_RENAME);
+            stmt.setString(1, newName);
+            stmt.setLong(2, client.getLoggedInNymId());
+            stmt.setString(3, oldName);
+            stmt.executeUpdate();
+        } catch (SQLException se) {
+            client.logError("Error renaming the push log", se);
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+}
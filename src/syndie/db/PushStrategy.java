@@ -10,7 +10,9 @@ public class PushStrategy {
     public PushStrategy() {
         maxKBPerMessage = SharedArchive.DEFAULT_MAX_SIZE_KB;
         maxKBTotal = -1;
+        maxKBPerSecond = -1;
         sendMaxAge = 7;
+        resendAfterDays = DEFAULT_RESEND_AFTER_DAYS;
     }
 
     public PushStrategy(String serialized) {
@@ -48,6 +50,24 @@ public class PushStrategy {
                     } catch (NumberFormatException nfe) {}
                 }
             }
+            int resendIdx = serialized.indexOf("ResendAfter");
+            if (resendIdx >= 0) {
+                int end = serialized.indexOf(' ', resendIdx);
+                if (end > 0) {
+                    try {
+                        resendAfterDays = Integer.parseInt(serialized.substring(resendIdx + "ResendAfter".length(), end));
+                    } catch (NumberFormatException nfe) {}
+                }
+            }
+            int maxRateIdx = serialized.indexOf("MaxRate");
+            if (maxRateIdx >= 0) {
+                int end = serialized.indexOf(' ', maxRateIdx);
+                if (end > 0) {
+                    try {
+                        maxKBPerSecond = Integer.parseInt(serialized.substring(maxRateIdx + "MaxRate".length(), end));
+                    } catch (NumberFormatException nfe) {}
+                }
+            }
         }
     }
     /**
@@ -59,6 +79,12 @@ public class PushStrategy {
      * and transmission overhead)
      */
     public int maxKBTotal;
+    /**
+     * how fast we will push to this archive, in KBps, less than 1 means no limit
+     * other than the global one.
+     * @since 1.107b-1
+     */
+    public int maxKBPerSecond;
     /**
      * if true, generate hashcash certs for locally created messages that
      * the remote archive wants certs for
@@ -78,6 +104,15 @@ public class PushStrategy {
     public boolean sendNothing;
     /** max age in days of things to send - less than 1 means infinite */
     public int sendMaxAge;
+    /**
+     * don't push a post again to an archive that accepted or rejected it
+     * within this many days, even if its index doesn't list it - less than 1
+     * means push whatever the index is missing every time. See PushLog.
+     * @since 1.107b-1
+     */
+    public int resendAfterDays;
+    /** @since 1.107b-1 */
+    public static final int DEFAULT_RESEND_AFTER_DAYS = 7;
     
     public String toString() {
         StringBuilder buf = new StringBuilder();
@@ -96,6 +131,10 @@ public class PushStrategy {
                 buf.append("MaxTotal").append(maxKBTotal).append(" ");
             if (sendMaxAge >= 0)
                 buf.append("MaxAge").append(sendMaxAge).append(" ");
+            if (resendAfterDays != DEFAULT_RESEND_AFTER_DAYS)
+                buf.append("ResendAfter").append(resendAfterDays).append(" ");
+            if (maxKBPerSecond > 0)
+                buf.append("MaxRate").append(maxKBPerSecond).append(" ");
         }
         return buf.toString();
     }
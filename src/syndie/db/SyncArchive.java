@@ -8,11 +8,14 @@ import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.data.Base64;
 import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
 
 import syndie.Constants;
 import syndie.data.SyndieURI;
@@ -55,7 +58,26 @@ public class SyncArchive {
     private Exception _indexFetchError;
     private long _indexFetchRcvd;
     private long _indexFetchSize = -1;
+    /** from the X-Syndie-Features header, not persisted */
+    private volatile String _remoteFeatures;
+    /** from the About in the last index fetched, not persisted @since 1.107b-1 */
+    private volatile int _remoteHashcashMinKB;
     
+    /** not persisted, but kept across syncs */
+    private final FetchConcurrency _fetchConcurrency = new FetchConcurrency();
+    private final MirrorScore _mirrorScore = new MirrorScore();
+    /** pull from this instead of the archive, see ArchiveSnapshot @since 1.107b-1 */
+    private volatile File _snapshot;
+    private volatile boolean _deleteSnapshot;
+    /** per-archive bandwidth limits, rates from the strategies @since 1.107b-1 */
+    private final TokenBucket _inBucket = new TokenBucket("inbound");
+    private final TokenBucket _outBucket = new TokenBucket("outbound");
+    /** the sync in progress, or the last one, null if none since startup @since 1.107b-1 */
+    private volatile SyncMetrics _metrics;
+    private long _metricsInStart, _metricsOutStart;
+    /** for measuring how soon the important stuff arrives @since 1.107b-1 */
+    private volatile long _indexFetchedTime;
+    private volatile long _firstPriorityFetched = -1;
     private final AtomicInteger _incomingActionsInProgress = new AtomicInteger();
     private final AtomicInteger _outgoingActionsInProgress = new AtomicInteger();
     
@@ -95,6 +117,9 @@ public class SyncArchive {
         if (old != null) {
             indexFetched(ui, old, false);
         } else {
+            SyncMetrics metrics = _metrics;
+            if (metrics != null)
+                metrics.indexFetched(0, 0, 0);
             setIndexFetchInProgress(false);
             _indexFetchComplete = false;
             setConsecutiveFailures(0);
@@ -113,6 +138,39 @@ public class SyncArchive {
         indexFetched(ui, archive, true);
     }
 
+    /**
+     *  Remove the posts pushed to this archive in the last few days, see PushLog
+     *
+     *  @param pushURIs modified
+     *  @since 1.107b-1
+     */
+    private void suppressRecentPushes(UI ui, List pushURIs, int days) {
+        Map<SyndieURI, Boolean> recent = PushLog.getSince(_client, _name, System.currentTimeMillis() - days*24*60*60*1000L);
+        int accepted = 0;
+        int rejected = 0;
+        if (!recent.isEmpty()) {
+            for (Iterator iter = pushURIs.iterator(); iter.hasNext(); ) {
+                SyndieURI uri = (SyndieURI)iter.next();
+                if (uri.getMessageId() == null)
+                    continue;
+                Boolean ok = recent.get(SyndieURI.createMessage(uri.getScope(), uri.getMessageId().longValue()));
+                if (ok == null)
+                    continue;
+                iter.remove();
+                if (ok.booleanValue())
+                    accepted++;
+                else
+                    rejected++;
+            }
+        }
+        SyncMetrics metrics = _metrics;
+        if (metrics != null)
+            metrics.pushSuppressed(accepted + rejected);
+        if (accepted + rejected > 0)
+            ui.debugMessage("not pushing " + (accepted + rejected) + " posts pushed to " + _name + " in the last " +
+                            days + " days (" + accepted + " accepted, " + rejected + " rejected), uris to push: " + pushURIs.size());
+    }
+
     /**
      * this creates the actions to be run as a result of fetching the specified archive index
      * @param archive non-null
@@ -130,6 +188,9 @@ public class SyncArchive {
             return;
         }
 
+        if (archive.getAbout() != null)
+            _remoteHashcashMinKB = archive.getAbout().minMessageSizeKBRequiringHashcash();
+
         PullStrategy pullStrategy = getPullStrategy();
         if (pullStrategy == null)
             pullStrategy = SyncManager.getInstance(_client, ui).getDefaultPullStrategy();
@@ -138,13 +199,18 @@ public class SyncArchive {
         ui.debugMessage("index fetched, uris to pull: " + pullURIs.size());
         
         List pushURIs;
-        if (isNew) {
+        if (_snapshot != null) {
+            // nowhere to push to
+            pushURIs = Collections.EMPTY_LIST;
+        } else if (isNew) {
             PushStrategy pushStrategy = getPushStrategy();
             if (pushStrategy == null)
                 pushStrategy = SyncManager.getInstance(_client, ui).getDefaultPushStrategy();
             ui.debugMessage("index fetched, push strategy: " + pushStrategy);
             pushURIs = new SharedArchiveEngine().selectURIsToPush(_client, ui, archive, pushStrategy);
             ui.debugMessage("index fetched, uris to push: " + pushURIs.size());
+            if (pushStrategy.resendAfterDays > 0 && _name != null)
+                suppressRecentPushes(ui, pushURIs, pushStrategy.resendAfterDays);
         } else {
             // It doesn't appear that we remember what we pushed last time,
             // so if we're rescanning the old index, don't push anything.
@@ -155,27 +221,40 @@ public class SyncArchive {
         
         SharedArchive.Message msgs[] = archive.getMessages();
         SharedArchive.Channel scopes[] = archive.getChannels();
+        SyncMetrics metrics = _metrics;
+        if (metrics != null)
+            metrics.indexFetched(isNew ? _indexFetchRcvd : 0, msgs.length + scopes.length, pullURIs.size());
+        SyncPriority priority = _manager.getSyncPriority();
+        _indexFetchedTime = System.currentTimeMillis();
+        _firstPriorityFetched = -1;
         for (int i = 0; i < pullURIs.size(); i++) {
             SyndieURI uri = (SyndieURI)pullURIs.get(i);
             IncomingAction action = createIncomingAction(uri);
-            //long size = 0;
+            Hash target = null;
+            boolean isPrivate = false;
             if (uri.getMessageId() != null) {
                 for (int j = 0; j < msgs.length; j++) {
                     if (msgs[j].getMessageId() == uri.getMessageId().longValue()) {
                         if (DataHelper.eq(uri.getScope().getData(), scopes[msgs[j].getScopeIndex()].getScope())) {
-                            //size = (int)msgs[j].getMaxSizeKB()*1024;
+                            // an upper bound only, used to size batch fetches
+                            action.setMaxSize(msgs[j].getMaxSizeKB()*1024);
+                            int t = msgs[j].getTargetIndex();
+                            if (t >= 0 && t < scopes.length)
+                                target = Hash.create(scopes[t].getScope());
+                            isPrivate = msgs[j].isPrivate();
                             break;
                         }
                     }
                 }
             }
             // metadata sizes aren't counted atm
-            //action.setSize(size);
+            action.setPriority(priority.getPriority(uri, target, isPrivate));
         }
         
         for (int i = 0; i < pushURIs.size(); i++) {
             SyndieURI uri = (SyndieURI)pushURIs.get(i);
             OutgoingAction action = createOutgoingAction(uri);
+            action.setPriority(priority.getPriority(uri, null, false));
             File src = null;
             if (uri.getMessageId() == null)
                 src = new File(new File(_client.getArchiveDir(), uri.getScope().toBase64()), "meta" + Constants.FILENAME_SUFFIX);
@@ -200,6 +279,8 @@ public class SyncArchive {
         setLastIndexFetchErrorMsg(null);
         setLastIndexFetchError(null);
         
+        if (pullURIs.size() <= 0)
+            clearSnapshot();
         if ( (pushURIs.size() <= 0) && (pullURIs.size() <= 0) ) {
             // nothing to do, so reschedule the next sync
             updateSchedule(true);
@@ -253,13 +334,19 @@ public class SyncArchive {
         private Exception _fetchError;
         private int _attempts;
         private long _size, _rcvd;
+        private long _maxSize = -1;
         private boolean _disposed;
         private IncomingState _state = IncomingState.INIT;
+        private volatile int _priority;
+        private final long _queued;
+        /** for SyncMetrics */
+        private long _fetchStarted, _fetchDone;
         
         public IncomingAction(SyndieURI uri) {
             _uri = uri;
             _completionTime = -1;
             _size = -1;
+            _queued = System.currentTimeMillis();
         }
         
 
@@ -299,6 +386,31 @@ public class SyncArchive {
         public long getSize() { return _size; }
         public long getReceived() { return _rcvd; }
 
+        /**
+         *  The size advertised by the remote index, which is an upper bound only
+         *  @return -1 if unknown
+         *  @since 1.107b-1
+         */
+        public long getMaxSize() { return _maxSize; }
+
+        /** @since 1.107b-1 */
+        void setMaxSize(long bytes) { _maxSize = bytes; }
+
+        /**
+         *  See SyncPriority
+         *  @since 1.107b-1
+         */
+        public int getPriority() { return _priority; }
+
+        /** @since 1.107b-1 */
+        void setPriority(int priority) { _priority = priority; }
+
+        /**
+         *  Priority with aging, higher first
+         *  @since 1.107b-1
+         */
+        long getSortKey() { return SyncPriority.getSortKey(_priority, _queued); }
+
         /** @param total -1 if unknown */
         void setSize(long rcvd, long total) {
             _size = total;
@@ -307,20 +419,34 @@ public class SyncArchive {
         }
         
         void setFetchingMeta() { 
+            if (_fetchStarted <= 0)
+                _fetchStarted = System.currentTimeMillis();
             _state = IncomingState.FETCHING_META;
             notifyUpdate(this);
         }
 
         void setFetchingBody() { 
+            if (_fetchStarted <= 0)
+                _fetchStarted = System.currentTimeMillis();
             _state = IncomingState.FETCHING_BODY;
             notifyUpdate(this);
         }
 
         void importFailed(String msg, Exception cause) {
+            SyncMetrics metrics = _metrics;
+            if (metrics != null && _state != IncomingState.COMPLETE) {
+                if (_result == IMPORT_INTERRUPTED || _state == IncomingState.INIT)
+                    metrics.cancelled();
+                else if (_state == IncomingState.QUEUED_PROCESSING || _state == IncomingState.PROCESSING)
+                    metrics.importFailed();
+                else
+                    metrics.fetchFailed();
+            }
             _completionTime = System.currentTimeMillis();
             _fetchError = cause;
             _fetchErrorMsg = (msg != null ? msg : cause + "");
             setIsExecuting(false);
+            _manager.getInFlightFetches().release(this, false);
             _manager.getUI().debugMessage(msg, cause);
         }
 
@@ -343,21 +469,47 @@ public class SyncArchive {
                 _completionTime = System.currentTimeMillis();
                 _result = result;
                 setIsExecuting(false);
+                _manager.getInFlightFetches().release(this, true);
+                SyncMetrics metrics = _metrics;
+                if (metrics != null)
+                    metrics.imported();
+                if (_priority >= SyncPriority.PRIORITY_WATCHED && _firstPriorityFetched <= 0)
+                    _firstPriorityFetched = _completionTime;
             } else
                 notifyUpdate(this); // we didn't call to setIsExecuting(), so notify manually
         }
 
         /** @since 1.106b-2 */
         void setIsQueuedForProcessing() {
+             fetchDone();
              _state = IncomingState.QUEUED_PROCESSING;
              notifyUpdate(this);
         }
 
         /** @since 1.106b-2 */
         void setIsProcessing() {
+             long queued = fetchDone();
+             SyncMetrics metrics = _metrics;
+             if (metrics != null)
+                 metrics.importStarted(System.currentTimeMillis() - queued);
              _state = IncomingState.PROCESSING;
              notifyUpdate(this);
         }
+
+        /**
+         *  The data is here, record the fetch latency once
+         *  @return when the fetch was done
+         *  @since 1.107b-1
+         */
+        private long fetchDone() {
+            if (_fetchDone <= 0) {
+                _fetchDone = System.currentTimeMillis();
+                SyncMetrics metrics = _metrics;
+                if (metrics != null)
+                    metrics.fetched(_fetchStarted > 0 ? _fetchDone - _fetchStarted : 0);
+            }
+            return _fetchDone;
+        }
         
         /** @return true if state has changed */
         boolean setIsExecuting(boolean executing) {
@@ -366,10 +518,13 @@ public class SyncArchive {
                 boolean wasExecuting = isExecuting();
                 changed = wasExecuting != executing;
                 if (changed) {
-                    if (executing)
+                    if (executing) {
                         _state = IncomingState.QUEUED_FETCH;
-                    else
+                        _fetchStarted = 0;
+                        _fetchDone = 0;
+                    } else {
                         _state = IncomingState.COMPLETE;
+                    }
                 }
             }
             if (changed) {
@@ -397,6 +552,7 @@ public class SyncArchive {
         public void dispose() {
             _disposed = true;
             _incomingActions.remove(IncomingAction.this);
+            _manager.getInFlightFetches().dispose(this);
             notifyUpdate(this);
         }
     }
@@ -413,11 +569,29 @@ public class SyncArchive {
         private String _errMsg;
         private Exception _err;
         private boolean _disposed;
+        private volatile int _priority;
+        private final long _queued;
         
         public OutgoingAction(SyndieURI uri) {
             _uri = uri;
             _completionTime = -1;
+            _queued = System.currentTimeMillis();
         }
+
+        /**
+         *  See SyncPriority
+         *  @since 1.107b-1
+         */
+        public int getPriority() { return _priority; }
+
+        /** @since 1.107b-1 */
+        void setPriority(int priority) { _priority = priority; }
+
+        /**
+         *  Priority with aging, higher first
+         *  @since 1.107b-1
+         */
+        long getSortKey() { return SyncPriority.getSortKey(_priority, _queued); }
         
         public SyndieURI getURI() { return _uri; }
         public SyncArchive getArchive() { return SyncArchive.this; }
@@ -448,6 +622,9 @@ public class SyncArchive {
         }
 
         void pushFailed(String msg, Exception err) {
+            SyncMetrics metrics = _metrics;
+            if (metrics != null && _completionTime <= 0)
+                metrics.pushed(false);
             _errMsg = msg;
             _err = err;
             _completionTime = System.currentTimeMillis();
@@ -455,7 +632,36 @@ public class SyncArchive {
             _manager.getUI().debugMessage(msg, err);
         }
         
+        /**
+         *  The archive answered that it won't take it
+         *  @since 1.107b-1
+         */
+        void pushRejected(String msg) {
+            if (_completionTime <= 0)
+                PushLog.record(_client, _name, _uri, false);
+            pushFailed(msg, null);
+        }
+        
+        /**
+         *  The archive has it but hasn't imported it yet, so it may still be rejected.
+         *  Complete for this sync, but not logged in PushLog, so it's offered again
+         *  next time if the archive's index still doesn't have it.
+         *  @since 1.107b-1
+         */
+        void pushQueued() {
+            SyncMetrics metrics = _metrics;
+            if (metrics != null && _completionTime <= 0)
+                metrics.pushed(true);
+            _completionTime = System.currentTimeMillis();
+            setIsExecuting(false);
+        }
+        
         void pushOK() {
+            SyncMetrics metrics = _metrics;
+            if (metrics != null && _completionTime <= 0)
+                metrics.pushed(true);
+            if (_completionTime <= 0)
+                PushLog.record(_client, _name, _uri, true);
             _completionTime = System.currentTimeMillis();
             setIsExecuting(false);
         }
@@ -767,6 +973,10 @@ public class SyncArchive {
             } finally {
                 if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
             }
+            if (_oldName != null && _name != null && !_oldName.equals(_name)) {
+                SyncMetrics.rename(_client, _oldName, _name);
+                PushLog.rename(_client, _oldName, _name);
+            }
         }
         
         if (_oldName == null)
@@ -811,8 +1021,18 @@ public class SyncArchive {
             if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
         }
         
-        if (notifyListeners)
+        if (notifyListeners) {
+            // a real delete, not a store
+            if (_name != null) {
+                SyncMetrics.delete(_client, _name);
+                PushLog.delete(_client, _name);
+            }
+            if (_oldName != null && !_oldName.equals(_name)) {
+                SyncMetrics.delete(_client, _oldName);
+                PushLog.delete(_client, _oldName);
+            }
             _manager.deleted(this);
+        }
     }
     
     public String getName() { return _name; }
@@ -882,6 +1102,8 @@ public class SyncArchive {
     public boolean getIndexFetchInProgress() { return _indexFetching; }
 
     public void setIndexFetchInProgress(boolean now) {
+        if (now && !_indexFetching)
+            startMetrics();
         _indexFetching = now;
         if (!now) {
             _manager.getUI().debugMessage("SyncArchive: index fetch complete for " + _name);
@@ -922,12 +1144,167 @@ public class SyncArchive {
     public void setLastIndexFetchError(Exception e) { _indexFetchError = e; }
     
     public SyndieURI getArchiveURI() { return SyndieURI.createArchive(getURL(), null); }
+
+    /**
+     *  As advertised in the X-Syndie-Features header of the last index fetch
+     *  @param features space-separated, may be null
+     *  @since 1.107b-1
+     */
+    void setRemoteFeatures(String features) { _remoteFeatures = features; }
+
+    /**
+     *  @return true if the last index fetch advertised this feature
+     *  @since 1.107b-1
+     */
+    boolean hasRemoteFeature(String feature) {
+        String features = _remoteFeatures;
+        if (features == null)
+            return false;
+        String tokens[] = features.split(" ");
+        for (int i = 0; i < tokens.length; i++) {
+            if (tokens[i].trim().equals(feature))
+                return true;
+        }
+        return false;
+    }
     
+    /**
+     *  @return the value of a "feature=value" token from the last index fetch, or null
+     *  @since 1.107b-1
+     */
+    String getRemoteFeatureValue(String feature) {
+        String features = _remoteFeatures;
+        if (features == null)
+            return null;
+        String prefix = feature + '=';
+        String tokens[] = features.split(" ");
+        for (int i = 0; i < tokens.length; i++) {
+            String tok = tokens[i].trim();
+            if (tok.startsWith(prefix))
+                return tok.substring(prefix.length());
+        }
+        return null;
+    }
+
+    /**
+     *  @return the hashcash bits the archive requires for pushes, 0 if none,
+     *          or -1 if it doesn't take stamps at all (an older archive)
+     *  @since 1.107b-1
+     */
+    int getRemoteHashcashBits() {
+        String val = getRemoteFeatureValue(HTTPServ.FEATURE_HASHCASH);
+        if (val == null)
+            return -1;
+        try {
+            return Math.max(0, Integer.parseInt(val));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     *  Posts at or above this size need a stamp, if getRemoteHashcashBits() is positive
+     *  @since 1.107b-1
+     */
+    long getRemoteHashcashMinSize() { return _remoteHashcashMinKB * 1024L; }
+
     public int getIncomingActionCount() { return _incomingActions.size(); }
 
+    /**
+     *  The sort key of the most important incoming action not yet started
+     *  @return Long.MIN_VALUE if none
+     *  @since 1.107b-1
+     */
+    long getBestIncomingSortKey() {
+        long rv = Long.MIN_VALUE;
+        for (int i = 0; i < _incomingActions.size(); i++) {
+            IncomingAction action;
+            try {
+                action = _incomingActions.get(i);
+            } catch (IndexOutOfBoundsException ioobe) {
+                break;
+            }
+            if (action.isScheduled())
+                rv = Math.max(rv, action.getSortKey());
+        }
+        return rv;
+    }
+
     /** @since 1.102b-9 */
     public int getIncomingActionsInProgress() { return _incomingActionsInProgress.get(); }
 
+    /**
+     *  The controller for concurrent fetches from this archive
+     *  @since 1.107b-1
+     */
+    FetchConcurrency getFetchConcurrency() { return _fetchConcurrency; }
+
+    /**
+     *  How many concurrent fetches this archive can handle, as learned from previous fetches
+     *  @since 1.107b-1
+     */
+    public int getFetchConcurrencyLevel() { return _fetchConcurrency.getLevel(); }
+
+    /**
+     *  How well this archive has served fetches, compared to others with the same posts
+     *  @since 1.107b-1
+     */
+    MirrorScore getMirrorScore() { return _mirrorScore; }
+
+    /**
+     *  The index came from a snapshot, so pull from it too
+     *  @param delete true if it was downloaded and should be deleted when done
+     *  @since 1.107b-1
+     */
+    void setSnapshot(File snapshot, boolean delete) {
+        clearSnapshot();
+        _deleteSnapshot = delete;
+        _snapshot = snapshot;
+    }
+
+    /**
+     *  @return null if none
+     *  @since 1.107b-1
+     */
+    File getSnapshot() { return _snapshot; }
+
+    /**
+     *  Done with the snapshot, delete it if it was downloaded
+     *  @since 1.107b-1
+     */
+    void clearSnapshot() {
+        File f = _snapshot;
+        _snapshot = null;
+        if (f != null && _deleteSnapshot)
+            f.delete();
+    }
+
+    /**
+     *  The limit on fetches from this archive, from the pull strategy.
+     *  Use with TokenBucket.GLOBAL_INBOUND.
+     *  @since 1.107b-1
+     */
+    TokenBucket getInboundBucket() {
+        PullStrategy strategy = _pullStrategy;
+        if (strategy == null)
+            strategy = _manager.getDefaultPullStrategy();
+        _inBucket.setRate(strategy != null ? strategy.maxKBPerSecond * 1024 : -1);
+        return _inBucket;
+    }
+
+    /**
+     *  The limit on pushes to this archive, from the push strategy.
+     *  Use with TokenBucket.GLOBAL_OUTBOUND.
+     *  @since 1.107b-1
+     */
+    TokenBucket getOutboundBucket() {
+        PushStrategy strategy = _pushStrategy;
+        if (strategy == null)
+            strategy = _manager.getDefaultPushStrategy();
+        _outBucket.setRate(strategy != null ? strategy.maxKBPerSecond * 1024 : -1);
+        return _outBucket;
+    }
+
     public IncomingAction getIncomingAction(int num) { return _incomingActions.get(num); }
     
     IncomingAction createIncomingAction(SyndieURI uri) { 
@@ -938,12 +1315,15 @@ public class SyncArchive {
             if (cur.getURI().equals(uri)) {
                 if (cur.getFetchErrorMsg() != null)
                     cur.clearFetchError();
+                if (!cur.isComplete())
+                    _manager.getInFlightFetches().offer(cur);
                 
                 return cur;
             }
         }
         IncomingAction action = new IncomingAction(uri); 
         _incomingActions.add(action);
+        _manager.getInFlightFetches().offer(action);
         return action;
     }
     
@@ -988,6 +1368,7 @@ public class SyncArchive {
         setConsecutiveFailures(1 + getConsecutiveFailures());
         setIndexFetchInProgress(false);
         _indexFetchComplete = false;
+        finishMetrics(false);
         
         if (allowReschedule) {
             // which index fetch are we failing here?
@@ -1069,13 +1450,83 @@ public class SyncArchive {
         
         if (success)
             setLastSyncTime(System.currentTimeMillis());
+        // pulls and pushes run in parallel, wait for both
+        if (!hasIncompleteActions())
+            finishMetrics(success);
         
         _manager.getUI().debugMessage("updateSchedule(" + success + "): next sync: " + DateTime.getDateTime(getNextSyncTime()));
         _manager.getUI().debugMessage("incoming act/tot: " + _incomingActionsInProgress + " / " + _incomingActions.size());
         _manager.getUI().debugMessage("outgoing act/tot: " + _outgoingActionsInProgress + " / " + _outgoingActions.size());
+        _manager.getUI().debugMessage("fetch concurrency: " + _fetchConcurrency);
+        _manager.getUI().debugMessage("mirror " + _mirrorScore);
+        _manager.getUI().debugMessage(_manager.getInFlightFetches().toString());
+        if (_firstPriorityFetched > 0)
+            _manager.getUI().debugMessage("first watched or higher priority fetch complete " +
+                                          DataHelper.formatDuration(_firstPriorityFetched - _indexFetchedTime) + " after the index");
         store();
     }
 
+    /**
+     *  The metrics for the sync in progress, or the last one since startup
+     *  @return null if none
+     *  @since 1.107b-1
+     */
+    public SyncMetrics getCurrentSyncMetrics() { return _metrics; }
+
+    /**
+     *  The last few completed syncs, from the database
+     *  @return newest first, may be empty
+     *  @since 1.107b-1
+     */
+    public List<SyncMetrics> getSyncHistory() {
+        if (_name == null)
+            return Collections.emptyList();
+        return SyncMetrics.load(_client, _name);
+    }
+
+    /**
+     *  Start the metrics for a new sync, finishing an old one that never completed,
+     *  e.g. pushes that never ran.
+     *  @since 1.107b-1
+     */
+    private synchronized void startMetrics() {
+        SyncMetrics old = _metrics;
+        if (old != null && !old.isFinished())
+            finishMetrics(_consecutiveFailures == 0);
+        _metricsInStart = _inBucket.getTotal();
+        _metricsOutStart = _outBucket.getTotal();
+        _metrics = new SyncMetrics(System.currentTimeMillis());
+    }
+
+    /**
+     *  Finish and store the current metrics, if not already done
+     *  @since 1.107b-1
+     */
+    private synchronized void finishMetrics(boolean success) {
+        SyncMetrics metrics = _metrics;
+        if (metrics == null || metrics.isFinished())
+            return;
+        metrics.finish(success, _inBucket.getTotal() - _metricsInStart, _outBucket.getTotal() - _metricsOutStart);
+        _manager.getUI().debugMessage("sync complete for " + _name + ": " + metrics);
+        if (_name != null && _client.isLoggedIn())
+            SyncMetrics.store(_client, _name, metrics);
+    }
+
+    /** @since 1.107b-1 */
+    private boolean hasIncompleteActions() {
+        for (int i = 0; i < _incomingActions.size(); i++) {
+            IncomingAction action;
+            try {
+                action = _incomingActions.get(i);
+            } catch (IndexOutOfBoundsException ioobe) {
+                break;
+            }
+            if (!action.isComplete())
+                return true;
+        }
+        return getIncompleteOutgoingActionCount() > 0;
+    }
+
     public String toString() {
         return "Archive '" + _name + "': " +
                ((_archiveURL != null && _archiveURL.length() > 0) ? _archiveURL : "URL Not Set");
@@ -4,18 +4,31 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import net.i2p.I2PAppContext;
+import net.i2p.data.DataFormatException;
+import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
 import net.i2p.util.EepGet;
 import net.i2p.util.SecureFile;
+import net.i2p.util.SecureFileOutputStream;
+import net.i2p.util.SocketTimeout;
 import net.i2p.util.SSLEepGet;
 
 import syndie.Constants;
@@ -32,12 +45,24 @@ class SyncInboundFetcher {
 
     /** this is the number of concurrent archives being worked on */
     private static final int THREADS = 3;
-    /** this is the number of concurrent HTTP metaindex or post fetches, per archive */
-    private static final int CONCURRENT_FETCHES = 5;
+    /**
+     *  Number of HTTP metaindex or post fetch threads, per archive.
+     *  The number actually fetching at once is set by the archive's FetchConcurrency.
+     */
+    private static final int CONCURRENT_FETCHES = FetchConcurrency.MAX_LEVEL;
     /** number that the fetchers can get ahead of the importer */
     private static final int MAX_IMPORT_QUEUE = 20;
     
     private static final int I2P_RETRIES = 1;
+
+    /** max URIs in a single request to an archive that supports batch fetches */
+    private static final int BATCH_MAX_ITEMS = Math.min(100, HTTPServ.MAX_BATCH_ITEMS);
+    /** max total size of a batch, as advertised by the index, so a failed batch doesn't waste too much */
+    private static final long BATCH_MAX_BYTES = 1024*1024;
+    /** larger than this, as advertised by the index, are fetched individually so they can be resumed */
+    private static final long BATCH_MAX_ITEM_BYTES = 256*1024;
+    /** how long to wait for another archive to finish fetching the same URI, about the single fetch timeout */
+    private static final long MAX_DUPLICATE_WAIT = 10*60*1000;
     
     public SyncInboundFetcher(SyncManager mgr) {
         _manager = mgr;
@@ -90,10 +115,27 @@ class SyncInboundFetcher {
         }
     }
     
+    /**
+     *  Of the archives ready to fetch from, the one with the most important
+     *  action waiting (see SyncPriority), so a big backlog from one archive
+     *  doesn't hold up e.g. private messages from another.
+     */
     private SyncArchive getNextToFetch(Runner runner) {
         // shuffle the archives so we aren't always syncing with the first on the list
+        // when they are equally important
         List<SyncArchive> archives = _manager.getArchives();
         Collections.shuffle(archives);
+        if (archives.size() > 1) {
+            final Map<SyncArchive, Long> keys = new HashMap<SyncArchive, Long>(archives.size());
+            for (SyncArchive archive : archives) {
+                keys.put(archive, Long.valueOf(archive.getBestIncomingSortKey()));
+            }
+            Collections.sort(archives, new Comparator<SyncArchive>() {
+                public int compare(SyncArchive l, SyncArchive r) {
+                    return keys.get(r).compareTo(keys.get(l));
+                }
+            });
+        }
         long now = System.currentTimeMillis();
         for (SyncArchive archive : archives) {
             synchronized (_runnerToArchive) {
@@ -129,7 +171,10 @@ class SyncInboundFetcher {
             return;
         }
         url = url.trim();
-        if ( (url.startsWith("USK@")) || (url.startsWith("SSK@")) || (url.startsWith("KSK@")) ) {
+        File snapshot = archive.getSnapshot();
+        if (snapshot != null) {
+            fetchSnapshot(archive, snapshot);
+        } else if ( (url.startsWith("USK@")) || (url.startsWith("SSK@")) || (url.startsWith("KSK@")) ) {
             fetchFreenet(archive);
         } else if (url.startsWith("/") || url.startsWith("file://") || url.startsWith("C:\\")) {
             fetchFile(archive);
@@ -141,10 +186,15 @@ class SyncInboundFetcher {
     }
     
     private void fetchFreenet(SyncArchive archive) {
+        String fcpHost = archive.getFCPHost();
+        if (fcpHost != null && fcpHost.trim().length() > 0 && archive.getFCPPort() > 0) {
+            if (fetchFreenetFCP(archive, fcpHost.trim()))
+                return;
+        }
         long whitelistGroupId = archive.getWhitelistGroupId();
         Set whitelistScopes = _manager.getClient().getReferencedScopes(whitelistGroupId);
 
-        DataImporter importer = new DataImporter(whitelistScopes);
+        DataImporter importer = new DataImporter(whitelistScopes, archive.getFetchConcurrency());
         Thread t = new Thread(importer, "Data importer");
         t.start();
         int actions = archive.getIncomingActionCount();
@@ -173,7 +223,7 @@ class SyncInboundFetcher {
                     EepGet get = new EepGet(I2PAppContext.getGlobalContext(), archive.getHTTPProxyHost(), archive.getHTTPProxyPort(), 0, dataFile.getAbsolutePath(), url);
                     // the index fetch runs async, but these run synchronously, since we don't want to fire up e.g. 500 threads to pull
                     // new messages.  much to optimize on this front though
-                    GetListener lsnr = new GetListener(action, dataFile, importer, whitelistScopes);
+                    GetListener lsnr = new GetListener(action, dataFile, importer, whitelistScopes, false);
                     get.addStatusListener(lsnr);
                     // 1 minute for the headers, 5 minutes total, and up to 60s of inactivity
                     get.fetch(60*1000, 5*60*1000, 60*1000);
@@ -186,21 +236,222 @@ class SyncInboundFetcher {
         importer.complete();
     }
     
-    private void fetchFile(SyncArchive archive) {
-        String file = archive.getURL();
-        if (file.startsWith("file://") && (file.length() > "file://".length()))
-            file = file.substring("file://".length());
-        File f = new File(file);
-        File archiveDir = f;
-        if (f.isDirectory()) {
-            archiveDir = f;
-        } else {
-            archiveDir = f.getParentFile();
+    /**
+     *  Pull from the snapshot the index came from, see ArchiveSnapshot,
+     *  reading it once in order and queueing the entries we want for the importer
+     *  as they go by. Deletes the snapshot when done, if it was downloaded.
+     *
+     *  @since 1.107b-1
+     */
+    private void fetchSnapshot(SyncArchive archive, File snapshot) {
+        Map<SyndieURI, SyncArchive.IncomingAction> wanted = new HashMap<SyndieURI, SyncArchive.IncomingAction>();
+        int actions = archive.getIncomingActionCount();
+        for (int i = 0; i < actions; i++) {
+            SyncArchive.IncomingAction action = archive.getIncomingAction(i);
+            if (action.getCompletionTime() > 0) continue; // already complete
+            if (!action.setIsExecuting(true)) continue; // someone else is doing it
+            if (isLocal(action.getURI())) { // fetched concurrently from another archive
+                action.importSuccessful(IMPORT_ALREADY);
+                continue;
+            }
+            wanted.put(action.getURI(), action);
+        }
+        if (wanted.isEmpty()) {
+            archive.clearSnapshot();
+            return;
+        }
+
+        long whitelistGroupId = archive.getWhitelistGroupId();
+        Set whitelistScopes = _manager.getClient().getReferencedScopes(whitelistGroupId);
+        DataImporter importer = new DataImporter(whitelistScopes, archive.getFetchConcurrency());
+        Thread t = new Thread(importer, "Data importer");
+        t.start();
+
+        FileInputStream fin = null;
+        try {
+            fin = new FileInputStream(snapshot);
+            ArchiveSnapshot.Reader reader = new ArchiveSnapshot.Reader(fin);
+            SyndieURI uri;
+            while (!wanted.isEmpty() && (uri = reader.next()) != null) {
+                SyncArchive.IncomingAction action = wanted.remove(uri);
+                if (action == null)
+                    continue; // not wanted, next() skips it
+                if (uri.getMessageId() == null)
+                    action.setFetchingMeta();
+                else
+                    action.setFetchingBody();
+                File dataFile = SecureFile.createTempFile("snapshot", "dat", _manager.getClient().getTempDir());
+                try {
+                    reader.readData(dataFile);
+                } catch (IOException ioe) {
+                    // bad hash, the reader is still in step, or truncated, and next() will fail
+                    action.importFailed(IMPORT_CORRUPT, ioe);
+                    continue;
+                }
+                long sz = dataFile.length();
+                action.setSize(sz, sz);
+                action.setIsQueuedForProcessing();
+                try {
+                    importer.enqueueData(action, dataFile, true);
+                } catch (InterruptedException ie) {
+                    dataFile.delete();
+                    action.importFailed(IMPORT_INTERRUPTED);
+                    break;
+                }
+            }
+        } catch (IOException ioe) {
+            _manager.getUI().debugMessage("Error reading the snapshot " + snapshot, ioe);
+        } finally {
+            if (fin != null) try { fin.close(); } catch (IOException ioe) {}
+        }
+        // not in the snapshot after all
+        for (SyncArchive.IncomingAction action : wanted.values()) {
+            if (action.getCompletionTime() <= 0)
+                action.importFailed(IMPORT_FETCH_FAIL);
+        }
+        importer.finishQueue();
+        importer.complete();
+        archive.clearSnapshot();
+    }
+
+    /** requests in flight on one FCP connection @since 1.107b-1 */
+    private static final int FCP_MAX_PENDING = 32;
+    /** how long to wait for the last requests, after which they are left to the node for next time @since 1.107b-1 */
+    private static final long FCP_MAX_WAIT = 30*60*1000;
+
+    /**
+     *  Pull over one FCP connection to the archive's Freenet node,
+     *  with up to FCP_MAX_PENDING requests in flight, most important first.
+     *
+     *  @return false if we couldn't connect and nothing was done
+     *  @since 1.107b-1
+     */
+    private boolean fetchFreenetFCP(SyncArchive archive, String host) {
+        // the same each time, so the node's persistent requests are ours again
+        String clientName = "syndie-" + archive.getName().replaceAll("[^A-Za-z0-9_-]", "_");
+        FCPConnection fcp = new FCPConnection(host, archive.getFCPPort(), clientName, _manager.getUI(),
+                                              archive.getInboundBucket());
+        try {
+            fcp.connect();
+        } catch (IOException ioe) {
+            _manager.getUI().debugMessage("Unable to connect to FCP at " + host + ':' + archive.getFCPPort() + ", using fproxy", ioe);
+            return false;
+        }
+
+        long whitelistGroupId = archive.getWhitelistGroupId();
+        Set whitelistScopes = _manager.getClient().getReferencedScopes(whitelistGroupId);
+        DataImporter importer = new DataImporter(whitelistScopes, archive.getFetchConcurrency());
+        Thread t = new Thread(importer, "Data importer");
+        t.start();
+
+        BlockingQueue<SyncArchive.IncomingAction> pending = new PriorityBlockingQueue<SyncArchive.IncomingAction>(64, SyncPriority.INCOMING_COMPARATOR);
+        int actions = archive.getIncomingActionCount();
+        for (int i = 0; i < actions; i++) {
+            SyncArchive.IncomingAction action = archive.getIncomingAction(i);
+            if (action.getCompletionTime() > 0) continue; // already complete
+            if (!action.setIsExecuting(true)) continue; // someone else is doing it
+            if (isLocal(action.getURI())) { // fetched concurrently from another archive
+                action.importSuccessful(IMPORT_ALREADY);
+                continue;
+            }
+            pending.offer(action);
+        }
+
+        Semaphore slots = new Semaphore(FCP_MAX_PENDING);
+        SyncArchive.IncomingAction action;
+        while ((action = pending.poll()) != null) {
+            SyndieURI uri = action.getURI();
+            String key = IndexFetcher.getFreenetKey(archive, uri);
+            if (key == null) {
+                action.importFailed(IMPORT_BAD_FREENET_URL);
+                continue;
+            }
+            try {
+                slots.acquire();
+            } catch (InterruptedException ie) {
+                action.importFailed(IMPORT_INTERRUPTED);
+                continue;
+            }
+            if (uri.getMessageId() == null)
+                action.setFetchingMeta();
+            else
+                action.setFetchingBody();
+            File dataFile;
+            try {
+                dataFile = SecureFile.createTempFile("fcpget", "dat", _manager.getClient().getTempDir());
+            } catch (IOException ioe) {
+                slots.release();
+                action.importFailed(IMPORT_IOE, ioe);
+                continue;
+            }
+            String id = uri.getScope().toBase64() + '/' + (uri.getMessageId() != null ? uri.getMessageId().toString() : "meta");
+            fcp.get(new FCPConnection.Get(key, id, FCPConnection.getPriorityClass(action.getPriority()),
+                                          action.getMaxSize(), dataFile, new FCPListener(action, importer, slots)));
+        }
+
+        try {
+            if (!slots.tryAcquire(FCP_MAX_PENDING, FCP_MAX_WAIT, TimeUnit.MILLISECONDS))
+                _manager.getUI().debugMessage("Giving up waiting for Freenet, the node will keep trying");
+        } catch (InterruptedException ie) {}
+        fcp.close();
+        importer.finishQueue();
+        importer.complete();
+        return true;
+    }
+
+    /**
+     *  Queue the data for import, or fail the action
+     *  @since 1.107b-1
+     */
+    private class FCPListener implements FCPConnection.GetListener {
+        private final SyncArchive.IncomingAction _action;
+        private final DataImporter _importer;
+        private final Semaphore _slots;
+
+        public FCPListener(SyncArchive.IncomingAction action, DataImporter importer, Semaphore slots) {
+            _action = action;
+            _importer = importer;
+            _slots = slots;
+        }
+
+        public void getComplete(FCPConnection.Get get) {
+            try {
+                long sz = get.getFile().length();
+                _action.setSize(sz, sz);
+                _action.setIsQueuedForProcessing();
+                _importer.enqueueData(_action, get.getFile(), true);
+            } catch (InterruptedException ie) {
+                get.getFile().delete();
+                _action.importFailed(IMPORT_INTERRUPTED);
+            } finally {
+                _slots.release();
+            }
+        }
+
+        public void getFailed(FCPConnection.Get get, String reason) {
+            try {
+                _action.importFailed(reason, null);
+            } finally {
+                _slots.release();
+            }
         }
+    }
+
+    /**
+     *  Copy each file with FileArchive.copy() and queue it for the importer,
+     *  so reading the archive (often a USB stick or a network share)
+     *  overlaps with importing.
+     *  Package private for FileArchiveTest
+     */
+    void fetchFile(SyncArchive archive) {
+        File archiveDir = FileArchive.getArchiveDir(archive.getURL());
 
         long whitelistGroupId = archive.getWhitelistGroupId();
         Set whitelistScopes = _manager.getClient().getReferencedScopes(whitelistGroupId);
 
+        DataImporter importer = new DataImporter(whitelistScopes, archive.getFetchConcurrency());
+        Thread t = new Thread(importer, "Data importer");
+        t.start();
         int actions = archive.getIncomingActionCount();
         for (int i = 0; i < actions; i++) {
             while (!_manager.isOnline())
@@ -209,21 +460,50 @@ class SyncInboundFetcher {
             SyncArchive.IncomingAction action = archive.getIncomingAction(i);
             if (action.getCompletionTime() > 0) continue; // already complete
             //if (action.isPaused()) continue; // dont wanna do it
-            SyndieURI uri = action.getURI();
+            if (!action.setIsExecuting(true)) continue; // someone else is doing it
             
-            File src = null;
+            SyndieURI uri = action.getURI();
+            if (isLocal(uri)) { // fetched concurrently from another archive
+                action.importSuccessful(IMPORT_ALREADY);
+                continue;
+            }
+
+            File src = FileArchive.getFile(archiveDir, uri);
+            if (!src.isFile()) {
+                action.importFailed(IMPORT_FETCH_FAIL, new IOException("Not found: " + src));
+                continue;
+            }
             if (uri.getMessageId() == null)
-                src = new File(new File(archiveDir, uri.getScope().toBase64()), "meta" + Constants.FILENAME_SUFFIX);
+                action.setFetchingMeta();
             else
-                src = new File(new File(archiveDir, uri.getScope().toBase64()), uri.getMessageId().toString() + Constants.FILENAME_SUFFIX);
-        
-            importData(action, src, false, whitelistScopes);
+                action.setFetchingBody();
+            File dataFile = null;
+            try {
+                dataFile = SecureFile.createTempFile("fileget", "dat", _manager.getClient().getTempDir());
+                FileArchive.copy(src, dataFile);
+                long sz = dataFile.length();
+                action.setSize(sz, sz);
+                action.setIsQueuedForProcessing();
+                importer.enqueueData(action, dataFile, true);
+                dataFile = null;
+            } catch (IOException ioe) {
+                action.importFailed(IMPORT_IOE, ioe);
+            } catch (InterruptedException ie) {
+                action.importFailed(IMPORT_INTERRUPTED);
+                break;
+            } finally {
+                if (dataFile != null)
+                    dataFile.delete();
+            }
         }
+        importer.finishQueue();
+        importer.complete();
     }
     
-    private void fetchHTTP(SyncArchive archive) {
-        LinkedBlockingQueue<SyncArchive.IncomingAction> pendingMeta = new LinkedBlockingQueue<SyncArchive.IncomingAction>();
-        LinkedBlockingQueue<SyncArchive.IncomingAction> pendingMsg = new LinkedBlockingQueue<SyncArchive.IncomingAction>();
+    void fetchHTTP(SyncArchive archive) {
+        // most important first, see SyncPriority
+        BlockingQueue<SyncArchive.IncomingAction> pendingMeta = new PriorityBlockingQueue<SyncArchive.IncomingAction>(16, SyncPriority.INCOMING_COMPARATOR);
+        BlockingQueue<SyncArchive.IncomingAction> pendingMsg = new PriorityBlockingQueue<SyncArchive.IncomingAction>(64, SyncPriority.INCOMING_COMPARATOR);
         int actions = archive.getIncomingActionCount();
         for (int i = 0; i < actions; i++) {
             SyncArchive.IncomingAction action = archive.getIncomingAction(i);
@@ -265,18 +545,23 @@ class SyncInboundFetcher {
         else
             archiveURL = archiveURL.substring(0, dir) + '/';
 
+        int cleaned = new FetchSpool(_manager.getClient(), archive.getURL()).clean();
+        if (cleaned > 0)
+            _manager.getUI().debugMessage("Deleted " + cleaned + " stale partial downloads from " + archive);
+
         long whitelistGroupId = archive.getWhitelistGroupId();
         Set<Hash> whitelistScopes = _manager.getClient().getReferencedScopes(whitelistGroupId);
         
         // successful fetches are enqueued in the importer thread so we can import serially without
         // blocking the fetches
-        DataImporter importer = new DataImporter(whitelistScopes);
+        DataImporter importer = new DataImporter(whitelistScopes, archive.getFetchConcurrency());
         Thread t = new Thread(importer, "Data importer");
         t.start();
         
         // fetch all of the meta before any of the messages, as we need the meta for the channels
         // we are importing the messages with (to verify signatures).  within these fetches there
-        // are 5 concurrent fetches running through the individual files to fetch
+        // are up to CONCURRENT_FETCHES concurrent fetches, as allowed by the archive's FetchConcurrency,
+        // running through the individual files to fetch, or through batches of files if the archive supports it
         if (!pendingMeta.isEmpty()) {
             fetchHTTPMeta(archive, pendingMeta, archiveURL, query, importer, whitelistScopes);
             _manager.getUI().debugMessage("meta fetches run, waiting for the queue to finish");
@@ -292,12 +577,13 @@ class SyncInboundFetcher {
         importer.complete();
     }
     
-    private void fetchHTTPMeta(SyncArchive archive, LinkedBlockingQueue<SyncArchive.IncomingAction> actions,
+    private void fetchHTTPMeta(SyncArchive archive, BlockingQueue<SyncArchive.IncomingAction> actions,
                                String archiveURL, String query, DataImporter importer, Set<Hash> whitelistScopes) {
         int cnt = Math.min(actions.size(), CONCURRENT_FETCHES);
         List<Thread> fetchers = new ArrayList(cnt);
+        LinkedBlockingQueue<SyncArchive.IncomingAction> deferred = new LinkedBlockingQueue<SyncArchive.IncomingAction>();
         for (int i = 0; i < cnt; i++) {
-            Thread t = new Thread(new Fetch(archive, actions, archiveURL, query, importer, whitelistScopes), "MetaFetcher " + i + '/' + cnt);
+            Thread t = new Thread(new Fetch(archive, actions, deferred, archiveURL, query, importer, whitelistScopes), "MetaFetcher " + i + '/' + cnt);
             t.start();
             fetchers.add(t);
         }
@@ -307,12 +593,13 @@ class SyncInboundFetcher {
         }
     }
     
-    private void fetchHTTPMsgs(SyncArchive archive, LinkedBlockingQueue<SyncArchive.IncomingAction> actions,
+    private void fetchHTTPMsgs(SyncArchive archive, BlockingQueue<SyncArchive.IncomingAction> actions,
                                String archiveURL, String query, DataImporter importer, Set<Hash> whitelistScopes) {
         int cnt = Math.min(actions.size(), CONCURRENT_FETCHES);
         List<Thread> fetchers = new ArrayList(cnt);
+        LinkedBlockingQueue<SyncArchive.IncomingAction> deferred = new LinkedBlockingQueue<SyncArchive.IncomingAction>();
         for (int i = 0; i < cnt; i++) {
-            Thread t = new Thread(new Fetch(archive, actions, archiveURL, query, importer, whitelistScopes), "MsgFetcher " + i + '/' + cnt);
+            Thread t = new Thread(new Fetch(archive, actions, deferred, archiveURL, query, importer, whitelistScopes), "MsgFetcher " + i + '/' + cnt);
             t.start();
             fetchers.add(t);
         }
@@ -324,20 +611,46 @@ class SyncInboundFetcher {
     
     private class Fetch implements Runnable {
         private final SyncArchive _archive;
-        private final LinkedBlockingQueue<SyncArchive.IncomingAction> _actions;
+        private final BlockingQueue<SyncArchive.IncomingAction> _actions;
+        /** being fetched from another archive, shared by the Fetches for this archive */
+        private final LinkedBlockingQueue<SyncArchive.IncomingAction> _deferred;
+        private final InFlightFetches _inFlight;
+        private final long _started;
         private final String _archiveURL;
         private final String _query;
         private final DataImporter _importer;
         private final Set<Hash> _whitelistScopes;
+        private final FetchConcurrency _concurrency;
+        private final FetchSpool _spool;
+        private final boolean _resumable;
+        private boolean _batch;
+        /** the pull strategy's limit on the size of a post, or -1 @since 1.107b-1 */
+        private final long _maxPerMessage;
         
-        public Fetch(SyncArchive archive, LinkedBlockingQueue<SyncArchive.IncomingAction> actions,
+        /**
+         *  @param deferred those found to be in flight from another archive are put here,
+         *                  to be waited on after the rest
+         */
+        public Fetch(SyncArchive archive, BlockingQueue<SyncArchive.IncomingAction> actions,
+                     LinkedBlockingQueue<SyncArchive.IncomingAction> deferred,
                      String archiveURL, String query, DataImporter importer, Set<Hash> whitelistScopes) {
             _archive = archive;
             _actions = actions;
+            _deferred = deferred;
+            _inFlight = _manager.getInFlightFetches();
+            _started = System.currentTimeMillis();
             _archiveURL = archiveURL;
             _query = query;
             _importer = importer;
             _whitelistScopes = whitelistScopes;
+            _concurrency = archive.getFetchConcurrency();
+            _spool = new FetchSpool(_manager.getClient(), archive.getURL());
+            _resumable = archive.hasRemoteFeature(HTTPServ.FEATURE_RANGE);
+            _batch = archiveURL.startsWith("http://") && archive.hasRemoteFeature(HTTPServ.FEATURE_BATCH);
+            PullStrategy strategy = archive.getPullStrategy();
+            if (strategy == null)
+                strategy = _manager.getDefaultPullStrategy();
+            _maxPerMessage = (strategy != null && strategy.maxKBPerMessage > 0) ? strategy.maxKBPerMessage * 1024L : -1;
         }
 
         public void run() {
@@ -345,61 +658,392 @@ class SyncInboundFetcher {
                 while (!_manager.isOnline())
                     try { Thread.sleep(1000); } catch (InterruptedException ie) {}
                 
+                if (_batch) {
+                    List<SyncArchive.IncomingAction> single = new ArrayList<SyncArchive.IncomingAction>();
+                    List<SyncArchive.IncomingAction> batch = nextBatch(single);
+                    for (SyncArchive.IncomingAction action : single) {
+                        fetch(action);
+                    }
+                    if (batch.isEmpty()) {
+                        if (single.isEmpty() && !fetchDeferred())
+                            return;
+                        continue;
+                    }
+                    try {
+                        _concurrency.acquire();
+                    } catch (InterruptedException ie) {
+                        for (SyncArchive.IncomingAction action : batch) {
+                            action.importFailed(IMPORT_INTERRUPTED, null);
+                        }
+                        return;
+                    }
+                    long start = System.currentTimeMillis();
+                    List<SyncArchive.IncomingAction> failed = fetchBatch(batch);
+                    if (failed.isEmpty()) {
+                        long bytes = 0;
+                        for (SyncArchive.IncomingAction action : batch) {
+                            bytes += action.getReceived();
+                        }
+                        long latency = System.currentTimeMillis() - start;
+                        _concurrency.complete(bytes, latency);
+                        _archive.getMirrorScore().response(latency / batch.size(), true);
+                    } else {
+                        _concurrency.failed();
+                        _archive.getMirrorScore().failed();
+                        // don't try again, fall back to one at a time for the rest
+                        _manager.getUI().debugMessage(Thread.currentThread().getName() + ": batch fetch failed, fetching " + failed.size() + " individually");
+                        _batch = false;
+                        for (SyncArchive.IncomingAction action : failed) {
+                            fetch(action);
+                        }
+                    }
+                    continue;
+                }
+
                 SyncArchive.IncomingAction action = _actions.poll();
-                if (action == null) return;
-                
-                if (action.getCompletionTime() > 0) continue; // already complete
-                //if (action.isPaused()) continue; // dont wanna do it
+                if (action == null) {
+                    if (!fetchDeferred())
+                        return;
+                    continue;
+                }
+                fetch(action);
+            }
+        }
 
-                SyndieURI uri = action.getURI();
+        /**
+         *  Once everything else is done, wait for another archive to fetch
+         *  one that we deferred, and fetch it from here if that failed.
+         *
+         *  @return false if there was nothing deferred
+         */
+        private boolean fetchDeferred() {
+            SyncArchive.IncomingAction action = _deferred.poll();
+            if (action == null)
+                return false;
+            if (action.getCompletionTime() > 0)
+                return true;
+            InFlightFetches.Claim claim;
+            try {
+                claim = _inFlight.claim(action, _started, MAX_DUPLICATE_WAIT);
+            } catch (InterruptedException ie) {
+                action.importFailed(IMPORT_INTERRUPTED, null);
+                return true;
+            }
+            switch (claim) {
+                case FETCHED:
+                    _manager.getUI().debugMessage(Thread.currentThread().getName() + ": fetched from another archive: " + action.getURI());
+                    action.importSuccessful(IMPORT_ALREADY);
+                    break;
+                case CLAIMED:
+                    // failed or never finished elsewhere
+                    fetch(action);
+                    break;
+                case BUSY:
+                default:
+                    action.importFailed("Still being fetched from another archive", null);
+                    break;
+            }
+            return true;
+        }
+
+        /**
+         *  If this archive isn't responding, and others that are syncing now have the URI,
+         *  fail it right away and leave it to them, rather than wait for a timeout.
+         *
+         *  @return true if failed
+         *  @since 1.107b-1
+         */
+        private boolean isDownAndMirrored(SyncArchive.IncomingAction action) {
+            if (!_archive.getMirrorScore().isDown() || !_inFlight.hasOtherCandidate(action))
+                return false;
+            action.importFailed("Archive not responding, left to another archive", null);
+            return true;
+        }
+
+        /**
+         *  Fetch a single URI, into the spool, resuming a previous partial fetch if the archive supports it
+         */
+        private void fetch(SyncArchive.IncomingAction action) {
+            if (action.getCompletionTime() > 0) return; // already complete
+            //if (action.isPaused()) continue; // dont wanna do it
+
+            SyndieURI uri = action.getURI();
+
+            if (isLocal(uri)) { // fetched concurrently from another archive
+                action.importSuccessful(IMPORT_ALREADY);
+                return;
+            }
+
+            if (isDownAndMirrored(action))
+                return;
+
+            if (!_inFlight.tryClaim(action)) {
+                // being fetched from another archive right now
+                _deferred.offer(action);
+                return;
+            }
+
+            try {
+                _concurrency.acquire();
+            } catch (InterruptedException ie) {
+                action.importFailed(IMPORT_INTERRUPTED, null);
+                return;
+            }
+
+            if (uri.getMessageId() == null)
+                action.setFetchingMeta();
+            else
+                action.setFetchingBody();
+
+            String url = _archiveURL + getPath(uri) + _query;
 
-                if (isLocal(uri)) { // fetched concurrently from another archive
+            boolean shouldProxy = _archive.getHTTPProxyHost() != null && _archive.getHTTPProxyHost().length() > 0;
+            if (shouldProxy)
+                _manager.getUI().debugMessage(Thread.currentThread().getName() + ": Fetching [" + url + "] proxy " + _archive.getHTTPProxyHost() + ":" + _archive.getHTTPProxyPort());
+            else
+                _manager.getUI().debugMessage(Thread.currentThread().getName() + ": Fetching [" + url + "]");
+            File dataFile = _spool.getFile(uri);
+            long offset = _resumable ? FetchSpool.getResumeOffset(dataFile) : 0;
+            if (offset <= 0)
+                dataFile.delete();
+            try {
+                EepGet get;
+                if (url.startsWith("https://")) {
+                    if (shouldProxy)
+                        throw new IOException("https with proxy unsupported");
+                    SSLEepGet.SSLState state = _manager.getSSLState();
+                    SSLEepGet sget = new SSLEepGet(I2PAppContext.getGlobalContext(), dataFile.getAbsolutePath(), url, state);
+                    if (state == null)
+                        _manager.setSSLState(sget.getSSLState());
+                    get = sget;
+                } else {
+                    // no retries when resuming, EepGet adds its own Range header on a retry
+                    get = new EepGet(I2PAppContext.getGlobalContext(), _archive.getHTTPProxyHost(), _archive.getHTTPProxyPort(),
+                                     offset > 0 ? 0 : I2P_RETRIES, dataFile.getAbsolutePath(), url);
+                }
+                if (offset > 0) {
+                    // EepGet appends to the output file on a 206, and overwrites it on a 200
+                    get.addHeader("Range", "bytes=" + offset + '-');
+                    _manager.getUI().debugMessage(Thread.currentThread().getName() + ": Resuming [" + url + "] at " + offset);
+                }
+                GetListener lsnr = new GetListener(action, dataFile, _importer, _whitelistScopes, true);
+                get.addStatusListener(lsnr);
+                long start = System.currentTimeMillis();
+                // 1m for headers, 10m total, 60s idle
+                get.fetch(60*1000, 10*60*1000, 60*1000);
+                int code = get.getStatusCode();
+                if (code >= 400) {
+                    // 404, or 416 if what we have doesn't match the file any more
+                    dataFile.delete();
+                }
+                if (code > 0) {
+                    // we got a response, even if it was a 404
+                    long done = lsnr.getDoneTime();
+                    if (done <= 0)
+                        done = System.currentTimeMillis();
+                    _concurrency.complete(action.getReceived(), done - start);
+                    _archive.getMirrorScore().response(done - start, code < 400);
+                } else {
+                    // timeout or connection failure
+                    _concurrency.failed();
+                    _archive.getMirrorScore().failed();
+                }
+                if (lsnr.getDoneTime() <= 0) {
+                    // neither complete nor failed was called, don't leave it in flight
+                    action.importFailed(IMPORT_FETCH_FAIL, null);
+                }
+            } catch (IOException ioe) {
+                _concurrency.cancel();
+                action.importFailed(IMPORT_IOE, ioe);
+            }
+        }
+
+        /**
+         *  Take up to BATCH_MAX_ITEMS or BATCH_MAX_BYTES (as advertised by the index) off the queue.
+         *  Large items, and those partially fetched before, are added to single instead,
+         *  as they can be resumed individually but not in a batch.
+         *
+         *  @param single out parameter, to be fetched individually
+         *  @return non-null, empty when the queue is empty or single is full
+         */
+        private List<SyncArchive.IncomingAction> nextBatch(List<SyncArchive.IncomingAction> single) {
+            List<SyncArchive.IncomingAction> rv = new ArrayList<SyncArchive.IncomingAction>();
+            long size = 0;
+            while (rv.size() < BATCH_MAX_ITEMS && size < BATCH_MAX_BYTES && single.size() < BATCH_MAX_ITEMS) {
+                SyncArchive.IncomingAction action = _actions.poll();
+                if (action == null)
+                    break;
+                if (action.getCompletionTime() > 0) continue; // already complete
+                if (isLocal(action.getURI())) { // fetched concurrently from another archive
                     action.importSuccessful(IMPORT_ALREADY);
                     continue;
                 }
+                if (isDownAndMirrored(action))
+                    continue;
+                if (!_inFlight.tryClaim(action)) {
+                    // being fetched from another archive right now
+                    _deferred.offer(action);
+                    continue;
+                }
+                if (action.getMaxSize() > BATCH_MAX_ITEM_BYTES ||
+                    (_resumable && _spool.getFile(action.getURI()).exists())) {
+                    single.add(action);
+                    continue;
+                }
+                rv.add(action);
+                if (action.getMaxSize() > 0)
+                    size += action.getMaxSize();
+            }
+            return rv;
+        }
 
+        /**
+         *  The most we'll take for the action in a batch: the size bound from the index,
+         *  or our pull strategy's limit for a post, whichever is smaller.
+         *
+         *  @return -1 if neither is known
+         *  @since 1.107b-1
+         */
+        private long getExpectedMaxSize(SyncArchive.IncomingAction action) {
+            long rv = action.getMaxSize();
+            if (_maxPerMessage > 0 && action.getURI().getMessageId() != null && (rv <= 0 || _maxPerMessage < rv))
+                rv = _maxPerMessage;
+            return rv;
+        }
+
+        /**
+         *  Fetch many URIs with a single POST to the archive's batch.cgi,
+         *  and queue each one for import as soon as it is received.
+         *  See HTTPServ.handleBatch() for the format.
+         *  The batch is abandoned at the first item larger than getExpectedMaxSize(),
+         *  or than BATCH_MAX_BYTES if that isn't known.
+         *
+         *  @return the actions that were not handled because the batch request failed, empty on success
+         */
+        private List<SyncArchive.IncomingAction> fetchBatch(List<SyncArchive.IncomingAction> actions) {
+            StringBuilder req = new StringBuilder(actions.size() * 64);
+            for (SyncArchive.IncomingAction action : actions) {
+                SyndieURI uri = action.getURI();
+                req.append(getPath(uri)).append('\n');
                 if (uri.getMessageId() == null)
                     action.setFetchingMeta();
                 else
                     action.setFetchingBody();
+            }
+            byte body[] = DataHelper.getUTF8(req.toString());
+            String url = _archiveURL + HTTPServ.BATCH_CGI + _query;
+            boolean shouldProxy = _archive.getHTTPProxyHost() != null && _archive.getHTTPProxyHost().length() > 0 &&
+                                  _archive.getHTTPProxyPort() > 0;
+            _manager.getUI().debugMessage(Thread.currentThread().getName() + ": Batch fetching " + actions.size() + " from [" + url + "]" +
+                                          (shouldProxy ? " proxy " + _archive.getHTTPProxyHost() + ":" + _archive.getHTTPProxyPort() : ""));
+            int done = 0;
+            Socket s = null;
+            SocketTimeout timeout = null;
+            File dataFile = null;
+            try {
+                URI u = new URI(url);
+                if (shouldProxy) {
+                    s = new Socket(_archive.getHTTPProxyHost(), _archive.getHTTPProxyPort());
+                } else {
+                    int port = u.getPort();
+                    if (port <= 0)
+                        port = 80;
+                    s = new Socket(u.getHost(), port);
+                }
+                timeout = new SocketTimeout(s, 60*1000);
+                OutputStream out = s.getOutputStream();
+                out.write(DataHelper.getUTF8("POST " + url + " HTTP/1.0\r\nHost: " + u.getHost() +
+                                             "\r\nConnection: close\r\nContent-length: " + body.length + "\r\n\r\n"));
+                out.write(body);
+                out.flush();
 
-                String url = _archiveURL;
-                url = url + uri.getScope().toBase64() + '/';
-                if (uri.getMessageId() == null)
-                    url = url + "meta" + Constants.FILENAME_SUFFIX;
-                else
-                    url = url + uri.getMessageId().toString() + Constants.FILENAME_SUFFIX;
-                url = url + _query;
+                InputStream in = s.getInputStream();
+                String line = DataHelper.readLine(in);
+                int code = SyncOutboundPusher.getHTTPResponseCode(line);
+                if (code != 200) {
+                    _manager.getUI().debugMessage("Batch fetch from [" + url + "] failed: " + line);
+                    return actions;
+                }
+                while ( (line = DataHelper.readLine(in)) != null) {
+                    if (line.trim().length() <= 0)
+                        break;
+                }
+                if (line == null)
+                    return actions;
+                timeout.resetTimer();
 
-                boolean shouldProxy = _archive.getHTTPProxyHost() != null && _archive.getHTTPProxyHost().length() > 0;
-                if (shouldProxy)
-                    _manager.getUI().debugMessage(Thread.currentThread().getName() + ": Fetching [" + url + "] proxy " + _archive.getHTTPProxyHost() + ":" + _archive.getHTTPProxyPort());
-                else
-                    _manager.getUI().debugMessage(Thread.currentThread().getName() + ": Fetching [" + url + "]");
-                try {
-                    File dataFile = SecureFile.createTempFile("httpget", "dat", _manager.getClient().getTempDir());
-                    EepGet get;
-                    if (url.startsWith("https://")) {
-                        if (shouldProxy)
-                            throw new IOException("https with proxy unsupported");
-                        SSLEepGet.SSLState state = _manager.getSSLState();
-                        SSLEepGet sget = new SSLEepGet(I2PAppContext.getGlobalContext(), dataFile.getAbsolutePath(), url, state);
-                        if (state == null)
-                            _manager.setSSLState(sget.getSSLState());
-                        get = sget;
-                    } else {
-                        get = new EepGet(I2PAppContext.getGlobalContext(), _archive.getHTTPProxyHost(), _archive.getHTTPProxyPort(), I2P_RETRIES, dataFile.getAbsolutePath(), url);
+                byte buf[] = new byte[4096];
+                for ( ; done < actions.size(); done++) {
+                    SyncArchive.IncomingAction action = actions.get(done);
+                    int status = (int) DataHelper.readLong(in, 1);
+                    long sz = DataHelper.readLong(in, 4);
+                    if (status != HTTPServ.BATCH_OK) {
+                        action.importFailed(IMPORT_FETCH_FAIL, null);
+                        continue;
                     }
-                    GetListener lsnr = new GetListener(action, dataFile, _importer, _whitelistScopes);
-                    get.addStatusListener(lsnr);
-                    // 1m for headers, 10m total, 60s idle
-                    get.fetch(60*1000, 10*60*1000, 60*1000);
-                } catch (IOException ioe) {
-                    action.importFailed(IMPORT_IOE, ioe);
+                    // don't take the server's word for the size, there's no hash to check it against
+                    long max = getExpectedMaxSize(action);
+                    if (sz > (max > 0 ? max : BATCH_MAX_BYTES)) {
+                        if (max > 0) {
+                            // bigger than the index said, don't try it again
+                            action.importFailed(IMPORT_FETCH_FAIL, new IOException("Size " + sz + " larger than expected (" + max + ")"));
+                            done++;
+                        }
+                        // else an unexpectedly large metadata file, left for a single fetch
+                        throw new IOException("Batch item too large (" + sz + ") at " + action.getURI());
+                    }
+                    dataFile = SecureFile.createTempFile("httpget", "dat", _manager.getClient().getTempDir());
+                    OutputStream fos = new SecureFileOutputStream(dataFile);
+                    long rcvd = 0;
+                    try {
+                        while (rcvd < sz) {
+                            int read = in.read(buf, 0, (int) Math.min(buf.length, sz - rcvd));
+                            if (read == -1)
+                                throw new IOException("Batch truncated at " + action.getURI());
+                            fos.write(buf, 0, read);
+                            rcvd += read;
+                            TokenBucket.consume(TokenBucket.GLOBAL_INBOUND, _archive.getInboundBucket(), read);
+                            timeout.resetTimer();
+                            action.setSize(rcvd, sz);
+                        }
+                    } finally {
+                        fos.close();
+                    }
+                    action.setIsQueuedForProcessing();
+                    _importer.enqueueData(action, dataFile, true);
+                    dataFile = null;
                 }
+                _manager.getUI().debugMessage("Batch fetch complete [" + url + "] for " + done);
+                return Collections.emptyList();
+            } catch (URISyntaxException use) {
+                _manager.getUI().debugMessage("Batch fetch failed [" + url + "]", use);
+            } catch (DataFormatException dfe) {
+                _manager.getUI().debugMessage("Batch fetch failed [" + url + "]", dfe);
+            } catch (IOException ioe) {
+                _manager.getUI().debugMessage("Batch fetch failed [" + url + "] after " + done, ioe);
+            } catch (InterruptedException ie) {
+                _manager.getUI().debugMessage("Batch fetch interrupted [" + url + "] after " + done);
+            } finally {
+                if (dataFile != null)
+                    dataFile.delete();
+                if (s != null) try { s.close(); } catch (IOException ioe) {}
+                if (timeout != null) timeout.cancel();
             }
+            return new ArrayList<SyncArchive.IncomingAction>(actions.subList(done, actions.size()));
         }
     }
+
+    /**
+     *  @return "$scope/meta.syndie" or "$scope/$messageId.syndie"
+     *  @since 1.107b-1
+     */
+    private static String getPath(SyndieURI uri) {
+        String path = uri.getScope().toBase64() + '/';
+        if (uri.getMessageId() == null)
+            return path + "meta" + Constants.FILENAME_SUFFIX;
+        else
+            return path + uri.getMessageId().toString() + Constants.FILENAME_SUFFIX;
+    }
     
     private boolean isLocal(SyndieURI uri) {
         if (uri.getMessageId() != null) {
@@ -416,16 +1060,43 @@ class SyncInboundFetcher {
         private final File _dataFile;
         private Exception _err;
         private final Set<Hash> _whitelistScopes;
+        private volatile long _doneTime;
+        private final boolean _spooled;
+        private final FetchSpool.Expected _expected;
 
-        public GetListener(SyncArchive.IncomingAction action, File dataFile, DataImporter importer, Set<Hash> whitelistScopes) {
+        /**
+         *  @param spooled if true, dataFile is in the FetchSpool; verify it before import, and keep it on failure for resuming.
+         *                 if false, it is a temp file, deleted on failure.
+         */
+        public GetListener(SyncArchive.IncomingAction action, File dataFile, DataImporter importer, Set<Hash> whitelistScopes,
+                           boolean spooled) {
             _importer = importer;
             _incomingAction = action;
             _dataFile = dataFile;
             _whitelistScopes = whitelistScopes;
+            _spooled = spooled;
+            _expected = spooled ? new FetchSpool.Expected() : null;
         }
 
+        /**
+         *  When the transfer completed or failed, before any import
+         *  @return 0 if not yet
+         *  @since 1.107b-1
+         */
+        public long getDoneTime() { return _doneTime; }
+
         public void transferComplete(long alreadyTransferred, long bytesTransferred, long bytesRemaining, String url, String outputFile, boolean notModified) {
+            _doneTime = System.currentTimeMillis();
             _manager.getUI().debugMessage("Fetch data complete [" + url + "] after " + bytesTransferred);
+            if (_spooled) {
+                String err = FetchSpool.verify(_dataFile, _expected, _incomingAction.getMaxSize());
+                if (err != null) {
+                    _manager.getUI().debugMessage("Fetch data bad [" + url + "]: " + err);
+                    _dataFile.delete();
+                    _incomingAction.importFailed(IMPORT_FETCH_FAIL, new IOException(err));
+                    return;
+                }
+            }
             if (_importer != null) {
                 try {
                     _incomingAction.setIsQueuedForProcessing();
@@ -445,7 +1116,11 @@ class SyncInboundFetcher {
             _err = cause;
         }
         public void transferFailed(String url, long bytesTransferred, long bytesRemaining, int currentAttempt) {
+            _doneTime = System.currentTimeMillis();
             _manager.getUI().debugMessage("Fetch data totally failed [" + url + "] after " + bytesTransferred + " and " + currentAttempt + " attempts");
+            // keep what we got in the spool for next time
+            if (!_spooled)
+                _dataFile.delete();
             _incomingAction.importFailed(IMPORT_FETCH_FAIL, _err);
         }
 
@@ -454,9 +1129,15 @@ class SyncInboundFetcher {
             long rcvd = alreadyTransferred + currentWrite;
             long total = bytesRemaining >= 0 ? rcvd + bytesRemaining : -1;
             _incomingAction.setSize(rcvd, total);
+            // called from the EepGet read loop, so this throttles the download
+            TokenBucket.consume(TokenBucket.GLOBAL_INBOUND, _incomingAction.getArchive().getInboundBucket(), currentWrite);
+        }
+
+        public void headerReceived(String url, int currentAttempt, String key, String val) {
+            if (_expected != null)
+                _expected.headerReceived(key, val);
         }
 
-        public void headerReceived(String url, int currentAttempt, String key, String val) {}
         public void attempting(String url) {
             //_manager.getUI().debugMessage("Fetch data attempting [" + url + "]...");
         }
@@ -477,11 +1158,15 @@ class SyncInboundFetcher {
         private final LinkedBlockingQueue<ImportItem> _items;
         private volatile boolean _complete;
         private Set<Hash> _whitelistScopes;
-        
+        private final FetchConcurrency _concurrency;
 
-        public DataImporter(Set<Hash> whitelistScopes) { 
+        /**
+         *  @param concurrency notified when the queue is full
+         */
+        public DataImporter(Set<Hash> whitelistScopes, FetchConcurrency concurrency) { 
             _items = new LinkedBlockingQueue<ImportItem>(MAX_IMPORT_QUEUE);
             _whitelistScopes = whitelistScopes;
+            _concurrency = concurrency;
         }
 
         public Set<Hash> getWhitelistScopes() { return _whitelistScopes; }
@@ -489,7 +1174,12 @@ class SyncInboundFetcher {
         /** BLOCKING if the queue is full */
         public void enqueueData(SyncArchive.IncomingAction action, File datafile, boolean delete) throws InterruptedException {
             _manager.getUI().debugMessage(Thread.currentThread().getName() + ": enqueueing import from " + datafile.toString());
-            _items.put(new ImportItem(action, datafile, delete));
+            ImportItem item = new ImportItem(action, datafile, delete);
+            if (!_items.offer(item)) {
+                // the fetchers are ahead of the importer
+                _concurrency.backPressure();
+                _items.put(item);
+            }
         }
         
         public void complete() {
@@ -535,7 +1225,8 @@ class SyncInboundFetcher {
         }
     }
     
-    private void importData(SyncArchive.IncomingAction action, File datafile, boolean delete, Set<Hash> whitelistScopes) {
+    /** package private for SyncInboundFetcherTest */
+    void importData(SyncArchive.IncomingAction action, File datafile, boolean delete, Set<Hash> whitelistScopes) {
         Importer imp = new Importer(_manager.getClient());
         InputStream src = null;
         try {
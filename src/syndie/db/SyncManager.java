@@ -43,6 +43,12 @@ public class SyncManager {
     
     private SSLState _sslState;
     private final Object _sslStateLock = new Object();
+    private final InFlightFetches _inFlight = new InFlightFetches();
+    private volatile SyncPriority _priority;
+
+    /** nym prefs, KBps, for all archives @since 1.107b-1 */
+    private static final String PROP_MAX_IN_KBPS = "syndicate.maxInKBps";
+    private static final String PROP_MAX_OUT_KBPS = "syndicate.maxOutKBps";
 
     private SyncManager() {
         _archives = new ArrayList<SyncArchive>();
@@ -91,6 +97,26 @@ public class SyncManager {
     
     UI getUI() { return _ui; }
     DBClient getClient() { return _client; }
+
+    /**
+     *  The URIs being fetched from any archive
+     *  @since 1.107b-1
+     */
+    InFlightFetches getInFlightFetches() { return _inFlight; }
+
+    /**
+     *  For ordering the sync actions, refreshed every few minutes
+     *  @since 1.107b-1
+     */
+    SyncPriority getSyncPriority() {
+        SyncPriority rv = _priority;
+        if (rv == null || rv.isStale()) {
+            rv = new SyncPriority(_client);
+            _ui.debugMessage(rv.toString());
+            _priority = rv;
+        }
+        return rv;
+    }
     
     void deleted(SyncArchive archive) {
         synchronized(_listeners) {
@@ -240,8 +266,60 @@ public class SyncManager {
         PushStrategy push = new PushStrategy(strat);
         _ui.debugMessage("db push strategy: " + push);
         _defaultPushStrategy = push;
+
+        TokenBucket.GLOBAL_INBOUND.setRate(getKBps(prefs, PROP_MAX_IN_KBPS) * 1024);
+        TokenBucket.GLOBAL_OUTBOUND.setRate(getKBps(prefs, PROP_MAX_OUT_KBPS) * 1024);
+        _ui.debugMessage("bandwidth limits: " + TokenBucket.GLOBAL_INBOUND + "; " + TokenBucket.GLOBAL_OUTBOUND);
+    }
+
+    /** @since 1.107b-1 */
+    private static int getKBps(Properties prefs, String prop) {
+        String val = prefs.getProperty(prop);
+        if (val == null)
+            return -1;
+        try {
+            return Integer.parseInt(val);
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
     }
 
+    /**
+     *  The limit on all syncing, across all archives, in each direction.
+     *  Outbound includes responses from the HTTP server.
+     *
+     *  @param inKBps less than 1 for unlimited
+     *  @param outKBps less than 1 for unlimited
+     *  @since 1.107b-1
+     */
+    public void setBandwidthLimits(int inKBps, int outKBps) {
+        TokenBucket.GLOBAL_INBOUND.setRate(inKBps * 1024);
+        TokenBucket.GLOBAL_OUTBOUND.setRate(outKBps * 1024);
+        if (!_client.isLoggedIn()) return;
+        Properties prefs = _client.getNymPrefs();
+        if (inKBps > 0)
+            prefs.setProperty(PROP_MAX_IN_KBPS, Integer.toString(inKBps));
+        else
+            prefs.remove(PROP_MAX_IN_KBPS);
+        if (outKBps > 0)
+            prefs.setProperty(PROP_MAX_OUT_KBPS, Integer.toString(outKBps));
+        else
+            prefs.remove(PROP_MAX_OUT_KBPS);
+        _client.setNymPrefs(prefs);
+    }
+
+    /** @return less than 1 for unlimited @since 1.107b-1 */
+    public int getMaxInboundKBps() { return TokenBucket.GLOBAL_INBOUND.getRate() / 1024; }
+
+    /** @return less than 1 for unlimited @since 1.107b-1 */
+    public int getMaxOutboundKBps() { return TokenBucket.GLOBAL_OUTBOUND.getRate() / 1024; }
+
+    /** @return bytes since startup @since 1.107b-1 */
+    public long getTotalInbound() { return TokenBucket.GLOBAL_INBOUND.getTotal(); }
+
+    /** @return bytes since startup, including the HTTP server @since 1.107b-1 */
+    public long getTotalOutbound() { return TokenBucket.GLOBAL_OUTBOUND.getTotal(); }
+
     private void saveDefaultStrategies() {
         Properties prefs = _client.getNymPrefs();
         if (_defaultPushStrategy != null)
@@ -0,0 +1,312 @@
+package syndie.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.i2p.data.DataHelper;
+
+import syndie.util.DateTime;
+
+/**
+ *  Timing and counts for one sync with one archive, from the start of the
+ *  index fetch until the pulls and pushes are done, so we can tell which
+ *  archives are slow, and whether it's the network or our importer.
+ *
+ *  The current one is updated by SyncArchive as the sync goes along.
+ *  The last MAX_HISTORY of each archive are kept in the nymArchiveSyncHistory table,
+ *  oldest dropped first.
+ *
+ *  @since 1.107b-1
+ */
+public class SyncMetrics {
+    private final long _start;
+    private long _end;
+    private boolean _success;
+    private long _indexFetchTime;
+    private long _indexSize;
+    private int _offered;
+    private int _selected;
+    private int _fetched;
+    private int _imported;
+    private int _fetchFailed;
+    private int _importFailed;
+    private int _cancelled;
+    private int _pushed;
+    private int _pushFailed;
+    private int _pushSuppressed;
+    private long _bytesIn;
+    private long _bytesOut;
+    private long _fetchLatency;
+    private long _importQueueTime;
+
+    /** per archive */
+    static final int MAX_HISTORY = 20;
+
+    SyncMetrics(long start) {
+        _start = start;
+        _indexFetchTime = -1;
+        _indexSize = -1;
+    }
+
+    /** the index was fetched (or was not modified) */
+    synchronized void indexFetched(long size, int offered, int selected) {
+        _indexFetchTime = System.currentTimeMillis() - _start;
+        _indexSize = size;
+        _offered = offered;
+        _selected = selected;
+    }
+
+    /**
+     *  A fetch completed and the data was handed to the importer
+     *  @param latency from the start of the fetch
+     */
+    synchronized void fetched(long latency) {
+        _fetched++;
+        _fetchLatency += latency;
+    }
+
+    /** @param queueTime time spent waiting for the importer */
+    synchronized void importStarted(long queueTime) {
+        _importQueueTime += queueTime;
+    }
+
+    synchronized void imported() { _imported++; }
+
+    /** could not be fetched from the archive */
+    synchronized void fetchFailed() { _fetchFailed++; }
+
+    /** fetched, but not importable, or rejected */
+    synchronized void importFailed() { _importFailed++; }
+
+    /** stopped or interrupted before it was done */
+    synchronized void cancelled() { _cancelled++; }
+
+    /** posts left out of the push because they were pushed recently, see PushLog */
+    synchronized void pushSuppressed(int count) { _pushSuppressed = count; }
+
+    synchronized void pushed(boolean ok) {
+        if (ok)
+            _pushed++;
+        else
+            _pushFailed++;
+    }
+
+    /** @param bytesIn including the index */
+    synchronized void finish(boolean success, long bytesIn, long bytesOut) {
+        _end = System.currentTimeMillis();
+        _success = success;
+        _bytesIn = bytesIn;
+        _bytesOut = bytesOut;
+    }
+
+    public synchronized long getStartTime() { return _start; }
+    /** @return 0 if not finished */
+    public synchronized long getEndTime() { return _end; }
+    /** @return time so far if not finished */
+    public synchronized long getDuration() { return (_end > 0 ? _end : System.currentTimeMillis()) - _start; }
+    public synchronized boolean isFinished() { return _end > 0; }
+    /** @return false if the index fetch failed or nothing could be fetched */
+    public synchronized boolean getSuccess() { return _success; }
+    /** @return -1 if not fetched */
+    public synchronized long getIndexFetchTime() { return _indexFetchTime; }
+    /** @return -1 if not fetched, 0 if not modified */
+    public synchronized long getIndexSize() { return _indexSize; }
+    /** posts and metadata in the index */
+    public synchronized int getOffered() { return _offered; }
+    /** posts and metadata we decided to pull */
+    public synchronized int getSelected() { return _selected; }
+    public synchronized int getFetched() { return _fetched; }
+    public synchronized int getImported() { return _imported; }
+    public synchronized int getFetchFailed() { return _fetchFailed; }
+    public synchronized int getImportFailed() { return _importFailed; }
+    public synchronized int getCancelled() { return _cancelled; }
+    public synchronized int getPushed() { return _pushed; }
+    public synchronized int getPushFailed() { return _pushFailed; }
+    public synchronized int getPushSuppressed() { return _pushSuppressed; }
+    public synchronized long getBytesIn() { return _bytesIn; }
+    public synchronized long getBytesOut() { return _bytesOut; }
+    /** @return 0 if none fetched */
+    public synchronized long getAverageFetchLatency() { return _fetched > 0 ? _fetchLatency / _fetched : 0; }
+    /** total time fetched data waited for the importer */
+    public synchronized long getImportQueueTime() { return _importQueueTime; }
+
+    private static final String SQL_INSERT = "INSERT INTO nymArchiveSyncHistory (nymId, name, syncStart, syncEnd, success, " +
+            "indexFetchTime, indexSize, offered, selected, fetched, imported, fetchFailed, importFailed, cancelled, " +
+            "pushed, pushFailed, bytesIn, bytesOut, fetchLatency, importQueueTime, pushSuppressed) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_GET = "SELECT syncStart, syncEnd, success, " +
+            "indexFetchTime, indexSize, offered, selected, fetched, imported, fetchFailed, importFailed, cancelled, " +
+            "pushed, pushFailed, bytesIn, bytesOut, fetchLatency, importQueueTime, pushSuppressed " +
+            "FROM nymArchiveSyncHistory WHERE nymId = ? AND name = ? ORDER BY syncStart DESC";
+    private static final String SQL_TRIM = "DELETE FROM nymArchiveSyncHistory WHERE nymId = ? AND name = ? AND syncStart <= ?";
+    private static final String SQL_DELETE = "DELETE FROM nymArchiveSyncHistory WHERE nymId = ? AND name = ?";
+    private static final String SQL_RENAME = "UPDATE nymArchiveSyncHistory SET name = ? WHERE nymId = ? AND name = ?";
+
+    /**
+     *  Add a finished sync to the archive's history, and drop the oldest
+     */
+    static void store(DBClient client, String archiveName, SyncMetrics m) {
+        PreparedStatement stmt = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_INSERT);
+            synchronized (m) {
+                stmt.setLong(1, client.getLoggedInNymId());
+                stmt.setString(2, archiveName);
+                stmt.setTimestamp(3, new Timestamp(m._start));
+                stmt.setTimestamp(4, new Timestamp(m._end));
+                stmt.setBoolean(5, m._success);
+                stmt.setLong(6, m._indexFetchTime);
+                stmt.setLong(7, m._indexSize);
+                stmt.setInt(8, m._offered);
+                stmt.setInt(9, m._selected);
+                stmt.setInt(10, m._fetched);
+                stmt.setInt(11, m._imported);
+                stmt.setInt(12, m._fetchFailed);
+                stmt.setInt(13, m._importFailed);
+                stmt.setInt(14, m._cancelled);
+                stmt.setInt(15, m._pushed);
+                stmt.setInt(16, m._pushFailed);
+                stmt.setLong(17, m._bytesIn);
+                stmt.setLong(18, m._bytesOut);
+                stmt.setLong(19, m._fetchLatency);
+                stmt.setLong(20, m._importQueueTime);
+                stmt.setInt(21, m._pushSuppressed);
+            }
+            stmt.executeUpdate();
+            stmt.close();
+            stmt = null;
+
+            List<SyncMetrics> history = load(client, archiveName);
+            if (history.size() > MAX_HISTORY) {
+                stmt = client.con().prepareStatement(SQL_TRIM);
+                stmt.setLong(1, client.getLoggedInNymId());
+                stmt.setString(2, archiveName);
+                stmt.setTimestamp(3, new Timestamp(history.get(MAX_HISTORY).getStartTime()));
+                stmt.executeUpdate();
+            }
+        } catch (SQLException se) {
+            client.logError("Error storing the archive sync history", se);
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    /**
+     *  @return newest first, may be empty
+     */
+    static List<SyncMetrics> load(DBClient client, String archiveName) {
+        List<SyncMetrics> rv = new ArrayList<SyncMetrics>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_GET);
+            stmt.setLong(1, client.getLoggedInNymId());
+            stmt.setString(2, archiveName);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                Timestamp start = rs.getTimestamp(1);
+                if (start == null)
+                    continue;
+                SyncMetrics m = new SyncMetrics(start.getTime());
+                Timestamp end = rs.getTimestamp(2);
+                m._end = end != null ? end.getTime() : start.getTime();
+                m._success = rs.getBoolean(3);
+                m._indexFetchTime = rs.getLong(4);
+                m._indexSize = rs.getLong(5);
+                m._offered = rs.getInt(6);
+                m._selected = rs.getInt(7);
+                m._fetched = rs.getInt(8);
+                m._imported = rs.getInt(9);
+                m._fetchFailed = rs.getInt(10);
+                m._importFailed = rs.getInt(11);
+                m._cancelled = rs.getInt(12);
+                m._pushed = rs.getInt(13);
+                m._pushFailed = rs.getInt(14);
+                m._bytesIn = rs.getLong(15);
+                m._bytesOut = rs.getLong(16);
+                m._fetchLatency = rs.getLong(17);
+                m._importQueueTime = rs.getLong(18);
+                m._pushSuppressed = rs.getInt(19);
+                rv.add(m);
+            }
+        } catch (SQLException se) {
+            client.logError("Error loading the archive sync history", se);
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return rv;
+    }
+
+    static void delete(DBClient client, String archiveName) {
+        PreparedStatement stmt = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_DELETE);
+            stmt.setLong(1, client.getLoggedInNymId());
+            stmt.setString(2, archiveName);
+            stmt.executeUpdate();
+        } catch (SQLException se) {
+            client.logError("Error deleting the archive sync history", se);
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    static void rename(DBClient client, String oldName, String newName) {
+        PreparedStatement stmt = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_RENAME);
+            stmt.setString(1, newName);
+            stmt.setLong(2, client.getLoggedInNymId());
+            stmt.setString(3, oldName);
+            stmt.executeUpdate();
+        } catch (SQLException se) {
+            client.logError("Error renaming the archive sync history", se);
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    /**
+     *  One line, for the CLI and the logs
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder buf = new StringBuilder(128);
+        buf.append(DateTime.getDateTime(_start));
+        if (_end <= 0)
+            buf.append(" (in progress)");
+        else if (!_success)
+            buf.append(" (failed)");
+        buf.append(" took ").append(DataHelper.formatDuration(getDuration()));
+        if (_indexFetchTime >= 0) {
+            buf.append("; index ");
+            if (_indexSize == 0)
+                buf.append("not modified");
+            else if (_indexSize > 0)
+                buf.append(_indexSize / 1024).append("KB");
+            buf.append(" in ").append(DataHelper.formatDuration(_indexFetchTime));
+        }
+        buf.append("; offered ").append(_offered)
+           .append(" selected ").append(_selected)
+           .append(" fetched ").append(_fetched)
+           .append(" imported ").append(_imported);
+        if (_fetchFailed > 0 || _importFailed > 0 || _cancelled > 0)
+            buf.append("; failed: fetch ").append(_fetchFailed)
+               .append(" import ").append(_importFailed)
+               .append(" cancelled ").append(_cancelled);
+        if (_pushed > 0 || _pushFailed > 0 || _pushSuppressed > 0)
+            buf.append("; pushed ").append(_pushed).append(" failed ").append(_pushFailed)
+               .append(" skipped as recently pushed ").append(_pushSuppressed);
+        buf.append("; in ").append(_bytesIn / 1024).append("KB out ").append(_bytesOut / 1024).append("KB");
+        if (_fetched > 0)
+            buf.append("; avg fetch ").append(getAverageFetchLatency()).append("ms");
+        if (_importQueueTime > 0)
+            buf.append("; waited for importer ").append(DataHelper.formatDuration(_importQueueTime));
+        return buf.toString();
+    }
+}
@@ -13,12 +13,15 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 
 import net.i2p.data.DataFormatException;
 import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.LHMCache;
 import net.i2p.util.SimpleTimer2;
 
 import syndie.Constants;
@@ -31,9 +34,14 @@ public class SyncOutboundPusher {
     private final SyncManager _manager;
     private static final Map<Runner, SyncArchive> _runnerToArchive = new HashMap<Runner, SyncArchive>();
     private volatile boolean _die;
+    /** content hash to stamp, so retries and other archives don't mint again @since 1.107b-1 */
+    private final Map<Hash, byte[]> _stamps = new LHMCache<Hash, byte[]>(MAX_STAMPS);
     
     /** pushes are bundled so we don't need as many threads as for pulls */
     private static final int THREADS = 2;
+    private static final int MAX_STAMPS = 256;
+    /** give up on a stamp after this long, and try again next sync */
+    private static final long MAX_MINT_TIME = 10*60*1000;
     
     public SyncOutboundPusher(SyncManager mgr) {
         _manager = mgr;
@@ -250,29 +258,71 @@ public class SyncOutboundPusher {
         return error;
     }
         
-    private void pushFile(SyncArchive archive) {
+    /**
+     *  Copy our files into the archive directory with FileArchive.copy(),
+     *  skipping any already there with the same size.
+     *  The archive's shared index, if any, is not updated.
+     *  Package private for FileArchiveTest
+     */
+    void pushFile(SyncArchive archive) {
+        File archiveDir = FileArchive.getArchiveDir(archive.getURL());
+        File ourDir = _manager.getClient().getArchiveDir();
         int actions = archive.getOutgoingActionCount();
         for (int i = 0; i < actions; i++) {
             SyncArchive.OutgoingAction action = archive.getOutgoingAction(i);
             if (action.getCompletionTime() > 0) continue; // already complete
             if (action.isPaused()) continue; // dont wanna do it
+            if (!action.setIsExecuting(true)) continue; // someone else is doing it
             
-            action.pushFailed("Push to files not supported", null);
+            SyndieURI uri = action.getURI();
+            if (uri.getMessageId() == null)
+                action.setPushingMeta();
+            else
+                action.setPushingBody();
+            File src = FileArchive.getFile(ourDir, uri);
+            File dest = FileArchive.getFile(archiveDir, uri);
+            if (!src.isFile()) {
+                action.pushFailed("Not in our archive: " + src, null);
+                continue;
+            }
+            try {
+                if (!FileArchive.isSame(src, dest))
+                    FileArchive.copy(src, dest);
+                action.pushOK();
+            } catch (IOException ioe) {
+                action.pushFailed("Error copying to " + dest, ioe);
+            }
         }
     }
     
     /** send HTTP posts in batches of 100KB */
     private static final int HTTP_SEND_BATCH_SIZE = 100*1024;
+    /** and at most this many items per post @since 1.107b-1 */
+    private static final int HTTP_SEND_BATCH_ITEMS = 50;
+    /** tries for the unacknowledged items in a batch before giving up on the archive until the next sync @since 1.107b-1 */
+    private static final int HTTP_SEND_ATTEMPTS = 3;
+    private static final long HTTP_RETRY_DELAY = 5*1000;
+    private static final String ERR_DENIED = "access denied (archive may not be accepting pushes)";
 
-    private void pushHTTP(SyncArchive archive) {
+    /**
+     *  Push in bounded batches. Each item the archive acknowledges is complete
+     *  even if the rest of the batch fails, so a dropped connection only
+     *  costs the unacknowledged part of one batch.
+     */
+    void pushHTTP(SyncArchive archive) {
         while (true) {
             int actions = archive.getOutgoingActionCount();
             if (actions <= 0) return;
             
-            List<SyncArchive.OutgoingAction> actionsPushed = new ArrayList();
-            int len = 0;
+            // most important first, see SyncPriority
+            List<SyncArchive.OutgoingAction> sorted = new ArrayList<SyncArchive.OutgoingAction>(actions);
             for (int i = 0; i < actions; i++) {
-                SyncArchive.OutgoingAction action = archive.getOutgoingAction(i);
+                sorted.add(archive.getOutgoingAction(i));
+            }
+            Collections.sort(sorted, SyncPriority.OUTGOING_COMPARATOR);
+            List<SyncArchive.OutgoingAction> actionsPushed = new ArrayList<SyncArchive.OutgoingAction>();
+            int len = 0;
+            for (SyncArchive.OutgoingAction action : sorted) {
                 if (action.getCompletionTime() > 0) continue; // already complete
                 if (action.isPaused()) continue; // dont wanna do it
                 if (!action.setIsExecuting(true)) continue; // someone else is doing it
@@ -281,14 +331,27 @@ public class SyncOutboundPusher {
 
                 actionsPushed.add(action);
                 
-                if (len > HTTP_SEND_BATCH_SIZE)
+                if (len > HTTP_SEND_BATCH_SIZE || actionsPushed.size() >= HTTP_SEND_BATCH_ITEMS)
                     break;
             }
+            if (actionsPushed.isEmpty())
+                break; // all paused/complete/in flight/etc
+
             String err = null;
-            if (!actionsPushed.isEmpty())
+            for (int attempt = 1; attempt <= HTTP_SEND_ATTEMPTS; attempt++) {
                 err = pushHTTP(archive, actionsPushed);
-            else
-                break; // all paused/complete/in flight/etc
+                // those acknowledged are complete, retry the rest
+                for (Iterator<SyncArchive.OutgoingAction> iter = actionsPushed.iterator(); iter.hasNext(); ) {
+                    if (iter.next().getCompletionTime() > 0)
+                        iter.remove();
+                }
+                if (err == null || actionsPushed.isEmpty() || ERR_DENIED.equals(err))
+                    break;
+                if (attempt < HTTP_SEND_ATTEMPTS) {
+                    _manager.getUI().debugMessage("Push attempt " + attempt + " failed (" + err + "), retrying " + actionsPushed.size());
+                    try { Thread.sleep(HTTP_RETRY_DELAY * attempt); } catch (InterruptedException ie) { break; }
+                }
+            }
 
             if (err == null) {
                 for (int i = 0; i < actionsPushed.size(); i++) {
@@ -300,6 +363,16 @@ public class SyncOutboundPusher {
                     SyncArchive.OutgoingAction action = actionsPushed.get(i);
                     action.pushFailed(err, null);
                 }
+                // don't spend 5 minutes per batch on a dead link, the next sync resumes
+                // with whatever wasn't acknowledged
+                for (int i = 0; i < archive.getOutgoingActionCount(); i++) {
+                    SyncArchive.OutgoingAction action = archive.getOutgoingAction(i);
+                    if (action.getCompletionTime() > 0) continue;
+                    if (action.isPaused()) continue;
+                    if (!action.setIsExecuting(true)) continue;
+                    action.pushFailed("Not sent, an earlier push to this archive failed: " + err, null);
+                }
+                break;
             }
         }
     }
@@ -313,7 +386,7 @@ public class SyncOutboundPusher {
      *
      * @return HTTP response code (200, 206, other)
      */
-    private int getHTTPResponseCode(String initialLine) {
+    static int getHTTPResponseCode(String initialLine) {
         if (initialLine == null) return -1;
         StringTokenizer tok = new StringTokenizer(initialLine, " ");
         if (!tok.hasMoreTokens())
@@ -329,30 +402,60 @@ public class SyncOutboundPusher {
         }
     }
     
+    /**
+     *  One POST. Items the archive acknowledges are marked complete here
+     *  (OK or rejected). If it's an older archive that doesn't acknowledge items,
+     *  all are marked OK on success.
+     *
+     *  @return null on success, or an error for those not marked complete
+     */
     private String pushHTTP(SyncArchive archive, List<SyncArchive.OutgoingAction> actions) {
         String error = null;
         long len = 0;
-        List<File> metaFiles = new ArrayList();
-        List<File> msgFiles = new ArrayList();
+        List<File> metaFiles = new ArrayList<File>();
+        List<File> msgFiles = new ArrayList<File>();
+        List<SyncArchive.OutgoingAction> metaActions = new ArrayList<SyncArchive.OutgoingAction>();
+        List<SyncArchive.OutgoingAction> msgActions = new ArrayList<SyncArchive.OutgoingAction>();
+        Map<File, byte[]> stamps = new HashMap<File, byte[]>();
+        int hashcashBits = archive.getRemoteHashcashBits();
         for (SyncArchive.OutgoingAction action: actions) {
             SyndieURI uri = action.getURI();
             File chanDir = new File(_manager.getClient().getArchiveDir(), uri.getScope().toBase64());
             File f = null;
-            if (uri.getMessageId() == null) {
+            if (uri.getMessageId() == null)
                 f = new File(chanDir, "meta" + Constants.FILENAME_SUFFIX);
-                len += f.length();
+            else
+                f = new File(chanDir, uri.getMessageId().longValue() + Constants.FILENAME_SUFFIX);
+
+            if (hashcashBits > 0 && f.length() >= archive.getRemoteHashcashMinSize()) {
+                // minted before connecting, so it isn't held open
+                byte stamp[] = getStamp(archive, action, f, hashcashBits);
+                if (stamp == null)
+                    continue; // action completed with the reason
+                stamps.put(f, stamp);
+                len += stamp.length;
+            }
+            
+            len += f.length();
+            if (uri.getMessageId() == null) {
                 metaFiles.add(f);
+                metaActions.add(action);
             } else {
-                f = new File(chanDir, uri.getMessageId().longValue() + Constants.FILENAME_SUFFIX);
-                len += f.length();
                 msgFiles.add(f);
+                msgActions.add(action);
             }
             
             len += 5; // attribs
             
             _manager.getUI().debugMessage("Posting " + f.getPath());
         }
+        if (metaFiles.isEmpty() && msgFiles.isEmpty())
+            return null;
         _manager.getUI().debugMessage("Posting " + metaFiles.size() + " metadata messages and " + msgFiles.size() + " posts, totalling " + len);
+        // in the order sent, for the acks
+        List<SyncArchive.OutgoingAction> sent = new ArrayList<SyncArchive.OutgoingAction>(metaActions.size() + msgActions.size());
+        sent.addAll(metaActions);
+        sent.addAll(msgActions);
         
         String url = archive.getURL();
         int q = url.indexOf('?');
@@ -383,6 +486,8 @@ public class SyncOutboundPusher {
                     URI uri = new URI(url);
                     String host = uri.getHost();
                     int port = uri.getPort();
+                    if (port <= 0)
+                        port = 80;
                     s = new Socket(host, port);
                 } catch (URISyntaxException use) {
                     throw new IOException("invalid uri: " + use.getMessage());
@@ -397,29 +502,47 @@ public class SyncOutboundPusher {
             len += 2; // header size=0
             
             StringBuilder buf = new StringBuilder();
-            buf.append("POST " + url + " HTTP/1.0\r\nConnection: close\r\nContent-length: ");
-            buf.append(len).append("\r\n\r\n");
+            buf.append("POST " + url + " HTTP/1.0\r\nConnection: close\r\n");
+            buf.append(HTTPServ.ACK_HEADER).append(": true\r\n");
+            buf.append("Content-length: ").append(len).append("\r\n\r\n");
             OutputStream out = s.getOutputStream();
             out.write(DataHelper.getUTF8(buf.toString()));
             DataHelper.writeLong(out, 2, 0);
+            TokenBucket bucket = archive.getOutboundBucket();
+            // when rate limited, the 5 minutes are for each item, not the whole post
+            boolean throttled = bucket.getRate() > 0 || TokenBucket.GLOBAL_OUTBOUND.getRate() > 0;
             int idx = 0;
             for (int i = 0; i < metaFiles.size(); i++) {
-                actions.get(i).setPushingMeta();
-                send(++idx, out, metaFiles.get(i), 0x1);
+                metaActions.get(i).setPushingMeta();
+                File f = metaFiles.get(i);
+                send(++idx, out, f, HTTPServ.ITEM_FLAG_META, stamps.get(f), bucket);
+                if (throttled)
+                    timeout.forceReschedule(5*60*1000);
             }
             for (int i = 0; i < msgFiles.size(); i++) {
-                actions.get(i).setPushingBody();
-                send(++idx, out, msgFiles.get(i), 0x0);
+                msgActions.get(i).setPushingBody();
+                File f = msgFiles.get(i);
+                send(++idx, out, f, 0x0, stamps.get(f), bucket);
+                if (throttled)
+                    timeout.forceReschedule(5*60*1000);
             }
             out.flush();
+            // the archive may wait up to a minute for its imports before it acks
+            timeout.forceReschedule(2*60*1000);
             
-            String line = DataHelper.readLine(s.getInputStream());
+            InputStream in = s.getInputStream();
+            String line = DataHelper.readLine(in);
             _manager.getUI().debugMessage("result from http post: " + line);
             switch (getHTTPResponseCode(line)) {
                 case 200: // OK
+                    error = readAcks(in, sent, archive.hasRemoteFeature(HTTPServ.FEATURE_ACK));
                     break;
                 case 403: // Not authorized
-                    error = "access denied (archive may not be accepting pushes)";
+                    error = ERR_DENIED;
+                    break;
+                case 429: // Too many requests
+                case 503: // Too many imports, see HTTPLimiter
+                    error = "archive busy, will retry";
                     break;
                 default: // invalid initial response line (code -1) or unrecognized code
                     error = "post failed";
@@ -448,6 +571,59 @@ public class SyncOutboundPusher {
         return error;
     }
     
+    /**
+     *  Read the rest of a 200 response to a POST, and mark the acknowledged items complete.
+     *  See HTTPServ.ACK_HEADER.
+     *
+     *  Those still queued for import at the archive are complete but unconfirmed,
+     *  see OutgoingAction.pushQueued().
+     *
+     *  @param sent in the order sent
+     *  @param ackExpected the archive advertised HTTPServ.FEATURE_ACK, so no acks means they weren't all received
+     *  @return null if all were acknowledged, or none were from an older archive, or an error
+     *  @since 1.107b-1
+     */
+    private String readAcks(InputStream in, List<SyncArchive.OutgoingAction> sent, boolean ackExpected) throws IOException {
+        String line;
+        while ( (line = DataHelper.readLine(in)) != null) {
+            if (line.trim().length() <= 0)
+                break;
+        }
+        if (line == null)
+            return "truncated response";
+        int acked = 0;
+        while ( (line = DataHelper.readLine(in)) != null) {
+            line = line.trim();
+            int sp = line.indexOf(' ');
+            if (sp <= 0)
+                continue;
+            int num;
+            try {
+                num = Integer.parseInt(line.substring(0, sp));
+            } catch (NumberFormatException nfe) {
+                continue;
+            }
+            if (num <= 0 || num > sent.size())
+                continue;
+            SyncArchive.OutgoingAction action = sent.get(num - 1);
+            if (action.getCompletionTime() > 0)
+                continue;
+            String status = line.substring(sp + 1).trim();
+            if (status.equals(HTTPServ.ACK_OK))
+                action.pushOK();
+            else if (status.startsWith(HTTPServ.ACK_OK))
+                action.pushQueued();
+            else
+                action.pushRejected("Rejected by the archive: " + status);
+            acked++;
+        }
+        if (acked == 0)
+            return ackExpected ? "not acknowledged" : null;
+        if (acked < sent.size())
+            return (sent.size() - acked) + " not acknowledged";
+        return null;
+    }
+    
     private class TimeoutEvent extends SimpleTimer2.TimedEvent {
     	private final Socket toClose;
     	private final String sentURL;
@@ -466,17 +642,91 @@ public class SyncOutboundPusher {
         }
     }
     
-    private void send(int idx, OutputStream out, File file, int flag) throws IOException, DataFormatException {
+    /**
+     *  A hashcash stamp for the file, from the cache or minted now if the push strategy allows.
+     *  If not, the action is completed with the reason.
+     *
+     *  @return null on failure
+     *  @since 1.107b-1
+     */
+    private byte[] getStamp(SyncArchive archive, SyncArchive.OutgoingAction action, File f, int bits) {
+        SyndieURI uri = action.getURI();
+        if (bits > Hashcash.MAX_BITS) {
+            action.pushRejected("Not sent, the archive requires " + bits + " bit hashcash, more than we will generate");
+            return null;
+        }
+        PushStrategy strategy = archive.getPushStrategy();
+        if (strategy == null)
+            strategy = _manager.getDefaultPushStrategy();
+        if (!strategy.sendHashcashForAll && !(strategy.sendHashcashForLocal && isLocal(uri))) {
+            action.pushRejected("Not sent, the archive requires hashcash for posts of " +
+                                (archive.getRemoteHashcashMinSize() / 1024) + "KB and up, and the push policy doesn't generate it");
+            return null;
+        }
+        Hash content;
+        try {
+            content = Hashcash.getContentHash(f);
+        } catch (IOException ioe) {
+            action.pushFailed("Unable to read " + f, ioe);
+            return null;
+        }
+        synchronized (_stamps) {
+            byte stamp[] = _stamps.get(content);
+            if (Hashcash.getBits(content, stamp) >= bits)
+                return stamp;
+        }
+        final UI ui = _manager.getUI();
+        final String desc = bits + " bit hashcash for " + uri;
+        final long deadline = System.currentTimeMillis() + MAX_MINT_TIME;
+        ui.debugMessage("Generating " + desc);
+        byte stamp[] = Hashcash.mint(content, bits, new Hashcash.Listener() {
+            public boolean isCancelled() { return _die || System.currentTimeMillis() > deadline; }
+            public void progress(long tries, long elapsed) {
+                ui.debugMessage("Generating " + desc + ": " + tries + " tries in " + DataHelper.formatDuration(elapsed));
+            }
+        });
+        if (stamp == null) {
+            action.pushFailed("Hashcash generation cancelled or timed out", null);
+            return null;
+        }
+        synchronized (_stamps) {
+            _stamps.put(content, stamp);
+        }
+        return stamp;
+    }
+
+    /**
+     *  Created here, i.e. in our outbound directory, as for PushStrategy.sendLocalNewOnly
+     *  @since 1.107b-1
+     */
+    private boolean isLocal(SyndieURI uri) {
+        File chanDir = new File(_manager.getClient().getOutboundDir(), uri.getScope().toBase64());
+        if (uri.getMessageId() == null)
+            return new File(chanDir, "meta" + Constants.FILENAME_SUFFIX).exists();
+        return new File(chanDir, uri.getMessageId().longValue() + Constants.FILENAME_SUFFIX).exists();
+    }
+    
+    /**
+     *  @param stamp null if none, see Hashcash
+     *  @param bucket the archive's limit, drawn on along with the global one
+     */
+    private void send(int idx, OutputStream out, File file, int flag, byte stamp[], TokenBucket bucket) throws IOException, DataFormatException {
+        if (stamp != null)
+            flag |= HTTPServ.ITEM_FLAG_HASHCASH;
         _manager.getUI().debugMessage(idx + ": Sending" + file.getPath() + "/" + file.length() + "/" + flag);
         DataHelper.writeLong(out, 1, flag);
+        if (stamp != null)
+            out.write(stamp);
         DataHelper.writeLong(out, 4, file.length());
         byte buf[] = new byte[4096];
         FileInputStream fin = null;
         try {
             fin = new FileInputStream(file);
             int read = -1;
-            while ( (read = fin.read(buf)) != -1)
+            while ( (read = fin.read(buf)) != -1) {
+                TokenBucket.consume(TokenBucket.GLOBAL_OUTBOUND, bucket, read);
                 out.write(buf, 0, read);
+            }
             fin.close();
             fin = null;
         } finally {
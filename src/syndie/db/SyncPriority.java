@@ -0,0 +1,149 @@
+package syndie.db;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.i2p.data.Hash;
+
+import syndie.data.SyndieURI;
+import syndie.data.WatchedChannel;
+
+/**
+ *  What the user cares about most, for ordering the sync actions.
+ *
+ *  Metadata comes first, as posts can't be imported without it, then posts
+ *  that are private or target one of our own channels (PMs, and replies in our forums),
+ *  posts in watched channels, posts in bookmarked channels, then by date.
+ *  Actions gain AGING_POINTS_PER_HOUR for every hour they wait so nothing starves.
+ *
+ *  This is a snapshot of the nym's channels, watches and bookmarks,
+ *  see SyncManager.getSyncPriority().
+ *
+ *  @since 1.107b-1
+ */
+class SyncPriority {
+    private final Set<Hash> _own;
+    private final Set<Hash> _watched;
+    private final Set<Hash> _bookmarked;
+    private final long _created;
+
+    static final int PRIORITY_META = 1000;
+    static final int PRIORITY_TO_US = 600;
+    static final int PRIORITY_WATCHED = 400;
+    static final int PRIORITY_BOOKMARKED = 200;
+    /** for a post dated now, falling to zero at RECENT_PERIOD */
+    static final int PRIORITY_RECENT = 150;
+    private static final long RECENT_PERIOD = 30*24*60*60*1000L;
+    /** a day's wait is worth more than being in a watched channel */
+    static final int AGING_POINTS_PER_HOUR = 20;
+    private static final long AGING_PERIOD = 60*60*1000L / AGING_POINTS_PER_HOUR;
+    /** how long a snapshot is good for */
+    private static final long MAX_AGE = 10*60*1000;
+
+    /** highest first, then the longest waiting */
+    static final Comparator<SyncArchive.IncomingAction> INCOMING_COMPARATOR = new Comparator<SyncArchive.IncomingAction>() {
+        public int compare(SyncArchive.IncomingAction l, SyncArchive.IncomingAction r) {
+            return compareKeys(l.getSortKey(), r.getSortKey());
+        }
+    };
+
+    /** highest first, then the longest waiting */
+    static final Comparator<SyncArchive.OutgoingAction> OUTGOING_COMPARATOR = new Comparator<SyncArchive.OutgoingAction>() {
+        public int compare(SyncArchive.OutgoingAction l, SyncArchive.OutgoingAction r) {
+            return compareKeys(l.getSortKey(), r.getSortKey());
+        }
+    };
+
+    public SyncPriority(DBClient client) {
+        _created = System.currentTimeMillis();
+        _own = new HashSet<Hash>();
+        _watched = new HashSet<Hash>();
+        if (client.isLoggedIn()) {
+            DBClient.ChannelCollector chans = client.getNymChannels();
+            addHashes(client, chans.getIdentityChannelIds(), _own);
+            addHashes(client, chans.getManagedChannelIds(), _own);
+            List<WatchedChannel> watched = client.getWatchedChannels();
+            for (WatchedChannel wc : watched) {
+                Hash h = client.getChannelHash(wc.getChannelId());
+                if (h != null)
+                    _watched.add(h);
+            }
+            _bookmarked = client.getBookmarkedScopes();
+        } else {
+            _bookmarked = new HashSet<Hash>();
+        }
+    }
+
+    /**
+     *  For SyncPriorityTest
+     *  @since 1.107b-1
+     */
+    SyncPriority(Set<Hash> own, Set<Hash> watched, Set<Hash> bookmarked) {
+        _created = System.currentTimeMillis();
+        _own = own;
+        _watched = watched;
+        _bookmarked = bookmarked;
+    }
+
+    private static void addHashes(DBClient client, List<Long> ids, Set<Hash> hashes) {
+        for (Long id : ids) {
+            Hash h = client.getChannelHash(id.longValue());
+            if (h != null)
+                hashes.add(h);
+        }
+    }
+
+    public boolean isStale() {
+        return _created < System.currentTimeMillis() - MAX_AGE;
+    }
+
+    /**
+     *  @param target the channel a post targets if not its scope, or null
+     *  @param isPrivate a post readable only by the target
+     */
+    public int getPriority(SyndieURI uri, Hash target, boolean isPrivate) {
+        Hash scope = uri.getScope();
+        int rv = 0;
+        if (uri.getMessageId() == null) {
+            rv += PRIORITY_META;
+        } else {
+            if (isPrivate || _own.contains(scope) || (target != null && _own.contains(target)))
+                rv += PRIORITY_TO_US;
+            // message IDs are the creation date, give or take a few hours
+            long age = System.currentTimeMillis() - uri.getMessageId().longValue();
+            if (age >= 0 && age < RECENT_PERIOD)
+                rv += (int) (PRIORITY_RECENT * (RECENT_PERIOD - age) / RECENT_PERIOD);
+        }
+        if (_watched.contains(scope) || (target != null && _watched.contains(target)))
+            rv += PRIORITY_WATCHED;
+        else if (_bookmarked.contains(scope) || (target != null && _bookmarked.contains(target)))
+            rv += PRIORITY_BOOKMARKED;
+        return rv;
+    }
+
+    /**
+     *  Priority plus aging, as a constant so it can be used in a heap:
+     *  the difference in aging between two actions doesn't change over time.
+     *  Higher is more important.
+     *
+     *  @param queued when the action was first created
+     */
+    static long getSortKey(int priority, long queued) {
+        return priority * AGING_PERIOD - queued;
+    }
+
+    private static int compareKeys(long l, long r) {
+        if (l > r)
+            return -1;
+        if (l < r)
+            return 1;
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Sync priority: own " + _own.size() + " watched " + _watched.size() + " bookmarked " + _bookmarked.size();
+    }
+}
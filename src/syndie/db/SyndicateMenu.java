@@ -56,7 +56,11 @@ class SyndicateMenu implements TextEngine.Menu {
 
     public void listCommands(UI ui) {
         // alphabetical please
+        ui.statusMessage(" bandwidth [--in $KBps] [--out $KBps]");
+        ui.statusMessage("                    : show or set the sync bandwidth limits across all archives (0 for unlimited)");
         ui.statusMessage(" buildindex         : create or update the current archive's index");
+        ui.statusMessage(" buildsnapshot [--out $file]");
+        ui.statusMessage("                    : write the published archive as one snapshot file, for bootstrapping other nodes");
         ui.statusMessage(" bulkimport --dir $directory --delete $boolean --rmdir $boolean");
         ui.statusMessage("                    : import all of the " + Constants.FILENAME_SUFFIX + " files in the given directory, deleting them on completion");
         ui.statusMessage(" diff [--maxSize $numBytes]");
@@ -78,6 +82,8 @@ class SyndicateMenu implements TextEngine.Menu {
         ui.statusMessage("                    : import the indexed message by using the specified passphrase");
         ui.statusMessage(" schedule --put (outbound|outboundmeta|archive|archivemeta) [--deleteOutbound $boolean] [--knownChanOnly $boolean]");
         ui.statusMessage("                    : schedule a set of messages to be posted");
+        ui.statusMessage(" synchistory [--archive $name]");
+        ui.statusMessage("                    : show the timing and counts of the last few syncs with each archive");
         ui.statusMessage(" unban [--scope $index|$chanHash]");
     }
     public boolean processCommands(DBClient client, UI ui, Opts opts) {
@@ -87,6 +93,8 @@ class SyndicateMenu implements TextEngine.Menu {
             //_mgr.loadArchives();
             SyncManager mgr = SyncManager.getInstance(client, ui);
             processBuildIndex(client, ui, opts, mgr.getDefaultPullStrategy());
+        } else if ("buildsnapshot".equalsIgnoreCase(cmd)) {
+            processBuildSnapshot(client, ui, opts);
         } else if ("getindex".equalsIgnoreCase(cmd)) {
             processGetIndex(client, ui, opts);
         } else if ("diff".equalsIgnoreCase(cmd)) {
@@ -109,6 +117,10 @@ class SyndicateMenu implements TextEngine.Menu {
             processListBan(client, ui, opts);
         } else if ("unban".equalsIgnoreCase(cmd)) {
             processUnban(client, ui, opts);
+        } else if ("synchistory".equalsIgnoreCase(cmd)) {
+            processSyncHistory(client, ui, opts);
+        } else if ("bandwidth".equalsIgnoreCase(cmd)) {
+            processBandwidth(client, ui, opts);
         } else {
             return false;
         }
@@ -637,6 +649,55 @@ class SyndicateMenu implements TextEngine.Menu {
         }
         ui.commandComplete(0, null);
     }
+    /**
+     * bandwidth [--in $KBps] [--out $KBps]
+     * @since 1.107b-1
+     */
+    private void processBandwidth(DBClient client, UI ui, Opts opts) {
+        SyncManager mgr = SyncManager.getInstance(client, ui);
+        int in = (int)opts.getOptLong("in", mgr.getMaxInboundKBps());
+        int out = (int)opts.getOptLong("out", mgr.getMaxOutboundKBps());
+        if (opts.getOptValue("in") != null || opts.getOptValue("out") != null)
+            mgr.setBandwidthLimits(in, out);
+        ui.statusMessage("Inbound limit: " + (in > 0 ? in + "KBps" : "unlimited") +
+                         ", received " + (mgr.getTotalInbound() / 1024) + "KB");
+        ui.statusMessage("Outbound limit: " + (out > 0 ? out + "KBps" : "unlimited") +
+                         ", sent " + (mgr.getTotalOutbound() / 1024) + "KB");
+        ui.statusMessage("Per-archive limits are set with MaxRate$KBps in the pull and push strategies");
+        ui.commandComplete(0, null);
+    }
+
+    /**
+     * synchistory [--archive $name]
+     * @since 1.107b-1
+     */
+    private void processSyncHistory(DBClient client, UI ui, Opts opts) {
+        String name = opts.getOptValue("archive");
+        SyncManager mgr = SyncManager.getInstance(client, ui);
+        int shown = 0;
+        for (SyncArchive archive : mgr.getArchives()) {
+            if (name != null && !name.equals(archive.getName()))
+                continue;
+            shown++;
+            ui.statusMessage(archive.toString() + ", fetch concurrency " + archive.getFetchConcurrencyLevel() +
+                             ", mirror " + archive.getMirrorScore());
+            SyncMetrics cur = archive.getCurrentSyncMetrics();
+            if (cur != null && !cur.isFinished())
+                ui.statusMessage("  " + cur);
+            List<SyncMetrics> history = archive.getSyncHistory();
+            if (history.isEmpty() && (cur == null || cur.isFinished()))
+                ui.statusMessage("  No syncs recorded");
+            for (SyncMetrics m : history)
+                ui.statusMessage("  " + m);
+        }
+        if (shown == 0 && name != null) {
+            ui.errorMessage("No archive named " + name);
+            ui.commandComplete(-1, null);
+            return;
+        }
+        ui.commandComplete(0, null);
+    }
+
     private void processUnban(DBClient client, UI ui, Opts opts) {
         String scope = opts.getOptValue("scope");
         if (scope == null) {
@@ -676,4 +737,26 @@ class SyndicateMenu implements TextEngine.Menu {
         LocalArchiveManager.buildIndex(client, ui, pullStrategy); //, maxSize);
         ui.commandComplete(0, null);
     }
+
+    /**
+     *  @since 1.107b-1
+     */
+    private void processBuildSnapshot(DBClient client, UI ui, Opts opts) {
+        File index = new File(client.getWebDir(), LocalArchiveManager.SHARED_INDEX_FILE);
+        if (!index.exists()) {
+            ui.errorMessage("No published index, run buildindex first");
+            ui.commandComplete(-1, null);
+            return;
+        }
+        String out = opts.getOptValue("out");
+        File target = out != null ? new File(out) : new File(client.getWebDir(), ArchiveSnapshot.SNAPSHOT_FILE);
+        try {
+            ArchiveSnapshot.publish(client, ui, index, target);
+            ui.statusMessage("Snapshot written to " + target.getAbsolutePath());
+            ui.commandComplete(0, null);
+        } catch (IOException ioe) {
+            ui.errorMessage("Error writing the snapshot", ioe);
+            ui.commandComplete(-1, null);
+        }
+    }
 }
@@ -0,0 +1,706 @@
+package syndie.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Hash;
+import net.i2p.util.SecureFile;
+
+import syndie.thread.ThreadBuilder;
+import syndie.thread.ThreadMsgId;
+import syndie.thread.ThreadReferenceNode;
+import syndie.thread.ThreadResultCache;
+
+/**
+ *  The thread structure of the posts we have, in the messageThread table,
+ *  kept up to date as posts are imported and deleted, so ThreadBuilder can load
+ *  whole threads in a couple of queries instead of walking messageHierarchy a post at a time.
+ *
+ *  Each post's parent is the closest ancestor in its references that we have.
+ *  When a missing ancestor arrives later, the posts that refer to it are moved under it,
+ *  and when a post is deleted, its children move up to their next closest ancestor.
+ *  A reference that would make a loop is ignored.
+ *
+ *  The table only says which posts are in which thread. ThreadBuilder still
+ *  threads them from messageHierarchy, with placeholders for the ancestors we don't have.
+ *
+ *  Run main() to compare opening a large forum with and without it,
+ *  and with the ThreadResultCache.
+ *
+ *  @since 1.107b-1
+ */
+public class ThreadIndex {
+    private static final String SQL_GET_ROW = "SELECT parentMsgId, rootMsgId, depth, descendants, latestPostDate FROM messageThread WHERE msgId = ?";
+    private static final String SQL_INSERT = "INSERT INTO messageThread (msgId, parentMsgId, rootMsgId, depth, descendants, latestPostDate) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String SQL_DELETE = "DELETE FROM messageThread WHERE msgId = ?";
+    private static final String SQL_DELETE_ALL = "DELETE FROM messageThread";
+    private static final String SQL_GET_POST = "SELECT c.channelHash, cm.messageId FROM channelMessage cm " +
+                                               "JOIN channel c ON c.channelId = cm.scopeChannelId " +
+                                               "WHERE cm.msgId = ? AND cm.deletionCause IS NULL";
+    /** the ancestors we have, closest first */
+    private static final String SQL_FIND_PARENTS = "SELECT cm.msgId FROM messageHierarchy mh " +
+                                                   "JOIN channel c ON c.channelHash = mh.referencedChannelHash " +
+                                                   "JOIN channelMessage cm ON cm.scopeChannelId = c.channelId AND cm.messageId = mh.referencedMessageId " +
+                                                   "JOIN messageThread t ON t.msgId = cm.msgId " +
+                                                   "WHERE mh.msgId = ? ORDER BY mh.referencedCloseness ASC";
+    /** posts that refer to the given one */
+    private static final String SQL_FIND_REFERRERS = "SELECT DISTINCT mh.msgId FROM messageHierarchy mh " +
+                                                     "JOIN messageThread t ON t.msgId = mh.msgId " +
+                                                     "WHERE mh.referencedChannelHash = ? AND mh.referencedMessageId = ?";
+    private static final String SQL_GET_CHILDREN = "SELECT msgId FROM messageThread WHERE parentMsgId = ?";
+    private static final String SQL_SET_PARENT = "UPDATE messageThread SET parentMsgId = ? WHERE msgId = ?";
+    private static final String SQL_MOVE_SUBTREE = "UPDATE messageThread SET rootMsgId = ?, depth = depth + ? WHERE msgId = ?";
+    private static final String SQL_MOVE_THREAD = "UPDATE messageThread SET rootMsgId = ?, depth = depth + ? WHERE rootMsgId = ?";
+    private static final String SQL_ADD_DESCENDANTS = "UPDATE messageThread SET descendants = descendants + ?, " +
+                                                      "latestPostDate = CASE WHEN latestPostDate < ? THEN ? ELSE latestPostDate END " +
+                                                      "WHERE msgId = ?";
+    private static final String SQL_REMOVE_DESCENDANTS = "UPDATE messageThread SET descendants = descendants - ?, latestPostDate = ? WHERE msgId = ?";
+    private static final String SQL_GET_OWN_DATE = "SELECT messageId FROM channelMessage WHERE msgId = ?";
+    private static final String SQL_GET_CHILDREN_LATEST = "SELECT MAX(latestPostDate) FROM messageThread WHERE parentMsgId = ?";
+    private static final String SQL_GET_ALL_POSTS = "SELECT cm.msgId, c.channelHash, cm.messageId FROM channelMessage cm " +
+                                                    "JOIN channel c ON c.channelId = cm.scopeChannelId " +
+                                                    "WHERE cm.deletionCause IS NULL";
+    private static final String SQL_GET_ALL_REFS = "SELECT msgId, referencedChannelHash, referencedMessageId FROM messageHierarchy " +
+                                                   "ORDER BY msgId, referencedCloseness ASC";
+
+    /**
+     *  The post was just imported, or reimported, with its messageHierarchy set.
+     *  Link it under its closest ancestor we have, and move any posts
+     *  that were waiting for it under it.
+     */
+    static synchronized void messageAdded(DBClient client, long msgId) {
+        try {
+            if (getRow(client, msgId) != null)
+                remove(client, msgId);
+            PreparedStatement stmt = null;
+            ResultSet rs = null;
+            byte scope[];
+            long messageId;
+            try {
+                stmt = client.con().prepareStatement(SQL_GET_POST);
+                stmt.setLong(1, msgId);
+                rs = stmt.executeQuery();
+                if (!rs.next())
+                    return;
+                scope = rs.getBytes(1);
+                messageId = rs.getLong(2);
+            } finally {
+                if (rs != null) try { rs.close(); } catch (SQLException se) {}
+                if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+            }
+            insert(client, msgId, null, msgId, 0, 0, messageId);
+            long parent = findParent(client, msgId);
+            if (parent >= 0)
+                attach(client, msgId, parent);
+            // the replies that got here first
+            for (Long child : getReferrers(client, scope, messageId)) {
+                long c = child.longValue();
+                if (c == msgId || findParent(client, c) != msgId)
+                    continue;
+                Row row = getRow(client, c);
+                if (row == null || (row.parent != null && row.parent.longValue() == msgId))
+                    continue;
+                if (isAncestor(client, c, msgId))
+                    continue;
+                if (row.parent != null)
+                    detach(client, c);
+                attach(client, c, msgId);
+            }
+        } catch (SQLException se) {
+            client.logError("Error indexing the thread of " + msgId, se);
+        }
+    }
+
+    /**
+     *  The post was deleted, move its children up to their next closest ancestor.
+     *  Call after its messageHierarchy is gone.
+     */
+    static synchronized void messageRemoved(DBClient client, long msgId) {
+        try {
+            remove(client, msgId);
+        } catch (SQLException se) {
+            client.logError("Error removing " + msgId + " from the thread index", se);
+        }
+    }
+
+    private static void remove(DBClient client, long msgId) throws SQLException {
+        Row row = getRow(client, msgId);
+        if (row == null)
+            return;
+        if (row.parent != null)
+            detach(client, msgId);
+        List<Long> children = getChildren(client, msgId);
+        for (Long child : children) {
+            detach(client, child.longValue());
+        }
+        client.exec(SQL_DELETE, msgId);
+        for (Long child : children) {
+            long c = child.longValue();
+            // its own row is gone, so this skips it
+            long parent = findParent(client, c);
+            if (parent >= 0 && !isAncestor(client, c, parent))
+                attach(client, c, parent);
+        }
+    }
+
+    /**
+     *  Make the post the root of its own thread, taking its replies with it
+     */
+    private static void detach(DBClient client, long msgId) throws SQLException {
+        Row row = getRow(client, msgId);
+        if (row == null || row.parent == null)
+            return;
+        int count = row.descendants + 1;
+        setParent(client, msgId, null);
+        moveSubtree(client, msgId, msgId, -row.depth, false);
+        // the latest post below each old ancestor has to be found again
+        Long ancestor = row.parent;
+        while (ancestor != null) {
+            long a = ancestor.longValue();
+            Row arow = getRow(client, a);
+            if (arow == null)
+                break;
+            long latest = Math.max(getOwnDate(client, a), getChildrenLatest(client, a));
+            PreparedStatement stmt = null;
+            try {
+                stmt = client.con().prepareStatement(SQL_REMOVE_DESCENDANTS);
+                stmt.setInt(1, count);
+                stmt.setLong(2, latest);
+                stmt.setLong(3, a);
+                stmt.executeUpdate();
+            } finally {
+                if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+            }
+            ancestor = arow.parent;
+        }
+    }
+
+    /**
+     *  Put the root post, and its replies, under the parent
+     */
+    private static void attach(DBClient client, long msgId, long parent) throws SQLException {
+        Row row = getRow(client, msgId);
+        Row prow = getRow(client, parent);
+        if (row == null || prow == null || row.parent != null)
+            return;
+        setParent(client, msgId, Long.valueOf(parent));
+        // a root's thread is everything with its rootMsgId, one statement
+        moveSubtree(client, msgId, prow.root, prow.depth + 1, true);
+        int count = row.descendants + 1;
+        PreparedStatement stmt = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_ADD_DESCENDANTS);
+            Long ancestor = Long.valueOf(parent);
+            while (ancestor != null) {
+                long a = ancestor.longValue();
+                stmt.setInt(1, count);
+                stmt.setLong(2, row.latest);
+                stmt.setLong(3, row.latest);
+                stmt.setLong(4, a);
+                stmt.executeUpdate();
+                Row arow = getRow(client, a);
+                ancestor = arow != null ? arow.parent : null;
+            }
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    /**
+     *  @param wasRoot msgId is the root of its thread, so everything in it moves
+     */
+    private static void moveSubtree(DBClient client, long msgId, long root, int depthChange, boolean wasRoot) throws SQLException {
+        PreparedStatement stmt = null;
+        try {
+            if (wasRoot) {
+                stmt = client.con().prepareStatement(SQL_MOVE_THREAD);
+                stmt.setLong(1, root);
+                stmt.setInt(2, depthChange);
+                stmt.setLong(3, msgId);
+                stmt.executeUpdate();
+                return;
+            }
+            stmt = client.con().prepareStatement(SQL_MOVE_SUBTREE);
+            List<Long> pending = new ArrayList<Long>();
+            pending.add(Long.valueOf(msgId));
+            Set<Long> seen = new HashSet<Long>();
+            while (!pending.isEmpty()) {
+                Long cur = pending.remove(pending.size() - 1);
+                if (!seen.add(cur))
+                    continue;
+                stmt.setLong(1, root);
+                stmt.setInt(2, depthChange);
+                stmt.setLong(3, cur.longValue());
+                stmt.executeUpdate();
+                pending.addAll(getChildren(client, cur.longValue()));
+            }
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    /** @return true if the possible ancestor is the post or above it */
+    private static boolean isAncestor(DBClient client, long ancestor, long msgId) throws SQLException {
+        Set<Long> seen = new HashSet<Long>();
+        Long cur = Long.valueOf(msgId);
+        while (cur != null && seen.add(cur)) {
+            if (cur.longValue() == ancestor)
+                return true;
+            Row row = getRow(client, cur.longValue());
+            cur = row != null ? row.parent : null;
+        }
+        return false;
+    }
+
+    /** @return the closest ancestor we have, or -1 */
+    private static long findParent(DBClient client, long msgId) throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_FIND_PARENTS);
+            stmt.setLong(1, msgId);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                long id = rs.getLong(1);
+                if (!rs.wasNull() && id != msgId)
+                    return id;
+            }
+            return -1;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    private static List<Long> getReferrers(DBClient client, byte scope[], long messageId) throws SQLException {
+        List<Long> rv = new ArrayList<Long>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_FIND_REFERRERS);
+            stmt.setBytes(1, scope);
+            stmt.setLong(2, messageId);
+            rs = stmt.executeQuery();
+            while (rs.next())
+                rv.add(Long.valueOf(rs.getLong(1)));
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return rv;
+    }
+
+    private static List<Long> getChildren(DBClient client, long msgId) throws SQLException {
+        List<Long> rv = new ArrayList<Long>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_GET_CHILDREN);
+            stmt.setLong(1, msgId);
+            rs = stmt.executeQuery();
+            while (rs.next())
+                rv.add(Long.valueOf(rs.getLong(1)));
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return rv;
+    }
+
+    private static long getOwnDate(DBClient client, long msgId) throws SQLException {
+        return getLong(client, SQL_GET_OWN_DATE, msgId);
+    }
+
+    private static long getChildrenLatest(DBClient client, long msgId) throws SQLException {
+        return getLong(client, SQL_GET_CHILDREN_LATEST, msgId);
+    }
+
+    /** @return the first column of the first row, or -1 */
+    private static long getLong(DBClient client, String query, long msgId) throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().prepareStatement(query);
+            stmt.setLong(1, msgId);
+            rs = stmt.executeQuery();
+            if (rs.next()) {
+                long rv = rs.getLong(1);
+                if (!rs.wasNull())
+                    return rv;
+            }
+            return -1;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    private static void setParent(DBClient client, long msgId, Long parent) throws SQLException {
+        PreparedStatement stmt = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_SET_PARENT);
+            if (parent != null)
+                stmt.setLong(1, parent.longValue());
+            else
+                stmt.setNull(1, java.sql.Types.BIGINT);
+            stmt.setLong(2, msgId);
+            stmt.executeUpdate();
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    private static void insert(DBClient client, long msgId, Long parent, long root, int depth,
+                               int descendants, long latest) throws SQLException {
+        PreparedStatement stmt = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_INSERT);
+            setInsert(stmt, msgId, parent, root, depth, descendants, latest);
+            stmt.executeUpdate();
+        } finally {
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    private static void setInsert(PreparedStatement stmt, long msgId, Long parent, long root, int depth,
+                                  int descendants, long latest) throws SQLException {
+        stmt.setLong(1, msgId);
+        if (parent != null)
+            stmt.setLong(2, parent.longValue());
+        else
+            stmt.setNull(2, java.sql.Types.BIGINT);
+        stmt.setLong(3, root);
+        stmt.setInt(4, depth);
+        stmt.setInt(5, descendants);
+        stmt.setLong(6, latest);
+    }
+
+    private static Row getRow(DBClient client, long msgId) throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_GET_ROW);
+            stmt.setLong(1, msgId);
+            rs = stmt.executeQuery();
+            if (!rs.next())
+                return null;
+            Row row = new Row();
+            long parent = rs.getLong(1);
+            row.parent = rs.wasNull() ? null : Long.valueOf(parent);
+            row.root = rs.getLong(2);
+            row.depth = rs.getInt(3);
+            row.descendants = rs.getInt(4);
+            row.latest = rs.getLong(5);
+            return row;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    private static class Row {
+        Long parent;
+        long root;
+        int depth;
+        int descendants;
+        long latest;
+    }
+
+    /**
+     *  Build the whole table from messageHierarchy, in memory.
+     *  For databases from before there was a thread index, see DBClient.connect().
+     *
+     *  @return the number of posts indexed
+     */
+    static synchronized int rebuild(DBClient client) throws SQLException {
+        // all the posts, and how their references find them
+        Map<PostRef, Long> refToMsgId = new HashMap<PostRef, Long>();
+        Map<Long, Long> dates = new HashMap<Long, Long>();
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().createStatement();
+            rs = stmt.executeQuery(SQL_GET_ALL_POSTS);
+            while (rs.next()) {
+                Long msgId = Long.valueOf(rs.getLong(1));
+                byte scope[] = rs.getBytes(2);
+                long messageId = rs.getLong(3);
+                if (scope == null || scope.length != Hash.HASH_LENGTH)
+                    continue;
+                refToMsgId.put(new PostRef(scope, messageId), msgId);
+                dates.put(msgId, Long.valueOf(messageId));
+            }
+            rs.close();
+            rs = null;
+
+            // each post's closest ancestor we have
+            Map<Long, Long> parents = new HashMap<Long, Long>();
+            rs = stmt.executeQuery(SQL_GET_ALL_REFS);
+            while (rs.next()) {
+                Long msgId = Long.valueOf(rs.getLong(1));
+                if (parents.containsKey(msgId) || !dates.containsKey(msgId))
+                    continue;
+                byte scope[] = rs.getBytes(2);
+                long messageId = rs.getLong(3);
+                if (scope == null)
+                    continue;
+                Long parent = refToMsgId.get(new PostRef(scope, messageId));
+                if (parent != null && !parent.equals(msgId))
+                    parents.put(msgId, parent);
+            }
+            rs.close();
+            rs = null;
+            refToMsgId = null;
+
+            // break any loops where they close
+            for (Long msgId : dates.keySet()) {
+                Set<Long> path = new HashSet<Long>();
+                Long cur = msgId;
+                while (cur != null && path.add(cur)) {
+                    Long parent = parents.get(cur);
+                    if (parent != null && path.contains(parent)) {
+                        parents.remove(cur);
+                        break;
+                    }
+                    cur = parent;
+                }
+            }
+
+            Map<Long, List<Long>> children = new HashMap<Long, List<Long>>();
+            for (Map.Entry<Long, Long> e : parents.entrySet()) {
+                List<Long> kids = children.get(e.getValue());
+                if (kids == null) {
+                    kids = new ArrayList<Long>(2);
+                    children.put(e.getValue(), kids);
+                }
+                kids.add(e.getKey());
+            }
+
+            stmt.executeUpdate(SQL_DELETE_ALL);
+            PreparedStatement insert = null;
+            int count = 0;
+            try {
+                insert = client.con().prepareStatement(SQL_INSERT);
+                for (Long msgId : dates.keySet()) {
+                    if (parents.containsKey(msgId))
+                        continue;
+                    count += insertThread(insert, msgId, null, msgId.longValue(), 0, children, dates, new long[2]);
+                }
+                insert.executeBatch();
+            } finally {
+                if (insert != null) try { insert.close(); } catch (SQLException se) {}
+            }
+            return count;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    /**
+     *  Depth first, so each post's counts are known when its row is added
+     *
+     *  @param totals out parameter, descendants and latest post date of the subtree
+     *  @return rows added
+     */
+    private static int insertThread(PreparedStatement insert, Long msgId, Long parent, long root, int depth,
+                                    Map<Long, List<Long>> children, Map<Long, Long> dates, long totals[]) throws SQLException {
+        long latest = dates.get(msgId).longValue();
+        int descendants = 0;
+        int rv = 0;
+        List<Long> kids = children.get(msgId);
+        if (kids != null) {
+            long sub[] = new long[2];
+            for (Long kid : kids) {
+                rv += insertThread(insert, kid, msgId, root, depth + 1, children, dates, sub);
+                descendants += (int) sub[0] + 1;
+                latest = Math.max(latest, sub[1]);
+            }
+        }
+        setInsert(insert, msgId.longValue(), parent, root, depth, descendants, latest);
+        insert.addBatch();
+        if (++rv % 1000 == 0)
+            insert.executeBatch();
+        totals[0] = descendants;
+        totals[1] = latest;
+        return rv;
+    }
+
+    /** a post as its references name it */
+    private static final class PostRef {
+        private final byte[] _scope;
+        private final long _messageId;
+
+        public PostRef(byte scope[], long messageId) {
+            _scope = scope;
+            _messageId = messageId;
+        }
+
+        @Override
+        public int hashCode() { return Arrays.hashCode(_scope) ^ (int) _messageId; }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PostRef))
+                return false;
+            PostRef r = (PostRef) o;
+            return _messageId == r._messageId && Arrays.equals(_scope, r._scope);
+        }
+    }
+
+    private static final String SQL_BENCH_FORUM = "SELECT targetChannelId, COUNT(*) FROM channelMessage " +
+                                                  "WHERE deletionCause IS NULL GROUP BY targetChannelId ORDER BY 2 DESC";
+    private static final String SQL_BENCH_POSTS = "SELECT cm.msgId, cm.messageId, c.channelHash, cm.wasAuthorized, cm.authorChannelId " +
+                                                  "FROM channelMessage cm JOIN channel c ON c.channelId = cm.scopeChannelId " +
+                                                  "WHERE cm.targetChannelId = ? AND cm.deletionCause IS NULL";
+    private static final String SQL_BENCH_BIGGEST = "SELECT msgId FROM messageThread WHERE parentMsgId IS NULL ORDER BY descendants DESC";
+
+    /**
+     *  Time opening the forum with the most posts, threaded, and its biggest thread,
+     *  without the thread index and with it.
+     *  The index is rebuilt when done, so it's safe to run on a real database.
+     *
+     *  Usage: ThreadIndex jdbcURL login passphrase
+     */
+    public static void main(String args[]) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: ThreadIndex jdbcURL login passphrase");
+            System.exit(1);
+        }
+        DBClient client = new DBClient(I2PAppContext.getGlobalContext(), new SecureFile(System.getProperty("java.io.tmpdir")));
+        if (client.connect(args[0], args[1], args[2]) < 0) {
+            System.err.println("Unable to log in");
+            System.exit(1);
+        }
+        try {
+            bench(client, new NullUI());
+            ThreadResultCache.bench(client, new NullUI());
+        } finally {
+            client.close();
+        }
+    }
+
+    static void bench(DBClient client, UI ui) throws SQLException {
+        Set<ThreadMsgId> forum = new HashSet<ThreadMsgId>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().prepareStatement(SQL_BENCH_FORUM);
+            stmt.setMaxRows(1);
+            rs = stmt.executeQuery();
+            if (!rs.next()) {
+                System.out.println("No posts");
+                return;
+            }
+            long forumId = rs.getLong(1);
+            rs.close();
+            stmt.close();
+            stmt = client.con().prepareStatement(SQL_BENCH_POSTS);
+            stmt.setLong(1, forumId);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                ThreadMsgId tmi = new ThreadMsgId(rs.getLong(1));
+                tmi.messageId = rs.getLong(2);
+                tmi.scope = new Hash(rs.getBytes(3));
+                tmi.authorized = rs.getBoolean(4) ? Boolean.TRUE : Boolean.FALSE;
+                if (rs.wasNull()) tmi.authorized = null;
+                tmi.authorScopeId = rs.getLong(5);
+                forum.add(tmi);
+            }
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+
+        rebuild(client);
+        long biggest = getBiggestThread(client);
+        ThreadMsgId thread = null;
+        for (ThreadMsgId tmi : forum) {
+            if (tmi.msgId == biggest)
+                thread = tmi;
+        }
+        if (thread == null)
+            thread = forum.iterator().next();
+        System.out.println("Forum of " + forum.size() + " posts, biggest thread " + thread.msgId);
+
+        Statement clear = client.con().createStatement();
+        try {
+            clear.executeUpdate(SQL_DELETE_ALL);
+        } finally {
+            clear.close();
+        }
+        // once to warm up
+        new ThreadBuilder(client, ui).buildThread(new HashSet<ThreadMsgId>(forum));
+        long start = System.currentTimeMillis();
+        List<ThreadReferenceNode> before = new ThreadBuilder(client, ui).buildThread(new HashSet<ThreadMsgId>(forum));
+        long forumBefore = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        ThreadReferenceNode threadBefore = new ThreadBuilder(client, ui).buildThread(thread);
+        long threadTimeBefore = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        int count = rebuild(client);
+        long rebuildTime = System.currentTimeMillis() - start;
+
+        new ThreadBuilder(client, ui).buildThread(new HashSet<ThreadMsgId>(forum));
+        start = System.currentTimeMillis();
+        List<ThreadReferenceNode> after = new ThreadBuilder(client, ui).buildThread(new HashSet<ThreadMsgId>(forum));
+        long forumAfter = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        ThreadReferenceNode threadAfter = new ThreadBuilder(client, ui).buildThread(thread);
+        long threadTimeAfter = System.currentTimeMillis() - start;
+
+        System.out.println("Index rebuilt, " + count + " posts, in " + rebuildTime + "ms");
+        System.out.println("\t\twithout\twith index (ms)");
+        System.out.println("forum\t\t" + forumBefore + '\t' + forumAfter);
+        System.out.println("thread\t\t" + threadTimeBefore + '\t' + threadTimeAfter);
+        System.out.println("same forum: " + dump(before).equals(dump(after)) +
+                           ", same thread: " + dump(threadBefore).equals(dump(threadAfter)));
+    }
+
+    private static long getBiggestThread(DBClient client) throws SQLException {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = client.con().createStatement();
+            stmt.setMaxRows(1);
+            rs = stmt.executeQuery(SQL_BENCH_BIGGEST);
+            return rs.next() ? rs.getLong(1) : -1;
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+    }
+
+    /** sorted, as sibling order depends on hash order */
+    private static String dump(List<ThreadReferenceNode> nodes) {
+        List<String> dumps = new ArrayList<String>(nodes.size());
+        for (ThreadReferenceNode node : nodes) {
+            dumps.add(dump(node));
+        }
+        Collections.sort(dumps);
+        return dumps.toString();
+    }
+
+    private static String dump(ThreadReferenceNode node) {
+        if (node == null)
+            return "null";
+        List<ThreadReferenceNode> children = new ArrayList<ThreadReferenceNode>();
+        for (int i = 0; i < node.getChildCount(); i++) {
+            children.add((ThreadReferenceNode) node.getChild(i));
+        }
+        return node.getURI() + "|" + node.isDummy() + "|" + node.getSubject() + "|" + node.getDescription() + "|" +
+               node.getAuthorId() + "|" + node.getAttachmentCount() + "|" + node.getMessageStatus() + "|" + dump(children);
+    }
+}
@@ -0,0 +1,119 @@
+package syndie.db;
+
+/**
+ *  Token bucket for limiting the transfer rate of sync and the HTTP server.
+ *
+ *  The bucket holds at most one second of tokens. Consumers may go into debt,
+ *  and sleep it off, so a transfer of a large buffer isn't held up until the
+ *  bucket is full. A rate of zero or less means unlimited.
+ *
+ *  There is one global bucket in each direction, and one for each archive
+ *  in SyncArchive. Transfers draw from both with consume(global, local, bytes).
+ *
+ *  @since 1.107b-1
+ */
+class TokenBucket {
+    private final String _name;
+    /** bytes per second */
+    private int _rate;
+    private long _tokens;
+    private long _lastRefill;
+    private long _total;
+
+    /**
+     *  Lowest rate allowed, so that one 16KB read doesn't sleep for long enough
+     *  to trip EepGet's 60 second inactivity timeout
+     */
+    static final int MIN_RATE = 1024;
+
+    /** all sync fetches */
+    static final TokenBucket GLOBAL_INBOUND = new TokenBucket("inbound");
+    /** all sync pushes and HTTP server responses */
+    static final TokenBucket GLOBAL_OUTBOUND = new TokenBucket("outbound");
+
+    public TokenBucket(String name) {
+        _name = name;
+        _lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     *  @param bytesPerSecond zero or less for unlimited
+     */
+    public synchronized void setRate(int bytesPerSecond) {
+        if (bytesPerSecond > 0 && bytesPerSecond < MIN_RATE)
+            bytesPerSecond = MIN_RATE;
+        if (bytesPerSecond != _rate) {
+            refill();
+            _rate = bytesPerSecond;
+            if (_tokens > _rate)
+                _tokens = Math.max(0, _rate);
+        }
+    }
+
+    /** @return bytes per second, zero or less for unlimited */
+    public synchronized int getRate() { return _rate; }
+
+    /** @return total bytes through this bucket */
+    public synchronized long getTotal() { return _total; }
+
+    /**
+     *  Take the tokens without waiting.
+     *  @return how long the caller must wait before transferring them, in ms, 0 for none
+     */
+    public synchronized long reserve(int bytes) {
+        _total += bytes;
+        if (_rate <= 0)
+            return 0;
+        refill();
+        _tokens -= bytes;
+        if (_tokens >= 0)
+            return 0;
+        return (-_tokens * 1000) / _rate;
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - _lastRefill;
+        _lastRefill = now;
+        if (_rate <= 0 || elapsed <= 0)
+            return;
+        _tokens = Math.min(_rate, _tokens + (elapsed * _rate / 1000));
+    }
+
+    /**
+     *  Blocking until the bytes may be transferred.
+     *  Returns early if interrupted, with the interrupt flag set.
+     */
+    public void consume(int bytes) {
+        consume(this, null, bytes);
+    }
+
+    /**
+     *  Blocking until the bytes may be transferred under both limits.
+     *  Returns early if interrupted, with the interrupt flag set.
+     *
+     *  @param global may be null
+     *  @param local may be null
+     */
+    public static void consume(TokenBucket global, TokenBucket local, int bytes) {
+        if (bytes <= 0)
+            return;
+        long wait = 0;
+        if (global != null)
+            wait = global.reserve(bytes);
+        if (local != null)
+            wait = Math.max(wait, local.reserve(bytes));
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return _name + ": " + (_rate > 0 ? (_rate / 1024) + "KBps" : "unlimited") + ", " + (_total / 1024) + "KB total";
+    }
+}
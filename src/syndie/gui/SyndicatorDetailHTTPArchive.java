@@ -43,10 +43,12 @@ import syndie.db.PushStrategy;
 import syndie.db.SharedArchiveEngine;
 import syndie.db.SyncArchive;
 import syndie.db.SyncManager;
+import syndie.db.SyncMetrics;
 import syndie.db.SyncOutboundPusher;
 import syndie.db.UI;
 import syndie.util.DateTime;
 import syndie.db.FreenetHelper;
+import syndie.db.JobRunner;
 
 /**
  *
@@ -101,6 +103,9 @@ class SyndicatorDetailHTTPArchive extends BaseComponent implements Themeable, Tr
     private Label _failuresLabel;
     private Label _failures;
     private Button _backOffOnFailures;
+    /** @since 1.107b-1 */
+    private Label _historyLabel;
+    private Label _history;
     private Button _save;
     private Button _cancel;
     private final Syndicator.SyndicationDetailListener _listener;
@@ -363,6 +368,14 @@ class SyndicatorDetailHTTPArchive extends BaseComponent implements Themeable, Tr
         _backOffOnFailures.setLayoutData(new GridData(GridData.FILL, GridData.FILL, true, false));
         _backOffOnFailures.setSelection(true);
         
+        // sync history row
+        
+        _historyLabel = new Label(_root, SWT.NONE);
+        _historyLabel.setLayoutData(new GridData(GridData.END, GridData.CENTER, false, false));
+        
+        _history = new Label(_root, SWT.WRAP);
+        _history.setLayoutData(new GridData(GridData.FILL, GridData.CENTER, true, false));
+        
         // action row
         
         Composite actions = new Composite(_root, SWT.NONE);
@@ -968,6 +981,98 @@ class SyndicatorDetailHTTPArchive extends BaseComponent implements Themeable, Tr
         _nextSyncDelay.select(delayIndex);
         _failures.setText(_archive.getConsecutiveFailures() + "");
         _backOffOnFailures.setEnabled(false);
+        loadHistory();
+    }
+    
+    /**
+     *  The last sync in the label, the rest in the tooltip.
+     *  The history is loaded from the database on the JobRunner, then shown on the UI thread.
+     *  @since 1.107b-1
+     */
+    private void loadHistory() {
+        final SyncArchive archive = _archive;
+        JobRunner.instance().enqueue(new Runnable() {
+            public void run() {
+                final List<SyncMetrics> history = new ArrayList<SyncMetrics>();
+                SyncMetrics cur = archive.getCurrentSyncMetrics();
+                if (cur != null && !cur.isFinished())
+                    history.add(cur);
+                history.addAll(archive.getSyncHistory());
+                Display.getDefault().asyncExec(new Runnable() {
+                    public void run() {
+                        if (_history.isDisposed() || archive != _archive)
+                            return;
+                        showHistory(history);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     *  UI thread
+     *  @param history newest first
+     *  @since 1.107b-1
+     */
+    private void showHistory(List<SyncMetrics> history) {
+        if (history.isEmpty()) {
+            _history.setText("");
+            _history.setToolTipText(null);
+            return;
+        }
+        _history.setText(getSummary(history.get(0)));
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < history.size(); i++) {
+            if (i > 0)
+                buf.append('\n');
+            buf.append(getSummary(history.get(i)));
+        }
+        _history.setToolTipText(buf.toString());
+    }
+
+    /**
+     *  One sync on one line, translated, with what SyncMetrics.toString() has for the logs
+     *  @since 1.107b-1
+     */
+    private String getSummary(SyncMetrics m) {
+        StringBuilder buf = new StringBuilder(128);
+        buf.append(DateTime.getDateTime(m.getStartTime()));
+        if (!m.isFinished())
+            buf.append(" (").append(getText("in progress")).append(')');
+        else if (!m.getSuccess())
+            buf.append(" (").append(getText("failed")).append(')');
+        buf.append(' ').append(getText("took {0}", DataHelper.formatDuration(m.getDuration())));
+        if (m.getIndexFetchTime() >= 0) {
+            buf.append("; ");
+            String fetchTime = DataHelper.formatDuration(m.getIndexFetchTime());
+            if (m.getIndexSize() == 0)
+                buf.append(getText("index not modified, checked in {0}", fetchTime));
+            else if (m.getIndexSize() > 0)
+                buf.append(getText("index of {0} fetched in {1}", DataHelper.formatSize2(m.getIndexSize(), false) + 'B', fetchTime));
+            else
+                buf.append(getText("index fetched in {0}", fetchTime));
+        }
+        buf.append("; ").append(getText("offered {0}", Integer.valueOf(m.getOffered())));
+        buf.append(", ").append(getText("selected {0}", Integer.valueOf(m.getSelected())));
+        buf.append(", ").append(getText("fetched {0}", Integer.valueOf(m.getFetched())));
+        buf.append(", ").append(getText("imported {0}", Integer.valueOf(m.getImported())));
+        if (m.getFetchFailed() > 0 || m.getImportFailed() > 0 || m.getCancelled() > 0) {
+            buf.append("; ").append(getText("fetch failed {0}", Integer.valueOf(m.getFetchFailed())));
+            buf.append(", ").append(getText("import failed {0}", Integer.valueOf(m.getImportFailed())));
+            buf.append(", ").append(getText("cancelled {0}", Integer.valueOf(m.getCancelled())));
+        }
+        if (m.getPushed() > 0 || m.getPushFailed() > 0 || m.getPushSuppressed() > 0) {
+            buf.append("; ").append(getText("pushed {0}", Integer.valueOf(m.getPushed())));
+            buf.append(", ").append(getText("push failed {0}", Integer.valueOf(m.getPushFailed())));
+            buf.append(", ").append(getText("skipped as recently pushed {0}", Integer.valueOf(m.getPushSuppressed())));
+        }
+        buf.append("; ").append(getText("received {0}, sent {1}", DataHelper.formatSize2(m.getBytesIn(), false) + 'B',
+                                        DataHelper.formatSize2(m.getBytesOut(), false) + 'B'));
+        if (m.getFetched() > 0)
+            buf.append("; ").append(getText("average fetch {0}", DataHelper.formatDuration(m.getAverageFetchLatency())));
+        if (m.getImportQueueTime() > 0)
+            buf.append("; ").append(getText("waited for the importer {0}", DataHelper.formatDuration(m.getImportQueueTime())));
+        return buf.toString();
     }
     
     private static final int MAX_WHITELIST_NAME_LEN = 30;
@@ -1038,6 +1143,8 @@ class SyndicatorDetailHTTPArchive extends BaseComponent implements Themeable, Tr
         _failuresLabel.setFont(theme.DEFAULT_FONT);
         _failures.setFont(theme.DEFAULT_FONT);
         _backOffOnFailures.setFont(theme.DEFAULT_FONT);
+        _historyLabel.setFont(theme.DEFAULT_FONT);
+        _history.setFont(theme.DEFAULT_FONT);
         _pullNewAge.setFont(theme.DEFAULT_FONT);
         _pullNewAgeLabel.setFont(theme.DEFAULT_FONT);
         _pushAge.setFont(theme.DEFAULT_FONT);
@@ -1081,6 +1188,7 @@ class SyndicatorDetailHTTPArchive extends BaseComponent implements Themeable, Tr
         _nextSyncDelayLabel.setText(registry.getText("Min sync delay") + ':');
         _failuresLabel.setText(registry.getText("Sync failures") + ':');
         _backOffOnFailures.setText(registry.getText("Back off after failing?"));
+        _historyLabel.setText(registry.getText("Recent syncs") + ':');
         _save.setText(registry.getText("Save"));
         _cancel.setText(registry.getText("Cancel"));
 
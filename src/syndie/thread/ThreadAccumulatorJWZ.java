@@ -43,6 +43,8 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
     
     private int _sortField;
     private boolean _sortOrderAscending;
+    /** the normalized filter, for the ThreadResultCache */
+    private String _filter;
         
     private static final boolean VERBOSE_DEBUG = false;
     
@@ -145,6 +147,7 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
         _unreadOnly = criteria.getBoolean("unreadonly", false);
         
         _keyword = criteria.getString("keyword");
+        _filter = criteria.toString();
     }
     
     private static final Set getTags(String tags[]) {
@@ -160,6 +163,14 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
     }
     
     public void setKeyword(String keyword) { _keyword = keyword; }
+
+    /**
+     *  The sort isn't part of it, the cached threads are sorted on the way out.
+     *  @since 1.107b-1
+     */
+    private String getCacheKey() {
+        return _client.getLoggedInNymId() + " " + _keyword + " " + _filter;
+    }
         
     /**
      * actually gather the matching threads according to the search criteria
@@ -175,6 +186,28 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
             gatherPBEPendingDecryption();
             return;
         }
+
+        // if nothing changed since we last gathered this filter, we're done,
+        // and if something did, we only rebuild the threads it touched
+        ThreadResultCache cache = null;
+        ThreadResultCache.Entry cached = null;
+        long generation = 0;
+        if (_filter != null) {
+            cache = ThreadResultCache.getInstance(_client);
+            generation = cache.getGeneration();
+            cached = cache.get(getCacheKey());
+            if ( (cached != null) && cached.pending.isEmpty() ) {
+                if (VERBOSE_DEBUG) _ui.debugMessage("cached threads: " + cached.threads.size());
+                _msgTags = cached.msgTags;
+                List<ThreadReferenceNode> roots = new ArrayList<ThreadReferenceNode>(cached.threads.size());
+                for (ThreadResultCache.CachedThread t : cached.threads) {
+                    if (t.root != null)
+                        roots.add(t.root);
+                }
+                storePruned(sort(roots.toArray(new ThreadReferenceNode[roots.size()])));
+                return;
+            }
+        }
         
         // filter by date and scope only
         Set<ThreadMsgId> matchingThreadMsgIds = getMatchingThreadMsgIds();
@@ -215,12 +248,19 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
             tagFilter = false;
         
         _msgTags = new HashMap<Long, Set<String>>();
+        Map<Long, Set<String>> tagCache = new HashMap<Long, Set<String>>();
         
         if (tagFilter) {
             for (Iterator iter = matchingThreadMsgIds.iterator(); iter.hasNext(); ) {
                 ThreadMsgId tmi = (ThreadMsgId)iter.next();
                 //Long msgId = (Long)iter.next();
-                Set<String> tags = _client.getMessageTags(tmi.msgId, true, true);
+                Long msgId = Long.valueOf(tmi.msgId);
+                Set<String> tags = null;
+                if ( (cached != null) && !cached.pending.contains(msgId) )
+                    tags = cached.tagCache.get(msgId);
+                if (tags == null)
+                    tags = _client.getMessageTags(tmi.msgId, true, true);
+                tagCache.put(msgId, tags);
                 if (_applyTagFilterToMessages) {
                     if (!tagFilterPassed(tags)) {
                         if (VERBOSE_DEBUG) _ui.debugMessage("reject " + tmi + " because msg tag filters failed: " + tags);
@@ -237,7 +277,52 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
         // now we gather threads out of the remaining (inserting stubs between them as necessary)
         //long beforeGather = System.currentTimeMillis();
         //if (VERBOSE_DEBUG) _ui.debugMessage("filter individual messages by thread took " + (beforeGather-afterFilterStatus));
-        ThreadReferenceNode threads[] = buildThreads(matchingThreadMsgIds);
+        // ThreadBuilder adds the children it finds to the set, so keep the candidates as they were
+        Set<ThreadMsgId> candidates = new HashSet<ThreadMsgId>(matchingThreadMsgIds);
+        List<ThreadResultCache.CachedThread> kept = new ArrayList<ThreadResultCache.CachedThread>();
+        Set<ThreadMsgId> toBuild = matchingThreadMsgIds;
+        Map<Long, ThreadMsgId> matchingById = null;
+        Set<Long> channelIds = new HashSet<Long>();
+        if (cached != null) {
+            matchingById = new HashMap<Long, ThreadMsgId>(matchingThreadMsgIds.size());
+            for (ThreadMsgId tmi : matchingThreadMsgIds)
+                matchingById.put(Long.valueOf(tmi.msgId), tmi);
+            toBuild = getChangedThreads(cached, matchingById, kept);
+            channelIds.addAll(cached.channelIds);
+        }
+        if (_channelHashes != null) {
+            for (Iterator iter = _channelHashes.iterator(); iter.hasNext(); )
+                channelIds.add(Long.valueOf(_client.getChannelId((Hash)iter.next())));
+        }
+
+        ThreadReferenceNode threads[];
+        // what's in each thread, before the filters below make dummies of them
+        List<Set<Long>> threadMsgIds;
+        List<Set<SyndieURI>> threadURIs;
+        while (true) {
+            threads = buildThreads(toBuild);
+            threadMsgIds = new ArrayList<Set<Long>>(threads.length);
+            threadURIs = new ArrayList<Set<SyndieURI>>(threads.length);
+            Set<Long> builtMsgIds = new HashSet<Long>();
+            Set<SyndieURI> builtURIs = new HashSet<SyndieURI>();
+            for (int i = 0; i < threads.length; i++) {
+                Set<Long> msgIds = new HashSet<Long>();
+                Set<SyndieURI> uris = new HashSet<SyndieURI>();
+                getThreadContents(threads[i], msgIds, uris, channelIds);
+                threadMsgIds.add(msgIds);
+                threadURIs.add(uris);
+                builtMsgIds.addAll(msgIds);
+                builtURIs.addAll(uris);
+            }
+            // ThreadBuilder loads whole threads and joins those with a common ancestor,
+            // so what we rebuilt may take in some we kept. Rebuild those too.
+            if (kept.isEmpty() || !rebuildOverlapping(kept, builtMsgIds, builtURIs, matchingById, toBuild))
+                break;
+        }
+        if (cached != null) {
+            if (VERBOSE_DEBUG) _ui.debugMessage("rebuilt " + threads.length + " threads, kept " + kept.size());
+            matchingThreadMsgIds.addAll(toBuild);
+        }
         //long afterGather = System.currentTimeMillis();
         //if (VERBOSE_DEBUG) _ui.debugMessage("Build threads took " + (afterGather-beforeGather) + "ms to gather " + threads.length + " threads");
         
@@ -303,7 +388,24 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
         ThreadReferenceNode pruned[] = prune(threads, matchingThreadMsgIds);
         //long afterPrune = System.currentTimeMillis();
         //_ui.debugMessage("threads pruned: " + (pruned != null ? pruned.length +"" : "none"));
-        ThreadReferenceNode sorted[] = sort(pruned);
+
+        // cache our own copy, as sorting and the caller rearrange them
+        List<ThreadResultCache.CachedThread> toCache = new ArrayList<ThreadResultCache.CachedThread>(kept.size() + pruned.length);
+        List<ThreadReferenceNode> remaining = new ArrayList<ThreadReferenceNode>(kept.size() + pruned.length);
+        for (ThreadResultCache.CachedThread t : kept) {
+            toCache.add(t);
+            if (t.root != null)
+                remaining.add(ThreadReferenceNode.deepThreadCopy(t.root));
+        }
+        for (int i = 0; i < pruned.length; i++) {
+            toCache.add(new ThreadResultCache.CachedThread(ThreadReferenceNode.deepThreadCopy(pruned[i]), threadMsgIds.get(i), threadURIs.get(i)));
+            if (pruned[i] != null)
+                remaining.add(pruned[i]);
+        }
+        if (cache != null)
+            cache.put(new ThreadResultCache.Entry(getCacheKey(), _unreadOnly, candidates, _msgTags, tagCache, toCache, channelIds), generation);
+
+        ThreadReferenceNode sorted[] = sort(remaining.toArray(new ThreadReferenceNode[remaining.size()]));
         //long afterSort = System.currentTimeMillis();
         //_ui.debugMessage("threads sorted: " + (pruned != null ? pruned.length +"" : "none"));
         storePruned(sorted);
@@ -542,38 +644,10 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
                 rs = stmt.executeQuery();
                 while (rs.next()) {
                     queryMatches++;
-                    byte chanHash[] = rs.getBytes(1);
-                    long messageId = rs.getLong(2);
-                    int closeness = rs.getInt(3);
-                    long ancestorMsgId = rs.getLong(4);
-                    if (rs.wasNull()) ancestorMsgId = -1;
-                    boolean readKeyMissing = rs.getBoolean(5);
-                    if (rs.wasNull()) readKeyMissing = false;
-                    String pbePrompt = rs.getString(6);
-                    boolean replyKeyMissing = rs.getBoolean(7);
-                    if (rs.wasNull()) replyKeyMissing = false;
-                    Boolean wasAuth = rs.getBoolean(8) ? Boolean.TRUE : Boolean.FALSE;
-                    if (rs.wasNull()) wasAuth = null;
-                    long author = rs.getLong(9);
-                    if (rs.wasNull()) author = -1;
-                    
-                    ThreadMsgId ancestor = new ThreadMsgId(ancestorMsgId);
-                    ancestor.messageId = messageId;
-                    ancestor.authorScopeId = author;
-                    if ( (chanHash != null) && (chanHash.length == Hash.HASH_LENGTH) )
-                        ancestor.scope = new Hash(chanHash);
-                    
-                    // if we don't have the actual data, just use a dummy
-                    if ( (pbePrompt != null) || (replyKeyMissing) || (readKeyMissing) ) {
-                        ancestor.unreadable = true;
-                        ancestor.authorized = null;
-                    } else {
-                        ancestor.authorized = wasAuth;
-                    }
-                    
+                    ThreadMsgId ancestor = getThreadMsgId(rs, 1);
                     if (!rv.contains(ancestor)) {
                         rv.add(ancestor);
-                        if (ancestorMsgId >= 0) {
+                        if (ancestor.msgId >= 0) {
                             if (!existingAncestors.containsKey(ancestor) && !pendingThreadMsgIds.contains(ancestor))
                                 pendingThreadMsgIds.add(ancestor);
                         }
@@ -597,6 +671,44 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
         return queryMatches;
     }
 
+    /**
+     *  The columns of SQL_BUILD_ANCESTORS and SQL_BUILD_CHILDREN, starting at the given one:
+     *  channelHash, messageId, closeness (unused), msgId, readKeyMissing, pbePrompt,
+     *  replyKeyMissing, wasAuthorized, authorChannelId
+     *
+     *  @since 1.107b-1 pulled out of buildAncestors() and buildChildren()
+     */
+    static ThreadMsgId getThreadMsgId(ResultSet rs, int col) throws SQLException {
+        byte chanHash[] = rs.getBytes(col);
+        long messageId = rs.getLong(col + 1);
+        long ancestorMsgId = rs.getLong(col + 3);
+        if (rs.wasNull()) ancestorMsgId = -1;
+        boolean readKeyMissing = rs.getBoolean(col + 4);
+        if (rs.wasNull()) readKeyMissing = false;
+        String pbePrompt = rs.getString(col + 5);
+        boolean replyKeyMissing = rs.getBoolean(col + 6);
+        if (rs.wasNull()) replyKeyMissing = false;
+        Boolean wasAuth = rs.getBoolean(col + 7) ? Boolean.TRUE : Boolean.FALSE;
+        if (rs.wasNull()) wasAuth = null;
+        long author = rs.getLong(col + 8);
+        if (rs.wasNull()) author = -1;
+
+        ThreadMsgId ancestor = new ThreadMsgId(ancestorMsgId);
+        ancestor.messageId = messageId;
+        ancestor.authorScopeId = author;
+        if ( (chanHash != null) && (chanHash.length == Hash.HASH_LENGTH) )
+            ancestor.scope = new Hash(chanHash);
+
+        // if we don't have the actual data, just use a dummy
+        if ( (pbePrompt != null) || (replyKeyMissing) || (readKeyMissing) ) {
+            ancestor.unreadable = true;
+            ancestor.authorized = null;
+        } else {
+            ancestor.authorized = wasAuth;
+        }
+        return ancestor;
+    }
+
     private static final String SQL_BUILD_CHILDREN =
             "SELECT c.channelHash, cm.messageId, 0, cm.msgId, cm.readKeyMissing, cm.pbePrompt, cm.replyKeyMissing, cm.wasAuthorized, cm.authorChannelId " +
             "FROM channelMessage parentMsg " +
@@ -654,35 +766,7 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
             rs = stmt.executeQuery();
             timer.addEvent("buildChildren query executed");
             while (rs.next()) {
-                byte chanHash[] = rs.getBytes(1);
-                long messageId = rs.getLong(2);
-                int closeness = rs.getInt(3);
-                long ancestorMsgId = rs.getLong(4);
-                if (rs.wasNull()) ancestorMsgId = -1;
-                boolean readKeyMissing = rs.getBoolean(5);
-                if (rs.wasNull()) readKeyMissing = false;
-                String pbePrompt = rs.getString(6);
-                boolean replyKeyMissing = rs.getBoolean(7);
-                if (rs.wasNull()) replyKeyMissing = false;
-                Boolean wasAuth = rs.getBoolean(8) ? Boolean.TRUE : Boolean.FALSE;
-                if (rs.wasNull()) wasAuth = null;
-                long author = rs.getLong(9);
-                if (rs.wasNull()) author = -1;
-
-                ThreadMsgId ancestor = new ThreadMsgId(ancestorMsgId);
-                ancestor.messageId = messageId;
-                ancestor.authorScopeId = author;
-                if ( (chanHash != null) && (chanHash.length == Hash.HASH_LENGTH) )
-                    ancestor.scope = new Hash(chanHash);
-
-                // if we don't have the actual data, just use a dummy
-                if ( (pbePrompt != null) || (replyKeyMissing) || (readKeyMissing) ) {
-                    ancestor.unreadable = true;
-                    ancestor.authorized = null;
-                } else {
-                    ancestor.authorized = wasAuth;
-                }
-
+                ThreadMsgId ancestor = getThreadMsgId(rs, 1);
                 if (!existingMsgIds.contains(ancestor))
                     newMsgIds.add(ancestor);
 
@@ -844,6 +928,144 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
         return rv;
     }
     
+    /**
+     *  The posts we have, the URIs of every node, and the channels
+     *  posted in, to, or by, in the thread as built
+     *
+     *  @since 1.107b-1
+     */
+    private static void getThreadContents(ThreadReferenceNode node, Set<Long> msgIds, Set<SyndieURI> uris, Set<Long> channelIds) {
+        if (node.getURI() != null)
+            uris.add(node.getURI());
+        if (!node.isDummy() && (node.getMsgId() != null)) {
+            msgIds.add(Long.valueOf(node.getMsgId().msgId));
+            channelIds.add(Long.valueOf(node.getTargetId()));
+            channelIds.add(Long.valueOf(node.getScopeId()));
+            channelIds.add(Long.valueOf(node.getAuthorId()));
+        }
+        for (int i = 0; i < node.getChildCount(); i++)
+            getThreadContents((ThreadReferenceNode)node.getChild(i), msgIds, uris, channelIds);
+    }
+
+    /**
+     *  Which of the candidates need their threads rebuilt since the cached results were gathered:
+     *  those in a thread with a post that was imported, deleted, or came or went from the candidates,
+     *  or that such a post refers to, and those posts themselves.
+     *
+     *  @param matching the candidates now, by msgId
+     *  @param kept out parameter, the cached threads that don't need rebuilding
+     *  @since 1.107b-1
+     */
+    private Set<ThreadMsgId> getChangedThreads(ThreadResultCache.Entry cached, Map<Long, ThreadMsgId> matching,
+                                               List<ThreadResultCache.CachedThread> kept) {
+        Set<Long> changed = new HashSet<Long>(cached.pending);
+        Set<Long> wereMatching = new HashSet<Long>(cached.candidates.size());
+        for (ThreadMsgId tmi : cached.candidates) {
+            Long msgId = Long.valueOf(tmi.msgId);
+            wereMatching.add(msgId);
+            if (!matching.containsKey(msgId))
+                changed.add(msgId);
+        }
+        for (Long msgId : matching.keySet()) {
+            if (!wereMatching.contains(msgId))
+                changed.add(msgId);
+        }
+
+        Set<SyndieURI> changedURIs = getThreadURIs(changed);
+        Set<ThreadMsgId> rv = new HashSet<ThreadMsgId>();
+        for (ThreadResultCache.CachedThread t : cached.threads) {
+            if (!containsAny(t.msgIds, changed) && !containsAny(t.uris, changedURIs)) {
+                kept.add(t);
+                continue;
+            }
+            for (Long msgId : t.msgIds) {
+                ThreadMsgId tmi = matching.get(msgId);
+                if (tmi != null)
+                    rv.add(tmi);
+            }
+        }
+        for (Long msgId : changed) {
+            ThreadMsgId tmi = matching.get(msgId);
+            if (tmi != null)
+                rv.add(tmi);
+        }
+        return rv;
+    }
+
+    /**
+     *  Move the kept threads that share a post or a node with the rebuilt ones
+     *  out of kept, adding their candidates to toBuild.
+     *
+     *  @return true if any were moved
+     *  @since 1.107b-1
+     */
+    private static boolean rebuildOverlapping(List<ThreadResultCache.CachedThread> kept, Set<Long> builtMsgIds, Set<SyndieURI> builtURIs,
+                                              Map<Long, ThreadMsgId> matching, Set<ThreadMsgId> toBuild) {
+        boolean rv = false;
+        for (Iterator<ThreadResultCache.CachedThread> iter = kept.iterator(); iter.hasNext(); ) {
+            ThreadResultCache.CachedThread t = iter.next();
+            if (!containsAny(t.msgIds, builtMsgIds) && !containsAny(t.uris, builtURIs))
+                continue;
+            iter.remove();
+            for (Long msgId : t.msgIds) {
+                ThreadMsgId tmi = matching.get(msgId);
+                if (tmi != null)
+                    toBuild.add(tmi);
+            }
+            rv = true;
+        }
+        return rv;
+    }
+
+    private static <T> boolean containsAny(Set<T> set, Set<T> items) {
+        if (items.size() > set.size()) {
+            Set<T> tmp = set;
+            set = items;
+            items = tmp;
+        }
+        for (T item : items) {
+            if (set.contains(item))
+                return true;
+        }
+        return false;
+    }
+
+    private static final String SQL_GET_REFERENCED = "SELECT referencedChannelHash, referencedMessageId FROM messageHierarchy WHERE msgId = ?";
+
+    /**
+     *  The URIs of the posts and everything they refer to
+     *  @since 1.107b-1
+     */
+    private Set<SyndieURI> getThreadURIs(Set<Long> msgIds) {
+        Set<SyndieURI> rv = new HashSet<SyndieURI>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = _client.con().prepareStatement(SQL_GET_REFERENCED);
+            for (Long msgId : msgIds) {
+                SyndieURI uri = _client.getMessageURI(msgId.longValue());
+                if (uri != null)
+                    rv.add(uri);
+                stmt.setLong(1, msgId.longValue());
+                rs = stmt.executeQuery();
+                while (rs.next()) {
+                    byte chan[] = rs.getBytes(1);
+                    long messageId = rs.getLong(2);
+                    if ( (chan != null) && (chan.length == Hash.HASH_LENGTH) && !rs.wasNull() )
+                        rv.add(SyndieURI.createMessage(new Hash(chan), messageId));
+                }
+                rs.close();
+                rs = null;
+            }
+        } catch (SQLException se) {
+            _ui.errorMessage("Internal error getting the thread references", se);
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return rv;
+    }
+
     private ThreadReferenceNode[] sort(ThreadReferenceNode roots[]) {
         return sort(roots, null);
     }
@@ -988,8 +1210,11 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
             return lhs.toString().compareTo(rhs.toString());
     }
     
+    /**
+     *  @return the pruned roots, in the same order, null where nothing is left
+     */
     private ThreadReferenceNode[] prune(ThreadReferenceNode roots[], Set matchingThreadMsgIds) {
-        List remaining = new ArrayList(roots.length);
+        ThreadReferenceNode remaining[] = new ThreadReferenceNode[roots.length];
         for (int i = 0; i < roots.length; i++) {
             if (roots[i] == null) {
                 continue;
@@ -998,10 +1223,10 @@ public class ThreadAccumulatorJWZ extends ThreadAccumulator {
                 Set threadMatches = new HashSet();
                 ThreadReferenceNode newRoot = prune(roots[i], null, matchingThreadMsgIds, threadMatches);
                 if ( (newRoot != null) && (threadMatches.size() > 0) )
-                    remaining.add(newRoot);
+                    remaining[i] = newRoot;
             }
         }
-        return (ThreadReferenceNode[])remaining.toArray(new ThreadReferenceNode[0]);
+        return remaining;
     }
     private ThreadReferenceNode prune(ThreadReferenceNode cur, ThreadReferenceNode parent, Set matchingThreadMsgIds, Set threadMatches) {
         // add the threadMsgId to threadMatches for every thread element also in matchingThreadMsgIds
@@ -6,6 +6,7 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -46,6 +47,17 @@ public class ThreadBuilder {
 
     public List<ThreadReferenceNode> buildThread(Set<ThreadMsgId> threadMsgIds, Timer timer) {
         Map<ThreadMsgId, List<ThreadMsgId>> tmiToAncestors = new HashMap<ThreadMsgId, List<ThreadMsgId>>();
+        loadThreads(threadMsgIds, tmiToAncestors);
+        timer.addEvent("threads loaded");
+        return buildThread(threadMsgIds, timer, tmiToAncestors);
+    }
+
+    /**
+     *  @param tmiToAncestors the references already loaded by loadThreads(), will be added to
+     *  @since 1.107b-1 split out of buildThread(Set, Timer)
+     */
+    private List<ThreadReferenceNode> buildThread(Set<ThreadMsgId> threadMsgIds, Timer timer,
+                                                  Map<ThreadMsgId, List<ThreadMsgId>> tmiToAncestors) {
         Set<ThreadMsgId> newMsgIds = new HashSet<ThreadMsgId>();
         
         // find all children of the messages, in case they weren't included in the threadMsgIds
@@ -55,9 +67,15 @@ public class ThreadBuilder {
             if (DEBUG) _ui.debugMessage("children exposed under existing messages: " + newMsgIds);
             threadMsgIds.addAll(newMsgIds);
         }
+
+        // Where a missing ancestor goes depends on which of its descendants comes first,
+        // so go in msgId order for a thread to come out the same whatever else is built with it.
+        // ThreadResultCache relies on that when it only rebuilds some of them.
+        List<ThreadMsgId> ordered = new ArrayList<ThreadMsgId>(threadMsgIds);
+        Collections.sort(ordered, MSGID_COMPARATOR);
         
         // step 1: foreach msg
-        for (ThreadMsgId tmi : threadMsgIds) {
+        for (ThreadMsgId tmi : ordered) {
             // step 1.A: build a container for each msg
             Container c = _idTable.get(tmi);
             if (c == null) {
@@ -68,7 +86,7 @@ public class ThreadBuilder {
                 c.msg = new Message();
                 c.msg.id = tmi;
                 //timer.addEvent("building ancestor");
-                int rc = ThreadAccumulatorJWZ.buildAncestors(_client, _ui, tmi, tmiToAncestors);
+                buildAncestors(tmi, tmiToAncestors);
                 //timer.addEvent("ancestor built");
                 c.msg.references = (List)tmiToAncestors.get(tmi);
                 if (DEBUG) _ui.debugMessage("ancestors for " + tmi + ": " + c.msg.references);
@@ -76,7 +94,7 @@ public class ThreadBuilder {
         }
         
         // build all ancestors first, otherwise the loop check will be incomplete
-        for (ThreadMsgId tmi : threadMsgIds) {
+        for (ThreadMsgId tmi : ordered) {
             Container c = _idTable.get(tmi);
             // step 1.B: fetch & link the ancestors of the containers
             if ( (c != null) && (c.msg != null) && (c.msg.references != null) ) {
@@ -98,7 +116,7 @@ public class ThreadBuilder {
                         refContainer.msg.id = ref;
                         
                         //timer.addEvent("building expanded ancestor");
-                        int rc = ThreadAccumulatorJWZ.buildAncestors(_client, _ui, ref, tmiToAncestors);
+                        buildAncestors(ref, tmiToAncestors);
                         //timer.addEvent("expanded ancestor built");
                         refContainer.msg.references = (List)tmiToAncestors.get(ref);
                         if (DEBUG) _ui.debugMessage("ancestors for " + ref + ": " + refContainer.msg.references);
@@ -153,12 +171,24 @@ public class ThreadBuilder {
         //prune(roots);
         // skip step 5, because syndie uses real references, not "Re: " stuff
         // step 6: persist the tree to our own structure
-        List<ThreadReferenceNode> rv = containerToRefNode(roots);
+        List<ThreadReferenceNode> toPopulate = new ArrayList<ThreadReferenceNode>();
+        List<ThreadReferenceNode> rv = containerToRefNode(roots, toPopulate);
         timer.addEvent("refnodes built");
+        populateNodes(_client, toPopulate);
+        timer.addEvent("refnodes populated");
         // skip step 7, because we sort elsewhere
         return rv;
     }
     
+    /** @since 1.107b-1 */
+    private static final Comparator<ThreadMsgId> MSGID_COMPARATOR = new Comparator<ThreadMsgId>() {
+        public int compare(ThreadMsgId lhs, ThreadMsgId rhs) {
+            if (lhs.msgId < rhs.msgId) return -1;
+            if (lhs.msgId > rhs.msgId) return 1;
+            return 0;
+        }
+    };
+
     private void dumpTable() {
         if (true) return;
         StringBuilder buf = new StringBuilder();
@@ -175,10 +205,13 @@ public class ThreadBuilder {
         _ui.debugMessage(buf.toString());
     }
     
-    private List<ThreadReferenceNode> containerToRefNode(List<Container> containers) {
+    /**
+     *  @param toPopulate out parameter, the nodes to fill in with populateNodes()
+     */
+    private List<ThreadReferenceNode> containerToRefNode(List<Container> containers, List<ThreadReferenceNode> toPopulate) {
         List<ThreadReferenceNode> rv = new ArrayList<ThreadReferenceNode>();
         for (int i = 0; i < containers.size(); i++) {
-            ThreadReferenceNode node = containerToRefNode(containers.get(i), null);
+            ThreadReferenceNode node = containerToRefNode(containers.get(i), null, toPopulate);
             if (node != null)
                 rv.add(node);
         }
@@ -197,10 +230,7 @@ public class ThreadBuilder {
             "WHERE msg.msgId = ?";
     
     static void populateNode(DBClient client, ThreadReferenceNode node, ThreadMsgId tmi) {
-        node.setURI(SyndieURI.createMessage(tmi.scope, tmi.messageId));
-        if ( (tmi.msgId >= 0) && (!tmi.unreadable) ) {
-            node.setIsDummy(false);
-            
+        if (initNode(node, tmi)) {
             PreparedStatement stmt = null;
             ResultSet rs = null;
             try {
@@ -208,37 +238,7 @@ public class ThreadBuilder {
                 stmt.setLong(1, tmi.msgId);
                 rs = stmt.executeQuery();
                 if (rs.next()) {
-                    // "authorChannelId, authorchan.name, authorchan.channelHash, " +
-                    // "scopeChannelId, scopechan.name, scopechan.channelHash, " +
-                    // "targetChannelId, targetchan.name, targetchan.channelHash, " +
-                    // "subject, msg.importDate "
-                    long authorId = rs.getLong(1);
-                    String authorName = rs.getString(2);
-                    byte authorHash[] = rs.getBytes(3);
-                    long scopeId = rs.getLong(4);
-                    String scopeName = rs.getString(5);
-                    byte scopeHash[] = rs.getBytes(6);
-                    long targetId = rs.getLong(7);
-                    String targetName = rs.getString(8);
-                    byte targetHash[] = rs.getBytes(9);
-                    String subject = rs.getString(10);
-                    Timestamp when = rs.getTimestamp(11);
-                    
-                    node.setAuthorId(authorId);
-                    node.setAuthorName(authorName);
-                    node.setAuthorHash(new Hash(authorHash));
-                    node.setScopeId(scopeId);
-                    node.setScopeName(scopeName);
-                    node.setScopeHash(new Hash(scopeHash));
-                    node.setTargetId(targetId);
-                    node.setTargetName(targetName);
-                    node.setTargetHash(new Hash(targetHash));
-                    if (when != null)
-                        node.setImportDate(when.getTime());
-                    
-                    node.setSubject(subject);
-                    
-                    node.setName(authorName);
+                    setNodeData(node, rs, 1);
                     // separate sql query TODO join into above query
                     node.setAttachmentCount(client.getMessageAttachmentCount(tmi.msgId));
                     // TODO add in readKeyMissing and replyKeyMissing ?
@@ -277,20 +277,160 @@ public class ThreadBuilder {
             //
             ////node.setName(authorName);
             node.setDescription(node.getThreadSubject());
+        }
+    }
+
+    /**
+     *  Set the URI, and whether it's a dummy
+     *
+     *  @return true if it's a message we have, to be populated from the database
+     *  @since 1.107b-1 pulled out of populateNode()
+     */
+    private static boolean initNode(ThreadReferenceNode node, ThreadMsgId tmi) {
+        node.setURI(SyndieURI.createMessage(tmi.scope, tmi.messageId));
+        if ( (tmi.msgId >= 0) && (!tmi.unreadable) ) {
+            node.setIsDummy(false);
+            return true;
         } else {
             //_ui.debugMessage("node is a dummy: " + tmi);
             node.setIsDummy(true);
+            return false;
+        }
+    }
+
+    /**
+     *  The columns of SQL_POPULATE_NODE, starting at the given one
+     *
+     *  @since 1.107b-1 pulled out of populateNode()
+     */
+    private static void setNodeData(ThreadReferenceNode node, ResultSet rs, int col) throws SQLException {
+        // "authorChannelId, authorchan.name, authorchan.channelHash, " +
+        // "scopeChannelId, scopechan.name, scopechan.channelHash, " +
+        // "targetChannelId, targetchan.name, targetchan.channelHash, " +
+        // "subject, msg.importDate "
+        long authorId = rs.getLong(col);
+        String authorName = rs.getString(col + 1);
+        byte authorHash[] = rs.getBytes(col + 2);
+        long scopeId = rs.getLong(col + 3);
+        String scopeName = rs.getString(col + 4);
+        byte scopeHash[] = rs.getBytes(col + 5);
+        long targetId = rs.getLong(col + 6);
+        String targetName = rs.getString(col + 7);
+        byte targetHash[] = rs.getBytes(col + 8);
+        String subject = rs.getString(col + 9);
+        Timestamp when = rs.getTimestamp(col + 10);
+        
+        node.setAuthorId(authorId);
+        node.setAuthorName(authorName);
+        node.setAuthorHash(new Hash(authorHash));
+        node.setScopeId(scopeId);
+        node.setScopeName(scopeName);
+        node.setScopeHash(new Hash(scopeHash));
+        node.setTargetId(targetId);
+        node.setTargetName(targetName);
+        node.setTargetHash(new Hash(targetHash));
+        if (when != null)
+            node.setImportDate(when.getTime());
+        
+        node.setSubject(subject);
+        
+        node.setName(authorName);
+    }
+
+    private static final String SQL_POPULATE_NODES = "SELECT msg.msgId, " +
+            "msg.authorChannelId, authorchan.name, authorchan.channelHash, " +
+            "msg.scopeChannelId, scopechan.name, scopechan.channelHash, " +
+            "msg.targetChannelId, targetchan.name, targetchan.channelHash, " +
+            "msg.subject, msg.importDate " +
+            "FROM channelMessage msg " +
+            "JOIN channel AS authorchan ON authorchan.channelId = msg.authorChannelId " +
+            "JOIN channel AS scopechan ON scopechan.channelId = msg.scopeChannelId " +
+            "JOIN channel AS targetchan ON targetchan.channelId = msg.targetChannelId " +
+            "WHERE msg.msgId IN (";
+    private static final String SQL_GET_ATTACHMENT_COUNTS =
+            "SELECT msgId, COUNT(*) FROM messageAttachment WHERE msgId IN (";
+    private static final String SQL_GET_ATTACHMENT_COUNTS_END = ") GROUP BY msgId";
+    /** ids per IN list, long ones are slow to parse */
+    private static final int IN_BATCH = 500;
+
+    /**
+     *  Same as populateNode() for each node, a few hundred at a time, for the nodes
+     *  that initNode() said were messages we have. Their children don't count yet for
+     *  the description, same as populateNode() from containerToRefNode().
+     *
+     *  @since 1.107b-1
+     */
+    private static void populateNodes(DBClient client, List<ThreadReferenceNode> nodes) {
+        for (int i = 0; i < nodes.size(); i += IN_BATCH) {
+            List<ThreadReferenceNode> batch = nodes.subList(i, Math.min(nodes.size(), i + IN_BATCH));
+            Map<Long, ThreadReferenceNode> byId = new HashMap<Long, ThreadReferenceNode>(batch.size());
+            long ids[] = new long[batch.size()];
+            StringBuilder buf = new StringBuilder(batch.size() * 8);
+            for (int j = 0; j < ids.length; j++) {
+                ThreadReferenceNode node = batch.get(j);
+                ids[j] = node.getMsgId().msgId;
+                byId.put(Long.valueOf(ids[j]), node);
+                if (j > 0)
+                    buf.append(", ");
+                buf.append(ids[j]);
+            }
+            String idList = buf.toString();
+            Set<Long> found = new HashSet<Long>(ids.length);
+            PreparedStatement stmt = null;
+            ResultSet rs = null;
+            try {
+                stmt = client.con().prepareStatement(SQL_POPULATE_NODES + idList + ")");
+                rs = stmt.executeQuery();
+                while (rs.next()) {
+                    Long msgId = Long.valueOf(rs.getLong(1));
+                    ThreadReferenceNode node = byId.get(msgId);
+                    if (node == null)
+                        continue;
+                    setNodeData(node, rs, 2);
+                    node.setAttachmentCount(0);
+                    found.add(msgId);
+                }
+                rs.close();
+                rs = null;
+                stmt.close();
+                stmt = null;
+                if (!found.isEmpty()) {
+                    stmt = client.con().prepareStatement(SQL_GET_ATTACHMENT_COUNTS + idList + SQL_GET_ATTACHMENT_COUNTS_END);
+                    rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        Long msgId = Long.valueOf(rs.getLong(1));
+                        if (found.contains(msgId))
+                            byId.get(msgId).setAttachmentCount(rs.getInt(2));
+                    }
+                }
+            } catch (SQLException se) {
+                client.logError("Internal error populating the nodes", se);
+                throw new RuntimeException("Internal error populating the nodes: " + se.getMessage());
+            } finally {
+                if (rs != null) try { rs.close(); } catch (SQLException se) {}
+                if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+            }
+            Set<Long> unread = client.getUnread(ids);
+            for (int j = 0; j < ids.length; j++) {
+                ThreadReferenceNode node = batch.get(j);
+                node.setMessageStatus(unread.contains(Long.valueOf(ids[j])) ? DBClient.MSG_STATUS_UNREAD : DBClient.MSG_STATUS_READ);
+                // not node.getThreadSubject(), the children are already there
+                String subject = node.getSubject();
+                node.setDescription(subject != null ? subject : "");
+            }
         }
     }
 
-    private ThreadReferenceNode containerToRefNode(Container container, ThreadReferenceNode parent) {
+    private ThreadReferenceNode containerToRefNode(Container container, ThreadReferenceNode parent,
+                                                   List<ThreadReferenceNode> toPopulate) {
         ThreadMsgId tmi = null;
         if (container.msg != null)
             tmi = container.msg.id;
         ThreadReferenceNode node = new ThreadReferenceNode(tmi);
         
         if (tmi != null) {
-            populateNode(_client, node, tmi);
+            if (initNode(node, tmi))
+                toPopulate.add(node);
         } else {
             node.setIsDummy(true);
             //_ui.debugMessage("tmi is null: " + container);
@@ -300,10 +440,10 @@ public class ThreadBuilder {
             parent.addChild(node);
         
         if (container.nextSibling != null) // recurses across the siblings one at a time
-            containerToRefNode(container.nextSibling, parent);
+            containerToRefNode(container.nextSibling, parent, toPopulate);
         
         if (container.child != null)
-            containerToRefNode(container.child, node);
+            containerToRefNode(container.child, node, toPopulate);
         
         if (node.isDummy() && (node.getChildCount() <= 0) )
             return null;
@@ -360,15 +500,24 @@ public class ThreadBuilder {
         // we can't just feed this to buildThread(msgIds), because that assumes
         // the leaves are all included
         Map<ThreadMsgId, List<ThreadMsgId>> ancestors = new HashMap<ThreadMsgId, List<ThreadMsgId>>();
-        ThreadAccumulatorJWZ.buildAncestors(_client, _ui, id, ancestors);
+        Set<ThreadMsgId> thread = loadThreads(msgIds, ancestors);
+        timer.addEvent("thread loaded");
+        for (ThreadMsgId tmi : buildAncestors(id, ancestors)) {
+            msgIds.add(tmi);
+            msgIds.addAll(ancestors.get(tmi));
+        }
         timer.addEvent("ancestors built");
-        for (Map.Entry<ThreadMsgId, List<ThreadMsgId>> entry : ancestors.entrySet()) {
-            msgIds.add(entry.getKey());
-            msgIds.addAll(entry.getValue());
+        if (thread.isEmpty()) {
+            addChildren(msgIds);
+        } else {
+            // everything below the root came with it
+            for (ThreadMsgId tmi : thread) {
+                if (!msgIds.contains(tmi))
+                    msgIds.add(tmi);
+            }
         }
-        addChildren(msgIds);
         timer.addEvent("children added");
-        List<ThreadReferenceNode> threads = buildThread(msgIds, timer);
+        List<ThreadReferenceNode> threads = buildThread(msgIds, timer, ancestors);
         timer.addEvent("thread built");
         if (threads.size() > 0)
             return threads.get(0);
@@ -376,6 +525,159 @@ public class ThreadBuilder {
             return null;
     }
 
+    /**
+     *  Fill in the references of the message and its ancestors,
+     *  the ones loadThreads() didn't, a query each, as ThreadAccumulatorJWZ.buildAncestors() does.
+     *
+     *  @return the message and its ancestors we have, all now in tmiToAncestors
+     *  @since 1.107b-1
+     */
+    private Set<ThreadMsgId> buildAncestors(ThreadMsgId tmi, Map<ThreadMsgId, List<ThreadMsgId>> tmiToAncestors) {
+        Set<ThreadMsgId> rv = new HashSet<ThreadMsgId>();
+        List<ThreadMsgId> pending = new ArrayList<ThreadMsgId>();
+        pending.add(tmi);
+        while (!pending.isEmpty()) {
+            ThreadMsgId cur = pending.remove(pending.size() - 1);
+            if (!rv.add(cur))
+                continue;
+            if (!tmiToAncestors.containsKey(cur)) {
+                if (cur.msgId >= 0)
+                    ThreadAccumulatorJWZ.buildAncestors(_client, _ui, cur, tmiToAncestors);
+                else
+                    tmiToAncestors.put(cur, new ArrayList<ThreadMsgId>());
+            }
+            for (ThreadMsgId ancestor : tmiToAncestors.get(cur)) {
+                if (ancestor.msgId >= 0 && !rv.contains(ancestor))
+                    pending.add(ancestor);
+            }
+        }
+        return rv;
+    }
+
+    private static final String SQL_THREADS_OF = "SELECT DISTINCT rootMsgId FROM messageThread WHERE msgId IN (";
+    private static final String SQL_LOAD_THREADS =
+            "SELECT cm.msgId, cm.messageId, c.channelHash, cm.wasAuthorized, cm.authorChannelId " +
+            "FROM messageThread t " +
+            "JOIN channelMessage cm ON cm.msgId = t.msgId " +
+            "JOIN channel c ON c.channelId = cm.scopeChannelId " +
+            "WHERE t.rootMsgId IN (";
+    private static final String SQL_LOAD_THREADS_END = ") ORDER BY t.rootMsgId, t.depth";
+    /** same as ThreadAccumulatorJWZ.SQL_BUILD_ANCESTORS, for every message in the threads */
+    private static final String SQL_LOAD_THREAD_ANCESTORS =
+            "SELECT mh.msgId, referencedChannelHash, referencedMessageId, referencedCloseness, cm.msgId, cm.readKeyMissing, cm.pbePrompt, cm.replyKeyMissing, cm.wasAuthorized, cm.authorChannelId " +
+            "FROM messageThread t " +
+            "JOIN messageHierarchy mh ON mh.msgId = t.msgId " +
+            "LEFT OUTER JOIN channel c ON channelHash = referencedChannelHash " +
+            "LEFT OUTER JOIN channelMessage cm ON messageId = referencedMessageId AND cm.scopeChannelId = c.channelId " +
+            "WHERE cm.deletionCause IS NULL AND t.rootMsgId IN (";
+    private static final String SQL_LOAD_THREAD_ANCESTORS_END = ") ORDER BY mh.msgId, referencedCloseness ASC";
+
+    /**
+     *  Load the whole threads the messages are in, from the thread index
+     *  (see syndie.db.ThreadIndex), with the references of every message in them,
+     *  instead of a query per message in buildAncestors().
+     *
+     *  @param tmiToAncestors out parameter, the references of each message in the threads
+     *  @return the messages in the threads, empty if none of them are indexed
+     *  @since 1.107b-1
+     */
+    private Set<ThreadMsgId> loadThreads(Set<ThreadMsgId> msgIds, Map<ThreadMsgId, List<ThreadMsgId>> tmiToAncestors) {
+        Set<ThreadMsgId> rv = new HashSet<ThreadMsgId>();
+        List<Long> ids = new ArrayList<Long>(msgIds.size());
+        for (ThreadMsgId id : msgIds) {
+            if (id.msgId >= 0)
+                ids.add(Long.valueOf(id.msgId));
+        }
+        if (ids.isEmpty())
+            return rv;
+
+        Map<Long, ThreadMsgId> byId = new HashMap<Long, ThreadMsgId>();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            // IN_BATCH at a time
+            Set<Long> rootIds = new HashSet<Long>();
+            for (int i = 0; i < ids.size(); i += IN_BATCH) {
+                StringBuilder buf = new StringBuilder(SQL_THREADS_OF);
+                for (int j = i; j < Math.min(ids.size(), i + IN_BATCH); j++) {
+                    if (j > i)
+                        buf.append(", ");
+                    buf.append(ids.get(j));
+                }
+                buf.append(')');
+                stmt = _client.con().prepareStatement(buf.toString());
+                rs = stmt.executeQuery();
+                while (rs.next()) {
+                    rootIds.add(Long.valueOf(rs.getLong(1)));
+                }
+                rs.close();
+                rs = null;
+                stmt.close();
+                stmt = null;
+            }
+            if (rootIds.isEmpty())
+                return rv;
+            StringBuilder buf = new StringBuilder(rootIds.size() * 8);
+            for (Long id : rootIds) {
+                if (buf.length() > 0)
+                    buf.append(", ");
+                buf.append(id);
+            }
+            String roots = buf.toString();
+
+            stmt = _client.con().prepareStatement(SQL_LOAD_THREADS + roots + SQL_LOAD_THREADS_END);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                // as addChildren() does
+                long msgId = rs.getLong(1);
+                long messageId = rs.getLong(2);
+                byte chan[] = rs.getBytes(3);
+                if ( (chan == null) || (chan.length != Hash.HASH_LENGTH) ) continue;
+                Boolean wasAuth = rs.getBoolean(4) ? Boolean.TRUE : Boolean.FALSE;
+                if (rs.wasNull()) wasAuth = null;
+                long author = rs.getLong(5);
+                if (rs.wasNull()) author = -1;
+                ThreadMsgId tmi = new ThreadMsgId(msgId);
+                tmi.messageId = messageId;
+                tmi.scope = new Hash(chan);
+                tmi.authorized = wasAuth;
+                tmi.authorScopeId = author;
+                rv.add(tmi);
+                byId.put(Long.valueOf(msgId), tmi);
+            }
+            rs.close();
+            rs = null;
+            stmt.close();
+            stmt = null;
+            if (rv.isEmpty())
+                return rv;
+
+            for (ThreadMsgId tmi : rv) {
+                tmiToAncestors.put(tmi, new ArrayList<ThreadMsgId>());
+            }
+            stmt = _client.con().prepareStatement(SQL_LOAD_THREAD_ANCESTORS + roots + SQL_LOAD_THREAD_ANCESTORS_END);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                ThreadMsgId tmi = byId.get(Long.valueOf(rs.getLong(1)));
+                if (tmi == null)
+                    continue;
+                List<ThreadMsgId> ancestors = tmiToAncestors.get(tmi);
+                ThreadMsgId ancestor = ThreadAccumulatorJWZ.getThreadMsgId(rs, 2);
+                if (!ancestors.contains(ancestor))
+                    ancestors.add(ancestor);
+            }
+        } catch (SQLException se) {
+            // fall back to a query per message
+            _ui.errorMessage("Error loading threads", se);
+            tmiToAncestors.clear();
+            rv.clear();
+        } finally {
+            if (rs != null) try { rs.close(); } catch (SQLException se) {}
+            if (stmt != null) try { stmt.close(); } catch (SQLException se) {}
+        }
+        return rv;
+    }
+
     private static final String SQL_GET_CHILDREN = "SELECT cm.msgId, messageId, channelHash, cm.wasAuthorized, cm.authorChannelId FROM channelMessage cm JOIN channel ON scopeChannelId = channelId JOIN messageHierarchy mh ON cm.msgId = mh.msgId WHERE referencedMessageId = ? AND referencedChannelHash = ?";
 
     private void addChildren(Set<ThreadMsgId> msgIds) {
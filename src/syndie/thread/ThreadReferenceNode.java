@@ -201,6 +201,7 @@ public class ThreadReferenceNode extends ReferenceNode {
         copy._targetId = node._targetId;
         copy._targetName = node._targetName;
         copy._treeIndex = node._treeIndex;
+        copy._attachmentCount = node._attachmentCount;
         for (int i = 0; i < node.getChildCount(); i++)
             copy.addChild(deepThreadCopy((ThreadReferenceNode)node.getChild(i)));
         return copy;
@@ -0,0 +1,355 @@
+package syndie.thread;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import net.i2p.data.Hash;
+
+import syndie.data.SyndieURI;
+import syndie.db.DBClient;
+import syndie.db.UI;
+
+/**
+ *  The results of ThreadAccumulatorJWZ.gatherThreads() for the last few filters,
+ *  so switching back to a forum, re-sorting, or refreshing doesn't run the whole
+ *  query, thread, filter and prune again when nothing changed.
+ *
+ *  Each Entry keeps the candidate posts that matched the filter, and each
+ *  thread it built, filtered and pruned, along with the posts and URIs in it.
+ *  The DBClient tells us about imports, deletes, read state and channel changes.
+ *  Read state is patched into the cached threads, imports and deletes are queued
+ *  on every entry, and the accumulator rebuilds only the threads they touch
+ *  the next time the filter is gathered. A channel change drops the entries that
+ *  show anything in, by, or to that channel.
+ *
+ *  The accumulator always gets a copy, as sorting rearranges the threads
+ *  and the GUI holds on to what it gets.
+ *
+ *  ThreadIndex.main() times gathering each forum cold, cached, and after a change, see bench().
+ *
+ *  @since 1.107b-1
+ */
+public class ThreadResultCache implements DBClient.MessageEventListener, DBClient.MessageStatusListener {
+    private final Map<String, Entry> _entries;
+    /** bumped whenever entries are dropped, so a gather that started before doesn't put back stale results */
+    private long _generation;
+
+    /** filters to remember */
+    private static final int MAX_ENTRIES = 16;
+    /** "age" filters are relative to now, so don't keep results forever */
+    private static final long MAX_AGE = 10*60*1000;
+    /** past this many queued changes, gathering from scratch is about as fast */
+    private static final int MAX_PENDING = 2000;
+
+    private static final Map<DBClient, ThreadResultCache> _caches = new WeakHashMap<DBClient, ThreadResultCache>();
+
+    private ThreadResultCache() {
+        _entries = new LinkedHashMap<String, ThreadResultCache.Entry>(MAX_ENTRIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ThreadResultCache.Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     *  The cache for the client, registering it for the client's events on first use
+     */
+    static ThreadResultCache getInstance(DBClient client) {
+        synchronized (_caches) {
+            ThreadResultCache rv = _caches.get(client);
+            if (rv == null) {
+                rv = new ThreadResultCache();
+                client.addMessageEventListener(rv);
+                client.addMessageStatusListener(rv);
+                _caches.put(client, rv);
+            }
+            return rv;
+        }
+    }
+
+    /**
+     *  A copy of the entry, with the changes queued since it was stored.
+     *  The entry stays cached, and changes from now on are queued on it,
+     *  until put() replaces it with the refreshed one.
+     *  If there's nothing cached, a placeholder collects the changes
+     *  made while the caller gathers from scratch.
+     *
+     *  Call getGeneration() first.
+     *
+     *  @return null if not cached or too old
+     */
+    synchronized Entry get(String key) {
+        Entry e = _entries.get(key);
+        if ( (e != null) && (e.threads != null) && (e.created + MAX_AGE < System.currentTimeMillis()) )
+            e = null;
+        if ( (e == null) || (e.threads == null) ) {
+            _entries.put(key, new Entry(key));
+            return null;
+        }
+        Entry rv = e.copy();
+        e.pending = new HashSet<Long>();
+        e.refreshing = !rv.pending.isEmpty();
+        return rv;
+    }
+
+    /**
+     *  Store what was gathered, unless a channel changed since getGeneration().
+     *  The changes queued since get() are carried over.
+     *
+     *  @param generation from getGeneration(), before get()
+     */
+    synchronized void put(Entry entry, long generation) {
+        if (generation != _generation)
+            return;
+        Entry old = _entries.get(entry.key);
+        if (old != null)
+            entry.pending.addAll(old.pending);
+        if (entry.pending.size() > MAX_PENDING)
+            _entries.remove(entry.key);
+        else
+            _entries.put(entry.key, entry);
+    }
+
+    synchronized long getGeneration() { return _generation; }
+
+    public synchronized void clear() {
+        _entries.clear();
+        _generation++;
+    }
+
+    // DBClient.MessageEventListener
+
+    public synchronized void messageUpdated(long msgId) {
+        Long id = Long.valueOf(msgId);
+        for (Iterator<Entry> iter = _entries.values().iterator(); iter.hasNext(); ) {
+            Entry e = iter.next();
+            e.pending.add(id);
+            if (e.pending.size() > MAX_PENDING)
+                iter.remove();
+        }
+    }
+
+    public synchronized void channelRead(long channelId) {
+        boolean dropped = false;
+        for (Iterator<Entry> iter = _entries.values().iterator(); iter.hasNext(); ) {
+            Entry e = iter.next();
+            if ( (e.threads != null) && !e.channelIds.contains(Long.valueOf(channelId)) )
+                continue;
+            if (e.unreadOnly || (e.threads == null) || e.refreshing) {
+                iter.remove();
+                dropped = true;
+            } else {
+                for (int i = 0; i < e.threads.size(); i++)
+                    setChannelRead(e.threads.get(i).root, channelId);
+            }
+        }
+        if (dropped)
+            _generation++;
+    }
+
+    public synchronized void channelUpdated(long channelId) {
+        if (channelId < 0) {
+            clear();
+            return;
+        }
+        boolean dropped = false;
+        for (Iterator<Entry> iter = _entries.values().iterator(); iter.hasNext(); ) {
+            Entry e = iter.next();
+            if ( (e.threads == null) || e.channelIds.contains(Long.valueOf(channelId)) ) {
+                iter.remove();
+                dropped = true;
+            }
+        }
+        if (dropped)
+            _generation++;
+    }
+
+    // DBClient.MessageStatusListener
+
+    public synchronized void messageStatusUpdated(long msgId, int newStatus) {
+        Long id = Long.valueOf(msgId);
+        for (Iterator<Entry> iter = _entries.values().iterator(); iter.hasNext(); ) {
+            Entry e = iter.next();
+            if (e.unreadOnly || (e.threads == null) || e.refreshing) {
+                // it may come or go, or is being gathered, let the accumulator work it out
+                e.pending.add(id);
+                if (e.pending.size() > MAX_PENDING)
+                    iter.remove();
+            } else {
+                for (int i = 0; i < e.threads.size(); i++) {
+                    CachedThread t = e.threads.get(i);
+                    if (t.msgIds.contains(id))
+                        setStatus(t.root, msgId, newStatus);
+                }
+            }
+        }
+    }
+
+    private static void setStatus(ThreadReferenceNode node, long msgId, int status) {
+        if (node == null)
+            return;
+        ThreadMsgId tmi = node.getMsgId();
+        if ( (tmi != null) && (tmi.msgId == msgId) )
+            node.setMessageStatus(status);
+        for (int i = 0; i < node.getChildCount(); i++)
+            setStatus((ThreadReferenceNode)node.getChild(i), msgId, status);
+    }
+
+    private static void setChannelRead(ThreadReferenceNode node, long channelId) {
+        if (node == null)
+            return;
+        if (!node.isDummy() && (node.getTargetId() == channelId))
+            node.setMessageStatus(DBClient.MSG_STATUS_READ);
+        for (int i = 0; i < node.getChildCount(); i++)
+            setChannelRead((ThreadReferenceNode)node.getChild(i), channelId);
+    }
+
+    /**
+     *  One gathered filter
+     */
+    static class Entry {
+        final String key;
+        final boolean unreadOnly;
+        final long created;
+        /** as gathered, after the read and tag filters */
+        final Set<ThreadMsgId> candidates;
+        /** the message tags for the thread tag filter and getTags() */
+        final Map<Long, Set<String>> msgTags;
+        /** every message tag looked up, including posts the tag filter rejected */
+        final Map<Long, Set<String>> tagCache;
+        final List<CachedThread> threads;
+        /** the filter's channels, plus the target, scope and author of every post in the threads */
+        final Set<Long> channelIds;
+        /** msgIds imported, deleted or (for unreadOnly) marked read or unread since this was gathered */
+        Set<Long> pending;
+        /** a copy is being refreshed, so read state changes are queued too */
+        boolean refreshing;
+
+        /** placeholder while gathering from scratch */
+        Entry(String key) {
+            this(key, false, 0, null, null, null, null, null);
+        }
+
+        Entry(String key, boolean unreadOnly, Set<ThreadMsgId> candidates, Map<Long, Set<String>> msgTags,
+              Map<Long, Set<String>> tagCache, List<CachedThread> threads, Set<Long> channelIds) {
+            this(key, unreadOnly, System.currentTimeMillis(), candidates, msgTags, tagCache, threads, channelIds);
+        }
+
+        private Entry(String key, boolean unreadOnly, long created, Set<ThreadMsgId> candidates, Map<Long, Set<String>> msgTags,
+                      Map<Long, Set<String>> tagCache, List<CachedThread> threads, Set<Long> channelIds) {
+            this.key = key;
+            this.unreadOnly = unreadOnly;
+            this.created = created;
+            this.candidates = candidates;
+            this.msgTags = msgTags;
+            this.tagCache = tagCache;
+            this.threads = threads;
+            this.channelIds = channelIds;
+            pending = new HashSet<Long>();
+        }
+
+        /** the sets and maps are never changed once stored, only the threads need copying */
+        private Entry copy() {
+            List<CachedThread> threads = new ArrayList<CachedThread>(this.threads.size());
+            for (int i = 0; i < this.threads.size(); i++)
+                threads.add(this.threads.get(i).copy());
+            Entry rv = new Entry(key, unreadOnly, created, candidates, msgTags, tagCache, threads, channelIds);
+            rv.pending.addAll(pending);
+            return rv;
+        }
+    }
+
+    /**
+     *  One thread as built, before filtering and pruning
+     */
+    static class CachedThread {
+        /** after filtering and pruning, null if nothing in it passed */
+        final ThreadReferenceNode root;
+        /** the posts we have in it */
+        final Set<Long> msgIds;
+        /** of every node in it, including the ones we don't have */
+        final Set<SyndieURI> uris;
+
+        CachedThread(ThreadReferenceNode root, Set<Long> msgIds, Set<SyndieURI> uris) {
+            this.root = root;
+            this.msgIds = msgIds;
+            this.uris = uris;
+        }
+
+        CachedThread copy() {
+            return new CachedThread(ThreadReferenceNode.deepThreadCopy(root), msgIds, uris);
+        }
+    }
+
+    /**
+     *  Gather every forum cold, then again from the cache, then again after
+     *  queueing one of its posts as changed, checking the results are the same.
+     *  Run from ThreadIndex.main().
+     */
+    public static void bench(DBClient client, UI ui) {
+        ThreadResultCache cache = getInstance(client);
+        long cold = 0, warm = 0, partial = 0;
+        int gathered = 0;
+        for (Hash chan : client.getChannelIds().values()) {
+            SyndieURI uri = SyndieURI.createSearch(new String[] { chan.toBase64() }, "any", null, null, null, null, null, false,
+                                                   null, null, null, null, null, null, null, null, false, true, true, true, false);
+            cache.clear();
+            long before = System.currentTimeMillis();
+            ThreadAccumulatorJWZ acc = gather(client, ui, uri);
+            long afterCold = System.currentTimeMillis();
+            if (acc.getThreadCount() <= 0)
+                continue;
+            String expected = dump(acc);
+            String cached = dump(gather(client, ui, uri));
+            long afterWarm = System.currentTimeMillis();
+            ThreadMsgId changed = ((ThreadReferenceNode)acc.getRootThread(acc.getThreadCount() / 2)).getMsgId();
+            if (changed != null)
+                cache.messageUpdated(changed.msgId);
+            long beforePartial = System.currentTimeMillis();
+            String refreshed = dump(gather(client, ui, uri));
+            long afterPartial = System.currentTimeMillis();
+            cold += afterCold - before;
+            warm += afterWarm - afterCold;
+            partial += afterPartial - beforePartial;
+            gathered++;
+            if (!expected.equals(cached))
+                System.out.println("Cached results differ for " + chan.toBase64());
+            if (!expected.equals(refreshed))
+                System.out.println("Refreshed results differ for " + chan.toBase64());
+        }
+        System.out.println("Gathered " + gathered + " forums: cold " + cold + "ms, cached " + warm +
+                           "ms, with one post changed " + partial + "ms");
+    }
+
+    private static ThreadAccumulatorJWZ gather(DBClient client, UI ui, SyndieURI uri) {
+        ThreadAccumulatorJWZ acc = new ThreadAccumulatorJWZ(client, ui);
+        acc.setFilter(uri);
+        acc.gatherThreads();
+        return acc;
+    }
+
+    private static String dump(ThreadAccumulatorJWZ acc) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < acc.getThreadCount(); i++) {
+            dump(buf, (ThreadReferenceNode)acc.getRootThread(i), 0);
+            buf.append(acc.getSubject(i)).append(' ').append(acc.getMessages(i)).append(' ').append(acc.getTags(i)).append('\n');
+        }
+        return buf.toString();
+    }
+
+    private static void dump(StringBuilder buf, ThreadReferenceNode node, int depth) {
+        for (int i = 0; i < depth; i++)
+            buf.append(' ');
+        buf.append(node.isDummy() ? "[" + node.getURI() + "]" : node.getURI() + " " + node.getMessageStatus() + " " + node.getSubject());
+        buf.append('\n');
+        for (int i = 0; i < node.getChildCount(); i++)
+            dump(buf, (ThreadReferenceNode)node.getChild(i), depth + 1);
+    }
+}
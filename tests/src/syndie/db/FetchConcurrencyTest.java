@@ -0,0 +1,95 @@
+package syndie.db;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  The FetchConcurrency harness, see main(). Only in the test build, not the jar.
+ *
+ *  @since 1.107b-1
+ */
+class FetchConcurrencyTest {
+    /**
+     *  Run the controller against a fast and a slow LoopbackArchive, with all MAX_LEVEL
+     *  fetchers waiting on it, and report where the level settles for each.
+     *  The fast one should go to the max; the slow one is bandwidth limited, so more
+     *  fetches at once only add latency, and it should stay near where it started.
+     *
+     *  Usage: FetchConcurrencyTest [secs [slowKBps]]
+     *
+     *  @since 1.107b-1
+     */
+    public static void main(String args[]) throws Exception {
+        int secs = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int slowRate = args.length > 1 ? Integer.parseInt(args[1]) * 1024 : 64*1024;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "syndie-aimd-test-" + System.currentTimeMillis());
+        try {
+            LoopbackArchive.createPosts(dir, 1, 1, 32*1024, 32*1024, 42);
+            String path = '/' + dir.listFiles()[0].getName() + '/' + dir.listFiles()[0].list()[0];
+            LoopbackArchive fast = new LoopbackArchive(dir, null);
+            fast.setLatency(50);
+            fast.start();
+            LoopbackArchive slow = new LoopbackArchive(dir, null);
+            slow.setLatency(50);
+            slow.setRate(slowRate);
+            slow.start();
+            int fastLevel = aimdTest("Fast", fast, path, secs);
+            int slowLevel = aimdTest("Slow", slow, path, secs);
+            fast.stop();
+            slow.stop();
+            boolean ok = fastLevel >= FetchConcurrency.MAX_LEVEL - 2 && slowLevel <= fastLevel / 2;
+            System.out.println(ok ? "Settled high on the fast archive and low on the slow one: OK" : "FAILED");
+            if (!ok)
+                System.exit(1);
+        } finally {
+            LoopbackArchive.delete(dir);
+        }
+    }
+
+    /**
+     *  @return the level at the end
+     */
+    private static int aimdTest(String name, final LoopbackArchive server, final String path, int secs) throws Exception {
+        final FetchConcurrency fc = new FetchConcurrency();
+        final long end = System.currentTimeMillis() + secs * 1000L;
+        final AtomicLong total = new AtomicLong();
+        Thread threads[] = new Thread[FetchConcurrency.MAX_LEVEL];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    while (System.currentTimeMillis() < end) {
+                        try {
+                            fc.acquire();
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                        long start = System.currentTimeMillis();
+                        long sz = LoopbackArchive.fetch(server.getPort(), path, null, null);
+                        if (sz >= 0) {
+                            fc.complete(sz, System.currentTimeMillis() - start);
+                            total.addAndGet(sz);
+                        } else {
+                            fc.failed();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        int samples = 0;
+        long levels = 0;
+        for (int i = 0; i < secs; i++) {
+            Thread.sleep(1000);
+            // the second half is the settled part
+            if (i >= secs / 2) {
+                levels += fc.getLevel();
+                samples++;
+            }
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+        System.out.println(name + ": " + (total.get() / 1024 / secs) + " KBps, average settled level " +
+                           (samples > 0 ? levels / (double) samples : 0) + "; " + fc);
+        return fc.getLevel();
+    }
+}
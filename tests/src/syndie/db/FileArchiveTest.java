@@ -0,0 +1,142 @@
+package syndie.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import net.i2p.data.Hash;
+import net.i2p.util.FileUtil;
+import syndie.data.SyndieURI;
+
+/**
+ *  The FileArchive harness, see main(). Only in the test build, not the jar.
+ *
+ *  @since 1.107b-1
+ */
+class FileArchiveTest {
+    /**
+     *  Sync a synthetic archive directory into an empty one and back out to a third:
+     *  scan, pull through the importer (stubbed to move each file into our archive),
+     *  rescan once in sync, and push. Also compares copy() with a plain stream copy.
+     *
+     *  Usage: FileArchiveTest [messages [channels]]
+     *
+     *  @since 1.107b-1
+     */
+    public static void main(String args[]) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int chans = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "syndie-file-test-" + System.currentTimeMillis());
+        boolean ok = false;
+        try {
+            SyncManager mgr = LoopbackArchive.createManager(new File(dir, "root"));
+            final File ourDir = mgr.getClient().getArchiveDir();
+            File theirDir = new File(dir, "theirs");
+            List<SyndieURI> uris = LoopbackArchive.createPosts(theirDir, chans, count, 1024, 16*1024, 42);
+
+            long start = System.currentTimeMillis();
+            SharedArchive index = FileArchive.scan(theirDir, ourDir);
+            long scanTime = System.currentTimeMillis() - start;
+            System.out.println("Scan:   " + index.getMessages().length + " messages, " + index.getChannels().length +
+                               " channels to fetch, in " + scanTime + " ms");
+
+            SyncArchive archive = new SyncArchive(mgr, mgr.getClient());
+            archive.setURL("file://" + theirDir.getAbsolutePath());
+            for (SyndieURI uri : uris) {
+                archive.createIncomingAction(uri);
+            }
+            SyncInboundFetcher fetcher = new SyncInboundFetcher(mgr) {
+                @Override
+                void importData(SyncArchive.IncomingAction action, File datafile, boolean delete, Set<Hash> whitelistScopes) {
+                    File dest = FileArchive.getFile(ourDir, action.getURI());
+                    dest.getParentFile().mkdirs();
+                    if (FileUtil.rename(datafile, dest))
+                        action.importSuccessful(ImportResult.Detail.IMPORT_OK);
+                    else
+                        action.importFailed("Unable to rename " + datafile, null);
+                }
+            };
+            start = System.currentTimeMillis();
+            fetcher.fetchFile(archive);
+            long pullTime = System.currentTimeMillis() - start;
+            int pulled = 0;
+            for (int i = 0; i < archive.getIncomingActionCount(); i++) {
+                if (archive.getIncomingAction(i).getResult() == ImportResult.Detail.IMPORT_OK)
+                    pulled++;
+            }
+            System.out.println("Pull:   " + pulled + '/' + uris.size() + " in " + pullTime + " ms");
+
+            start = System.currentTimeMillis();
+            SharedArchive rescan = FileArchive.scan(theirDir, ourDir);
+            long rescanTime = System.currentTimeMillis() - start;
+            System.out.println("Rescan: " + rescan.getMessages().length + " messages to fetch, in " + rescanTime + " ms");
+
+            File mirrorDir = new File(dir, "mirror");
+            mirrorDir.mkdirs();
+            SyncArchive mirror = new SyncArchive(mgr, mgr.getClient());
+            mirror.setURL(mirrorDir.getAbsolutePath());
+            for (SyndieURI uri : uris) {
+                mirror.createOutgoingAction(uri);
+            }
+            SyncOutboundPusher pusher = new SyncOutboundPusher(mgr);
+            start = System.currentTimeMillis();
+            pusher.pushFile(mirror);
+            long pushTime = System.currentTimeMillis() - start;
+            int pushed = 0;
+            for (int i = 0; i < mirror.getOutgoingActionCount(); i++) {
+                SyncArchive.OutgoingAction action = mirror.getOutgoingAction(i);
+                if (action.isComplete() && action.getErrorMsg() == null)
+                    pushed++;
+            }
+            int mirrorDiff = FileArchive.scan(mirrorDir, ourDir).getMessages().length;
+            System.out.println("Push:   " + pushed + '/' + uris.size() + " in " + pushTime + " ms, " +
+                               mirrorDiff + " differ afterwards");
+
+            long copyTime = copyAll(theirDir, new File(dir, "copy"), uris, true);
+            long streamTime = copyAll(theirDir, new File(dir, "stream"), uris, false);
+            System.out.println("Copy:   " + copyTime + " ms with copy(), " + streamTime + " ms with a stream copy");
+
+            ok = index.getMessages().length == count && pulled == count && rescan.getMessages().length == 0 &&
+                 pushed == count && mirrorDiff == 0;
+        } finally {
+            SyncManager.unloadAll();
+            LoopbackArchive.delete(dir);
+        }
+        System.out.println(ok ? "Archives in sync: OK" : "FAILED");
+        if (!ok)
+            System.exit(1);
+    }
+
+    /**
+     *  @param channel true for copy(), false for a 4KB buffered stream copy
+     *  @return ms
+     */
+    private static long copyAll(File srcDir, File destDir, List<SyndieURI> uris, boolean channel) throws IOException {
+        long start = System.currentTimeMillis();
+        byte buf[] = new byte[4096];
+        for (SyndieURI uri : uris) {
+            File src = FileArchive.getFile(srcDir, uri);
+            File dest = FileArchive.getFile(destDir, uri);
+            if (channel) {
+                FileArchive.copy(src, dest);
+                continue;
+            }
+            dest.getParentFile().mkdirs();
+            FileInputStream in = null;
+            FileOutputStream out = null;
+            try {
+                in = new FileInputStream(src);
+                out = new FileOutputStream(dest);
+                int read;
+                while ((read = in.read(buf)) != -1)
+                    out.write(buf, 0, read);
+            } finally {
+                if (in != null) try { in.close(); } catch (IOException ioe) {}
+                if (out != null) try { out.close(); } catch (IOException ioe) {}
+            }
+        }
+        return System.currentTimeMillis() - start;
+    }
+}
@@ -0,0 +1,126 @@
+package syndie.db;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import net.i2p.data.Hash;
+import syndie.data.SyndieURI;
+
+/**
+ *  The InFlightFetches harness, see main(). Only in the test build, not the jar.
+ *
+ *  @since 1.107b-1
+ */
+class InFlightFetchesTest {
+    /**
+     *  Sync the same posts from two LoopbackArchives at once, one fast and the other
+     *  slow, then one fast and the other down (refusing connections),
+     *  with and without leaving URIs to the better mirror, and report the total time.
+     *  Each runs two syncs with new posts, as the MirrorScores carry over from the first.
+     *  The import is stubbed out.
+     *
+     *  Usage: InFlightFetchesTest [posts [slowLatencyMs]]
+     *
+     *  @since 1.107b-1
+     */
+    public static void main(String args[]) throws Exception {
+        int posts = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        long slowLatency = args.length > 1 ? Long.parseLong(args[1]) : 3000;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "syndie-mirror-test-" + System.currentTimeMillis());
+        File archiveDir = new File(dir, "archive");
+        boolean ok = false;
+        try {
+            List<SyndieURI> first = LoopbackArchive.createPosts(archiveDir, 20, posts, 1024, 16*1024, 42);
+            List<SyndieURI> second = LoopbackArchive.createPosts(archiveDir, 20, posts, 1024, 16*1024, 43);
+            long slowWithout[] = mirrorTest(new File(dir, "1"), archiveDir, first, second, slowLatency, false);
+            long slowWith[] = mirrorTest(new File(dir, "2"), archiveDir, first, second, slowLatency, true);
+            long downWithout[] = mirrorTest(new File(dir, "3"), archiveDir, first, second, -1, false);
+            long downWith[] = mirrorTest(new File(dir, "4"), archiveDir, first, second, -1, true);
+            System.out.println("Slow mirror:    " + slowWithout[0] + " + " + slowWithout[1] + " ms without rerouting, " +
+                               slowWith[0] + " + " + slowWith[1] + " ms with");
+            System.out.println("Down mirror:    " + downWithout[0] + " + " + downWithout[1] + " ms without failover, " +
+                               downWith[0] + " + " + downWith[1] + " ms with");
+            ok = slowWithout[1] > 0 && slowWith[1] > 0 && downWithout[1] > 0 && downWith[1] > 0 &&
+                 slowWith[1] * 2 < slowWithout[1];
+        } finally {
+            SyncManager.unloadAll();
+            LoopbackArchive.delete(dir);
+        }
+        System.out.println(ok ? "All fetched, second sync left to the fast mirror: OK" : "FAILED");
+        if (!ok)
+            System.exit(1);
+    }
+
+    /**
+     *  @param slowLatency -1 for down
+     *  @return ms for both archives to finish, for each sync, -1 if any post wasn't fetched
+     */
+    private static long[] mirrorTest(File rootDir, File archiveDir, List<SyndieURI> first, List<SyndieURI> second,
+                                     long slowLatency, boolean prefer) throws Exception {
+        final Set<SyndieURI> local = Collections.synchronizedSet(new HashSet<SyndieURI>());
+        final SyncManager mgr = LoopbackArchive.createManager(rootDir, local);
+        mgr.getInFlightFetches().setPreferMirrors(prefer);
+        LoopbackArchive fast = new LoopbackArchive(archiveDir, null);
+        fast.setLatency(50);
+        fast.start();
+        LoopbackArchive slow = new LoopbackArchive(archiveDir, null);
+        slow.setLatency(Math.max(slowLatency, 0));
+        slow.start();
+        if (slowLatency < 0)
+            slow.stop();
+        final SyncArchive archives[] = new SyncArchive[2];
+        for (int i = 0; i < 2; i++) {
+            archives[i] = new SyncArchive(mgr, mgr.getClient());
+            archives[i].setURL(i == 0 ? fast.getURL() : slow.getURL());
+        }
+        final SyncInboundFetcher fetcher = new SyncInboundFetcher(mgr) {
+            @Override
+            void importData(SyncArchive.IncomingAction action, File datafile, boolean delete, Set<Hash> whitelistScopes) {
+                local.add(action.getURI());
+                action.importSuccessful(ImportResult.Detail.IMPORT_OK);
+                if (delete)
+                    datafile.delete();
+            }
+        };
+        long rv[] = new long[2];
+        for (int sync = 0; sync < 2; sync++) {
+            List<SyndieURI> uris = sync == 0 ? first : second;
+            for (int i = 0; i < 2; i++) {
+                for (SyndieURI uri : uris) {
+                    archives[i].createIncomingAction(uri);
+                }
+            }
+            int fastRequests = fast.getRequests();
+            int slowRequests = slow.getRequests();
+            long start = System.currentTimeMillis();
+            Thread threads[] = new Thread[2];
+            for (int i = 0; i < 2; i++) {
+                final SyncArchive archive = archives[i];
+                threads[i] = new Thread(new Runnable() {
+                    public void run() { fetcher.fetchHTTP(archive); }
+                }, "Sync " + i);
+                threads[i].start();
+            }
+            for (int i = 0; i < 2; i++)
+                threads[i].join();
+            rv[sync] = System.currentTimeMillis() - start;
+            int fetched = 0;
+            for (SyndieURI uri : uris) {
+                if (local.contains(uri))
+                    fetched++;
+            }
+            System.out.println((slowLatency >= 0 ? "Slow" : "Down") + " mirror, " +
+                               (prefer ? "rerouting" : "no rerouting") + ", sync " + (sync + 1) + ": " +
+                               fetched + '/' + uris.size() + " posts in " + rv[sync] + " ms, " +
+                               (fast.getRequests() - fastRequests) + " requests to the fast archive, " +
+                               (slow.getRequests() - slowRequests) + " to the other; " + mgr.getInFlightFetches());
+            if (fetched < uris.size())
+                rv[sync] = -1;
+        }
+        fast.stop();
+        slow.stop();
+        return rv;
+    }
+}
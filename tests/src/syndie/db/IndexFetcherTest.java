@@ -0,0 +1,100 @@
+package syndie.db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *  The IndexFetcher harness, see main(). Only in the test build, not the jar.
+ *
+ *  @since 1.107b-1
+ */
+class IndexFetcherTest {
+    /**
+     *  Fetch the indexes of several LoopbackArchives at once, with some of them
+     *  stalled (they take the request and never answer), and report how long the others took.
+     *  The parsed indexes are empty and not processed.
+     *
+     *  Usage: IndexFetcherTest [archives [stalled]]
+     *
+     *  @since 1.107b-1
+     */
+    public static void main(String args[]) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int stalled = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "syndie-index-test-" + System.currentTimeMillis());
+        File webDir = new File(dir, "web");
+        webDir.mkdirs();
+        SharedArchive index = new SharedArchive();
+        index.setAbout(new SharedArchive.About());
+        index.setChannels(new ArrayList());
+        index.setMessages(new ArrayList());
+        FileOutputStream fos = new FileOutputStream(new File(webDir, LocalArchiveManager.SHARED_INDEX_FILE));
+        try {
+            index.write(fos);
+        } finally {
+            fos.close();
+        }
+        LoopbackArchive servers[] = new LoopbackArchive[count];
+        IndexFetcher fetcher = null;
+        try {
+            SyncManager mgr = LoopbackArchive.createManager(dir);
+            final CountDownLatch healthy = new CountDownLatch(count - stalled);
+            final AtomicBoolean finished = new AtomicBoolean();
+            final long start = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                servers[i] = new LoopbackArchive(webDir, null);
+                servers[i].setLatency(200);
+                final boolean stall = i < stalled;
+                servers[i].setStalled(stall);
+                servers[i].start();
+                final String name = (stall ? "stalled " : "archive ") + i;
+                SyncArchive archive = new SyncArchive(mgr, mgr.getClient()) {
+                    @Override
+                    public void indexFetched(UI ui, SharedArchive shared) {
+                        if (finished.get())
+                            return;
+                        System.out.println(name + " index fetched at " + (System.currentTimeMillis() - start) + " ms");
+                        if (!stall)
+                            healthy.countDown();
+                    }
+                    @Override
+                    void indexFetchFail(String msg, Exception cause, boolean allowReschedule) {
+                        if (finished.get())
+                            return;
+                        System.out.println(name + " index fetch failed at " + (System.currentTimeMillis() - start) + " ms: " + msg);
+                        if (!stall)
+                            healthy.countDown();
+                    }
+                };
+                archive.setURL(servers[i].getURL());
+                archive.setNextSyncTime(start);
+                mgr.added(archive);
+            }
+            fetcher = new IndexFetcher(mgr);
+            fetcher.start();
+            boolean ok = healthy.await(60, TimeUnit.SECONDS);
+            long time = System.currentTimeMillis() - start;
+            // the stalled ones fail when we close them
+            finished.set(true);
+            System.out.println((count - stalled) + " of " + count + " indexes " + (ok ? "done" : "NOT done") +
+                               " in " + time + " ms, with " + stalled + " stalled");
+            ok = ok && time < 30*1000;
+            System.out.println(ok ? "Stalled archives don't hold up the others: OK" : "FAILED");
+            if (!ok)
+                System.exit(1);
+        } finally {
+            if (fetcher != null)
+                fetcher.kill();
+            for (int i = 0; i < count; i++) {
+                if (servers[i] != null)
+                    servers[i].stop();
+            }
+            SyncManager.unloadAll();
+            LoopbackArchive.delete(dir);
+        }
+    }
+}
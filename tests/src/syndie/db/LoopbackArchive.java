@@ -0,0 +1,440 @@
+package syndie.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataFormatException;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.SecureFile;
+
+import syndie.data.SyndieURI;
+
+/**
+ *  A stand-in archive on 127.0.0.1 for the sync test harnesses (the *Test classes here),
+ *  serving files under a directory by GET, and batch.cgi by POST, in the HTTPServ formats.
+ *  Items POSTed to import.cgi are counted and thrown away, and acknowledged
+ *  if the features include HTTPServ.FEATURE_ACK.
+ *  One thread per connection, HTTP/1.0, Connection: close.
+ *
+ *  Can be slowed down, rate limited, made to drop uploads part way,
+ *  stalled (accepts and reads the request but never answers),
+ *  or stopped, to play a slow, flaky, or down archive.
+ *
+ *  Not for use outside of tests.
+ *
+ *  @since 1.107b-1
+ */
+class LoopbackArchive implements Runnable {
+    private final File _root;
+    private final String _features;
+    private final ServerSocket _server;
+    private final TokenBucket _bucket;
+    private volatile long _latency;
+    private volatile boolean _stalled;
+    private volatile boolean _stopped;
+    private volatile long _dropMean;
+    private final Random _rnd = new Random();
+    private final List<Socket> _stalledSockets;
+    private final AtomicInteger _requests = new AtomicInteger();
+    private final AtomicLong _sent = new AtomicLong();
+    private final AtomicLong _received = new AtomicLong();
+    private final AtomicInteger _items = new AtomicInteger();
+    private final AtomicInteger _dropped = new AtomicInteger();
+
+    /**
+     *  Listens right away, call start() to answer
+     *
+     *  @param root files are served from here, e.g. $root/$scope/$messageId.syndie
+     *  @param features for the FEATURES_HEADER, e.g. HTTPServ.FEATURE_BATCH, or null for none
+     */
+    public LoopbackArchive(File root, String features) throws IOException {
+        _root = root;
+        _features = features;
+        _server = new ServerSocket(0, 256, InetAddress.getByName("127.0.0.1"));
+        _bucket = new TokenBucket("loopback");
+        _stalledSockets = new ArrayList<Socket>();
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "Loopback archive " + getPort());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** stop listening, and close any stalled connections, so it looks down */
+    public void stop() {
+        _stopped = true;
+        try { _server.close(); } catch (IOException ioe) {}
+        synchronized (_stalledSockets) {
+            for (Socket s : _stalledSockets) {
+                try { s.close(); } catch (IOException ioe) {}
+            }
+            _stalledSockets.clear();
+        }
+    }
+
+    public int getPort() { return _server.getLocalPort(); }
+
+    /** @return e.g. "http://127.0.0.1:12345/" */
+    public String getURL() { return "http://127.0.0.1:" + getPort() + '/'; }
+
+    /** added to each response, before the headers, as for a lookup over a slow network */
+    public void setLatency(long ms) { _latency = ms; }
+
+    /** for all responses together, bytes per second, -1 for unlimited */
+    public void setRate(int bytesPerSecond) { _bucket.setRate(bytesPerSecond); }
+
+    /** if true, new requests are read but never answered */
+    public void setStalled(boolean stalled) { _stalled = stalled; }
+
+    /**
+     *  Close connections part way through the request body, at random,
+     *  on average every this many bytes received, 0 for never
+     */
+    public void setDropRate(long meanBytes) { _dropMean = meanBytes; }
+
+    public int getRequests() { return _requests.get(); }
+
+    /** request bodies, including those dropped */
+    public long getBytesReceived() { return _received.get(); }
+
+    /** complete items POSTed to import.cgi */
+    public int getItemsReceived() { return _items.get(); }
+
+    /** connections dropped by setDropRate() */
+    public int getDropped() { return _dropped.get(); }
+
+    /** response bodies only */
+    public long getBytesSent() { return _sent.get(); }
+
+    public void run() {
+        while (!_stopped) {
+            final Socket s;
+            try {
+                s = _server.accept();
+            } catch (IOException ioe) {
+                break;
+            }
+            Thread t = new Thread(new Runnable() {
+                public void run() { handle(s); }
+            }, "Loopback conn");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void handle(Socket s) {
+        boolean close = true;
+        try {
+            InputStream in = s.getInputStream();
+            String line = DataHelper.readLine(in);
+            if (line == null)
+                return;
+            String parts[] = line.split(" ");
+            if (parts.length < 2)
+                return;
+            long len = 0;
+            boolean ack = false;
+            while ( (line = DataHelper.readLine(in)) != null && line.trim().length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon <= 0)
+                    continue;
+                String key = line.substring(0, colon).trim();
+                if ("Content-length".equalsIgnoreCase(key))
+                    len = Long.parseLong(line.substring(colon + 1).trim());
+                else if (HTTPServ.ACK_HEADER.equalsIgnoreCase(key))
+                    ack = true;
+            }
+            long dropAt = -1;
+            long mean = _dropMean;
+            if (mean > 0) {
+                synchronized (_rnd) {
+                    // exponential, so drops are independent of how much was sent before
+                    dropAt = (long) (-mean * Math.log(1 - _rnd.nextDouble()));
+                }
+            }
+            byte body[] = new byte[(int) len];
+            int read = 0;
+            while (read < body.length) {
+                int cur = in.read(body, read, Math.min(4096, body.length - read));
+                if (cur == -1)
+                    return;
+                read += cur;
+                _received.addAndGet(cur);
+                if (dropAt >= 0 && read >= dropAt) {
+                    _dropped.incrementAndGet();
+                    return;
+                }
+            }
+            _requests.incrementAndGet();
+            if (_stalled) {
+                synchronized (_stalledSockets) {
+                    if (_stopped)
+                        return;
+                    _stalledSockets.add(s);
+                }
+                close = false;
+                return;
+            }
+            if (_latency > 0)
+                Thread.sleep(_latency);
+
+            String path = parts[1];
+            int q = path.indexOf('?');
+            if (q >= 0)
+                path = path.substring(0, q);
+            if (path.startsWith("http://")) {
+                // proxied form
+                int slash = path.indexOf('/', "http://".length());
+                path = slash >= 0 ? path.substring(slash) : "/";
+            }
+            OutputStream out = s.getOutputStream();
+            if ("POST".equals(parts[0]) && path.endsWith('/' + HTTPServ.BATCH_CGI))
+                sendBatch(out, DataHelper.getUTF8(body).split("\n"));
+            else if ("POST".equals(parts[0]) && path.endsWith("/import.cgi"))
+                receivePost(out, body, ack && _features != null && _features.indexOf(HTTPServ.FEATURE_ACK) >= 0);
+            else if ("GET".equals(parts[0]) || "HEAD".equals(parts[0]))
+                sendFile(out, path, "HEAD".equals(parts[0]));
+            else
+                sendHeaders(out, 404, -1);
+            out.flush();
+        } catch (IOException ioe) {
+        } catch (DataFormatException dfe) {
+        } catch (InterruptedException ie) {
+        } catch (NumberFormatException nfe) {
+        } finally {
+            if (close)
+                try { s.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /** @return null if not found */
+    private File getFile(String path) {
+        if (path.indexOf("..") >= 0)
+            return null;
+        while (path.startsWith("/"))
+            path = path.substring(1);
+        File f = new File(_root, path);
+        return f.isFile() ? f : null;
+    }
+
+    private void sendHeaders(OutputStream out, int code, long len) throws IOException {
+        StringBuilder buf = new StringBuilder(128);
+        buf.append("HTTP/1.0 ").append(code).append(code == 200 ? " OK" : " Not found").append("\r\n");
+        if (len >= 0)
+            buf.append("Content-length: ").append(len).append("\r\n");
+        if (_features != null)
+            buf.append(HTTPServ.FEATURES_HEADER).append(": ").append(_features).append("\r\n");
+        buf.append("Connection: close\r\n\r\n");
+        out.write(DataHelper.getUTF8(buf.toString()));
+    }
+
+    private void sendFile(OutputStream out, String path, boolean headOnly) throws IOException {
+        File f = getFile(path);
+        if (f == null) {
+            sendHeaders(out, 404, 0);
+            return;
+        }
+        sendHeaders(out, 200, f.length());
+        if (!headOnly)
+            copy(f, out);
+    }
+
+    /** see HTTPServ.handleBatch() */
+    private void sendBatch(OutputStream out, String paths[]) throws IOException, DataFormatException {
+        sendHeaders(out, 200, -1);
+        for (int i = 0; i < paths.length && i < HTTPServ.MAX_BATCH_ITEMS; i++) {
+            String path = paths[i].trim();
+            if (path.length() <= 0)
+                continue;
+            File f = getFile(path);
+            if (f == null) {
+                DataHelper.writeLong(out, 1, HTTPServ.BATCH_NOT_FOUND);
+                DataHelper.writeLong(out, 4, 0);
+            } else {
+                DataHelper.writeLong(out, 1, HTTPServ.BATCH_OK);
+                DataHelper.writeLong(out, 4, f.length());
+                copy(f, out);
+            }
+        }
+    }
+
+    /**
+     *  See HTTPServ.handlePost(), every complete item is OK
+     *
+     *  @param ack send a line per item, see HTTPServ.ACK_HEADER
+     */
+    private void receivePost(OutputStream out, byte body[], boolean ack) throws IOException {
+        int off = 2 + (int) DataHelper.fromLong(body, 0, 2);
+        StringBuilder acks = new StringBuilder();
+        int num = 0;
+        while (off + 5 <= body.length) {
+            int flag = (int) DataHelper.fromLong(body, off, 1);
+            off++;
+            if ((flag & HTTPServ.ITEM_FLAG_HASHCASH) != 0)
+                off += Hashcash.STAMP_LENGTH;
+            long sz = DataHelper.fromLong(body, off, 4);
+            off += 4;
+            if (off + sz > body.length)
+                break;
+            off += sz;
+            _items.incrementAndGet();
+            acks.append(++num).append(' ').append(HTTPServ.ACK_OK).append('\n');
+        }
+        sendHeaders(out, 200, -1);
+        if (ack)
+            out.write(DataHelper.getUTF8(acks.toString()));
+    }
+
+    private void copy(File f, OutputStream out) throws IOException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(f);
+            byte buf[] = new byte[4096];
+            int read;
+            while ( (read = in.read(buf)) != -1) {
+                _bucket.consume(read);
+                out.write(buf, 0, read);
+                _sent.addAndGet(read);
+            }
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  A plain GET from 127.0.0.1, for the harnesses that don't go through EepGet
+     *
+     *  @param global the body is read through this and local, as in TokenBucket.consume(), may be null
+     *  @param local may be null
+     *  @return the body length, or -1 on error or if not 200
+     */
+    public static long fetch(int port, String path, TokenBucket global, TokenBucket local) {
+        Socket s = null;
+        try {
+            s = new Socket("127.0.0.1", port);
+            s.setSoTimeout(60*1000);
+            OutputStream out = s.getOutputStream();
+            out.write(DataHelper.getUTF8("GET " + path + " HTTP/1.0\r\nConnection: close\r\n\r\n"));
+            out.flush();
+            InputStream in = s.getInputStream();
+            String line = DataHelper.readLine(in);
+            if (line == null || !line.startsWith("HTTP/1.0 200"))
+                return -1;
+            while ( (line = DataHelper.readLine(in)) != null && line.trim().length() > 0) {
+                // skip
+            }
+            byte buf[] = new byte[4096];
+            long rv = 0;
+            int read;
+            while ( (read = in.read(buf)) != -1) {
+                TokenBucket.consume(global, local, read);
+                rv += read;
+            }
+            return rv;
+        } catch (IOException ioe) {
+            return -1;
+        } finally {
+            if (s != null) try { s.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  Random data of random sizes laid out as an archive's posts, $dir/$scope/$messageId.syndie.
+     *  Not valid posts, so the import must be stubbed out.
+     *
+     *  @return the URIs, in the order created
+     */
+    public static List<SyndieURI> createPosts(File dir, int channels, int posts, int minSize, int maxSize, long seed) throws IOException {
+        Random rnd = new Random(seed);
+        Hash scopes[] = new Hash[channels];
+        for (int i = 0; i < channels; i++) {
+            byte h[] = new byte[Hash.HASH_LENGTH];
+            rnd.nextBytes(h);
+            scopes[i] = new Hash(h);
+            new File(dir, scopes[i].toBase64()).mkdirs();
+        }
+        List<SyndieURI> rv = new ArrayList<SyndieURI>(posts);
+        byte data[] = new byte[maxSize];
+        long msgId = System.currentTimeMillis() - posts;
+        for (int i = 0; i < posts; i++) {
+            Hash scope = scopes[rnd.nextInt(channels)];
+            SyndieURI uri = SyndieURI.createMessage(scope, msgId++);
+            int sz = minSize + rnd.nextInt(maxSize - minSize + 1);
+            rnd.nextBytes(data);
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(new File(new File(dir, scope.toBase64()), uri.getMessageId() + ".syndie"));
+                out.write(data, 0, sz);
+            } finally {
+                if (out != null) try { out.close(); } catch (IOException ioe) {}
+            }
+            rv.add(uri);
+        }
+        return rv;
+    }
+
+    /**
+     *  A SyncManager with no database behind it, online, with no archives loaded.
+     *  Nothing is local, so everything gets fetched.
+     *  Call SyncManager.unloadAll() when done.
+     *
+     *  @param rootDir for the client's temp dir and the fetch spool
+     */
+    public static SyncManager createManager(File rootDir) {
+        return createManager(rootDir, null);
+    }
+
+    /**
+     *  As createManager(rootDir), with the posts in local taken as already imported,
+     *  so a stubbed import can add to it and other archives won't fetch them again.
+     *
+     *  @param local must be thread safe, may be null
+     */
+    public static SyncManager createManager(File rootDir, final Set<SyndieURI> local) {
+        SyncManager.unloadAll();
+        new SecureFile(rootDir, "tmp").mkdirs();
+        DBClient client = new DBClient(I2PAppContext.getGlobalContext(), rootDir) {
+            private final Properties _prefs = new Properties();
+            @Override
+            public Properties getNymPrefs() { return _prefs; }
+            @Override
+            public void setNymPrefs(Properties prefs) {}
+            @Override
+            public long getMessageId(Hash scope, Long messageId) {
+                if (local != null && messageId != null && local.contains(SyndieURI.createMessage(scope, messageId.longValue())))
+                    return 1;
+                return -1;
+            }
+        };
+        SyncManager mgr = SyncManager.getInstance(client, new NullUI());
+        mgr.setIsOnline(true);
+        return mgr;
+    }
+
+    /** recursive */
+    public static void delete(File f) {
+        File files[] = f.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++)
+                delete(files[i]);
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,96 @@
+package syndie.db;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.i2p.data.Hash;
+import syndie.data.SyndieURI;
+import static syndie.db.ImportResult.Detail.*;
+
+/**
+ *  The SyncInboundFetcher harness, see main(). Only in the test build, not the jar.
+ *
+ *  @since 1.107b-1
+ */
+class SyncInboundFetcherTest {
+    /**
+     *  Pull a synthetic archive from a LoopbackArchive, one file per request
+     *  and then in batches, with the import stubbed out, and report the time taken.
+     *  One post is bigger than its index entry says, and must be refused either way.
+     *
+     *  Usage: SyncInboundFetcherTest [posts [latencyMs [KBps]]]
+     *
+     *  @since 1.107b-1
+     */
+    public static void main(String args[]) throws Exception {
+        int posts = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 20;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) * 1024 : -1;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "syndie-fetch-test-" + System.currentTimeMillis());
+        File archiveDir = new File(dir, "archive");
+        List<SyndieURI> uris = LoopbackArchive.createPosts(archiveDir, 50, posts, 1024, 16*1024, 42);
+        boolean ok = true;
+        try {
+            ok &= pullTest(new File(dir, "single"), archiveDir, uris, null, latency, rate);
+            ok &= pullTest(new File(dir, "batch"), archiveDir, uris, HTTPServ.FEATURE_BATCH, latency, rate);
+        } finally {
+            SyncManager.unloadAll();
+            LoopbackArchive.delete(dir);
+        }
+        System.out.println(ok ? "Oversized post refused, all others fetched: OK" : "FAILED");
+        if (!ok)
+            System.exit(1);
+    }
+
+    /**
+     *  @return true if all but the oversized post were fetched and that one wasn't
+     */
+    private static boolean pullTest(File rootDir, File archiveDir, List<SyndieURI> uris, String features,
+                                    long latency, int rate) throws Exception {
+        SyncManager mgr = LoopbackArchive.createManager(rootDir);
+        LoopbackArchive server = new LoopbackArchive(archiveDir, features);
+        server.setLatency(latency);
+        server.setRate(rate);
+        server.start();
+        SyncArchive archive = new SyncArchive(mgr, mgr.getClient());
+        archive.setURL(server.getURL());
+        archive.setRemoteFeatures(features);
+        SyndieURI liar = uris.get(uris.size() / 2);
+        for (SyndieURI uri : uris) {
+            SyncArchive.IncomingAction action = archive.createIncomingAction(uri);
+            // as the index would advertise it, rounded up to the KB
+            long sz = new File(new File(archiveDir, uri.getScope().toBase64()), uri.getMessageId() + ".syndie").length();
+            action.setMaxSize(uri == liar ? 1024 : ((sz + 1023) / 1024) * 1024);
+        }
+        final AtomicInteger imported = new AtomicInteger();
+        SyncInboundFetcher fetcher = new SyncInboundFetcher(mgr) {
+            @Override
+            void importData(SyncArchive.IncomingAction action, File datafile, boolean delete, Set<Hash> whitelistScopes) {
+                imported.incrementAndGet();
+                action.importSuccessful(IMPORT_OK);
+                if (delete)
+                    datafile.delete();
+            }
+        };
+        long start = System.currentTimeMillis();
+        fetcher.fetchHTTP(archive);
+        long time = System.currentTimeMillis() - start;
+        server.stop();
+        int failed = 0;
+        boolean liarFailed = false;
+        for (int i = 0; i < archive.getIncomingActionCount(); i++) {
+            SyncArchive.IncomingAction action = archive.getIncomingAction(i);
+            if (action.getResult() == IMPORT_OK)
+                continue;
+            failed++;
+            if (action.getURI() == liar)
+                liarFailed = true;
+        }
+        System.out.println((features != null ? "Batch:  " : "Single: ") + uris.size() + " posts in " + time + " ms, " +
+                           imported.get() + " imported, " + failed + " failed, " +
+                           server.getRequests() + " requests, " + (server.getBytesSent() / 1024) + " KB; " +
+                           archive.getFetchConcurrency());
+        return liarFailed && failed == 1 && imported.get() == uris.size() - 1;
+    }
+}
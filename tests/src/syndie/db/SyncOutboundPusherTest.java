@@ -0,0 +1,75 @@
+package syndie.db;
+
+import java.io.File;
+import java.util.List;
+import syndie.Constants;
+import syndie.data.SyndieURI;
+
+/**
+ *  The SyncOutboundPusher harness, see main(). Only in the test build, not the jar.
+ *
+ *  @since 1.107b-1
+ */
+class SyncOutboundPusherTest {
+    /**
+     *  Push a synthetic archive to a LoopbackArchive that drops connections at random,
+     *  and report the time taken, how much was sent again, and what was lost.
+     *
+     *  Usage: SyncOutboundPusherTest [MB [meanMBBetweenDrops]]
+     *
+     *  @since 1.107b-1
+     */
+    public static void main(String args[]) throws Exception {
+        int mb = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int dropMB = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "syndie-push-test-" + System.currentTimeMillis());
+        boolean ok = false;
+        try {
+            SyncManager mgr = LoopbackArchive.createManager(dir);
+            // 16-112KB, 64KB average
+            List<SyndieURI> uris = LoopbackArchive.createPosts(mgr.getClient().getArchiveDir(), 20, mb * 16, 16*1024, 112*1024, 42);
+            File empty = new File(dir, "remote");
+            empty.mkdirs();
+            LoopbackArchive server = new LoopbackArchive(empty, HTTPServ.FEATURE_ACK);
+            server.setDropRate(dropMB * 1024L * 1024L);
+            server.start();
+            SyncArchive archive = new SyncArchive(mgr, mgr.getClient());
+            archive.setURL(server.getURL());
+            archive.setRemoteFeatures(HTTPServ.FEATURE_ACK);
+            long total = 0;
+            for (SyndieURI uri : uris) {
+                SyncArchive.OutgoingAction action = archive.createOutgoingAction(uri);
+                File f = new File(new File(mgr.getClient().getArchiveDir(), uri.getScope().toBase64()), uri.getMessageId() + Constants.FILENAME_SUFFIX);
+                action.setSize(f.length());
+                total += f.length();
+            }
+            SyncOutboundPusher pusher = new SyncOutboundPusher(mgr);
+            long start = System.currentTimeMillis();
+            pusher.pushHTTP(archive);
+            long time = System.currentTimeMillis() - start;
+            server.stop();
+            int pushed = 0;
+            int failed = 0;
+            for (int i = 0; i < archive.getOutgoingActionCount(); i++) {
+                SyncArchive.OutgoingAction action = archive.getOutgoingAction(i);
+                if (action.isComplete() && action.getErrorMsg() == null)
+                    pushed++;
+                else
+                    failed++;
+            }
+            long rcvd = server.getBytesReceived();
+            System.out.println(uris.size() + " posts, " + (total / (1024*1024)) + " MB in " + (time / 1000) + " s, " +
+                               server.getDropped() + " connections dropped, " +
+                               (rcvd / (1024*1024)) + " MB sent (" + ((rcvd - total) * 100 / total) + "% again), " +
+                               server.getRequests() + " POSTs; " +
+                               pushed + " pushed, " + failed + " failed, " + server.getItemsReceived() + " received");
+            ok = failed == 0 && pushed == uris.size();
+        } finally {
+            SyncManager.unloadAll();
+            LoopbackArchive.delete(dir);
+        }
+        System.out.println(ok ? "All pushed over the flaky link: OK" : "FAILED");
+        if (!ok)
+            System.exit(1);
+    }
+}
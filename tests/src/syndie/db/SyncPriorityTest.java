@@ -0,0 +1,106 @@
+package syndie.db;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.i2p.data.Hash;
+import syndie.data.SyndieURI;
+
+/**
+ *  The SyncPriority harness, see main(). Only in the test build, not the jar.
+ *
+ *  @since 1.107b-1
+ */
+class SyncPriorityTest {
+    /**
+     *  Pull a mixed backlog from a LoopbackArchive, in index order and then prioritized,
+     *  with the import stubbed out, and report when the first and last of the
+     *  posts in watched channels and private messages came in.
+     *
+     *  Usage: SyncPriorityTest [posts [latencyMs]]
+     *
+     *  @since 1.107b-1
+     */
+    public static void main(String args[]) throws Exception {
+        int posts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 100;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "syndie-priority-test-" + System.currentTimeMillis());
+        File archiveDir = new File(dir, "archive");
+        try {
+            List<SyndieURI> uris = LoopbackArchive.createPosts(archiveDir, 50, posts, 1024, 16*1024, 42);
+            // two watched channels, and 1 in 200 private
+            Set<Hash> watched = new HashSet<Hash>();
+            for (SyndieURI uri : uris) {
+                if (watched.size() >= 2)
+                    break;
+                watched.add(uri.getScope());
+            }
+            Set<SyndieURI> pms = new HashSet<SyndieURI>();
+            Random rnd = new Random(42);
+            for (SyndieURI uri : uris) {
+                if (rnd.nextInt(200) == 0)
+                    pms.add(uri);
+            }
+            SyncPriority priority = new SyncPriority(new HashSet<Hash>(), watched, new HashSet<Hash>());
+            long before[] = priorityTest(new File(dir, "before"), archiveDir, uris, null, watched, pms, latency);
+            long after[] = priorityTest(new File(dir, "after"), archiveDir, uris, priority, watched, pms, latency);
+            System.out.println("Index order: first watched/PM post at " + before[0] + " ms, last at " + before[1] + " ms, all " + before[2] + " ms");
+            System.out.println("Prioritized: first watched/PM post at " + after[0] + " ms, last at " + after[1] + " ms, all " + after[2] + " ms");
+            boolean ok = after[1] < before[1];
+            System.out.println(ok ? "Watched and private posts sooner: OK" : "FAILED");
+            if (!ok)
+                System.exit(1);
+        } finally {
+            SyncManager.unloadAll();
+            LoopbackArchive.delete(dir);
+        }
+    }
+
+    /**
+     *  @param priority null for index order
+     *  @return ms to the first and last watched or private post, and to the end
+     */
+    private static long[] priorityTest(File rootDir, File archiveDir, List<SyndieURI> uris, SyncPriority priority,
+                                       final Set<Hash> watched, final Set<SyndieURI> pms, long latency) throws Exception {
+        SyncManager mgr = LoopbackArchive.createManager(rootDir);
+        LoopbackArchive server = new LoopbackArchive(archiveDir, null);
+        server.setLatency(latency);
+        server.start();
+        SyncArchive archive = new SyncArchive(mgr, mgr.getClient());
+        archive.setURL(server.getURL());
+        for (SyndieURI uri : uris) {
+            SyncArchive.IncomingAction action = archive.createIncomingAction(uri);
+            if (priority != null)
+                action.setPriority(priority.getPriority(uri, null, pms.contains(uri)));
+        }
+        final long start = System.currentTimeMillis();
+        final AtomicLong first = new AtomicLong();
+        final AtomicLong last = new AtomicLong();
+        final AtomicInteger wanted = new AtomicInteger();
+        SyncInboundFetcher fetcher = new SyncInboundFetcher(mgr) {
+            @Override
+            void importData(SyncArchive.IncomingAction action, File datafile, boolean delete, Set<Hash> whitelistScopes) {
+                SyndieURI uri = action.getURI();
+                if (watched.contains(uri.getScope()) || pms.contains(uri)) {
+                    long now = System.currentTimeMillis() - start;
+                    first.compareAndSet(0, now);
+                    last.set(now);
+                    wanted.incrementAndGet();
+                }
+                action.importSuccessful(ImportResult.Detail.IMPORT_OK);
+                if (delete)
+                    datafile.delete();
+            }
+        };
+        fetcher.fetchHTTP(archive);
+        long time = System.currentTimeMillis() - start;
+        server.stop();
+        System.out.println((priority != null ? "Prioritized: " : "Index order: ") + uris.size() + " posts, " +
+                           wanted.get() + " watched or private, in " + time + " ms");
+        return new long[] { first.get(), last.get(), time };
+    }
+}
@@ -0,0 +1,84 @@
+package syndie.db;
+
+import java.io.File;
+
+/**
+ *  The TokenBucket harness, see main(). Only in the test build, not the jar.
+ *
+ *  @since 1.107b-1
+ */
+class TokenBucketTest {
+    /**
+     *  Read from a LoopbackArchive through a global and a per-archive bucket, as
+     *  the fetchers do, and check the observed rate is within 10% of the lower limit.
+     *  Last, two readers on separate local buckets share the global one.
+     *
+     *  Usage: TokenBucketTest [KBps [secs]]
+     *
+     *  @since 1.107b-1
+     */
+    public static void main(String args[]) throws Exception {
+        int rate = (args.length > 0 ? Integer.parseInt(args[0]) : 256) * 1024;
+        int secs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "syndie-bucket-test-" + System.currentTimeMillis());
+        boolean ok = true;
+        try {
+            LoopbackArchive.createPosts(dir, 1, 1, 1024*1024, 1024*1024, 42);
+            String path = '/' + dir.listFiles()[0].getName() + '/' + dir.listFiles()[0].list()[0];
+            LoopbackArchive server = new LoopbackArchive(dir, null);
+            server.start();
+            ok &= rateTest("Local limit", server.getPort(), path, -1, rate, 1, secs);
+            ok &= rateTest("Global limit", server.getPort(), path, rate, rate * 2, 1, secs);
+            ok &= rateTest("Shared global limit", server.getPort(), path, rate, -1, 2, secs);
+            server.stop();
+        } finally {
+            LoopbackArchive.delete(dir);
+        }
+        System.out.println(ok ? "Observed rates within the limits: OK" : "FAILED");
+        if (!ok)
+            System.exit(1);
+    }
+
+    /**
+     *  @param globalRate -1 for unlimited
+     *  @param localRate -1 for unlimited
+     *  @return true if the total rate was within 10% of the lower limit
+     */
+    private static boolean rateTest(String name, final int port, final String path, int globalRate, int localRate,
+                                    int readers, int secs) throws Exception {
+        final TokenBucket global = new TokenBucket("global");
+        global.setRate(globalRate);
+        final long end = System.currentTimeMillis() + secs * 1000L;
+        final TokenBucket locals[] = new TokenBucket[readers];
+        Thread threads[] = new Thread[readers];
+        for (int i = 0; i < readers; i++) {
+            final TokenBucket local = new TokenBucket("local " + i);
+            local.setRate(localRate);
+            locals[i] = local;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    while (System.currentTimeMillis() < end) {
+                        if (LoopbackArchive.fetch(port, path, global, local) < 0)
+                            break;
+                    }
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < readers; i++)
+            threads[i].start();
+        for (int i = 0; i < readers; i++)
+            threads[i].join();
+        long elapsed = System.currentTimeMillis() - start;
+        long total = 0;
+        for (int i = 0; i < readers; i++)
+            total += locals[i].getTotal();
+        long limit = globalRate > 0 ? (localRate > 0 ? Math.min(globalRate * 1L, localRate * (long) readers) : globalRate)
+                                    : localRate * (long) readers;
+        long observed = total * 1000 / Math.max(1, elapsed);
+        boolean ok = observed <= limit * 11 / 10 && observed >= limit * 9 / 10;
+        System.out.println(name + ": " + readers + " reader(s), limit " + (limit / 1024) + " KBps, observed " +
+                           (observed / 1024) + " KBps: " + (ok ? "OK" : "FAILED"));
+        return ok;
+    }
+}